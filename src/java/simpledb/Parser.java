@@ -19,6 +19,7 @@ import simpledb.storage.IntField;
 import simpledb.storage.StringField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
+import simpledb.transaction.Durability;
 import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionId;
 
@@ -187,23 +188,19 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        List<String> groupByFields = new ArrayList<>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             List<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.get(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
                 System.out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.add(groupByField);
             }
 
         }
@@ -212,8 +209,8 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         List<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        List<String> aggFields = new ArrayList<>();
+        List<String> aggFuns = new ArrayList<>();
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.get(i);
@@ -223,20 +220,18 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggFun = si.getAggregate();
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
                 lp.addProjectField(aggField, aggFun);
+                aggFields.add(aggField);
+                aggFuns.add(aggFun);
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                                + si.getColumn()) || groupByField.equals(si
+                if (!groupByFields.isEmpty()
+                        && !(groupByFields.contains(si.getTable() + "."
+                                + si.getColumn()) || groupByFields.contains(si
                                 .getColumn()))) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
@@ -246,44 +241,57 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && aggFuns.isEmpty()) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
+        // 所有聚合在同一个 Aggregate 里一遍算完
+        for (String groupByField : groupByFields) {
+            lp.addGroupBy(groupByField);
+        }
+        for (int i = 0; i < aggFuns.size(); i++) {
+            lp.addAggregate(aggFuns.get(i), aggFields.get(i));
         }
         // sort the data
 
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
             List<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.get(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException(
-                        "Complex ORDER BY's are not supported");
-            }
-            ZConstant f = (ZConstant) oby.getExpression();
-
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant) oby.getExpression();
 
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            }
         }
         return lp;
     }
 
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
+    private Durability durability = Durability.SYNC;
 
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws IOException,
             simpledb.ParsingException, Zql.ParseException {
+        return handleQueryStatement(s, null, tId);
+    }
+
+    /**
+     * @param limit the LIMIT clause cut off the query, or null
+     */
+    Query handleQueryStatement(ZQuery s, LimitClause limit, TransactionId tId)
+            throws IOException,
+            simpledb.ParsingException, Zql.ParseException {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        if (limit != null) {
+            lp.setLimit(limit.limit, limit.offset);
+        }
         OpIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -453,6 +461,7 @@ public class Parser {
                     throw new ParsingException(
                             "Can't start new transactions until current transaction has been committed or rolledback.");
                 curtrans = new Transaction();
+                curtrans.setDurability(durability);
                 curtrans.start();
                 inUserTrans = true;
                 System.out.println("Started a new transaction tid = "
@@ -465,12 +474,20 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException, IOException {
+        LimitClause limit = LimitClause.split(s);
+        if (limit != null) {
+            s = limit.statement;
+        }
         ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
-                return parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                if (limit != null) {
+                    lp.setLimit(limit.limit, limit.offset);
+                }
+                return lp;
             }
         } catch (Zql.ParseException e) {
             throw new simpledb.ParsingException(
@@ -489,14 +506,168 @@ public class Parser {
         return curtrans;
     }
 
+    /**
+     * Set how long the commits of the following transactions wait for the
+     * log, see {@link Transaction#setDurability}.
+     */
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Handle "SET DURABILITY level", "SET JOIN_MEMORY bytes", "SET
+     * SORT_MEMORY bytes", "SET SORT_THREADS n" and "SET AGG_MEMORY bytes",
+     * which ZQL does not parse. The memory may have a K or M suffix.
+     *
+     * @return true if the statement was a session setting
+     */
+    boolean handleSessionStatement(String s) {
+        String[] words = s.trim().replaceAll(";$", "").trim().split("\\s+");
+        if (words.length != 3 || !words[0].equalsIgnoreCase("set")) {
+            return false;
+        }
+        if (words[1].equalsIgnoreCase("durability")) {
+            try {
+                durability = Durability.parse(words[2]);
+                System.out.println("Durability set to " + durability + ".");
+            } catch (IllegalArgumentException e) {
+                System.out.println("Unknown durability " + words[2] + ", expected sync, group or async");
+            }
+            return true;
+        }
+        if (words[1].equalsIgnoreCase("join_memory")) {
+            try {
+                long bytes = parseBytes(words[2]);
+                HashEquiJoin.setDefaultMemoryBudget(bytes);
+                Join.setDefaultMemoryBudget(bytes);
+                System.out.println("Join memory set to " + bytes + " bytes.");
+            } catch (IllegalArgumentException e) {
+                System.out.println("Invalid join memory " + words[2] + ", expected a positive number of bytes");
+            }
+            return true;
+        }
+        if (words[1].equalsIgnoreCase("sort_memory")) {
+            try {
+                long bytes = parseBytes(words[2]);
+                OrderBy.setDefaultMemoryBudget(bytes);
+                System.out.println("Sort memory set to " + bytes + " bytes.");
+            } catch (IllegalArgumentException e) {
+                System.out.println("Invalid sort memory " + words[2] + ", expected a positive number of bytes");
+            }
+            return true;
+        }
+        if (words[1].equalsIgnoreCase("agg_memory")) {
+            try {
+                long bytes = parseBytes(words[2]);
+                Aggregate.setDefaultMemoryBudget(bytes);
+                System.out.println("Aggregate memory set to " + bytes + " bytes.");
+            } catch (IllegalArgumentException e) {
+                System.out.println("Invalid aggregate memory " + words[2] + ", expected a positive number of bytes");
+            }
+            return true;
+        }
+        if (words[1].equalsIgnoreCase("sort_threads")) {
+            try {
+                int threads = Integer.parseInt(words[2]);
+                OrderBy.setDefaultParallelism(threads);
+                System.out.println("Sort threads set to " + threads + ".");
+            } catch (IllegalArgumentException e) {
+                System.out.println("Invalid sort threads " + words[2] + ", expected a positive number");
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param s a number of bytes, e.g. 4096, 64K or 16M
+     */
+    static long parseBytes(String s) {
+        long unit = 1;
+        String upper = s.toUpperCase();
+        if (upper.endsWith("K")) {
+            unit = 1024;
+        } else if (upper.endsWith("M")) {
+            unit = 1024 * 1024;
+        }
+        if (unit != 1) {
+            s = s.substring(0, s.length() - 1);
+        }
+        return Long.parseLong(s) * unit;
+    }
+
+    private static String readStatementText(InputStream is) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = is.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A trailing "LIMIT n [OFFSET m]" or "OFFSET m" of a statement, which
+     * ZQL does not parse.
+     */
+    static class LimitClause {
+        private static final java.util.regex.Pattern PATTERN = java.util.regex.Pattern.compile(
+                "(?is)^(.*?)(?:\\s+limit\\s+(\\d+))?(?:\\s+offset\\s+(\\d+))?\\s*(;?)\\s*$");
+
+        /** the statement without the clause */
+        final String statement;
+        final long limit;
+        final long offset;
+
+        private LimitClause(String statement, long limit, long offset) {
+            this.statement = statement;
+            this.limit = limit;
+            this.offset = offset;
+        }
+
+        /**
+         * @return the clause at the end of the statement, or null if it has
+         * none
+         */
+        static LimitClause split(String s) throws simpledb.ParsingException {
+            java.util.regex.Matcher m = PATTERN.matcher(s);
+            if (!m.matches() || (m.group(2) == null && m.group(3) == null)) {
+                return null;
+            }
+            try {
+                long limit = m.group(2) == null ? Limit.NO_LIMIT : Long.parseLong(m.group(2));
+                long offset = m.group(3) == null ? 0 : Long.parseLong(m.group(3));
+                return new LimitClause(m.group(1) + m.group(4), limit, offset);
+            } catch (NumberFormatException e) {
+                throw new simpledb.ParsingException("LIMIT or OFFSET out of range");
+            }
+        }
+    }
+
     public void processNextStatement(String s) {
+        if (handleSessionStatement(s)) {
+            return;
+        }
         processNextStatement(new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8)));
     }
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            // ZQL 不认识 LIMIT，先把它从语句后面切下来
+            String sql = readStatementText(is);
+            LimitClause limit = LimitClause.split(sql);
+            if (limit != null) {
+                sql = limit.statement;
+            }
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(sql.getBytes(StandardCharsets.UTF_8)));
             ZStatement s = p.readStatement();
+            if (limit != null && !(s instanceof ZQuery)) {
+                throw new simpledb.ParsingException("LIMIT is only supported in SELECT statements");
+            }
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -504,6 +675,7 @@ public class Parser {
             else {
                 if (!this.inUserTrans) {
                     curtrans = new Transaction();
+                    curtrans.setDurability(durability);
                     curtrans.start();
                     System.out.println("Started a new transaction tid = "
                             + curtrans.getId().getId());
@@ -516,7 +688,7 @@ public class Parser {
                         query = handleDeleteStatement((ZDelete) s,
                                 curtrans.getId());
                     else if (s instanceof ZQuery)
-                        query = handleQueryStatement((ZQuery) s,
+                        query = handleQueryStatement((ZQuery) s, limit,
                                 curtrans.getId());
                     else {
                         System.out
@@ -567,11 +739,11 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "limit", "offset" };
 
     public static void main(String[] argv) throws IOException {
 
-        if (argv.length < 1 || argv.length > 4) {
+        if (argv.length < 1 || argv.length > 6) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -581,7 +753,7 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-durability sync|group|async] [-f queryFile]";
     static final int SLEEP_TIME = 1000;
 
     protected void shutdown() {
@@ -602,6 +774,13 @@ public class Parser {
                 if (argv[i].equals("-explain")) {
                     explain = true;
                     System.out.println("Explain mode enabled.");
+                } else if (argv[i].equals("-durability")) {
+                    if (++i == argv.length) {
+                        System.out.println("Expected durability after -durability\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    handleSessionStatement("set durability " + argv[i]);
                 } else if (argv[i].equals("-f")) {
                     interactive = false;
                     if (i++ == argv.length) {
@@ -668,6 +847,12 @@ public class Parser {
                         break;
                     }
 
+                    if (handleSessionStatement(cmd)) {
+                        line = line.substring(split + 1);
+                        buffer = new StringBuilder();
+                        continue;
+                    }
+
                     long startTime = System.currentTimeMillis();
                     processNextStatement(new ByteArrayInputStream(
                             statementBytes));
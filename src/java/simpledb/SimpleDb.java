@@ -1,4 +1,5 @@
 package simpledb;
+import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.common.Utility;
@@ -7,6 +8,8 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 
 public class SimpleDb {
     public static void main (String[] args)
@@ -75,6 +78,50 @@ public class SimpleDb {
                     it.close();
                 }
                 break;
+            case "cdc":
+                // cdc catalogFile logFile [positionFile] [-f]
+                if (args.length < 3 || args.length > 5) {
+                    System.err.println("Usage: cdc catalogFile logFile [positionFile] [-f]");
+                    return;
+                }
+                try {
+                    Database.getCatalog().loadSchema(args[1]);
+                    LogFile log = new LogFile(new File(args[2]));
+                    File positionFile = null;
+                    boolean follow = false;
+                    for (int i = 3; i < args.length; i++) {
+                        if (args[i].equals("-f"))
+                            follow = true;
+                        else
+                            positionFile = new File(args[i]);
+                    }
+                    LogChangeReader.Position from = LogChangeReader.Position.START;
+                    if (positionFile != null && positionFile.exists())
+                        from = LogChangeReader.Position.parse(
+                                new String(Files.readAllBytes(positionFile.toPath()), StandardCharsets.UTF_8));
+                    LogChangeReader reader = new LogChangeReader(log, from);
+                    while (true) {
+                        boolean any = false;
+                        while (reader.hasNext()) {
+                            ChangeEvent e = reader.next();
+                            System.out.println(e.getCommitLsn() + " " + e.getKind() + " "
+                                    + Database.getCatalog().getTableName(e.getTableId()) + " " + e.getTuple());
+                            any = true;
+                        }
+                        // 处理完一批再记下位置，重启后从这里接着读
+                        if (any && positionFile != null)
+                            Files.write(positionFile.toPath(),
+                                    reader.getPosition().toString().getBytes(StandardCharsets.UTF_8));
+                        if (!follow)
+                            break;
+                        Thread.sleep(1000);
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                break;
             case "parser":
                 // Strip the first argument and call the parser
                 String[] newargs = new String[args.length - 1];
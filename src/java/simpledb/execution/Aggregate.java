@@ -1,32 +1,95 @@
 package simpledb.execution;
 
 import simpledb.common.DbException;
+import simpledb.common.Debug;
 import simpledb.common.Type;
+import simpledb.storage.Field;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.NoSuchElementException;
 
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min) over any number of columns, grouped by any number of columns. All the
+ * aggregates are computed in one pass over the child, by a
+ * {@link GroupAggregator} that finds the group of each tuple once.
+ * <p>
+ * When the groups outgrow the memory budget, the groups seen so far stay in
+ * memory and go on aggregating their tuples, while the tuples of new groups
+ * are split into {@link #FANOUT} partitions by the hash of the group key and
+ * written to {@link SpillFile}s. Each partition is aggregated on its own once
+ * the groups in memory are returned, and split again with another hash if it
+ * still has too many groups.
  */
-public class Aggregate extends Operator {
+public class Aggregate extends Operator implements Spilling {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * memory an aggregate may use for its groups unless set otherwise
+     */
+    private static volatile long defaultMemoryBudget = 4L * 1024 * 1024;
+
+    /**
+     * number of partitions the tuples of new groups are split into
+     */
+    static final int FANOUT = HashEquiJoin.FANOUT;
+
+    /**
+     * a partition is not split any more after this many splits, but
+     * aggregated in memory whatever its size
+     */
+    static final int MAX_DEPTH = 4;
+
+    public static long getDefaultMemoryBudget() {
+        return defaultMemoryBudget;
+    }
+
+    /**
+     * Set the memory budget of aggregates created from now on.
+     *
+     * @param bytes the memory for the groups
+     */
+    public static void setDefaultMemoryBudget(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("memory budget must be positive: " + bytes);
+        }
+        defaultMemoryBudget = bytes;
+    }
+
+    private long memoryBudget = defaultMemoryBudget;
+    private final SpillStats stats = new SpillStats();
+
+    /**
+     * The tuples of groups that did not fit, to be aggregated later.
+     */
+    private static class Partition {
+        final SpillFile file;
+        final int level;
+
+        Partition(SpillFile file, int level) {
+            this.file = file;
+            this.level = level;
+        }
+    }
+
+    transient private Deque<Partition> pending;
+
     private OpIterator child;
-    private final int afield;
-    private final int gfield;
-    private final Aggregator.Op aop;
-    private String aName;
-    private String gName;
+    private final int[] afields;
+    private final int[] gfields;
+    private final Aggregator.Op[] aops;
+    private String[] aNames;
+    private String[] gNames;
 
     private TupleDesc tupleDesc;
-    private Aggregator aggregator;
+    private GroupAggregator aggregator;
     private OpIterator iterator;
 
     /**
@@ -44,91 +107,294 @@ public class Aggregate extends Operator {
      */
     public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
         // some code goes here
+        this(child, new int[]{afield}, GroupAggregator.groupFields(gfield), new Aggregator.Op[]{aop});
+    }
+
+    /**
+     * Constructor for several aggregates and group by fields, all computed
+     * in one pass over the child.
+     *
+     * @param child   The OpIterator that is feeding us tuples.
+     * @param afields The columns over which we are computing aggregates, one
+     *                per aggregate.
+     * @param gfields The columns over which we are grouping the result, empty
+     *                if there is no grouping
+     * @param aops    The aggregation operators to use, one per aggregate
+     */
+    public Aggregate(OpIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops) {
+        if (afields.length != aops.length || afields.length == 0) {
+            throw new IllegalArgumentException("each aggregate needs a field and an operator");
+        }
         this.child = child;
-        this.afield = afield;
-        this.gfield = gfield;
-        this.aop = aop;
+        this.afields = afields.clone();
+        this.gfields = gfields.clone();
+        this.aops = aops.clone();
         init();
     }
 
     private void init() {
         TupleDesc desc = child.getTupleDesc();
 
-        aName = desc.getFieldName(afield);
-        if (gfield != -1) {
-            gName = desc.getFieldName(gfield);
-            tupleDesc = new TupleDesc(
-                    new Type[]{desc.getFieldType(gfield), Type.INT_TYPE},
-                    new String[]{gName, aName});
-        } else {
-            tupleDesc = new TupleDesc(
-                    new Type[]{Type.INT_TYPE},
-                    new String[]{aName});
+        // 先是分组字段，再是各个聚合的结果
+        int width = gfields.length + afields.length;
+        Type[] types = new Type[width];
+        String[] names = new String[width];
+        gNames = new String[gfields.length];
+        for (int i = 0; i < gfields.length; i++) {
+            gNames[i] = desc.getFieldName(gfields[i]);
+            types[i] = desc.getFieldType(gfields[i]);
+            names[i] = gNames[i];
         }
-
-        switch (desc.getFieldType(afield)) {
-            case INT_TYPE:
-                aggregator = new IntegerAggregator(gfield,
-                        gfield == -1 ? null : desc.getFieldType(gfield),
-                        afield, aop);
-                break;
-            case STRING_TYPE:
-                aggregator = new StringAggregator(gfield,
-                        gfield == -1 ? null : desc.getFieldType(gfield),
-                        afield, aop);
-                break;
+        aNames = new String[afields.length];
+        for (int i = 0; i < afields.length; i++) {
+            aNames[i] = desc.getFieldName(afields[i]);
+            types[gfields.length + i] = Type.INT_TYPE;
+            names[gfields.length + i] = aNames[i];
         }
+        tupleDesc = new TupleDesc(types, names);
+
+        aggregator = newAggregator();
     }
 
     /**
-     * @return If this aggregate is accompanied by a groupby, return the groupby
-     * field index in the <b>INPUT</b> tuples. If not, return
+     * @return If this aggregate is accompanied by a groupby, return the
+     * (first) groupby field index in the <b>INPUT</b> tuples. If not, return
      * {@link Aggregator#NO_GROUPING}
      */
     public int groupField() {
         // some code goes here
-        return gfield;
+        return gfields.length == 0 ? Aggregator.NO_GROUPING : gfields[0];
     }
 
     /**
      * @return If this aggregate is accompanied by a group by, return the name
-     * of the groupby field in the <b>OUTPUT</b> tuples. If not, return
+     * of the (first) groupby field in the <b>OUTPUT</b> tuples. If not, return
      * null;
      */
     public String groupFieldName() {
         // some code goes here
-        return gName;
+        return gNames.length == 0 ? null : gNames[0];
     }
 
     /**
-     * @return the aggregate field
+     * @return the (first) aggregate field
      */
     public int aggregateField() {
         // some code goes here
-        return afield;
+        return afields[0];
     }
 
     /**
-     * @return return the name of the aggregate field in the <b>OUTPUT</b>
-     * tuples
+     * @return return the name of the (first) aggregate field in the
+     * <b>OUTPUT</b> tuples
      */
     public String aggregateFieldName() {
         // some code goes here
-        return aName;
+        return aNames[0];
     }
 
     /**
-     * @return return the aggregate operator
+     * @return return the (first) aggregate operator
      */
     public Aggregator.Op aggregateOp() {
         // some code goes here
-        return aop;
+        return aops[0];
+    }
+
+    /**
+     * @return the groupby field indexes in the <b>INPUT</b> tuples, empty if
+     * there is no grouping
+     */
+    public int[] groupFields() {
+        return gfields.clone();
+    }
+
+    /**
+     * @return the names of the groupby fields in the <b>OUTPUT</b> tuples
+     */
+    public String[] groupFieldNames() {
+        return gNames.clone();
+    }
+
+    /**
+     * @return the aggregate fields, one per aggregate
+     */
+    public int[] aggregateFields() {
+        return afields.clone();
+    }
+
+    /**
+     * @return the names of the aggregate fields in the <b>OUTPUT</b> tuples
+     */
+    public String[] aggregateFieldNames() {
+        return aNames.clone();
+    }
+
+    /**
+     * @return the aggregate operators, one per aggregate
+     */
+    public Aggregator.Op[] aggregateOps() {
+        return aops.clone();
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
         return aop.toString();
     }
 
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Set the memory this aggregate may use for its groups; takes effect on
+     * the next open.
+     */
+    public void setMemoryBudget(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("memory budget must be positive: " + bytes);
+        }
+        this.memoryBudget = bytes;
+    }
+
+    public SpillStats getSpillStats() {
+        return stats;
+    }
+
+    private GroupAggregator newAggregator() {
+        TupleDesc desc = child.getTupleDesc();
+        Type[] gtypes = new Type[gfields.length];
+        for (int i = 0; i < gfields.length; i++) {
+            gtypes[i] = desc.getFieldType(gfields[i]);
+        }
+        Type[] atypes = new Type[afields.length];
+        for (int i = 0; i < afields.length; i++) {
+            atypes[i] = desc.getFieldType(afields[i]);
+        }
+        return new GroupAggregator(gfields, gtypes, afields, atypes, aops);
+    }
+
+    private boolean overBudget(GroupAggregator agg) {
+        return gfields.length > 0 && agg.memory() > memoryBudget;
+    }
+
+    /**
+     * @return what the partition of a tuple is computed from: its group-by
+     * field, or the list of them if there are several
+     */
+    private Object groupKey(Tuple t) {
+        if (gfields.length == 1) {
+            return t.getField(gfields[0]);
+        }
+        Field[] key = new Field[gfields.length];
+        for (int i = 0; i < gfields.length; i++) {
+            key[i] = t.getField(gfields[i]);
+        }
+        return Arrays.asList(key);
+    }
+
+    private SpillFile[] newPartitions() throws DbException {
+        SpillFile[] parts = new SpillFile[FANOUT];
+        for (int i = 0; i < FANOUT; i++) {
+            parts[i] = new SpillFile(child.getTupleDesc(), stats);
+        }
+        return parts;
+    }
+
+    /**
+     * Merge a tuple into its group if it is in memory, write it to the
+     * partition of its group otherwise.
+     */
+    private void mergeOrSpill(GroupAggregator agg, Tuple t, SpillFile[] parts, int level) throws DbException {
+        if (!agg.mergeIfPresent(t)) {
+            parts[HashEquiJoin.partition(groupKey(t), level)].add(t);
+        }
+    }
+
+    /**
+     * Queue the partitions that got tuples, to be aggregated later.
+     */
+    private void finishPartitions(SpillFile[] parts, int level) {
+        if (parts == null) {
+            return;
+        }
+        stats.addLevel(level);
+        for (SpillFile part : parts) {
+            if (part.size() == 0) {
+                part.close();
+            } else {
+                pending.add(new Partition(part, level));
+            }
+        }
+    }
+
+    /**
+     * Aggregate the child, keeping the groups that fit and spilling the
+     * tuples of the others.
+     */
+    private void build() throws DbException, TransactionAbortedException {
+        stats.reset();
+        pending = new ArrayDeque<>();
+        aggregator.clear();
+        SpillFile[] parts = null;
+        // 按批读入，整型聚合直接在列数组上累加
+        TupleBatch batch;
+        while ((batch = child.nextBatch()) != null) {
+            if (parts == null) {
+                aggregator.mergeBatch(batch);
+                if (overBudget(aggregator)) {
+                    // 已有的分组留在内存里，新分组的 tuple 按 hash 写到分区
+                    parts = newPartitions();
+                }
+            } else {
+                int[] sel = batch.getSelection();
+                for (int i = 0; i < batch.numSelected(); i++) {
+                    mergeOrSpill(aggregator, batch.getTuple(sel[i]), parts, 0);
+                }
+            }
+        }
+        finishPartitions(parts, 1);
+        iterator = aggregator.iterator();
+        iterator.open();
+    }
+
+    /**
+     * Aggregate the next pending partition, splitting it again if it still
+     * has too many groups.
+     */
+    private void aggregatePartition(Partition p) throws DbException, TransactionAbortedException {
+        GroupAggregator agg = newAggregator();
+        SpillFile[] parts = null;
+        SpillFile.Reader reader = p.file.reader();
+        try {
+            Tuple t;
+            while ((t = reader.next()) != null) {
+                if (parts != null) {
+                    mergeOrSpill(agg, t, parts, p.level);
+                    continue;
+                }
+                agg.mergeTupleIntoGroup(t);
+                if (p.level < MAX_DEPTH && overBudget(agg)) {
+                    parts = newPartitions();
+                }
+            }
+        } finally {
+            reader.close();
+            p.file.close();
+        }
+        finishPartitions(parts, p.level + 1);
+        iterator = agg.iterator();
+        iterator.open();
+    }
+
+    private void release() {
+        if (pending != null) {
+            for (Partition p : pending) {
+                p.file.close();
+            }
+            pending = null;
+        }
+    }
+
     public void open() throws NoSuchElementException, DbException,
             TransactionAbortedException {
         // some code goes here
@@ -136,41 +402,45 @@ public class Aggregate extends Operator {
             throw new IllegalAccessError("already open!");
         }
         child.open();
-        while (child.hasNext()) {
-            aggregator.mergeTupleIntoGroup(child.next());
-        }
-        iterator = aggregator.iterator();
-        iterator.open();
+        build();
         super.open();
     }
 
     /**
-     * Returns the next tuple. If there is a group by field, then the first
-     * field is the field by which we are grouping, and the second field is the
-     * result of computing the aggregate. If there is no group by field, then
-     * the result tuple should contain one field representing the result of the
-     * aggregate. Should return null if there are no more tuples.
+     * Returns the next tuple. The first fields are the fields by which we are
+     * grouping, if any, and the rest are the results of computing the
+     * aggregates, in the order given to the constructor. Should return null
+     * if there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        if (iterator.hasNext()) {
-            return iterator.next();
+        while (true) {
+            if (iterator.hasNext()) {
+                return iterator.next();
+            }
+            if (pending == null || pending.isEmpty()) {
+                return null;
+            }
+            // 内存里的分组返回完了，再一个个聚合溢出的分区
+            aggregatePartition(pending.poll());
         }
-        return null;
     }
 
-
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
         child.rewind();
-        iterator.rewind();
+        if (stats.hasSpilled()) {
+            // 分区聚合完就删了，从头再来
+            release();
+            build();
+        } else {
+            iterator.rewind();
+        }
     }
 
     /**
-     * Returns the TupleDesc of this Aggregate. If there is no group by field,
-     * this will have one field - the aggregate column. If there is a group by
-     * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * Returns the TupleDesc of this Aggregate: the group by fields, if any,
+     * followed by one aggregate value column per aggregate.
      * <p>
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
@@ -186,6 +456,11 @@ public class Aggregate extends Operator {
         // some code goes here
         child.close();
         super.close();
+        release();
+        if (stats.hasSpilled()) {
+            Debug.log("Aggregate %s(%s) group by %s: %s", Arrays.toString(aops), Arrays.toString(aNames),
+                    Arrays.toString(gNames), stats);
+        }
     }
 
     @Override
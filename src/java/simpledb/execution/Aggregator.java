@@ -6,8 +6,10 @@ import simpledb.storage.TupleIterator;
 import java.io.Serializable;
 
 /**
- * The common interface for any class that can compute an aggregate over a
- * list of Tuples.
+ * The common interface for any class that can compute aggregates over a
+ * list of Tuples, grouped by none, one or several fields.
+ *
+ * @see GroupAggregator for several aggregates and group-by fields
  */
 public interface Aggregator extends Serializable {
     int NO_GROUPING = -1;
@@ -75,10 +77,24 @@ public interface Aggregator extends Serializable {
      * creates a new group aggregate result if the group value has not yet
      * been encountered.
      *
-     * @param tup the Tuple containing an aggregate field and a group-by field
+     * @param tup the Tuple containing the aggregate fields and the group-by
+     *            fields
      */
     void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge the selected rows of a batch into the aggregate. The default
+     * merges them one tuple at a time.
+     *
+     * @param batch the rows, with the aggregate fields and the group-by fields
+     */
+    default void mergeBatch(TupleBatch batch) {
+        int[] sel = batch.getSelection();
+        for (int i = 0; i < batch.numSelected(); i++) {
+            mergeTupleIntoGroup(batch.getTuple(sel[i]));
+        }
+    }
+
     /**
      * Create a OpIterator over group aggregate results.
      * @see TupleIterator for a possible helper
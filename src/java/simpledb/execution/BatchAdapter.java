@@ -0,0 +1,78 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the child a batch at a time and returns its rows one by one, the
+ * adapter from batches to the row interface. The other direction is the
+ * default {@link OpIterator#nextBatch}.
+ */
+public class BatchAdapter extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    transient private TupleBatch batch;
+    transient private int position;
+
+    public BatchAdapter(OpIterator child) {
+        this.child = child;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        batch = null;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        batch = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        batch = null;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (batch == null || position == batch.numSelected()) {
+            batch = child.nextBatch();
+            position = 0;
+            if (batch == null) {
+                return null;
+            }
+        }
+        return batch.getTuple(batch.getSelection()[position++]);
+    }
+
+    /**
+     * Hands on the child's batches as they are.
+     */
+    @Override
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (!open)
+            throw new IllegalStateException("Operator not yet open");
+        return child.nextBatch();
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
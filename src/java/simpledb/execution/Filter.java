@@ -41,6 +41,11 @@ public class Filter extends Operator {
         return child.getTupleDesc();
     }
 
+    @Override
+    public SortOrder getSortOrder() {
+        return child.getSortOrder();
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
@@ -80,6 +85,25 @@ public class Filter extends Operator {
         return null;
     }
 
+    /**
+     * Narrows the selection of the child's batches with the predicate, see
+     * {@link Predicate#filter(TupleBatch)}; batches without a row left are
+     * skipped.
+     */
+    @Override
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        while (true) {
+            TupleBatch batch = child.nextBatch();
+            if (batch == null) {
+                return null;
+            }
+            p.filter(batch);
+            if (batch.numSelected() > 0) {
+                return batch;
+            }
+        }
+    }
+
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
@@ -0,0 +1,179 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+
+import java.util.Arrays;
+
+/**
+ * Computes any number of aggregates, grouped by any number of fields, in one
+ * pass: every tuple is hashed once to find its group, and all the
+ * aggregates of the group are updated from it. The groups are kept in a
+ * {@link GroupTable} of running accumulators.
+ * <p>
+ * {@link IntegerAggregator} and {@link StringAggregator} are the special
+ * case of one aggregate and at most one group field. {@link Aggregate} also
+ * uses it to tell how much memory the groups take and to merge only tuples
+ * of groups that exist already.
+ */
+public class GroupAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+    private final int[] gbfields;
+    private final Type[] gbfieldtypes;
+    private final int[] afields;
+    private final Type[] afieldtypes;
+
+    // 每个分组只留累加器，不留输入的值
+    private final GroupTable groups;
+
+    // mergeBatch 里每行的分组号
+    transient private int[] batchGroups;
+
+    /**
+     * Aggregate constructor
+     *
+     * @param gbfields     the 0-based indexes of the group-by fields in the
+     *                     tuple, empty if there is no grouping
+     * @param gbfieldtypes the types of the group-by fields
+     * @param afields      the 0-based indexes of the aggregate fields in the
+     *                     tuple, one per aggregate
+     * @param afieldtypes  the types of the aggregate fields
+     * @param whats        the aggregation operators, one per aggregate
+     * @throws IllegalArgumentException if the arrays do not match, there is
+     *                                  no aggregate, or a string field has an
+     *                                  aggregate other than COUNT
+     */
+    public GroupAggregator(int[] gbfields, Type[] gbfieldtypes, int[] afields, Type[] afieldtypes, Op[] whats) {
+        if (gbfields.length != gbfieldtypes.length || afields.length != afieldtypes.length
+                || afields.length != whats.length) {
+            throw new IllegalArgumentException("each field needs one type and each aggregate one operator");
+        }
+        if (whats.length == 0) {
+            throw new IllegalArgumentException("no aggregate");
+        }
+        for (int a = 0; a < whats.length; a++) {
+            if (afieldtypes[a] == Type.STRING_TYPE && whats[a] != Op.COUNT) {
+                throw new IllegalArgumentException("Not support " + whats[a] + ", only supports COUNT");
+            }
+        }
+        this.gbfields = gbfields.clone();
+        this.gbfieldtypes = gbfieldtypes.clone();
+        this.afields = afields.clone();
+        this.afieldtypes = afieldtypes.clone();
+        this.groups = new GroupTable(gbfieldtypes, whats);
+    }
+
+    /**
+     * @return the group-by fields of an aggregator with at most one
+     */
+    static int[] groupFields(int gbfield) {
+        return gbfield == NO_GROUPING ? new int[0] : new int[]{gbfield};
+    }
+
+    /**
+     * @return the group-by field types of an aggregator with at most one
+     */
+    static Type[] groupFieldTypes(int gbfield, Type gbfieldtype) {
+        return gbfield == NO_GROUPING ? new Type[0] : new Type[]{gbfieldtype};
+    }
+
+    /**
+     * Merge the aggregate fields of a tuple into a group.
+     */
+    private void merge(int g, Tuple tup) {
+        groups.count(g);
+        for (int a = 0; a < afields.length; a++) {
+            // 字符串字段只能 COUNT，行数已经记过了
+            if (afieldtypes[a] == Type.INT_TYPE) {
+                groups.add(g, a, ((IntField) tup.getField(afields[a])).getValue());
+            }
+        }
+    }
+
+    public void mergeTupleIntoGroup(Tuple tup) {
+        merge(groups.group(tup, gbfields), tup);
+    }
+
+    /**
+     * Merge the selected rows of a batch: find the group of every row first,
+     * then update each aggregate straight from its column array.
+     */
+    @Override
+    public void mergeBatch(TupleBatch batch) {
+        int[] sel = batch.getSelection();
+        int n = batch.numSelected();
+        if (batchGroups == null || batchGroups.length < n) {
+            batchGroups = new int[n];
+        }
+        int[] g = batchGroups;
+        if (gbfields.length == 0) {
+            if (n > 0) {
+                Arrays.fill(g, 0, n, groups.group());
+            }
+        } else if (gbfields.length == 1 && gbfieldtypes[0] == Type.INT_TYPE) {
+            int[] keys = batch.getIntColumn(gbfields[0]);
+            for (int i = 0; i < n; i++) {
+                g[i] = groups.group(keys[sel[i]]);
+            }
+        } else if (gbfields.length == 1) {
+            String[] keys = batch.getStringColumn(gbfields[0]);
+            for (int i = 0; i < n; i++) {
+                g[i] = groups.group(keys[sel[i]]);
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                g[i] = groups.group(batch.getTuple(sel[i]), gbfields);
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            groups.count(g[i]);
+        }
+        for (int a = 0; a < afields.length; a++) {
+            if (afieldtypes[a] != Type.INT_TYPE) {
+                continue;
+            }
+            int[] values = batch.getIntColumn(afields[a]);
+            for (int i = 0; i < n; i++) {
+                groups.add(g[i], a, values[sel[i]]);
+            }
+        }
+    }
+
+    /**
+     * Merge a tuple if its group exists already.
+     *
+     * @return false if the tuple was not merged
+     */
+    boolean mergeIfPresent(Tuple tup) {
+        int g = gbfields.length == 0 ? groups.group() : groups.find(tup, gbfields);
+        if (g < 0) {
+            return false;
+        }
+        merge(g, tup);
+        return true;
+    }
+
+    /**
+     * @return roughly how many bytes the groups take
+     */
+    long memory() {
+        return groups.memory();
+    }
+
+    /**
+     * Drop all the groups.
+     */
+    void clear() {
+        groups.clear();
+    }
+
+    /**
+     * @return tuples of the group-by fields followed by the aggregate
+     * results, in the order given to the constructor
+     */
+    public OpIterator iterator() {
+        return groups.iterator();
+    }
+}
@@ -0,0 +1,350 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The groups of an aggregate, each with a row count and, for every
+ * aggregate, a running sum, minimum and maximum of the values merged into
+ * it, so that the memory it takes grows with the number of groups and not
+ * with the number of rows. AVG is kept as sum and count.
+ * <p>
+ * Groups are numbered in the order they are first seen and their
+ * accumulators are kept in primitive arrays indexed by that number. A single
+ * int group key is looked up in an {@link IntIntHashMap}, a single string
+ * key in a map of strings, and a key of several fields in a map of field
+ * lists.
+ */
+class GroupTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final int INITIAL_GROUPS = 16;
+
+    private final Type[] keyTypes;
+    private final Aggregator.Op[] whats;
+    private final int width;
+
+    private IntIntHashMap intIndex;
+    private Map<String, Integer> strIndex;
+    private Map<List<Field>, Integer> fieldIndex;
+    private int[] intKeys;
+    private String[] strKeys;
+    private Field[][] fieldKeys;
+    private int size;
+
+    // 行数每个分组一个，其余每个分组每个聚合一个，下标是 g * width + a
+    private long[] counts;
+    private long[] sums;
+    private int[] mins;
+    private int[] maxs;
+
+    /**
+     * @param keyTypes the types of the group key fields, empty if there is a
+     *                 single group
+     * @param whats    the aggregates that {@link #result} computes
+     */
+    GroupTable(Type[] keyTypes, Aggregator.Op[] whats) {
+        this.keyTypes = keyTypes.clone();
+        this.whats = whats.clone();
+        this.width = whats.length;
+        clear();
+    }
+
+    /**
+     * Drop all the groups.
+     */
+    void clear() {
+        if (keyTypes.length == 1 && keyTypes[0] == Type.INT_TYPE) {
+            intIndex = new IntIntHashMap(INITIAL_GROUPS);
+            intKeys = new int[INITIAL_GROUPS];
+        } else if (keyTypes.length == 1) {
+            strIndex = new HashMap<>();
+            strKeys = new String[INITIAL_GROUPS];
+        } else if (keyTypes.length > 1) {
+            fieldIndex = new HashMap<>();
+            fieldKeys = new Field[INITIAL_GROUPS][];
+        }
+        size = 0;
+        counts = new long[INITIAL_GROUPS];
+        sums = new long[INITIAL_GROUPS * width];
+        mins = new int[INITIAL_GROUPS * width];
+        maxs = new int[INITIAL_GROUPS * width];
+    }
+
+    int numGroups() {
+        return size;
+    }
+
+    private int newGroup() {
+        if (size == counts.length) {
+            int capacity = size * 2;
+            counts = Arrays.copyOf(counts, capacity);
+            sums = Arrays.copyOf(sums, capacity * width);
+            mins = Arrays.copyOf(mins, capacity * width);
+            maxs = Arrays.copyOf(maxs, capacity * width);
+            if (intKeys != null) {
+                intKeys = Arrays.copyOf(intKeys, capacity);
+            }
+            if (strKeys != null) {
+                strKeys = Arrays.copyOf(strKeys, capacity);
+            }
+            if (fieldKeys != null) {
+                fieldKeys = Arrays.copyOf(fieldKeys, capacity);
+            }
+        }
+        Arrays.fill(mins, size * width, (size + 1) * width, Integer.MAX_VALUE);
+        Arrays.fill(maxs, size * width, (size + 1) * width, Integer.MIN_VALUE);
+        return size++;
+    }
+
+    /**
+     * @return the number of the only group, created if needed
+     */
+    int group() {
+        return size == 0 ? newGroup() : 0;
+    }
+
+    /**
+     * @return the number of the group with the int key, created if needed
+     */
+    int group(int key) {
+        int g = intIndex.putIfAbsent(key, size);
+        if (g >= 0) {
+            return g;
+        }
+        g = newGroup();
+        intKeys[g] = key;
+        return g;
+    }
+
+    /**
+     * @return the number of the group with the string key, created if needed
+     */
+    int group(String key) {
+        Integer g = strIndex.get(key);
+        if (g != null) {
+            return g;
+        }
+        int n = newGroup();
+        strIndex.put(key, n);
+        strKeys[n] = key;
+        return n;
+    }
+
+    private static Field[] keyOf(Tuple tup, int[] fields) {
+        Field[] key = new Field[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            key[i] = tup.getField(fields[i]);
+        }
+        return key;
+    }
+
+    /**
+     * @param fields the group key fields of the tuple, one per key type
+     * @return the number of the group of the tuple, created if needed
+     */
+    int group(Tuple tup, int[] fields) {
+        if (keyTypes.length == 0) {
+            return group();
+        }
+        if (keyTypes.length == 1) {
+            Field key = tup.getField(fields[0]);
+            return keyTypes[0] == Type.INT_TYPE ? group(((IntField) key).getValue())
+                    : group(((StringField) key).getValue());
+        }
+        Field[] key = keyOf(tup, fields);
+        Integer g = fieldIndex.get(Arrays.asList(key));
+        if (g != null) {
+            return g;
+        }
+        int n = newGroup();
+        fieldIndex.put(Arrays.asList(key), n);
+        fieldKeys[n] = key;
+        return n;
+    }
+
+    /**
+     * @param fields the group key fields of the tuple, one per key type
+     * @return the number of the group of the tuple, or -1 if there is none
+     */
+    int find(Tuple tup, int[] fields) {
+        if (keyTypes.length == 0) {
+            return size == 0 ? -1 : 0;
+        }
+        if (keyTypes.length == 1) {
+            Field key = tup.getField(fields[0]);
+            if (keyTypes[0] == Type.INT_TYPE) {
+                return intIndex.get(((IntField) key).getValue());
+            }
+            Integer g = strIndex.get(((StringField) key).getValue());
+            return g == null ? -1 : g;
+        }
+        Integer g = fieldIndex.get(Arrays.asList(keyOf(tup, fields)));
+        return g == null ? -1 : g;
+    }
+
+    /**
+     * Count a row of a group.
+     */
+    void count(int g) {
+        counts[g]++;
+    }
+
+    /**
+     * Merge a value into the accumulators of an aggregate of a group. The
+     * row it comes from is counted with {@link #count}.
+     */
+    void add(int g, int a, int value) {
+        int i = g * width + a;
+        sums[i] += value;
+        if (value < mins[i]) {
+            mins[i] = value;
+        }
+        if (value > maxs[i]) {
+            maxs[i] = value;
+        }
+    }
+
+    /**
+     * @return the k-th field of the key of a group
+     */
+    Field key(int g, int k) {
+        if (intKeys != null) {
+            return new IntField(intKeys[g]);
+        }
+        if (strKeys != null) {
+            return new StringField(strKeys[g], Type.STRING_LEN);
+        }
+        return fieldKeys[g][k];
+    }
+
+    /**
+     * @return the result of the a-th aggregate of a group
+     */
+    int result(int g, int a) {
+        int i = g * width + a;
+        switch (whats[a]) {
+            case MIN:
+                return mins[i];
+            case MAX:
+                return maxs[i];
+            case COUNT:
+                return (int) counts[g];
+            case SUM:
+                return (int) sums[i];
+            case AVG:
+                return (int) (sums[i] / counts[g]);
+            default:
+                throw new UnsupportedOperationException("unknown op：" + whats[a]);
+        }
+    }
+
+    /**
+     * @return roughly how many bytes the groups take
+     */
+    long memory() {
+        long bytes = (8L + 16L * width) * counts.length;
+        if (intIndex != null) {
+            bytes += intIndex.memory() + 4L * intKeys.length;
+        }
+        if (strIndex != null) {
+            // 字符串 key 和 HashMap 的节点
+            bytes += (Type.STRING_LEN + 64L) * size;
+        }
+        if (fieldIndex != null) {
+            // 每个 key 一个 Field 数组和它的 List 包装，再加上 HashMap 的节点
+            long perKey = 96;
+            for (Type t : keyTypes) {
+                perKey += t == Type.INT_TYPE ? 24 : Type.STRING_LEN + 48;
+            }
+            bytes += perKey * size + 8L * fieldKeys.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return tuples of the group key fields followed by the results of the
+     * aggregates, one per group
+     */
+    OpIterator iterator() {
+        return new GroupIterator();
+    }
+
+    private class GroupIterator extends Operator {
+        private static final long serialVersionUID = 1L;
+        private final TupleDesc tupleDesc;
+        private int next;
+
+        GroupIterator() {
+            Type[] types = Arrays.copyOf(keyTypes, keyTypes.length + width);
+            Arrays.fill(types, keyTypes.length, types.length, Type.INT_TYPE);
+            tupleDesc = new TupleDesc(types);
+        }
+
+        /**
+         * @return the only row of an aggregate without input and without
+         * grouping: 0 if all the aggregates are COUNT or SUM, none otherwise
+         */
+        private Tuple emptyResult() {
+            Tuple tuple = new Tuple(tupleDesc);
+            for (int a = 0; a < width; a++) {
+                if (whats[a] != Aggregator.Op.COUNT && whats[a] != Aggregator.Op.SUM) {
+                    return null;
+                }
+                tuple.setField(a, new IntField(0));
+            }
+            return tuple;
+        }
+
+        @Override
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            if (keyTypes.length == 0 && size == 0) {
+                // 没有输入：COUNT 和 SUM 是 0，其他的没有值
+                return next++ > 0 ? null : emptyResult();
+            }
+            if (next >= size) {
+                return null;
+            }
+            Tuple tuple = new Tuple(tupleDesc);
+            for (int k = 0; k < keyTypes.length; k++) {
+                tuple.setField(k, key(next, k));
+            }
+            for (int a = 0; a < width; a++) {
+                tuple.setField(keyTypes.length + a, new IntField(result(next, a)));
+            }
+            next++;
+            return tuple;
+        }
+
+        @Override
+        public OpIterator[] getChildren() {
+            return new OpIterator[0];
+        }
+
+        @Override
+        public void setChildren(OpIterator[] children) {
+        }
+
+        @Override
+        public TupleDesc getTupleDesc() {
+            return tupleDesc;
+        }
+
+        @Override
+        public void rewind() {
+            next = 0;
+        }
+    }
+}
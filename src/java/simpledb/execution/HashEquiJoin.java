@@ -1,6 +1,7 @@
 package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
+import simpledb.common.Debug;
 import simpledb.common.DbException;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
@@ -9,8 +10,16 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * This is a hybrid hash join: it builds a hash table from child1 and probes
+ * it with child2. If child1 does not fit into the memory budget, both inputs
+ * are split into {@link #FANOUT} partitions by the hash of the join key; the
+ * partitions that fit stay in the hash table, the others are written to
+ * {@link SpillFile}s and joined one by one once child2 is done, splitting
+ * them again with another hash if they are still too big. Either way both
+ * children are read once.
  */
-public class HashEquiJoin extends Operator {
+public class HashEquiJoin extends Operator implements Spilling {
 
     private static final long serialVersionUID = 1L;
     private final JoinPredicate pred;
@@ -55,28 +64,354 @@ public class HashEquiJoin extends Operator {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
     
+    /**
+     * memory a join may use for its hash table unless set otherwise
+     */
+    private static volatile long defaultMemoryBudget = 4L * 1024 * 1024;
+
+    /**
+     * rough size of a tuple in the hash table beyond its fields: the tuple,
+     * its field objects and the list entry
+     */
+    private static final int TUPLE_OVERHEAD = 64;
+
+    /**
+     * number of partitions the inputs are split into when they do not fit
+     */
+    static final int FANOUT = 16;
+
+    /**
+     * a partition that is still too big after this many splits is joined in
+     * chunks instead
+     */
+    static final int MAX_DEPTH = 4;
+
+    public static long getDefaultMemoryBudget() {
+        return defaultMemoryBudget;
+    }
+
+    /**
+     * Set the memory budget of joins created from now on.
+     *
+     * @param bytes the memory for the hash table
+     */
+    public static void setDefaultMemoryBudget(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("memory budget must be positive: " + bytes);
+        }
+        defaultMemoryBudget = bytes;
+    }
+
+    private long memoryBudget = defaultMemoryBudget;
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Set the memory this join may use for its hash table; takes effect on
+     * the next open.
+     */
+    public void setMemoryBudget(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("memory budget must be positive: " + bytes);
+        }
+        this.memoryBudget = bytes;
+    }
+
+    private final SpillStats stats = new SpillStats();
+
+    public SpillStats getSpillStats() {
+        return stats;
+    }
+
+    /**
+     * A source of tuples: a child or a spill file.
+     */
+    private interface Input {
+        /**
+         * @return the next tuple, or null at the end
+         */
+        Tuple next() throws DbException, TransactionAbortedException;
+    }
+
+    /**
+     * Both sides of a partition that was written to disk, to be joined later.
+     */
+    private static class Partition {
+        final SpillFile build;
+        final SpillFile probe;
+        final int level;
+        final long parentSize;
+
+        Partition(SpillFile build, SpillFile probe, int level, long parentSize) {
+            this.build = build;
+            this.probe = probe;
+            this.level = level;
+            this.parentSize = parentSize;
+        }
+
+        void close() {
+            build.close();
+            probe.close();
+        }
+    }
+
     final Map<Object, List<Tuple>> map = new HashMap<>();
-    public final static int MAP_SIZE = 20000;
+    transient private int maxResident;
+    transient private int resident;
+    transient private int[] residentPerPartition;
+
+    /**
+     * the level of the current hash table: 0 for child1 itself, n for a
+     * partition that was split n times
+     */
+    transient private int level;
+    transient private long buildSize;
+
+    /**
+     * the spilled partitions of the current level, null where a partition is
+     * in the hash table; both null if nothing spilled
+     */
+    transient private SpillFile[] buildSpill;
+    transient private SpillFile[] probeSpill;
+
+    transient private Input probeInput;
+    transient private boolean child2Done;
+    transient private Partition current;
+    transient private SpillFile.Reader currentReader;
+    transient private Deque<Partition> pending;
+
+    /**
+     * when a partition does not shrink any more (one key with many rows), it
+     * is joined in chunks: the rest of its build side, and its probe side that
+     * is read again for every chunk
+     */
+    transient private Input chunkInput;
+    transient private boolean chunkHasMore;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
+    /**
+     * @return the partition, below {@link #FANOUT}, of a key at a level of
+     * splitting; also used by {@link Aggregate}
+     */
+    static int partition(Object key, int level) {
+        // 每层换一个 hash，上一层落在同一个分区的 key 这一层才会分开
+        int h = key.hashCode() + level * 0x9E3779B9;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % FANOUT;
+    }
+
+    /**
+     * Build the hash table for the given level from an input. If the input
+     * does not fit into the budget and may be partitioned, the largest
+     * partitions are written to disk until the rest fits, and the rows of the
+     * spilled partitions go to disk from then on. Otherwise the table is filled
+     * up to the budget and {@link #chunkHasMore} tells whether the input has
+     * more.
+     */
+    private void build(Input in, int level, boolean mayPartition) throws DbException, TransactionAbortedException {
         map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            List<Tuple> list = map.computeIfAbsent(t1.getField(pred.getField1()), k -> new ArrayList<>());
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+        resident = 0;
+        residentPerPartition = new int[FANOUT];
+        buildSpill = null;
+        probeSpill = null;
+        this.level = level;
+        buildSize = 0;
+        chunkHasMore = false;
+        Tuple t;
+        while ((t = in.next()) != null) {
+            Object key = t.getField(pred.getField1());
+            int p = partition(key, level);
+            buildSize++;
+            if (buildSpill != null && buildSpill[p] != null) {
+                buildSpill[p].add(t);
+                continue;
+            }
+            map.computeIfAbsent(key, k -> new ArrayList<>()).add(t);
+            residentPerPartition[p]++;
+            resident++;
+            if (resident >= maxResident) {
+                if (!mayPartition) {
+                    chunkHasMore = true;
+                    return;
+                }
+                spillLargest();
+            }
         }
-        return cnt > 0;
+    }
 
+    private void spillLargest() throws DbException {
+        if (buildSpill == null) {
+            buildSpill = new SpillFile[FANOUT];
+            probeSpill = new SpillFile[FANOUT];
+            stats.addLevel(level + 1);
+        }
+        int largest = 0;
+        for (int p = 1; p < FANOUT; p++) {
+            if (residentPerPartition[p] > residentPerPartition[largest]) {
+                largest = p;
+            }
+        }
+        buildSpill[largest] = new SpillFile(child1.getTupleDesc(), stats);
+        probeSpill[largest] = new SpillFile(child2.getTupleDesc(), stats);
+        Iterator<Map.Entry<Object, List<Tuple>>> it = map.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Object, List<Tuple>> e = it.next();
+            if (partition(e.getKey(), level) == largest) {
+                for (Tuple t : e.getValue()) {
+                    buildSpill[largest].add(t);
+                }
+                it.remove();
+            }
+        }
+        resident -= residentPerPartition[largest];
+        residentPerPartition[largest] = 0;
+    }
+
+    /**
+     * @return true if the probe row goes to a spilled partition, and write it
+     * there
+     */
+    private boolean spillProbe(Object key, Tuple t) throws DbException {
+        if (probeSpill == null) {
+            return false;
+        }
+        SpillFile f = probeSpill[partition(key, level)];
+        if (f == null) {
+            return false;
+        }
+        f.add(t);
+        return true;
+    }
+
+    /**
+     * Move on once the probe side of the current hash table is done: the
+     * next chunk of the current partition, or the next spilled partition.
+     *
+     * @return false if the join is done
+     */
+    private boolean advance() throws DbException, TransactionAbortedException {
+        if (chunkHasMore) {
+            stats.addPass();
+            build(chunkInput, level, false);
+            openProbe(current.probe);
+            return true;
+        }
+        if (buildSpill != null) {
+            for (int p = FANOUT - 1; p >= 0; p--) {
+                if (buildSpill[p] == null) {
+                    continue;
+                }
+                Partition part = new Partition(buildSpill[p], probeSpill[p], level + 1, buildSize);
+                if (part.build.size() == 0 || part.probe.size() == 0) {
+                    part.close();
+                } else {
+                    pending.push(part);
+                }
+            }
+            buildSpill = null;
+            probeSpill = null;
+        }
+        closeCurrent();
+        current = pending.poll();
+        if (current == null) {
+            if (stats.hasSpilled()) {
+                map.clear();
+            }
+            return false;
+        }
+        // 没有变小的分区再切也没用，全是同一个 key
+        boolean mayPartition = current.level < MAX_DEPTH && current.build.size() < current.parentSize;
+        SpillFile.Reader buildReader = current.build.reader();
+        chunkInput = buildReader::next;
+        try {
+            build(chunkInput, current.level, mayPartition);
+        } finally {
+            if (!chunkHasMore) {
+                buildReader.close();
+            }
+        }
+        if (chunkHasMore) {
+            currentBuildReader = buildReader;
+        }
+        openProbe(current.probe);
+        return true;
+    }
+
+    transient private SpillFile.Reader currentBuildReader;
+
+    private void openProbe(SpillFile probe) throws DbException {
+        if (currentReader != null) {
+            currentReader.close();
+        }
+        currentReader = probe.reader();
+        probeInput = currentReader::next;
+    }
+
+    private void closeCurrent() {
+        if (currentReader != null) {
+            currentReader.close();
+            currentReader = null;
+        }
+        if (currentBuildReader != null) {
+            currentBuildReader.close();
+            currentBuildReader = null;
+        }
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+    }
+
+    /**
+     * Drop the hash table and everything spilled.
+     */
+    private void release() {
+        closeCurrent();
+        if (buildSpill != null) {
+            for (int p = 0; p < FANOUT; p++) {
+                if (buildSpill[p] != null) {
+                    buildSpill[p].close();
+                    probeSpill[p].close();
+                }
+            }
+            buildSpill = null;
+            probeSpill = null;
+        }
+        if (pending != null) {
+            while (!pending.isEmpty()) {
+                pending.poll().close();
+            }
+            pending = null;
+        }
+        chunkHasMore = false;
+        map.clear();
+    }
+
+    /**
+     * Build the hash table from child1, spilling if needed, and start probing
+     * with child2.
+     */
+    private void start() throws DbException, TransactionAbortedException {
+        long tupleBytes = child1.getTupleDesc().getSize() + TUPLE_OVERHEAD;
+        maxResident = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / tupleBytes));
+        stats.reset();
+        pending = new ArrayDeque<>();
+        build(() -> child1.hasNext() ? child1.next() : null, 0, true);
+        child2Done = false;
+        probeInput = () -> !child2Done && child2.hasNext() ? child2.next() : null;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        resetBatches();
+        start();
         super.open();
     }
 
@@ -87,12 +422,78 @@ public class HashEquiJoin extends Operator {
         this.t1=null;
         this.t2=null;
         this.listIt=null;
-        this.map.clear();
+        release();
+        resetBatches();
+        if (stats.hasSpilled()) {
+            Debug.log("HashEquiJoin on %s = %s: %s", getJoinField1Name(), getJoinField2Name(), stats);
+        }
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        listIt = null;
+        resetBatches();
+        if (!stats.hasSpilled()) {
+            // child1 全在内存里，只要重新扫 child2
+            child2.rewind();
+            child2Done = false;
+            probeInput = () -> !child2Done && child2.hasNext() ? child2.next() : null;
+            return;
+        }
+        release();
         child1.rewind();
         child2.rewind();
+        start();
+    }
+
+    transient private TupleBatch outBatch = null;
+    transient private TupleBatch probeBatch = null;
+    transient private int probePos = 0;
+    transient private List<Tuple> matches = null;
+    transient private int matchPos = 0;
+
+    private void resetBatches() {
+        probeBatch = null;
+        matches = null;
+    }
+
+    /**
+     * Probes the hash table with the rows of child2's batches and writes the
+     * joined rows into a batch that is reused for every call. Once child2 is
+     * done, the partitions that were spilled are joined a row at a time.
+     */
+    @Override
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (outBatch == null) {
+            outBatch = new TupleBatch(comboTD);
+        }
+        outBatch.clear();
+        while (!child2Done && !outBatch.isFull()) {
+            if (matches != null && matchPos < matches.size()) {
+                outBatch.addJoined(matches.get(matchPos++), probeBatch, probeBatch.getSelection()[probePos - 1]);
+                continue;
+            }
+            matches = null;
+            if (probeBatch != null && probePos < probeBatch.numSelected()) {
+                int row = probeBatch.getSelection()[probePos++];
+                Object key = probeBatch.getField(row, pred.getField2());
+                if (probeSpill != null && spillProbe(key, probeBatch.getTuple(row))) {
+                    continue;
+                }
+                matches = map.get(key);
+                matchPos = 0;
+                continue;
+            }
+            probeBatch = child2.nextBatch();
+            probePos = 0;
+            if (probeBatch == null) {
+                child2Done = true;
+            }
+        }
+        Tuple t;
+        while (!outBatch.isFull() && (t = fetchNext()) != null) {
+            outBatch.addTuple(t);
+        }
+        return outBatch.size() > 0 ? outBatch : null;
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -132,32 +533,35 @@ public class HashEquiJoin extends Operator {
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
+        while (true) {
+            if (listIt != null && listIt.hasNext()) {
+                return processList();
+            }
+            listIt = null;
 
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
-
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            List<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
-
-            return processList();
+            // loop around the probe side
+            Tuple probe;
+            while ((probe = probeInput.next()) != null) {
+                Object key = probe.getField(pred.getField2());
+                if (spillProbe(key, probe)) {
+                    continue;
+                }
+                // if match, create a combined tuple and fill it with the values
+                // from both tuples
+                List<Tuple> l = map.get(key);
+                if (l == null)
+                    continue;
+                t2 = probe;
+                listIt = l.iterator();
+                return processList();
+            }
 
+            // the probe side is done: next chunk or partition
+            child2Done = true;
+            if (!advance()) {
+                return null;
+            }
         }
-
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
-        }
-
-        return null;
     }
 
     @Override
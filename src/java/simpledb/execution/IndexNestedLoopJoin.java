@@ -0,0 +1,245 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.index.BTreeFile;
+import simpledb.storage.DbFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * An equi-join that looks up the matches of every tuple of child1 in a B+
+ * tree instead of scanning child2. child2 must be a {@link SeqScan} of a
+ * {@link BTreeFile} keyed on the join field, possibly under {@link Filter}s,
+ * whose predicates are applied to the tuples found. child2 itself is never
+ * read, so only the leaves with matching keys are.
+ * <p>
+ * child1 is read in batches of {@link #PROBE_BATCH} tuples that are sorted on
+ * the join field before they are looked up, so that consecutive lookups go
+ * to the same or neighbouring leaves, and a key is looked up once per batch.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * number of tuples of child1 that are sorted and looked up together
+     */
+    public static final int PROBE_BATCH = 1024;
+
+    private final JoinPredicate pred;
+    private OpIterator child1, child2;
+    private TupleDesc comboTD;
+    private TransactionId tid;
+    private BTreeFile index;
+    private List<Predicate> innerFilters;
+
+    transient private List<Tuple> batch = new ArrayList<>();
+    transient private int batchPos;
+    transient private Tuple current;
+    transient private Field lastKey;
+    transient private List<Tuple> matches = new ArrayList<>();
+    transient private int matchPos;
+    transient private int probes;
+
+    /**
+     * @return the scan under the filters of a plan, or null if the plan is
+     * something else
+     */
+    private static SeqScan findScan(OpIterator plan) {
+        while (plan instanceof Filter) {
+            plan = ((Filter) plan).getChildren()[0];
+        }
+        return plan instanceof SeqScan ? (SeqScan) plan : null;
+    }
+
+    /**
+     * @return true if the tuples of the plan that match a value of the field
+     * can be looked up in a B+ tree
+     */
+    public static boolean canProbe(OpIterator plan, int field) {
+        SeqScan scan = findScan(plan);
+        if (scan == null) {
+            return false;
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(scan.getTableId());
+        return file instanceof BTreeFile && ((BTreeFile) file).keyField() == field;
+    }
+
+    /**
+     * @param p      an equality predicate
+     * @param child1 the outer input
+     * @param child2 the inner input, see {@link #canProbe}
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (p.getOperator() != Predicate.Op.EQUALS) {
+            throw new IllegalArgumentException("index nested-loops join needs =, not " + p.getOperator());
+        }
+        this.pred = p;
+        setChildren(new OpIterator[]{child1, child2});
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    /**
+     * @return how many lookups the join made in the B+ tree since it was
+     * opened
+     */
+    public int getProbes() {
+        return probes;
+    }
+
+    private void reset() {
+        batch = new ArrayList<>();
+        batchPos = 0;
+        current = null;
+        lastKey = null;
+        matches = new ArrayList<>();
+        matchPos = 0;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        reset();
+        probes = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        reset();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        reset();
+    }
+
+    /**
+     * Read the next batch of child1, sorted on the join field.
+     *
+     * @return false if child1 is done
+     */
+    private boolean loadBatch() throws DbException, TransactionAbortedException {
+        batch.clear();
+        batchPos = 0;
+        while (batch.size() < PROBE_BATCH && child1.hasNext()) {
+            batch.add(child1.next());
+        }
+        batch.sort(new TupleComparator(pred.getField1(), true));
+        return !batch.isEmpty();
+    }
+
+    /**
+     * Look up the tuples of the B+ tree with the key that pass the filters
+     * of child2.
+     */
+    private List<Tuple> probe(Field key) throws DbException, TransactionAbortedException {
+        probes++;
+        List<Tuple> found = new ArrayList<>();
+        DbFileIterator it = index.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, key));
+        it.open();
+        try {
+            next:
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                for (Predicate p : innerFilters) {
+                    if (!p.filter(t)) {
+                        continue next;
+                    }
+                }
+                found.add(t);
+            }
+        } finally {
+            it.close();
+        }
+        return found;
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the concatenation of a tuple of child1 and a tuple of the
+     * B+ tree with the same key.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (current != null && matchPos < matches.size()) {
+                return merge(current, matches.get(matchPos++));
+            }
+            if (batchPos == batch.size() && !loadBatch()) {
+                current = null;
+                return null;
+            }
+            current = batch.get(batchPos++);
+            Field key = current.getField(pred.getField1());
+            if (lastKey == null || !key.equals(lastKey)) {
+                // 一批里相同的 key 排在一起，只查一次
+                matches = probe(key);
+                lastKey = key;
+            }
+            matchPos = 0;
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    /**
+     * @throws IllegalArgumentException if children[1] cannot be probed, see
+     *                                  {@link #canProbe}
+     */
+    @Override
+    public void setChildren(OpIterator[] children) {
+        if (!canProbe(children[1], pred.getField2())) {
+            throw new IllegalArgumentException("child2 is not a scan of a B+ tree keyed on the join field");
+        }
+        this.child1 = children[0];
+        this.child2 = children[1];
+        // 查找用的 B+ 树、事务和过滤条件都来自 child2，换了 child2 就要重新取
+        SeqScan scan = findScan(child2);
+        this.tid = scan.getTransactionId();
+        this.index = (BTreeFile) Database.getCatalog().getDatabaseFile(scan.getTableId());
+        this.innerFilters = new ArrayList<>();
+        for (OpIterator plan = child2; plan instanceof Filter; plan = ((Filter) plan).getChildren()[0]) {
+            innerFilters.add(((Filter) plan).getPredicate());
+        }
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+}
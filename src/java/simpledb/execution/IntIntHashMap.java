@@ -0,0 +1,112 @@
+package simpledb.execution;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A hash map from int keys to non-negative int values that stores both in
+ * arrays, with open addressing and linear probing, so that neither keys nor
+ * values are boxed.
+ */
+class IntIntHashMap implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * the value of a free slot
+     */
+    private static final int FREE = -1;
+
+    private int[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+
+    IntIntHashMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(4, expected) * 2 - 1) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, FREE);
+        mask = capacity - 1;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the value of the key, or -1 if it has none
+     */
+    public int get(int key) {
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            if (values[i] == FREE) {
+                return -1;
+            }
+            if (keys[i] == key) {
+                return values[i];
+            }
+        }
+    }
+
+    /**
+     * Give the key a value unless it has one.
+     *
+     * @param value a non-negative value
+     * @return the value the key had, or -1 if it has the new one now
+     */
+    public int putIfAbsent(int key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("values must not be negative: " + value);
+        }
+        int i = hash(key) & mask;
+        for (; values[i] != FREE; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        // 线性探测，装到一半就扩容
+        if (++size * 2 > keys.length) {
+            rehash();
+        }
+        return -1;
+    }
+
+    private void rehash() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(keys.length * 2);
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldValues[j] != FREE) {
+                int i = hash(oldKeys[j]) & mask;
+                while (values[i] != FREE) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    /**
+     * @return roughly how many bytes the map takes
+     */
+    public long memory() {
+        return 8L * keys.length;
+    }
+
+    public void clear() {
+        Arrays.fill(values, FREE);
+        size = 0;
+    }
+}
@@ -1,5 +1,6 @@
 package simpledb.execution;
 
+import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
@@ -10,6 +11,13 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * This is a block nested-loops join: it reads child1 in blocks that fit into
+ * its memory budget and scans child2 once per block, instead of once per
+ * tuple of child1. For =, <, <=, > and >= the block is sorted on the join
+ * field, so that the tuples of the block that match a tuple of child2 are
+ * found by binary search; other predicates are checked against the whole
+ * block.
  */
 public class Join extends Operator {
 
@@ -20,7 +28,70 @@ public class Join extends Operator {
     private OpIterator child2;
     private TupleDesc tupleDesc;
 
-    private Tuple t1;
+    /**
+     * memory a join may use for a block of child1 unless set otherwise
+     */
+    private static volatile long defaultMemoryBudget = 1024L * 1024;
+
+    public static long getDefaultMemoryBudget() {
+        return defaultMemoryBudget;
+    }
+
+    /**
+     * Set the memory budget of joins created from now on.
+     *
+     * @param bytes the memory for a block of child1, measured in the size the
+     *              tuples have on a page
+     */
+    public static void setDefaultMemoryBudget(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("memory budget must be positive: " + bytes);
+        }
+        defaultMemoryBudget = bytes;
+    }
+
+    private long memoryBudget = defaultMemoryBudget;
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Set the memory this join may use for a block of child1; takes effect
+     * on the next open.
+     */
+    public void setMemoryBudget(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("memory budget must be positive: " + bytes);
+        }
+        this.memoryBudget = bytes;
+    }
+
+    /**
+     * Use blocks of as many tuples of child1 as fit on the given number of
+     * pages, e.g. 1 to join a page at a time.
+     */
+    public void setBlockPages(int pages) {
+        setMemoryBudget((long) pages * BufferPool.getPageSize());
+    }
+
+    transient private List<Tuple> block = new ArrayList<>();
+    transient private int blockSize;
+    transient private boolean child1Done;
+
+    /**
+     * true if all of child1 fit into the first block, so a rewind only needs
+     * to scan child2 again
+     */
+    transient private boolean singleBlock;
+    transient private int innerScans;
+
+    /**
+     * the current tuple of child2 and the range of the block to join it with
+     */
+    transient private Tuple t2;
+    transient private int pos;
+    transient private int end;
 
     /**
      * Constructor. Accepts two children to join and the predicate to join them
@@ -70,12 +141,29 @@ public class Join extends Operator {
         return tupleDesc;
     }
 
+    /**
+     * @return how many times child2 was scanned since the join was opened
+     */
+    public int getInnerScans() {
+        return innerScans;
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
         child1.open();
         child2.open();
-        t1 = null;
+        blockSize = (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+                memoryBudget / child1.getTupleDesc().getSize()));
+        block = new ArrayList<>();
+        child1Done = false;
+        innerScans = 0;
+        t2 = null;
+        loadBlock();
+        singleBlock = child1Done;
+        if (!block.isEmpty()) {
+            innerScans++;
+        }
         super.open();
     }
 
@@ -83,14 +171,108 @@ public class Join extends Operator {
         // some code goes here
         child1.close();
         child2.close();
+        block = new ArrayList<>();
+        t2 = null;
         super.close();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
-        t1 = null;
-        child1.rewind();
+        t2 = null;
         child2.rewind();
+        if (!singleBlock) {
+            // child1 全在一个块里就留着这个块，否则从头再读
+            child1.rewind();
+            child1Done = false;
+            loadBlock();
+        }
+        if (!block.isEmpty()) {
+            innerScans++;
+        }
+    }
+
+    /**
+     * true if the block is sorted on the join field and searched by binary
+     * search, false if every tuple of child2 is checked against the whole
+     * block
+     */
+    private boolean isSorted() {
+        switch (p.getOperator()) {
+            case EQUALS:
+            case LESS_THAN:
+            case LESS_THAN_OR_EQ:
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQ:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Read the next block of child1.
+     */
+    private void loadBlock() throws DbException, TransactionAbortedException {
+        block.clear();
+        while (block.size() < blockSize && child1.hasNext()) {
+            block.add(child1.next());
+        }
+        if (!child1.hasNext()) {
+            child1Done = true;
+        }
+        if (isSorted()) {
+            block.sort(new TupleComparator(p.getField1(), true));
+        }
+    }
+
+    /**
+     * @return the first position in the block whose key is greater than
+     * (or, if inclusive, not less than) the value
+     */
+    private int search(Field value, boolean inclusive) {
+        int lo = 0, hi = block.size();
+        Predicate.Op op = inclusive ? Predicate.Op.LESS_THAN : Predicate.Op.LESS_THAN_OR_EQ;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (block.get(mid).getField(p.getField1()).compare(op, value)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Set the range of the block that may match t2.
+     */
+    private void findRange() {
+        Field value = t2.getField(p.getField2());
+        switch (p.getOperator()) {
+            case EQUALS:
+                pos = search(value, true);
+                end = search(value, false);
+                break;
+            case LESS_THAN:
+                pos = 0;
+                end = search(value, true);
+                break;
+            case LESS_THAN_OR_EQ:
+                pos = 0;
+                end = search(value, false);
+                break;
+            case GREATER_THAN:
+                pos = search(value, false);
+                end = block.size();
+                break;
+            case GREATER_THAN_OR_EQ:
+                pos = search(value, true);
+                end = block.size();
+                break;
+            default:
+                pos = 0;
+                end = block.size();
+        }
     }
 
     /**
@@ -113,16 +295,11 @@ public class Join extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        if (t1 == null && !child1.hasNext()) {
-            return null;
-        }
-        while (t1 != null || child1.hasNext()) {
-            if (t1 == null) {
-                t1 = child1.next();
-            }
-            while (child2.hasNext()) {
-                Tuple t2 = child2.next();
-                if (!p.filter(t1, t2)) {
+        boolean sorted = isSorted();
+        while (!block.isEmpty()) {
+            while (t2 != null && pos < end) {
+                Tuple t1 = block.get(pos++);
+                if (!sorted && !p.filter(t1, t2)) {
                     continue;
                 }
                 Tuple tuple = new Tuple(tupleDesc);
@@ -137,8 +314,21 @@ public class Join extends Operator {
                 }
                 return tuple;
             }
-            t1 = null;
-            child2.rewind();
+            if (child2.hasNext()) {
+                t2 = child2.next();
+                findRange();
+                continue;
+            }
+            // child2 扫完一遍，换 child1 的下一块
+            t2 = null;
+            if (child1Done) {
+                return null;
+            }
+            loadBlock();
+            if (!block.isEmpty()) {
+                child2.rewind();
+                innerScans++;
+            }
         }
         return null;
     }
@@ -154,7 +344,7 @@ public class Join extends Operator {
         // some code goes here
         child1 = children[0];
         child2 = children[1];
-        t1 = null;
+        t2 = null;
         tupleDesc = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
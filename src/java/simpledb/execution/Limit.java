@@ -0,0 +1,114 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Limit is an operator that implements LIMIT and OFFSET: it skips the first
+ * tuples of its child and returns at most a given number of the rest. Once
+ * it has returned them it does not read the child any more, so a scan below
+ * it stops reading (and locking) pages.
+ */
+public class Limit extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * the limit of a Limit that only skips tuples
+     */
+    public static final long NO_LIMIT = Long.MAX_VALUE;
+
+    private final long limit;
+    private final long offset;
+    private OpIterator child;
+
+    transient private long skipped;
+    transient private long returned;
+
+    /**
+     * @param limit  the most tuples to return, or {@link #NO_LIMIT}
+     * @param offset the number of tuples to skip first
+     * @param child  the tuples to limit
+     */
+    public Limit(long limit, long offset, OpIterator child) {
+        if (limit < 0 || offset < 0) {
+            throw new IllegalArgumentException("limit and offset must not be negative");
+        }
+        this.limit = limit;
+        this.offset = offset;
+        this.child = child;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    @Override
+    public SortOrder getSortOrder() {
+        return child.getSortOrder();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        skipped = 0;
+        returned = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        skipped = 0;
+        returned = 0;
+    }
+
+    /**
+     * @return the next tuple after the offset, or null once the limit is
+     * reached or the child is done
+     */
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        // 够数了就不再碰 child
+        if (returned >= limit) {
+            return null;
+        }
+        while (skipped < offset) {
+            if (!child.hasNext()) {
+                return null;
+            }
+            child.next();
+            skipped++;
+        }
+        if (!child.hasNext()) {
+            return null;
+        }
+        returned++;
+        return child.next();
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
@@ -39,6 +39,34 @@ public interface OpIterator extends Serializable{
    */
   Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException;
 
+  /**
+   * Returns the next rows of the operator as a batch. The default reads them
+   * through {@link #next} into a new batch; {@link Operator} and the scans
+   * refill one batch instead, and operators that process whole batches
+   * override it. The batch is only valid until the next call.
+   * Callers should not mix calls to next and nextBatch on an open iterator.
+   *
+   * @return a batch with at least one selected row, or null if there are no
+   *         more rows
+   * @throws IllegalStateException If the iterator has not been opened
+   * @see BatchAdapter for the other direction
+   */
+  default TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+    TupleBatch batch = new TupleBatch(getTupleDesc());
+    return batch.fill(this) ? batch : null;
+  }
+
+  /**
+   * Returns the order the tuples come in, so that a parent can rely on it,
+   * e.g. a merge join. The default makes no promise.
+   *
+   * @return the order of the tuples, or null if they are not known to be
+   *         sorted
+   */
+  default SortOrder getSortOrder() {
+    return null;
+  }
+
   /**
    * Resets the iterator to the start.
    * @throws DbException when rewind is unsupported.
@@ -25,6 +25,19 @@ public abstract class Operator implements OpIterator {
         return next != null;
     }
 
+    /**
+     * Reads the next rows through {@link #next} into a batch that is reused
+     * for every call.
+     */
+    @Override
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        TupleDesc td = getTupleDesc();
+        if (batch == null || batch.getTupleDesc() != td) {
+            batch = new TupleBatch(td);
+        }
+        return batch.fill(this) ? batch : null;
+    }
+
     public Tuple next() throws DbException, TransactionAbortedException,
             NoSuchElementException {
         if (next == null) {
@@ -60,6 +73,7 @@ public abstract class Operator implements OpIterator {
     }
 
     private Tuple next = null;
+    transient private TupleBatch batch = null;
     protected boolean open = false;
     private int estimatedCardinality = 0;
 
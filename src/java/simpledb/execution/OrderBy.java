@@ -1,5 +1,6 @@
 package simpledb.execution;
 
+import simpledb.common.Debug;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
 import simpledb.storage.Field;
@@ -7,24 +8,104 @@ import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * If the input fits into the memory budget it is sorted in memory. Otherwise
+ * it is cut into sorted runs that are written to {@link SpillFile}s and
+ * merged with a heap; if there are too many runs to merge at once they are
+ * merged in several passes. Runs can be sorted and written by several
+ * threads while the child is still being read. The sort is stable.
  */
-public class OrderBy extends Operator {
+public class OrderBy extends Operator implements Spilling {
 
     private static final long serialVersionUID = 1L;
     private OpIterator child;
     private final TupleDesc td;
-    private final List<Tuple> childTups = new ArrayList<>();
-    private final int orderByField;
-    private final String orderByFieldName;
-    private Iterator<Tuple> it;
-    private final boolean asc;
+    private final int[] orderByFields;
+    private final boolean[] ascs;
+    private final TupleComparator comparator;
+
+    /**
+     * memory a sort may use for its runs unless set otherwise
+     */
+    private static volatile long defaultMemoryBudget = 4L * 1024 * 1024;
+
+    /**
+     * number of threads that sort runs unless set otherwise
+     */
+    private static volatile int defaultParallelism = 1;
+
+    /**
+     * rough size of a tuple in a run beyond its fields: the tuple, its field
+     * objects and the list entry
+     */
+    private static final int TUPLE_OVERHEAD = 64;
+
+    public static long getDefaultMemoryBudget() {
+        return defaultMemoryBudget;
+    }
+
+    /**
+     * Set the memory budget of sorts created from now on.
+     *
+     * @param bytes the memory for the tuples being sorted
+     */
+    public static void setDefaultMemoryBudget(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("memory budget must be positive: " + bytes);
+        }
+        defaultMemoryBudget = bytes;
+    }
+
+    private static long tupleBytes(TupleDesc td) {
+        return td.getSize() + TUPLE_OVERHEAD;
+    }
+
+    /**
+     * @return how many tuples of the schema a sort with the default memory
+     * budget holds in memory, so that it does not write runs
+     */
+    public static long tuplesThatFit(TupleDesc td) {
+        return defaultMemoryBudget / tupleBytes(td);
+    }
+
+    public static int getDefaultParallelism() {
+        return defaultParallelism;
+    }
+
+    /**
+     * Set the number of threads that sort runs in sorts created from now on.
+     */
+    public static void setDefaultParallelism(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("number of threads must be positive: " + threads);
+        }
+        defaultParallelism = threads;
+    }
+
+    private long memoryBudget = defaultMemoryBudget;
+    private int parallelism = defaultParallelism;
+
+    private final SpillStats stats = new SpillStats();
+
+    // 内存里排好的输入
+    transient private List<Tuple> childTups;
+    transient private int pos;
+
+    // 溢出时的 run，和最后一趟归并
+    transient private List<SpillFile> runs;
+    transient private Merge merge;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
-     * 
+     *
      * @param orderbyField
      *            the field to which the sort is applied.
      * @param asc
@@ -33,64 +114,354 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(new int[]{orderbyField}, new boolean[]{asc}, child);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts on several fields: on the first,
+     * tuples with the same value of it on the second, and so on.
+     *
+     * @param orderbyFields the fields to which the sort is applied
+     * @param ascs          for each field, true if its order is ascending
+     * @param child         the tuples to sort
+     */
+    public OrderBy(int[] orderbyFields, boolean[] ascs, OpIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != ascs.length) {
+            throw new IllegalArgumentException("need one direction for each of at least one sort field");
+        }
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = ascs.clone();
+        this.comparator = new TupleComparator(this.orderByFields, this.ascs);
     }
-    
+
     public boolean isASC()
     {
-	return this.asc;
+	return this.ascs[0];
     }
-    
+
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
-    
+
     public String getOrderFieldName()
     {
-	return this.orderByFieldName;
+	return td.getFieldName(this.orderByFields[0]);
+    }
+
+    /**
+     * @return all the sort fields, the first one first
+     */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
     }
-    
+
+    /**
+     * @return for each sort field, true if its order is ascending
+     */
+    public boolean[] getAscs() {
+        return ascs.clone();
+    }
+
     public TupleDesc getTupleDesc() {
         return td;
     }
 
+    @Override
+    public SortOrder getSortOrder() {
+        return new SortOrder(orderByFields[0], ascs[0]);
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Set the memory this sort may use for the tuples it sorts; takes effect
+     * on the next open.
+     */
+    public void setMemoryBudget(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("memory budget must be positive: " + bytes);
+        }
+        this.memoryBudget = bytes;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Set the number of threads that sort and write runs while the child is
+     * read; takes effect on the next open. With more than one thread the
+     * memory budget is shared by the runs being filled and sorted.
+     */
+    public void setParallelism(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("number of threads must be positive: " + threads);
+        }
+        this.parallelism = threads;
+    }
+
+    public SpillStats getSpillStats() {
+        return stats;
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add(child.next());
-        childTups.sort(new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        stats.reset();
+        release();
+        try {
+            sort();
+        } catch (DbException | TransactionAbortedException | RuntimeException e) {
+            // 已经写出的 run 不等 close 就删掉
+            release();
+            throw e;
+        }
         super.open();
     }
 
+    /**
+     * Sort the child: in memory if it fits, into merged runs otherwise.
+     */
+    private void sort() throws DbException, TransactionAbortedException {
+        long tupleBytes = tupleBytes(td);
+        int threads = parallelism;
+        // 多线程时一个在读、threads 个在排，平分预算
+        long buffers = threads == 1 ? 1 : threads + 1;
+        int capacity = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / (tupleBytes * buffers)));
+
+        List<Tuple> buffer = new ArrayList<>();
+        while (buffer.size() < capacity && child.hasNext()) {
+            buffer.add(child.next());
+        }
+        if (!child.hasNext()) {
+            buffer.sort(comparator);
+            childTups = buffer;
+            pos = 0;
+            return;
+        }
+
+        runs = new ArrayList<>();
+        if (threads == 1) {
+            while (!buffer.isEmpty()) {
+                runs.add(writeRun(buffer, stats));
+                buffer = new ArrayList<>();
+                while (buffer.size() < capacity && child.hasNext()) {
+                    buffer.add(child.next());
+                }
+            }
+        } else {
+            generateRunsInParallel(buffer, capacity, threads);
+        }
+        mergeRuns();
+        merge = new Merge(runs);
+    }
+
+    /**
+     * Sort the tuples and write them to a new run.
+     *
+     * @param runStats where to count the run, or null
+     */
+    private SpillFile writeRun(List<Tuple> tuples, SpillStats runStats) throws DbException {
+        tuples.sort(comparator);
+        SpillFile run = new SpillFile(td, runStats);
+        try {
+            for (Tuple t : tuples) {
+                run.add(t);
+            }
+        } catch (DbException e) {
+            run.close();
+            throw e;
+        }
+        return run;
+    }
+
+    /**
+     * Hand full buffers to a pool of threads that sort and write them, while
+     * this thread goes on reading the child. Runs are kept in the order of
+     * the input so that the merge is stable.
+     */
+    private void generateRunsInParallel(List<Tuple> first, int capacity, int threads)
+            throws DbException, TransactionAbortedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "sort-run");
+            t.setDaemon(true);
+            return t;
+        });
+        Deque<Future<SpillFile>> pending = new ArrayDeque<>();
+        // 出错时还没收进 runs 的 run 也要删掉，取消的任务可能已经写完了
+        List<SpillFile> written = Collections.synchronizedList(new ArrayList<>());
+        boolean done = false;
+        try {
+            List<Tuple> buffer = first;
+            while (!buffer.isEmpty()) {
+                final List<Tuple> full = buffer;
+                // 统计不是线程安全的，写完再在这边记
+                pending.add(pool.submit(() -> {
+                    SpillFile run = writeRun(full, null);
+                    written.add(run);
+                    return run;
+                }));
+                if (pending.size() == threads) {
+                    collect(pending.removeFirst());
+                }
+                buffer = new ArrayList<>();
+                while (buffer.size() < capacity && child.hasNext()) {
+                    buffer.add(child.next());
+                }
+            }
+            while (!pending.isEmpty()) {
+                collect(pending.removeFirst());
+            }
+            done = true;
+        } finally {
+            for (Future<SpillFile> f : pending) {
+                f.cancel(true);
+            }
+            pool.shutdownNow();
+            if (!done) {
+                discardUncollected(pool, written);
+            }
+        }
+    }
+
+    /**
+     * Wait for the run writers to stop and delete the runs they wrote that
+     * were not collected into {@link #runs}.
+     */
+    private void discardUncollected(ExecutorService pool, List<SpillFile> written) {
+        try {
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (written) {
+            for (SpillFile run : written) {
+                if (!runs.contains(run)) {
+                    run.close();
+                }
+            }
+        }
+    }
+
+    private void collect(Future<SpillFile> f) throws DbException {
+        SpillFile run;
+        try {
+            run = f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while sorting runs");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DbException) {
+                throw (DbException) cause;
+            }
+            throw new DbException("cannot sort run: " + cause);
+        }
+        stats.addFile(run.size(), td.getSize());
+        runs.add(run);
+    }
+
+    /**
+     * Merge neighbouring runs until there are few enough to merge at once,
+     * each reader needing a buffer.
+     */
+    private void mergeRuns() throws DbException {
+        int fanIn = (int) Math.max(2, Math.min(Integer.MAX_VALUE, memoryBudget / SpillFile.BUFFER_SIZE));
+        int level = 0;
+        while (runs.size() > fanIn) {
+            stats.addLevel(++level);
+            List<SpillFile> merged = new ArrayList<>();
+            for (int i = 0; i < runs.size(); i += fanIn) {
+                List<SpillFile> group = runs.subList(i, Math.min(i + fanIn, runs.size()));
+                if (group.size() == 1) {
+                    merged.add(group.get(0));
+                    continue;
+                }
+                stats.addPass();
+                SpillFile out = new SpillFile(td, stats);
+                Merge m = null;
+                try {
+                    m = new Merge(group);
+                    Tuple t;
+                    while ((t = m.next()) != null) {
+                        out.add(t);
+                    }
+                } catch (DbException | RuntimeException e) {
+                    // 这一层已经合并出来的 run 也删掉，原来的 run 由 release 删
+                    out.close();
+                    for (SpillFile f : merged) {
+                        if (!runs.contains(f)) {
+                            f.close();
+                        }
+                    }
+                    throw e;
+                } finally {
+                    if (m != null) {
+                        m.close();
+                    }
+                }
+                for (SpillFile run : group) {
+                    run.close();
+                }
+                merged.add(out);
+            }
+            runs = merged;
+        }
+    }
+
+    private void release() {
+        childTups = null;
+        if (merge != null) {
+            merge.close();
+            merge = null;
+        }
+        if (runs != null) {
+            for (SpillFile run : runs) {
+                run.close();
+            }
+            runs = null;
+        }
+    }
+
     public void close() {
         super.close();
-        it = null;
+        child.close();
+        release();
+        if (stats.hasSpilled()) {
+            Debug.log("OrderBy on %s: %s", getOrderFieldName(), stats);
+        }
     }
 
-    public void rewind() {
-        it = childTups.iterator();
+    public void rewind() throws DbException {
+        if (childTups != null) {
+            pos = 0;
+        } else if (runs != null) {
+            // run 在 close 之前都还在
+            merge.close();
+            merge = new Merge(runs);
+        }
     }
 
     /**
      * Operator.fetchNext implementation. Returns tuples from the child operator
      * in order
-     * 
+     *
      * @return The next tuple in the ordering, or null if there are no more
      *         tuples
      */
-    protected Tuple fetchNext() throws NoSuchElementException {
-        if (it != null && it.hasNext()) {
-            return it.next();
-        } else
-            return null;
+    protected Tuple fetchNext() throws NoSuchElementException, DbException {
+        if (childTups != null) {
+            return pos < childTups.size() ? childTups.get(pos++) : null;
+        }
+        if (merge != null) {
+            return merge.next();
+        }
+        return null;
     }
 
     @Override
@@ -103,26 +474,95 @@ public class OrderBy extends Operator {
         this.child = children[0];
     }
 
+    /**
+     * A k-way merge of sorted runs with a heap; of equal tuples the one of the
+     * earlier run comes first.
+     */
+    private class Merge {
+        private final List<SpillFile.Reader> readers = new ArrayList<>();
+        private final PriorityQueue<Head> heap;
+
+        Merge(List<SpillFile> runs) throws DbException {
+            heap = new PriorityQueue<>(Math.max(1, runs.size()), (a, b) -> {
+                int c = comparator.compare(a.tuple, b.tuple);
+                return c != 0 ? c : Integer.compare(a.run, b.run);
+            });
+            try {
+                for (int i = 0; i < runs.size(); i++) {
+                    SpillFile.Reader r = runs.get(i).reader();
+                    readers.add(r);
+                    Tuple t = r.next();
+                    if (t != null) {
+                        heap.add(new Head(t, i));
+                    }
+                }
+            } catch (DbException e) {
+                close();
+                throw e;
+            }
+        }
+
+        Tuple next() throws DbException {
+            Head head = heap.poll();
+            if (head == null) {
+                return null;
+            }
+            Tuple t = head.tuple;
+            Tuple following = readers.get(head.run).next();
+            if (following != null) {
+                heap.add(new Head(following, head.run));
+            }
+            return t;
+        }
+
+        void close() {
+            for (SpillFile.Reader r : readers) {
+                r.close();
+            }
+            readers.clear();
+            heap.clear();
+        }
+    }
+
+    private static class Head {
+        final Tuple tuple;
+        final int run;
+
+        Head(Tuple tuple, int run) {
+            this.tuple = tuple;
+            this.run = run;
+        }
+    }
 }
 
+/**
+ * Compares tuples on one or more fields, each ascending or descending.
+ */
 class TupleComparator implements Comparator<Tuple> {
-    final int field;
-    final boolean asc;
+    final int[] fields;
+    final boolean[] ascs;
 
     public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
+        this(new int[]{field}, new boolean[]{asc});
+    }
+
+    public TupleComparator(int[] fields, boolean[] ascs) {
+        this.fields = fields;
+        this.ascs = ascs;
     }
 
     public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-    
+        for (int i = 0; i < fields.length; i++) {
+            Field t1 = (o1).getField(fields[i]);
+            Field t2 = (o2).getField(fields[i]);
+            if (t1.compare(Predicate.Op.EQUALS, t2))
+                continue;
+            if (t1.compare(Predicate.Op.GREATER_THAN, t2))
+                return ascs[i] ? 1 : -1;
+            else
+                return ascs[i] ? -1 : 1;
+        }
+        return 0;
+    }
+
 }
@@ -1,6 +1,8 @@
 package simpledb.execution;
 
 import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
 import simpledb.storage.Tuple;
 
 import java.io.Serializable;
@@ -104,6 +106,92 @@ public class Predicate implements Serializable {
         return otherFiled.compare(op, operand);
     }
 
+    /**
+     * Narrow the selection of the batch to the rows that pass the predicate.
+     * Int columns are compared in a loop over the column array, without
+     * creating a Field per row.
+     */
+    public void filter(TupleBatch batch) {
+        int[] sel = batch.getSelection();
+        int n = batch.numSelected();
+        int out = 0;
+        if (operand instanceof IntField) {
+            int[] col = batch.getIntColumn(field);
+            int v = ((IntField) operand).getValue();
+            switch (op) {
+                case EQUALS:
+                case LIKE:
+                    for (int i = 0; i < n; i++) {
+                        int r = sel[i];
+                        if (col[r] == v) sel[out++] = r;
+                    }
+                    break;
+                case NOT_EQUALS:
+                    for (int i = 0; i < n; i++) {
+                        int r = sel[i];
+                        if (col[r] != v) sel[out++] = r;
+                    }
+                    break;
+                case GREATER_THAN:
+                    for (int i = 0; i < n; i++) {
+                        int r = sel[i];
+                        if (col[r] > v) sel[out++] = r;
+                    }
+                    break;
+                case GREATER_THAN_OR_EQ:
+                    for (int i = 0; i < n; i++) {
+                        int r = sel[i];
+                        if (col[r] >= v) sel[out++] = r;
+                    }
+                    break;
+                case LESS_THAN:
+                    for (int i = 0; i < n; i++) {
+                        int r = sel[i];
+                        if (col[r] < v) sel[out++] = r;
+                    }
+                    break;
+                case LESS_THAN_OR_EQ:
+                    for (int i = 0; i < n; i++) {
+                        int r = sel[i];
+                        if (col[r] <= v) sel[out++] = r;
+                    }
+                    break;
+            }
+        } else {
+            String[] col = batch.getStringColumn(field);
+            String v = ((StringField) operand).getValue();
+            for (int i = 0; i < n; i++) {
+                int r = sel[i];
+                int cmp = col[r].compareTo(v);
+                boolean pass;
+                switch (op) {
+                    case EQUALS:
+                        pass = cmp == 0;
+                        break;
+                    case NOT_EQUALS:
+                        pass = cmp != 0;
+                        break;
+                    case GREATER_THAN:
+                        pass = cmp > 0;
+                        break;
+                    case GREATER_THAN_OR_EQ:
+                        pass = cmp >= 0;
+                        break;
+                    case LESS_THAN:
+                        pass = cmp < 0;
+                        break;
+                    case LESS_THAN_OR_EQ:
+                        pass = cmp <= 0;
+                        break;
+                    default:
+                        pass = col[r].contains(v);
+                }
+                if (pass) sel[out++] = r;
+            }
+        }
+        batch.setNumSelected(out);
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string"
@@ -17,6 +17,7 @@ public class Project extends Operator {
     private OpIterator child;
     private final TupleDesc td;
     private final List<Integer> outFieldIds;
+    private final int[] outFields;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -42,12 +43,29 @@ public class Project extends Operator {
             fieldAr[i] = childtd.getFieldName(fieldList.get(i));
         }
         td = new TupleDesc(types, fieldAr);
+        outFields = new int[fieldList.size()];
+        for (int i = 0; i < outFields.length; i++) {
+            outFields[i] = fieldList.get(i);
+        }
     }
 
     public TupleDesc getTupleDesc() {
         return td;
     }
 
+    @Override
+    public SortOrder getSortOrder() {
+        SortOrder order = child.getSortOrder();
+        if (order != null) {
+            for (int i = 0; i < outFields.length; i++) {
+                if (outFields[i] == order.getField()) {
+                    return new SortOrder(i, order.isAscending());
+                }
+            }
+        }
+        return null;
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
@@ -81,6 +99,16 @@ public class Project extends Operator {
         return newTuple;
     }
 
+    /**
+     * Returns the child's batches with the projected columns; the column
+     * arrays are shared, nothing is copied.
+     */
+    @Override
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch batch = child.nextBatch();
+        return batch == null ? null : batch.project(td, outFields);
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[]{this.child};
@@ -120,6 +120,27 @@ public class Query implements Serializable {
             cnt++;
         }
         System.out.println("\n " + cnt + " rows.");
+        reportSpills(op);
         this.close();
     }
+
+    /**
+     * Print what the operators of a plan wrote to disk because their input
+     * did not fit into memory.
+     */
+    private static void reportSpills(OpIterator op) {
+        if (op instanceof Spilling) {
+            SpillStats stats = ((Spilling) op).getSpillStats();
+            if (stats.hasSpilled()) {
+                System.out.println(" " + op.getClass().getSimpleName() + " " + stats + ".");
+            }
+        }
+        if (op instanceof Operator) {
+            for (OpIterator child : ((Operator) op).getChildren()) {
+                if (child != null) {
+                    reportSpills(child);
+                }
+            }
+        }
+    }
 }
@@ -2,7 +2,11 @@ package simpledb.execution;
 
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.index.BTreeFile;
+import simpledb.storage.DbFile;
 import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
@@ -28,6 +32,16 @@ public class SeqScan implements OpIterator {
 
     private boolean isOpen;
     private DbFileIterator iterator;
+    private boolean lockTable;
+
+    /**
+     * 行锁表：逐行加 S 锁后重新读取
+     */
+    private HeapFile recordLockedFile;
+
+    private Tuple nextTuple;
+
+    transient private TupleBatch batch;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -54,10 +68,22 @@ public class SeqScan implements OpIterator {
         TupleDesc desc = Database.getCatalog().getTupleDesc(tableId);
         tupleDesc = new TupleDesc(desc, tableAlias);
         this.tableName = Database.getCatalog().getTableName(tableId);
-        this.iterator = Database.getCatalog().getDatabaseFile(tableId).iterator(tid);
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        this.iterator = file.iterator(tid);
+        this.recordLockedFile = file instanceof HeapFile && ((HeapFile) file).isRecordLocking()
+                ? (HeapFile) file : null;
+        this.nextTuple = null;
         this.isOpen = false;
     }
 
+    public int getTableId() {
+        return tableid;
+    }
+
+    public TransactionId getTransactionId() {
+        return tid;
+    }
+
     /**
      * @return return the table name of the table the operator scans. This should
      * be the actual name of the table in the catalog of the database
@@ -94,12 +120,43 @@ public class SeqScan implements OpIterator {
         this(tid, tableId, Database.getCatalog().getTableName(tableId));
     }
 
+    /**
+     * Take a shared lock on the whole table when the scan is opened instead of
+     * locking every page it reads. Useful for full scans of large tables,
+     * which would otherwise create one lock per page. The query planner sets
+     * it for tables larger than the lock escalation threshold.
+     *
+     * @param lockTable true to lock the table up front
+     */
+    public void setLockTable(boolean lockTable) {
+        this.lockTable = lockTable;
+    }
+
+    public boolean isLockTable() {
+        return lockTable;
+    }
+
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
+        if (Database.getBufferPool().isSnapshot(tid)) {
+            // 快照读不加锁，看到的页已经是提交的版本
+            recordLockedFile = null;
+        } else if (lockTable) {
+            Database.getBufferPool().lockTable(tid, tableid, Permissions.READ_ONLY);
+        }
         iterator.open();
         isOpen = true;
     }
 
+    /**
+     * A B+ tree file is read in the order of its key.
+     */
+    @Override
+    public SortOrder getSortOrder() {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        return file instanceof BTreeFile ? new SortOrder(((BTreeFile) file).keyField(), true) : null;
+    }
+
     /**
      * Returns the TupleDesc with field names from the underlying HeapFile,
      * prefixed with the tableAlias string from the constructor. This prefix
@@ -120,7 +177,13 @@ public class SeqScan implements OpIterator {
         if (!isOpen) {
             return false;
         }
-        return iterator.hasNext();
+        if (recordLockedFile == null) {
+            return iterator.hasNext();
+        }
+        if (nextTuple == null) {
+            nextTuple = fetchLocked();
+        }
+        return nextTuple != null;
     }
 
     public Tuple next() throws NoSuchElementException,
@@ -129,13 +192,63 @@ public class SeqScan implements OpIterator {
         if (!isOpen) {
             throw new NoSuchElementException();
         }
-        return iterator.next();
+        if (recordLockedFile == null) {
+            return iterator.next();
+        }
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Tuple t = nextTuple;
+        nextTuple = null;
+        return t;
+    }
+
+    /**
+     * Fills a batch that is reused for every call with the next rows of the
+     * file. A heap file copies them from its pages straight into the columns,
+     * see {@link DbFileIterator#fillBatch}.
+     */
+    @Override
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (!isOpen) {
+            throw new IllegalStateException("scan of " + tableName + " is not open");
+        }
+        if (batch == null) {
+            batch = new TupleBatch(tupleDesc);
+        }
+        batch.clear();
+        if (recordLockedFile == null) {
+            iterator.fillBatch(batch);
+        } else {
+            while (!batch.isFull() && hasNext()) {
+                batch.addTuple(next());
+            }
+        }
+        return batch.size() > 0 ? batch : null;
+    }
+
+    /**
+     * Under record-level locking the file iterator also returns tuples other
+     * transactions are inserting or deleting. Lock each one and read it again,
+     * skipping the ones that are gone by then.
+     */
+    private Tuple fetchLocked() throws TransactionAbortedException, DbException {
+        while (iterator.hasNext()) {
+            Tuple candidate = iterator.next();
+            Database.getBufferPool().lockRecord(tid, candidate.getRecordId(), Permissions.READ_ONLY);
+            Tuple t = recordLockedFile.readTuple(tid, candidate.getRecordId());
+            if (t != null) {
+                return t;
+            }
+        }
+        return null;
     }
 
     public void close() {
         // some code goes here
         iterator.close();
         this.iterator = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+        nextTuple = null;
         isOpen = false;
     }
 
@@ -146,5 +259,6 @@ public class SeqScan implements OpIterator {
             throw new NoSuchElementException();
         }
         iterator.rewind();
+        nextTuple = null;
     }
 }
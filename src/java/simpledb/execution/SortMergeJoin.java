@@ -0,0 +1,306 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.*;
+
+/**
+ * A join of two inputs that are already sorted on their join fields in the
+ * same direction, e.g. scans of B+ tree files or the output of
+ * {@link OrderBy}. It reads both inputs once and builds no hash table.
+ * <p>
+ * For an equality predicate it only keeps the tuples of child2 with the
+ * current key in memory. For <, <=, > and >= the tuples of child1 match a
+ * prefix or a suffix of child2, whose boundary only moves forward as child1
+ * goes on; child2 is kept in memory for that. The output comes in the order
+ * of child1.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private final JoinPredicate pred;
+    private OpIterator child1, child2;
+    private TupleDesc comboTD;
+    private final boolean asc;
+
+    /**
+     * true if the tuples of child2 that match a tuple of child1 are the ones
+     * after the boundary, false if they are the ones before it
+     */
+    private final boolean suffix;
+
+    transient private Tuple left;
+    transient private Field prevLeft;
+
+    // 等值连接：child2 当前 key 的一组，和读到的下一个
+    transient private Tuple right;
+    transient private Field prevRight;
+    transient private List<Tuple> group;
+    transient private Field groupKey;
+    transient private int groupPos;
+
+    // 范围连接：整个 child2，和 child1 当前的 tuple 匹配的区间
+    transient private List<Tuple> rights;
+    transient private int bound;
+    transient private int pos;
+    transient private int end;
+
+    /**
+     * @return true if the join can evaluate the operator
+     */
+    public static boolean supports(Predicate.Op op) {
+        switch (op) {
+            case EQUALS:
+            case LESS_THAN:
+            case LESS_THAN_OR_EQ:
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQ:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Join two inputs sorted in the direction child1 reports, ascending if it
+     * does not.
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, child1.getSortOrder() == null || child1.getSortOrder().isAscending());
+    }
+
+    /**
+     * @param p      the predicate to join on, see {@link #supports}
+     * @param child1 the left input, sorted on p.getField1()
+     * @param child2 the right input, sorted on p.getField2()
+     * @param asc    true if both are sorted ascending, false if descending
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2, boolean asc) {
+        if (!supports(p.getOperator())) {
+            throw new IllegalArgumentException("sort-merge join does not support " + p.getOperator());
+        }
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.asc = asc;
+        boolean rightIsGreater = p.getOperator() == Predicate.Op.LESS_THAN
+                || p.getOperator() == Predicate.Op.LESS_THAN_OR_EQ;
+        this.suffix = rightIsGreater == asc;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    @Override
+    public SortOrder getSortOrder() {
+        return new SortOrder(pred.getField1(), asc);
+    }
+
+    private boolean isEquiJoin() {
+        return pred.getOperator() == Predicate.Op.EQUALS;
+    }
+
+    /**
+     * @return the order of two keys in the direction of the inputs
+     */
+    private int compare(Field a, Field b) {
+        int c;
+        if (a.compare(Predicate.Op.EQUALS, b)) {
+            c = 0;
+        } else if (a.compare(Predicate.Op.GREATER_THAN, b)) {
+            c = 1;
+        } else {
+            c = -1;
+        }
+        return asc ? c : -c;
+    }
+
+    private Tuple nextLeft() throws DbException, TransactionAbortedException {
+        if (!child1.hasNext()) {
+            return null;
+        }
+        Tuple t = child1.next();
+        Field key = t.getField(pred.getField1());
+        if (prevLeft != null && compare(prevLeft, key) > 0) {
+            throw new DbException("child1 of sort-merge join is not sorted on " + getJoinField1Name());
+        }
+        prevLeft = key;
+        return t;
+    }
+
+    private Tuple nextRight() throws DbException, TransactionAbortedException {
+        if (!child2.hasNext()) {
+            return null;
+        }
+        Tuple t = child2.next();
+        Field key = t.getField(pred.getField2());
+        if (prevRight != null && compare(prevRight, key) > 0) {
+            throw new DbException("child2 of sort-merge join is not sorted on " + getJoinField2Name());
+        }
+        prevRight = key;
+        return t;
+    }
+
+    private void start() throws DbException, TransactionAbortedException {
+        left = null;
+        prevLeft = null;
+        group = null;
+        groupKey = null;
+        pos = 0;
+        end = 0;
+        bound = 0;
+        if (isEquiJoin()) {
+            prevRight = null;
+            right = nextRight();
+        } else if (rights == null) {
+            prevRight = null;
+            rights = new ArrayList<>();
+            Tuple t;
+            while ((t = nextRight()) != null) {
+                rights.add(t);
+            }
+        }
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        rights = null;
+        start();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child2.close();
+        child1.close();
+        left = null;
+        right = null;
+        group = null;
+        rights = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        if (isEquiJoin()) {
+            child2.rewind();
+        }
+        // 范围连接的 child2 已经在内存里了
+        start();
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the concatenation of a tuple of child1 and a tuple of
+     * child2 that satisfy the predicate.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        return isEquiJoin() ? fetchNextEqual() : fetchNextRange();
+    }
+
+    private Tuple fetchNextEqual() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (left != null && group != null && groupPos < group.size()) {
+                return merge(left, group.get(groupPos++));
+            }
+            left = nextLeft();
+            if (left == null) {
+                return null;
+            }
+            Field key = left.getField(pred.getField1());
+            if (group != null && compare(key, groupKey) == 0) {
+                // 相同的 key 再和这一组连一遍
+                groupPos = 0;
+                continue;
+            }
+            group = null;
+            while (right != null && compare(right.getField(pred.getField2()), key) < 0) {
+                right = nextRight();
+            }
+            if (right == null) {
+                // child2 读完了，child1 剩下的都连不上
+                left = null;
+                return null;
+            }
+            if (compare(right.getField(pred.getField2()), key) == 0) {
+                groupKey = right.getField(pred.getField2());
+                group = new ArrayList<>();
+                while (right != null && compare(right.getField(pred.getField2()), groupKey) == 0) {
+                    group.add(right);
+                    right = nextRight();
+                }
+                groupPos = 0;
+            }
+        }
+    }
+
+    private Tuple fetchNextRange() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (left != null && pos < end) {
+                return merge(left, rights.get(pos++));
+            }
+            left = nextLeft();
+            if (left == null) {
+                return null;
+            }
+            int n = rights.size();
+            if (suffix) {
+                while (bound < n && !pred.filter(left, rights.get(bound))) {
+                    bound++;
+                }
+                pos = bound;
+                end = n;
+            } else {
+                while (bound < n && pred.filter(left, rights.get(bound))) {
+                    bound++;
+                }
+                pos = 0;
+                end = bound;
+            }
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+}
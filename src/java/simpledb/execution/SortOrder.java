@@ -0,0 +1,56 @@
+package simpledb.execution;
+
+import java.io.Serializable;
+
+/**
+ * The order an operator returns its tuples in, as
+ * {@link OpIterator#getSortOrder} reports it: sorted on one field, ascending
+ * or descending. Tuples with equal values come in no particular order.
+ */
+public class SortOrder implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int field;
+    private final boolean asc;
+
+    public SortOrder(int field, boolean asc) {
+        this.field = field;
+        this.asc = asc;
+    }
+
+    public int getField() {
+        return field;
+    }
+
+    public boolean isAscending() {
+        return asc;
+    }
+
+    /**
+     * @return true if the tuples are sorted on the field, in either direction
+     */
+    public static boolean isSortedOn(OpIterator it, int field) {
+        SortOrder order = it.getSortOrder();
+        return order != null && order.field == field;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof SortOrder)) {
+            return false;
+        }
+        SortOrder other = (SortOrder) o;
+        return field == other.field && asc == other.asc;
+    }
+
+    @Override
+    public int hashCode() {
+        return field * 2 + (asc ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return field + (asc ? " asc" : " desc");
+    }
+}
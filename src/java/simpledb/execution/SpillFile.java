@@ -0,0 +1,149 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.io.*;
+import java.text.ParseException;
+
+/**
+ * A temporary file of tuples that an operator writes when its input does not
+ * fit into its memory budget, and reads back later. Tuples are written in
+ * their on-page format, without record ids. The file is deleted when it is
+ * closed.
+ */
+public class SpillFile {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private final TupleDesc td;
+    private final SpillStats stats;
+    private final File file;
+    private DataOutputStream out;
+    private long numTuples;
+
+    /**
+     * @param stats where to count the tuples and bytes written, or null
+     */
+    public SpillFile(TupleDesc td, SpillStats stats) throws DbException {
+        this.td = td;
+        this.stats = stats;
+        // 不用 deleteOnExit：JVM 会把每个路径留到退出，close 会删掉文件
+        try {
+            file = File.createTempFile("spill", ".tmp");
+        } catch (IOException e) {
+            throw new DbException("cannot create spill file: " + e.getMessage());
+        }
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        } catch (IOException e) {
+            file.delete();
+            throw new DbException("cannot create spill file: " + e.getMessage());
+        }
+        if (stats != null) {
+            stats.addFile();
+        }
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of tuples written
+     */
+    public long size() {
+        return numTuples;
+    }
+
+    public void add(Tuple t) throws DbException {
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                t.getField(i).serialize(out);
+            }
+        } catch (IOException e) {
+            throw new DbException("cannot write spill file: " + e.getMessage());
+        }
+        numTuples++;
+        if (stats != null) {
+            stats.addTuple(td.getSize());
+        }
+    }
+
+    /**
+     * Finish writing; no more tuples may be added.
+     */
+    private void finish() throws DbException {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                throw new DbException("cannot write spill file: " + e.getMessage());
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * @return a reader over the tuples written so far; the file can be read
+     * any number of times once nothing is added any more
+     */
+    public Reader reader() throws DbException {
+        finish();
+        return new Reader();
+    }
+
+    /**
+     * Delete the file.
+     */
+    public void close() {
+        try {
+            finish();
+        } catch (DbException e) {
+            // 反正要删掉
+        }
+        file.delete();
+    }
+
+    public class Reader implements Closeable {
+        private final DataInputStream in;
+        private long remaining = numTuples;
+
+        private Reader() throws DbException {
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+            } catch (IOException e) {
+                throw new DbException("cannot read spill file: " + e.getMessage());
+            }
+        }
+
+        /**
+         * @return the next tuple, or null at the end of the file
+         */
+        public Tuple next() throws DbException {
+            if (remaining == 0) {
+                return null;
+            }
+            remaining--;
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++) {
+                    t.setField(i, td.getFieldType(i).parse(in));
+                }
+            } catch (ParseException e) {
+                throw new DbException("cannot read spill file: " + e.getMessage());
+            }
+            return t;
+        }
+
+        @Override
+        public void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // 只读，关不上也没关系
+            }
+        }
+    }
+}
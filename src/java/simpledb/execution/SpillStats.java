@@ -0,0 +1,93 @@
+package simpledb.execution;
+
+import java.io.Serializable;
+
+/**
+ * What an operator wrote to {@link SpillFile}s because its input did not fit
+ * into its memory budget.
+ */
+public class SpillStats implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private int files;
+    private long tuples;
+    private long bytes;
+    private int depth;
+    private int passes;
+
+    void addFile() {
+        files++;
+    }
+
+    void addTuple(int size) {
+        tuples++;
+        bytes += size;
+    }
+
+    /**
+     * Count a whole file written without stats, e.g. by another thread.
+     */
+    void addFile(long numTuples, int size) {
+        files++;
+        tuples += numTuples;
+        bytes += numTuples * size;
+    }
+
+    /**
+     * Note that the operator split its input again to the given level, e.g. a
+     * partition that was still too big.
+     */
+    void addLevel(int level) {
+        depth = Math.max(depth, level);
+    }
+
+    /**
+     * Note another read of spilled data that the operator could not avoid,
+     * e.g. a partition that had to be joined in several chunks.
+     */
+    void addPass() {
+        passes++;
+    }
+
+    public void reset() {
+        files = 0;
+        tuples = 0;
+        bytes = 0;
+        depth = 0;
+        passes = 0;
+    }
+
+    public boolean hasSpilled() {
+        return files > 0;
+    }
+
+    public int getFiles() {
+        return files;
+    }
+
+    public long getTuples() {
+        return tuples;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return how many times the input was split, 0 if it fit into memory
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getPasses() {
+        return passes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("spilled %d tuples (%d KB) to %d files, %d levels, %d extra passes",
+                tuples, bytes / 1024, files, depth, passes);
+    }
+}
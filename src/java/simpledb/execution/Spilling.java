@@ -0,0 +1,13 @@
+package simpledb.execution;
+
+/**
+ * An operator that writes its input to disk when it does not fit into its
+ * memory budget, and reports how much it wrote.
+ */
+public interface Spilling {
+
+    /**
+     * @return what the operator spilled since it was opened
+     */
+    SpillStats getSpillStats();
+}
@@ -0,0 +1,158 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.*;
+
+/**
+ * TopN is an operator that implements ORDER BY with LIMIT: it returns the
+ * first tuples of its child in the order of {@link OrderBy}, after skipping
+ * an offset. It reads the whole child but only keeps the offset plus the
+ * limit best tuples in a heap, instead of sorting everything.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private final int[] orderByFields;
+    private final boolean[] ascs;
+    private final long limit;
+    private final long offset;
+    private final TupleComparator comparator;
+
+    transient private List<Tuple> result;
+    transient private int pos;
+
+    /**
+     * @param orderbyFields the fields to sort on, the first one first
+     * @param ascs          for each field, true if its order is ascending
+     * @param limit         the most tuples to return
+     * @param offset        the number of tuples to skip first
+     * @param child         the tuples to sort
+     */
+    public TopN(int[] orderbyFields, boolean[] ascs, long limit, long offset, OpIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != ascs.length) {
+            throw new IllegalArgumentException("need one direction for each of at least one sort field");
+        }
+        if (limit < 0 || offset < 0 || limit + offset > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("cannot keep " + limit + " tuples after " + offset);
+        }
+        this.child = child;
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = ascs.clone();
+        this.limit = limit;
+        this.offset = offset;
+        this.comparator = new TupleComparator(this.orderByFields, this.ascs);
+    }
+
+    public TopN(int orderbyField, boolean asc, long limit, OpIterator child) {
+        this(new int[]{orderbyField}, new boolean[]{asc}, limit, 0, child);
+    }
+
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    public boolean[] getAscs() {
+        return ascs.clone();
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    @Override
+    public SortOrder getSortOrder() {
+        return new SortOrder(orderByFields[0], ascs[0]);
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        result = select();
+        pos = (int) Math.min(offset, result.size());
+        super.open();
+    }
+
+    /**
+     * @return the first offset + limit tuples of the child, in order
+     */
+    private List<Tuple> select() throws DbException, TransactionAbortedException {
+        int keep = (int) (limit + offset);
+        if (limit == 0) {
+            return new ArrayList<>();
+        }
+        // 堆顶是留下的里面最差的；相同的 tuple 先来的算小，和 OrderBy 一样稳定
+        Comparator<Entry> order = (a, b) -> {
+            int c = comparator.compare(a.tuple, b.tuple);
+            return c != 0 ? c : Long.compare(a.seq, b.seq);
+        };
+        PriorityQueue<Entry> heap = new PriorityQueue<>(Math.min(keep, 1024), order.reversed());
+        long seq = 0;
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (heap.size() < keep) {
+                heap.add(new Entry(t, seq));
+            } else if (comparator.compare(t, heap.peek().tuple) < 0) {
+                heap.poll();
+                heap.add(new Entry(t, seq));
+            }
+            seq++;
+        }
+        List<Entry> entries = new ArrayList<>(heap);
+        entries.sort(order);
+        List<Tuple> tuples = new ArrayList<>(entries.size());
+        for (Entry e : entries) {
+            tuples.add(e.tuple);
+        }
+        return tuples;
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        result = null;
+    }
+
+    public void rewind() {
+        pos = (int) Math.min(offset, result.size());
+    }
+
+    protected Tuple fetchNext() {
+        if (result != null && pos < result.size()) {
+            return result.get(pos++);
+        }
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+
+    private static class Entry {
+        final Tuple tuple;
+        final long seq;
+
+        Entry(Tuple tuple, long seq) {
+            this.tuple = tuple;
+            this.seq = seq;
+        }
+    }
+}
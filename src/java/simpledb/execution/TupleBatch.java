@@ -0,0 +1,227 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * A batch of rows stored by column, as {@link OpIterator#nextBatch} returns
+ * it: int columns are int arrays, string columns are String arrays. A
+ * selection vector lists the rows of the batch that are part of the result,
+ * in order, so that a filter drops rows without moving any data.
+ * <p>
+ * Operators may share column arrays between batches (a projection only
+ * rearranges the columns). The consumer may narrow the selection of a batch
+ * it got, but must not change its columns, and may only use it until it asks
+ * for the next one: the producer reuses it.
+ */
+public class TupleBatch {
+
+    /**
+     * number of rows operators put into a batch
+     */
+    public static final int DEFAULT_SIZE = 1024;
+
+    private final TupleDesc td;
+    private final int capacity;
+    private final Object[] columns;
+    private final RecordId[] recordIds;
+    private int size;
+    private final int[] selection;
+    private int selected;
+
+    public TupleBatch(TupleDesc td) {
+        this(td, DEFAULT_SIZE);
+    }
+
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.capacity = capacity;
+        this.columns = new Object[td.numFields()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = td.getFieldType(i) == Type.INT_TYPE ? new int[capacity] : new String[capacity];
+        }
+        this.recordIds = new RecordId[capacity];
+        this.selection = new int[capacity];
+    }
+
+    /**
+     * A batch over the columns of another one, e.g. for a projection.
+     */
+    private TupleBatch(TupleDesc td, TupleBatch source, int[] fields) {
+        this.td = td;
+        this.capacity = source.capacity;
+        this.columns = new Object[fields.length];
+        this.recordIds = source.recordIds;
+        this.selection = source.selection;
+        for (int i = 0; i < fields.length; i++) {
+            columns[i] = source.columns[fields[i]];
+        }
+        this.size = source.size;
+        this.selected = source.selected;
+    }
+
+    /**
+     * @return a batch with the given columns of this one, sharing the arrays
+     * and the selection
+     */
+    public TupleBatch project(TupleDesc td, int[] fields) {
+        return new TupleBatch(td, this, fields);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of rows in the batch, selected or not
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /**
+     * @return the number of selected rows
+     */
+    public int numSelected() {
+        return selected;
+    }
+
+    /**
+     * @return the rows that are selected, the first {@link #numSelected} entries
+     */
+    public int[] getSelection() {
+        return selection;
+    }
+
+    /**
+     * Keep only the first n entries of the selection vector, which the caller
+     * rewrote in place.
+     */
+    public void setNumSelected(int n) {
+        selected = n;
+    }
+
+    public int[] getIntColumn(int field) {
+        return (int[]) columns[field];
+    }
+
+    public String[] getStringColumn(int field) {
+        return (String[]) columns[field];
+    }
+
+    public RecordId getRecordId(int row) {
+        return recordIds[row];
+    }
+
+    /**
+     * Remove all rows.
+     */
+    public void clear() {
+        size = 0;
+        selected = 0;
+    }
+
+    /**
+     * Append a row whose columns the caller fills in, and select it. The
+     * batch must not be full.
+     *
+     * @return the index of the row
+     */
+    public int addRow(RecordId rid) {
+        int row = size++;
+        recordIds[row] = rid;
+        selection[selected++] = row;
+        return row;
+    }
+
+    /**
+     * Append a row and select it. The batch must not be full.
+     */
+    public void addTuple(Tuple t) {
+        int row = addRow(t.getRecordId());
+        for (int i = 0; i < columns.length; i++) {
+            Field f = t.getField(i);
+            if (columns[i] instanceof int[]) {
+                ((int[]) columns[i])[row] = ((IntField) f).getValue();
+            } else {
+                ((String[]) columns[i])[row] = ((StringField) f).getValue();
+            }
+        }
+    }
+
+    /**
+     * Append the concatenation of a row and a row of another batch, e.g. for
+     * a join, and select it. The batch must not be full.
+     *
+     * @param left  the first fields of the new row
+     * @param right the batch holding the other fields
+     * @param row   the row of right
+     */
+    public void addJoined(Tuple left, TupleBatch right, int row) {
+        int out = size++;
+        int n = left.getTupleDesc().numFields();
+        for (int i = 0; i < n; i++) {
+            Field f = left.getField(i);
+            if (columns[i] instanceof int[]) {
+                ((int[]) columns[i])[out] = ((IntField) f).getValue();
+            } else {
+                ((String[]) columns[i])[out] = ((StringField) f).getValue();
+            }
+        }
+        for (int i = 0; i < right.columns.length; i++) {
+            if (columns[n + i] instanceof int[]) {
+                ((int[]) columns[n + i])[out] = ((int[]) right.columns[i])[row];
+            } else {
+                ((String[]) columns[n + i])[out] = ((String[]) right.columns[i])[row];
+            }
+        }
+        recordIds[out] = null;
+        selection[selected++] = out;
+    }
+
+    /**
+     * @return the field of a row as a Field object
+     */
+    public Field getField(int row, int field) {
+        if (columns[field] instanceof int[]) {
+            return new IntField(((int[]) columns[field])[row]);
+        }
+        return new StringField(((String[]) columns[field])[row], Type.STRING_LEN);
+    }
+
+    /**
+     * @return a row of the batch as a tuple
+     */
+    public Tuple getTuple(int row) {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < columns.length; i++) {
+            t.setField(i, getField(row, i));
+        }
+        t.setRecordId(recordIds[row]);
+        return t;
+    }
+
+    /**
+     * Fill the batch with the next rows of an iterator, the adapter from the
+     * row interface to batches.
+     *
+     * @return false if the iterator had no more rows
+     */
+    public boolean fill(OpIterator child) throws DbException, TransactionAbortedException {
+        clear();
+        while (!isFull() && child.hasNext()) {
+            addTuple(child.next());
+        }
+        return size > 0;
+    }
+}
@@ -160,6 +160,20 @@ public class BTreeFile implements DbFile {
         return (int) ((f.length() - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize());
     }
 
+    /**
+     * Returns roughly how many pages a lookup reads from the root to a leaf,
+     * assuming that the internal pages are full
+     */
+    public int estimateHeight() {
+        int fanout = BTreeInternalPage.getMaxEntries(td.getFieldType(keyField)) + 1;
+        int pages = numPages();
+        int height = 1;
+        for (long reach = 1; reach < pages; reach *= fanout) {
+            height++;
+        }
+        return height;
+    }
+
     /**
      * Returns the index of the field that this B+ tree is keyed on
      */
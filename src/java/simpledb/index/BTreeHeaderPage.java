@@ -23,6 +23,7 @@ import java.util.Arrays;
 public class BTreeHeaderPage implements Page {
 	private volatile boolean dirty = false;
 	private volatile TransactionId dirtier = null;
+	private volatile long lsn = 0;
 	
 	final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -38,8 +39,8 @@ public class BTreeHeaderPage implements Page {
 
 	/**
 	 * Create a BTreeHeaderPage from a set of bytes of data read from disk.
-	 * The format of a BTreeHeaderPage is two pointers to the next and previous
-	 * header pages, followed by a set of bytes indicating which pages in the file
+	 * The format of a BTreeHeaderPage is the LSN of the page, two pointers to the
+	 * next and previous header pages, followed by a set of bytes indicating which pages in the file
 	 * are used or available
 	 * @see BufferPool#getPageSize()
 	 * 
@@ -49,6 +50,9 @@ public class BTreeHeaderPage implements Page {
 		this.numSlots = getNumSlots();
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
+		// Read the LSN
+		lsn = dis.readLong();
+
 		// Read the next and prev pointers
 		try {
 			Field f = Type.INT_TYPE.parse(dis);
@@ -82,12 +86,12 @@ public class BTreeHeaderPage implements Page {
 	}
 
 	/**
-	 * Computes the number of bytes in the header while saving room for pointers
+	 * Computes the number of bytes in the header while saving room for the LSN and pointers
 	 */
 	private static int getHeaderSize() {        
 		// pointerBytes: nextPage and prevPage pointers
 		int pointerBytes = 2 * INDEX_SIZE; 
-		return BufferPool.getPageSize() - pointerBytes;
+		return BufferPool.getPageSize() - LSN_SIZE - pointerBytes;
 	}
 
 	/**
@@ -145,6 +149,14 @@ public class BTreeHeaderPage implements Page {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
 
+		// write out the LSN
+		try {
+			dos.writeLong(lsn);
+
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
 		// write out the next and prev pointers
 		try {
 			dos.writeInt(nextPage);
@@ -273,6 +285,17 @@ public class BTreeHeaderPage implements Page {
 			return null;
 	}
 
+	/**
+	 * Returns the LSN of the last UPDATE record of this page
+	 */
+	public long getLsn() {
+		return lsn;
+	}
+
+	public void setLsn(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Returns true if the page of the BTreeFile associated with slot i is used
 	 */
@@ -47,7 +47,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
 	 * The format of a BTreeInternalPage is a set of header bytes indicating
 	 * the slots of the page that are in use, some number of entry slots, and extra
-	 * bytes for the parent pointer, one extra child pointer (a node with m entries 
+	 * bytes for the LSN of the page, the parent pointer, one extra child pointer (a node with m entries 
 	 * has m+1 pointers to children), and the category of all child pages (either 
 	 * leaf or internal).
 	 *  Specifically, the number of entries is equal to: <p>
@@ -72,6 +72,9 @@ public class BTreeInternalPage extends BTreePage {
 		this.numSlots = getMaxEntries() + 1;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
+		// Read the LSN
+		lsn = dis.readLong();
+
 		// Read the parent pointer
 		try {
 			Field f = Type.INT_TYPE.parse(dis);
@@ -117,11 +120,18 @@ public class BTreeInternalPage extends BTreePage {
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		return getMaxEntries(td.getFieldType(keyField));
+	}
+
+	/**
+	 * Retrieve the maximum number of entries an internal page with keys of the type can hold
+	 */
+	public static int getMaxEntries(Type keyType) {
+		int keySize = keyType.getLen();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
-		// extraBits are: one parent pointer, 1 byte for child page category, 
+		// extraBits are: LSN, one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
-		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1;
+		int extraBits = LSN_SIZE * 8 + 2 * INDEX_SIZE * 8 + 8 + 1;
         return (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader;
 	}
 
@@ -237,6 +247,14 @@ public class BTreeInternalPage extends BTreePage {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
 
+		// write out the LSN
+		try {
+			dos.writeLong(lsn);
+
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
 		// write out the parent pointer
 		try {
 			dos.writeInt(parent);
@@ -316,7 +334,7 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		// padding
-		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
+		int zerolen = BufferPool.getPageSize() - (LSN_SIZE + INDEX_SIZE + 1 + header.length + 
 				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
 		byte[] zeroes = new byte[zerolen];
 		try {
@@ -20,6 +20,7 @@ import simpledb.transaction.TransactionId;
 public abstract class BTreePage implements Page {
 	protected volatile boolean dirty = false;
 	protected volatile TransactionId dirtier = null;
+	protected volatile long lsn = 0;
 
 	protected final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -33,7 +34,7 @@ public abstract class BTreePage implements Page {
 
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
-	 * The format of a BTreeInternalPage is a set of header bytes indicating
+	 * The format of a BTreeInternalPage is the LSN of the page, a set of header bytes indicating
 	 * the slots of the page that are in use, some number of entry slots, and extra
 	 * bytes for the parent pointer, one extra child pointer (a node with m entries 
 	 * has m+1 pointers to children), and the category of all child pages (either 
@@ -134,6 +135,18 @@ public abstract class BTreePage implements Page {
 			return null;
 	}
 
+	/**
+	 * Returns the LSN of the last UPDATE record of this page, which is
+	 * stored at the start of the page data, see {@link Page#getLsn}
+	 */
+	public long getLsn() {
+		return lsn;
+	}
+
+	public void setLsn(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
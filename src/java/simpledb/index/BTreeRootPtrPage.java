@@ -15,10 +15,11 @@ import java.io.*;
  */
 public class BTreeRootPtrPage implements Page {
 	// size of this page
-	public final static int PAGE_SIZE = 9;
+	public final static int PAGE_SIZE = LSN_SIZE + 9;
 
 	private boolean dirty = false;
 	private TransactionId dirtier = null;
+	private long lsn = 0;
 
 	private final BTreePageId pid;
 
@@ -32,7 +33,8 @@ public class BTreeRootPtrPage implements Page {
 	 * Constructor.
 	 * Construct the BTreeRootPtrPage from a set of bytes of data read from
 	 * disk.
-	 * The format of an BTreeRootPtrPage is an integer for the page number
+	 * The format of an BTreeRootPtrPage is the LSN of the page (a long),
+	 * followed by an integer for the page number
 	 * of the root node, followed by a byte to encode the category of the root page
 	 * (either leaf or internal), followed by an integer for the page number
 	 * of the first header page
@@ -41,6 +43,9 @@ public class BTreeRootPtrPage implements Page {
 		this.pid = id;
         DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
+		// read in the LSN
+		lsn = dis.readLong();
+
 		// read in the root pointer
 		root = dis.readInt();
 		rootCategory = dis.readByte();
@@ -55,6 +60,17 @@ public class BTreeRootPtrPage implements Page {
 		oldData = getPageData().clone();
 	}
 
+	/**
+	 * Returns the LSN of the last UPDATE record of this page
+	 */
+	public long getLsn() {
+		return lsn;
+	}
+
+	public void setLsn(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * @return the PageId associated with this page.
 	 */
@@ -85,6 +101,13 @@ public class BTreeRootPtrPage implements Page {
         ByteArrayOutputStream baos = new ByteArrayOutputStream(PAGE_SIZE);
 		DataOutputStream dos = new DataOutputStream(baos);
 
+		// write out the LSN
+		try{
+			dos.writeLong(lsn);
+		}catch(IOException e){
+			e.printStackTrace();
+		}
+
 		// write out the root pointer (page number of the root page)
 		try{
 			dos.writeInt(root);
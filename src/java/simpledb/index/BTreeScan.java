@@ -5,6 +5,8 @@ import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.execution.IndexPredicate;
 import simpledb.execution.OpIterator;
+import simpledb.execution.SortOrder;
+import simpledb.execution.TupleBatch;
 import simpledb.storage.DbFileIterator;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
@@ -26,8 +28,10 @@ public class BTreeScan implements OpIterator {
 	private TupleDesc myTd;
 	private IndexPredicate ipred = null;
 	private transient DbFileIterator it;
+	private transient TupleBatch batch;
 	private String tablename;
 	private String alias;
+	private int keyField;
 
 	/**
 	 * Creates a B+ tree scan over the specified table as a part of the
@@ -87,6 +91,7 @@ public class BTreeScan implements OpIterator {
 		this.isOpen=false;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
+		this.keyField = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).keyField();
 		if(ipred == null) {
 			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
 		}
@@ -131,6 +136,14 @@ public class BTreeScan implements OpIterator {
 		return myTd;
 	}
 
+	/**
+	 * The tuples come in the order of the key, with or without a predicate.
+	 */
+	@Override
+	public SortOrder getSortOrder() {
+		return new SortOrder(keyField, true);
+	}
+
 	public boolean hasNext() throws TransactionAbortedException, DbException {
 		if (!isOpen)
 			throw new IllegalStateException("iterator is closed");
@@ -145,6 +158,21 @@ public class BTreeScan implements OpIterator {
 		return it.next();
 	}
 
+	/**
+	 * Fills a batch that is reused for every call with the next rows of the
+	 * index, see {@link DbFileIterator#fillBatch}.
+	 */
+	@Override
+	public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		if (batch == null || batch.getTupleDesc() != myTd)
+			batch = new TupleBatch(myTd);
+		batch.clear();
+		it.fillBatch(batch);
+		return batch.size() > 0 ? batch : null;
+	}
+
 	public void close() {
 		it.close();
 		isOpen = false;
@@ -3,6 +3,9 @@ package simpledb.optimizer;
 import simpledb.ParsingException;
 import simpledb.common.Database;
 import simpledb.execution.*;
+import simpledb.execution.SortOrder;
+import simpledb.index.BTreeFile;
+import simpledb.storage.DbFile;
 
 import javax.swing.*;
 import javax.swing.tree.DefaultMutableTreeNode;
@@ -43,6 +46,19 @@ public class JoinOptimizer {
      */
     public static OpIterator instantiateJoin(LogicalJoinNode lj,
                                              OpIterator plan1, OpIterator plan2) throws ParsingException {
+        return instantiateJoin(lj, plan1, plan2, -1);
+    }
+
+    /**
+     * Like {@link #instantiateJoin(LogicalJoinNode, OpIterator, OpIterator)},
+     * but also given the estimated cardinality of plan1, without which an
+     * index nested-loops join is never chosen.
+     *
+     * @param card1 the estimated number of tuples of plan1, or a negative
+     *              number if it is unknown
+     */
+    public static OpIterator instantiateJoin(LogicalJoinNode lj, OpIterator plan1,
+                                             OpIterator plan2, int card1) throws ParsingException {
 
         int t1id = 0, t2id = 0;
         OpIterator j;
@@ -67,7 +83,18 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        if (lj.p == Predicate.Op.EQUALS) {
+        SortOrder order1 = plan1.getSortOrder();
+        SortOrder order2 = plan2.getSortOrder();
+        if (SortMergeJoin.supports(lj.p) && order1 != null && order2 != null
+                && order1.getField() == t1id && order2.getField() == t2id
+                && order1.isAscending() == order2.isAscending()) {
+            // 两边已经按连接字段排好序，归并一遍就行，不用建 hash 表
+            j = new SortMergeJoin(p, plan1, plan2, order1.isAscending());
+        } else if (lj.p == Predicate.Op.EQUALS && IndexNestedLoopJoin.canProbe(plan2, t2id)
+                && probesPay(card1, indexOf(plan2))) {
+            // 内表是按连接字段建的 B+ 树，外表又小，按 key 去查比扫一遍内表读的页少
+            j = new IndexNestedLoopJoin(p, plan1, plan2);
+        } else if (lj.p == Predicate.Op.EQUALS) {
 
             try {
                 // dynamically load HashEquiJoin -- if it doesn't exist, just
@@ -87,6 +114,46 @@ public class JoinOptimizer {
 
     }
 
+    /**
+     * @return the B+ tree under the filters of a plan that
+     * {@link IndexNestedLoopJoin#canProbe} accepts
+     */
+    private static BTreeFile indexOf(OpIterator plan) {
+        while (plan instanceof Filter) {
+            plan = ((Filter) plan).getChildren()[0];
+        }
+        return (BTreeFile) Database.getCatalog().getDatabaseFile(((SeqScan) plan).getTableId());
+    }
+
+    /**
+     * @return true if looking up card1 keys in the B+ tree, each reading a
+     * page per level of the tree, reads fewer pages than scanning it once
+     */
+    static boolean probesPay(int card1, BTreeFile index) {
+        return card1 >= 0 && (long) card1 * index.estimateHeight() < index.numPages();
+    }
+
+    /**
+     * @return the B+ tree of the table with the alias if it is keyed on the
+     * field, or null
+     */
+    private BTreeFile indexOn(String tableAlias, String pureFieldName) {
+        Integer tableId = tableAlias == null ? null : p.getTableId(tableAlias);
+        if (tableId == null) {
+            return null;
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(file instanceof BTreeFile)) {
+            return null;
+        }
+        BTreeFile index = (BTreeFile) file;
+        try {
+            return index.keyField() == index.getTupleDesc().fieldNameToIndex(pureFieldName) ? index : null;
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
     /**
      * Estimate the cost of a join.
      * <p>
@@ -109,6 +176,16 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
                                    double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, true);
+    }
+
+    /**
+     * @param innerIsTable false if the right-hand side is the result of other
+     *                     joins rather than the table j.t2Alias, so that it
+     *                     cannot be looked up in an index
+     */
+    private double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+                                    double cost1, double cost2, boolean innerIsTable) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
@@ -118,6 +195,14 @@ public class JoinOptimizer {
             // HINT: You may need to use the variable "j" if you implemented
             // a join algorithm that's more complicated than a basic
             // nested-loops join.
+            BTreeFile index = innerIsTable && j.p == Predicate.Op.EQUALS
+                    ? indexOn(j.t2Alias, j.f2PureName) : null;
+            if (index != null && probesPay(card1, index)) {
+                // 和 instantiateJoin 一样选 IndexNestedLoopJoin：
+                // 每个外表元组从根查到叶子，读 height 页，每页的代价按扫描内表的代价摊
+                double pageCost = cost2 / Math.max(1, index.numPages());
+                return cost1 + card1 * index.estimateHeight() * pageCost + card1;
+            }
             // CPU cost：card1 * card2
             // IO cost：card1 * cost2 + card1
             return cost1 + card1 * cost2 + card1 * card2;
@@ -415,11 +500,15 @@ public class JoinOptimizer {
             }
         }
 
+        // 已经连接过的那一边不是表本身，不能按索引查
+        boolean t1IsTable = !doesJoin(prevBest, table1Alias);
+        boolean t2IsTable = !doesJoin(prevBest, table2Alias);
+
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost, t2IsTable);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost, t1IsTable);
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
@@ -15,9 +15,9 @@ import java.io.File;
  * the parser and is ready to be processed by the optimizer.
  * <p>
  * A LogicalPlan consits of a collection of table scan nodes, join
- * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * nodes, filter nodes, a select list, group by fields and aggregates.
+ * All the aggregates of a query are computed by one {@link Aggregate}
+ * operator, in a single pass over its input.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
@@ -32,12 +32,13 @@ public class LogicalPlan {
     private final Map<String,Integer> tableMap;
 
     private final List<LogicalSelectListNode> selectList;
-    private String groupByField = null;
-    private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private final List<String> groupByFields = new ArrayList<>();
+    private final List<String> aggOps = new ArrayList<>();
+    private final List<String> aggFields = new ArrayList<>();
+    private final List<String> oByFields = new ArrayList<>();
+    private final List<Boolean> oByAscs = new ArrayList<>();
+    private long limit = Limit.NO_LIMIT;
+    private long offset = 0;
     private String query;
 //    private Query owner;
 
@@ -188,35 +189,77 @@ public class LogicalPlan {
         selectList.add(new LogicalSelectListNode(aggOp, fname));
     }
     
-    /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+    /** Add an aggregate over the field to the query.  An aggregate that was
+        added already is computed once however often it is selected.
         @param op the aggregation operator
         @param afield the field to aggregate over
-        @param gfield the field to group by
      * @throws ParsingException 
     */
-    public void addAggregate(String op, String afield, String gfield) throws ParsingException {
+    public void addAggregate(String op, String afield) throws ParsingException {
         afield=disambiguateName(afield);
+        if (aggregateIndex(op, afield) < 0) {
+            aggOps.add(op);
+            aggFields.add(afield);
+        }
+    }
+
+    /** Add an aggregate over the field with the specified grouping to
+        the query, see {@link #addAggregate(String, String)} and
+        {@link #addGroupBy}.
+        @param op the aggregation operator
+        @param afield the field to aggregate over
+        @param gfield the field to group by, or null
+     * @throws ParsingException
+    */
+    public void addAggregate(String op, String afield, String gfield) throws ParsingException {
+        addAggregate(op, afield);
         if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
-        hasAgg = true;
+            addGroupBy(gfield);
+    }
+
+    /** Add a GROUP BY field to the query.  The aggregates are grouped by all
+        the fields added.
+        @param gfield the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupBy(String gfield) throws ParsingException {
+        gfield=disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.add(gfield);
+    }
+
+    /** @return the position of an aggregate among those added, or -1 */
+    private int aggregateIndex(String op, String afield) {
+        for (int i = 0; i < aggOps.size(); i++) {
+            if (aggOps.get(i).equalsIgnoreCase(op) && aggFields.get(i).equals(afield))
+                return i;
+        }
+        return -1;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add an ORDER BY expression in the specified order on the specified field.  Tuples that are equal
+        on the fields added before are ordered on this one.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
-        hasOrderBy = true;
+        oByFields.add(field);
+        oByAscs.add(asc);
+    }
+
+    /** Return at most limit rows of the result, after skipping offset rows.
+        @param limit the most rows to return, or {@link Limit#NO_LIMIT}
+        @param offset the number of rows to skip
+     * @throws ParsingException if either is negative
+    */
+    public void setLimit(long limit, long offset) throws ParsingException {
+        if (limit < 0 || offset < 0) {
+            throw new ParsingException("LIMIT and OFFSET must not be negative");
+        }
+        this.limit = limit;
+        this.offset = offset;
     }
 
     /** Given a name of a field, try to figure out what table it belongs to by looking
@@ -274,6 +317,19 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /**
+     * A scan reads every page of its table. When that is more pages than the
+     * lock manager escalates at, the scan locks the whole table up front
+     * instead of taking page locks until it escalates. Tables with
+     * record-level locking keep their row locks.
+     */
+    static boolean scanLocksTable(DbFile file) {
+        if (!(file instanceof HeapFile) || ((HeapFile) file).isRecordLocking()) {
+            return false;
+        }
+        return ((HeapFile) file).numPages() > Database.getBufferPool().getLockManager().getEscalationThreshold();
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -298,6 +354,7 @@ public class LogicalPlan {
             SeqScan ss = null;
             try {
                  ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                 ss.setLockTable(scanLocksTable(Database.getCatalog().getDatabaseFile(table.t)));
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             } catch (Throwable e) {
@@ -351,6 +408,14 @@ public class LogicalPlan {
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
 
+        // 每个子计划估计的行数，instantiateJoin 按外表的行数决定要不要走索引；-1 是不知道
+        Map<String,Integer> subplanCards = new HashMap<>();
+        for (LogicalScanNode table : tables) {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+            subplanCards.put(table.alias,
+                    s == null ? -1 : s.estimateTableCardinality(filterSelectivities.get(table.alias)));
+        }
+
         for (LogicalJoinNode lj : joins) {
             OpIterator plan1;
             OpIterator plan2;
@@ -382,9 +447,13 @@ public class LogicalPlan {
             if (plan2 == null)
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
 
+            int card1 = subplanCards.getOrDefault(t1name, -1);
+            int card2 = isSubqueryJoin ? 0 : subplanCards.getOrDefault(t2name, -1);
             OpIterator j;
-            j = JoinOptimizer.instantiateJoin(lj, plan1, plan2);
+            j = JoinOptimizer.instantiateJoin(lj, plan1, plan2, card1);
             subplanMap.put(t1name, j);
+            subplanCards.put(t1name, card1 < 0 || card2 < 0 ? -1
+                    : jo.estimateJoinCardinality(lj, card1, card2, false, false, statsMap));
 
             if (!isSubqueryJoin) {
                 subplanMap.remove(t2name);
@@ -415,7 +484,8 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.get(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
+                // 聚合的输出先是分组字段，再是各个聚合
+                outFields.add(groupByFields.size() + aggregateIndex(si.aggOp, si.fname));
                 TupleDesc td = node.getTupleDesc();
 //                int  id;
                 try {
@@ -426,17 +496,18 @@ public class LogicalPlan {
                 }
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
-            } else if (hasAgg) {
-                    if (groupByField == null) {
+            } else if (!aggOps.isEmpty()) {
+                    int g = groupByFields.indexOf(si.fname);
+                    if (g < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(g);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -459,22 +530,46 @@ public class LogicalPlan {
                 }
         }
 
-        if (hasAgg) {
+        if (!aggOps.isEmpty()) {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int[] afields = new int[aggFields.size()];
+                Aggregator.Op[] ops = new Aggregator.Op[aggOps.size()];
+                for (int i = 0; i < afields.length; i++) {
+                    afields[i] = td.fieldNameToIndex(aggFields.get(i));
+                    ops[i] = getAggOp(aggOps.get(i));
+                }
+                int[] gfields = new int[groupByFields.size()];
+                for (int i = 0; i < gfields.length; i++) {
+                    gfields[i] = td.fieldNameToIndex(groupByFields.get(i));
+                }
+                aggNode = new Aggregate(node, afields, gfields, ops);
             } catch (NoSuchElementException | IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
             }
             node = aggNode;
         }
 
-        if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+        if (!oByFields.isEmpty()) {
+            int[] fields = new int[oByFields.size()];
+            boolean[] ascs = new boolean[oByFields.size()];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = node.getTupleDesc().fieldNameToIndex(oByFields.get(i));
+                ascs[i] = oByAscs.get(i);
+            }
+            // 只要前几行、又放得进内存时用堆，不用整个排序
+            long fits = OrderBy.tuplesThatFit(node.getTupleDesc());
+            if (limit != Limit.NO_LIMIT && limit <= fits && offset <= fits - limit) {
+                node = new TopN(fields, ascs, limit, offset, node);
+            } else {
+                node = new OrderBy(fields, ascs, node);
+                if (limit != Limit.NO_LIMIT || offset > 0) {
+                    node = new Limit(limit, offset, node);
+                }
+            }
+        } else if (limit != Limit.NO_LIMIT || offset > 0) {
+            node = new Limit(limit, offset, node);
         }
 
         return new Project(outFields, outTypes, node);
@@ -12,14 +12,41 @@ public class QueryPlanVisualizer {
 
     static final String JOIN = "⨝";
     static final String HASH_JOIN = "⨝(hash)";
+    static final String MERGE_JOIN = "⨝(merge)";
+    static final String INDEX_JOIN = "⨝(index)";
     static final String SELECT = "σ";
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
     static final String ORDERBY = "o";
     static final String GROUPBY = "g";
+    static final String LIMIT = "limit";
     static final String SPACE = "  ";
 
+    private static String orderKeys(TupleDesc td, int[] fields, boolean[] ascs) {
+        StringBuilder keys = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                keys.append(",");
+            keys.append(td.getFieldName(fields[i]));
+            if (!ascs[i])
+                keys.append(" desc");
+        }
+        return keys.toString();
+    }
+
+    private static String aggregates(Aggregate a) {
+        StringBuilder aggs = new StringBuilder();
+        Aggregator.Op[] ops = a.aggregateOps();
+        String[] names = a.aggregateFieldNames();
+        for (int i = 0; i < ops.length; i++) {
+            if (i > 0)
+                aggs.append(", ");
+            aggs.append(ops[i]).append("(").append(names[i]).append(")");
+        }
+        return aggs.toString();
+    }
+
     private int calculateQueryPlanTreeDepth(OpIterator root) {
         if (root == null)
             return 0;
@@ -29,7 +56,7 @@ public class QueryPlanVisualizer {
         Operator o = (Operator) root;
         OpIterator[] children = o.getChildren();
 
-        if (o instanceof Join || o instanceof HashEquiJoin) {
+        if (o instanceof Join || joinSymbol(o) != null) {
             int d1 = this.calculateQueryPlanTreeDepth(children[0]);
             int d2 = this.calculateQueryPlanTreeDepth(children[1]);
             return Math.max(d1, d2) + 3;
@@ -42,6 +69,30 @@ public class QueryPlanVisualizer {
         return 2;
     }
 
+    /**
+     * @return the symbol of a join other than {@link Join}, or null if the
+     * operator is not one
+     */
+    private static String joinSymbol(Operator o) {
+        if (o instanceof HashEquiJoin) {
+            return HASH_JOIN;
+        } else if (o instanceof SortMergeJoin) {
+            return MERGE_JOIN;
+        } else if (o instanceof IndexNestedLoopJoin) {
+            return INDEX_JOIN;
+        }
+        return null;
+    }
+
+    private static JoinPredicate joinPredicate(Operator o) {
+        if (o instanceof HashEquiJoin) {
+            return ((HashEquiJoin) o).getJoinPredicate();
+        } else if (o instanceof SortMergeJoin) {
+            return ((SortMergeJoin) o).getJoinPredicate();
+        }
+        return ((IndexNestedLoopJoin) o).getJoinPredicate();
+    }
+
     private static class SubTreeDescriptor {
         int width;
         int upBarPosition;
@@ -138,18 +189,18 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = left;
                 thisNode.rightChild = right;
                 thisNode.height = currentDepth;
-            } else if (plan instanceof HashEquiJoin) {
-                HashEquiJoin j = (HashEquiJoin) plan;
-                JoinPredicate jp = j.getJoinPredicate();
-                TupleDesc td = j.getTupleDesc();
+            } else if (joinSymbol(plan) != null) {
+                JoinPredicate jp = joinPredicate(plan);
+                String symbol = joinSymbol(plan);
+                TupleDesc td = plan.getTupleDesc();
                 String field1 = td.getFieldName(jp.getField1());
                 String field2 = td.getFieldName(jp.getField2()
                         + children[0].getTupleDesc().numFields());
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", HASH_JOIN, field1
-                        + jp.getOperator() + field2,j.getEstimatedCardinality());
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", symbol, field1
+                        + jp.getOperator() + field2,plan.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
-                if (HASH_JOIN.length() / 2 > parentUpperBarStartShift)
-                    upBarShift = HASH_JOIN.length() / 2;
+                if (symbol.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = symbol.length() / 2;
                 SubTreeDescriptor left = this.buildTree(queryPlanDepth,
                         currentDepth + 3 + adjustDepth, children[0],
                         currentStartPosition, upBarShift);
@@ -158,7 +209,7 @@ public class QueryPlanVisualizer {
                         currentStartPosition + left.width + SPACE.length(), 0);
                 thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - HASH_JOIN.length() / 2;
+                        - symbol.length() / 2;
                 thisNode.width = Math.max(
                         left.width + right.width + SPACE.length(),
                         thisNode.textStartPosition + thisNode.text.length()
@@ -175,13 +226,13 @@ public class QueryPlanVisualizer {
                 int gfield = a.groupField();
 
                 if (gfield == Aggregator.NO_GROUPING) {
-                    thisNode.text = String.format("%1$s(%2$s),card:%3$d",
-                            a.aggregateOp(), a.aggregateFieldName(),a.getEstimatedCardinality());
+                    thisNode.text = String.format("%1$s,card:%2$d",
+                            aggregates(a), a.getEstimatedCardinality());
                     alignTxt = td.getFieldName(0);
                 } else {
-                    thisNode.text = String.format("%1$s(%2$s), %3$s(%4$s),card:%5$d",
-                            GROUPBY, a.groupFieldName(), a.aggregateOp(),
-                            a.aggregateFieldName(),a.getEstimatedCardinality());
+                    thisNode.text = String.format("%1$s(%2$s), %3$s,card:%4$d",
+                            GROUPBY, String.join(",", a.groupFieldNames()),
+                            aggregates(a), a.getEstimatedCardinality());
                     alignTxt = GROUPBY;
                 }
                 if (alignTxt.length() / 2 > parentUpperBarStartShift)
@@ -219,22 +270,44 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
-            } else if (plan instanceof OrderBy) {
-                OrderBy o = (OrderBy) plan;
-                thisNode.text = String.format(
-                        "%1$s(%2$s),card:%3$d",
-                        ORDERBY,
-                        children[0].getTupleDesc().getFieldName(
-                                o.getOrderByField()),o.getEstimatedCardinality());
+            } else if (plan instanceof OrderBy || plan instanceof TopN || plan instanceof Limit) {
+                String symbol;
+                if (plan instanceof OrderBy) {
+                    OrderBy o = (OrderBy) plan;
+                    symbol = ORDERBY;
+                    thisNode.text = String.format(
+                            "%1$s(%2$s),card:%3$d",
+                            ORDERBY,
+                            orderKeys(children[0].getTupleDesc(), o.getOrderByFields(), o.getAscs()),
+                            o.getEstimatedCardinality());
+                } else if (plan instanceof TopN) {
+                    TopN o = (TopN) plan;
+                    symbol = ORDERBY;
+                    thisNode.text = String.format(
+                            "%1$s(%2$s),%3$s %4$d,card:%5$d",
+                            ORDERBY,
+                            orderKeys(children[0].getTupleDesc(), o.getOrderByFields(), o.getAscs()),
+                            LIMIT, o.getLimit(), o.getEstimatedCardinality());
+                } else {
+                    Limit l = (Limit) plan;
+                    symbol = LIMIT;
+                    thisNode.text = String.format(
+                            "%1$s(%2$s),card:%3$d",
+                            LIMIT,
+                            l.getLimit() == Limit.NO_LIMIT ? "offset " + l.getOffset()
+                                    : l.getOffset() > 0 ? l.getLimit() + " offset " + l.getOffset()
+                                    : String.valueOf(l.getLimit()),
+                            l.getEstimatedCardinality());
+                }
                 int upBarShift = parentUpperBarStartShift;
-                if (ORDERBY.length() / 2 > parentUpperBarStartShift)
-                    upBarShift = ORDERBY.length() / 2;
+                if (symbol.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = symbol.length() / 2;
                 SubTreeDescriptor child = this.buildTree(queryPlanDepth,
                         currentDepth + 2 + adjustDepth, children[0],
                         currentStartPosition, upBarShift);
                 thisNode.upBarPosition = child.upBarPosition;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - ORDERBY.length() / 2;
+                        - symbol.length() / 2;
                 thisNode.width = Math.max(child.width,
                         thisNode.textStartPosition + thisNode.text.length()
                                 - currentStartPosition);
@@ -4,14 +4,21 @@ import simpledb.common.Catalog;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Permissions;
+import simpledb.transaction.Durability;
 import simpledb.transaction.LockManager;
+import simpledb.transaction.LockMode;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -41,12 +48,37 @@ public class BufferPool {
      */
     public static final int DEFAULT_PAGES = 50;
 
+    /**
+     * How long a transaction waits for a lock before it is aborted.
+     */
+    private static final long LOCK_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(2);
+
     private final int numPages;
 
     private final LinkedHashMap<PageId, Page> pageMap;
 
     private final LockManager lockManager;
 
+    /**
+     * 行锁表上未提交的 slot 修改，见 {@link RecordUndoLog}
+     */
+    private final RecordUndoLog undoLog = new RecordUndoLog();
+
+    /**
+     * 快照读用到的旧版本，见 {@link PageVersions}
+     */
+    private final PageVersions versions = new PageVersions();
+
+    /**
+     * 乐观事务的私有状态，见 {@link #beginOptimistic}
+     */
+    private final Map<TransactionId, OptimisticWorkspace> optimistic = new ConcurrentHashMap<>();
+
+    /**
+     * GROUP/ASYNC 提交时只记了日志、还没写盘的页，见 {@link #deferPages}
+     */
+    private final Set<PageId> unwritten = new HashSet<>(); //protected by this
+
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
@@ -60,6 +92,10 @@ public class BufferPool {
         this.lockManager = new LockManager();
     }
 
+    public LockManager getLockManager() {
+        return lockManager;
+    }
+
     public static int getPageSize() {
         return pageSize;
     }
@@ -92,20 +128,230 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
         // some code goes here
+        if (versions.isSnapshot(tid)) {
+            if (perm != Permissions.READ_ONLY) {
+                throw new DbException("snapshot transaction " + tid.getId() + " cannot write");
+            }
+            return getSnapshotPage(tid, pid);
+        }
+        OptimisticWorkspace workspace = optimistic.get(tid);
+        if (workspace != null) {
+            return getOptimisticPage(workspace, pid, perm);
+        }
+        LockMode mode;
+        if (isRecordLocking(pid.getTableId())) {
+            // 行锁表只加意向锁，具体的行由 lockRecord 锁住
+            mode = perm == Permissions.READ_ONLY ? LockMode.IS : LockMode.IX;
+        } else {
+            mode = perm == Permissions.READ_ONLY ? LockMode.S : LockMode.X;
+        }
         try {
-            lockManager.acquire(pid, tid, perm == Permissions.READ_ONLY, TimeUnit.SECONDS.toMillis(2));
+            lockManager.acquirePage(pid, tid, mode, LOCK_TIMEOUT_MS);
         } catch (TimeoutException e) {
             throw new TransactionAbortedException();
         }
+        return loadPage(pid);
+    }
 
-        Page page = pageMap.get(pid);
+    /**
+     * Let the transaction read a snapshot of the database as of the last
+     * commit before this call. {@link #getPage} then hands out private copies
+     * of committed page versions without taking any locks, so the transaction
+     * neither blocks writers nor gets aborted by them. It cannot write.
+     * The snapshot ends with {@link #transactionComplete}.
+     */
+    public void beginSnapshot(TransactionId tid) {
+        versions.begin(tid);
+    }
+
+    /**
+     * @return true if the transaction reads a snapshot, see {@link #beginSnapshot}
+     */
+    public boolean isSnapshot(TransactionId tid) {
+        return versions.isSnapshot(tid);
+    }
+
+    private synchronized Page getSnapshotPage(TransactionId tid, PageId pid) throws DbException {
+        Page page = versions.lookup(tid, pid);
+        return page != null ? page : getCommittedPage(pid);
+    }
+
+    /**
+     * @return a private copy of the last committed version of the page
+     */
+    private synchronized Page getCommittedPage(PageId pid) throws DbException {
+        Page page = versions.getStolen(pid);
+        // before image 就是最后提交的版本，同时也是一份拷贝
+        return page != null ? page : loadPage(pid).getBeforeImage();
+    }
+
+    /**
+     * Run the transaction optimistically. {@link #getPage} then takes no
+     * locks; it hands out private copies of the last committed page versions
+     * and records which commit each page read came from. Writes go to the
+     * private copies. {@link #commitOptimistic} checks that no other
+     * transaction committed any of the pages read since, and installs the
+     * written pages only then. Writes are dropped if the transaction completes
+     * without it.
+     */
+    public synchronized void beginOptimistic(TransactionId tid) {
+        optimistic.put(tid, new OptimisticWorkspace());
+    }
+
+    /**
+     * @return true if the transaction runs optimistically, see {@link #beginOptimistic}
+     */
+    public boolean isOptimistic(TransactionId tid) {
+        return optimistic.containsKey(tid);
+    }
+
+    private synchronized Page getOptimisticPage(OptimisticWorkspace workspace, PageId pid, Permissions perm)
+            throws DbException {
+        Page page = workspace.writes.get(pid);
         if (page != null) {
             return page;
         }
-        return loadPage(pid);
+        page = getCommittedPage(pid);
+        workspace.reads.putIfAbsent(pid, versions.getLastCommit(pid));
+        if (perm == Permissions.READ_WRITE) {
+            workspace.writes.put(pid, page);
+        }
+        return page;
+    }
+
+    /**
+     * Validate an optimistic transaction and commit its writes. Validation
+     * fails if another transaction committed a page the transaction read, or
+     * if a page it wrote is locked by a transaction running under 2PL.
+     * Validation and the write of the pages form one step, so optimistic
+     * transactions are serialized in the order they commit.
+     *
+     * @return true if the pages are committed, false if the transaction has
+     * to be aborted
+     */
+    public synchronized boolean commitOptimistic(TransactionId tid) throws IOException {
+        OptimisticWorkspace workspace = optimistic.get(tid);
+        if (workspace == null) {
+            return true;
+        }
+        for (Map.Entry<PageId, Long> read : workspace.reads.entrySet()) {
+            if (versions.getLastCommit(read.getKey()) != read.getValue()) {
+                return false;
+            }
+        }
+        // HeapFile 找空位时也会以 READ_WRITE 取页，真正改过的才写回
+        List<Page> dirty = new ArrayList<>();
+        for (Page page : workspace.writes.values()) {
+            if (tid.equals(page.isDirty())) {
+                if (!lockManager.tryAcquirePage(page.getId(), tid, LockMode.X)) {
+                    return false;
+                }
+                dirty.add(page);
+            }
+        }
+        for (Page page : dirty) {
+            if (!pageMap.containsKey(page.getId()) && pageMap.size() >= numPages) {
+                try {
+                    evictPage();
+                } catch (DbException e) {
+                    return false;
+                }
+            }
+            pageMap.put(page.getId(), page);
+        }
+        commitPages(tid, Durability.SYNC);
+        endOptimistic(tid);
+        return true;
+    }
+
+    private synchronized void endOptimistic(TransactionId tid) {
+        if (optimistic.remove(tid) != null && optimistic.isEmpty()) {
+            versions.clearLastCommits();
+        }
+    }
+
+    /**
+     * Lock a whole table for the transaction. While the lock is held, pages
+     * of the table are handed out by {@link #getPage} without page locks.
+     * Snapshot and optimistic transactions take no locks, and nothing is
+     * done for them.
+     *
+     * @param tid     the ID of the transaction requesting the lock
+     * @param tableId the table to lock
+     * @param perm    READ_ONLY for a shared lock, READ_WRITE for an exclusive lock
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+            throws TransactionAbortedException {
+        if (versions.isSnapshot(tid) || optimistic.containsKey(tid)) {
+            return;
+        }
+        try {
+            lockManager.acquireTable(tableId, tid,
+                    perm == Permissions.READ_ONLY ? LockMode.S : LockMode.X, LOCK_TIMEOUT_MS);
+        } catch (TimeoutException e) {
+            throw new TransactionAbortedException();
+        }
+    }
+
+    /**
+     * Lock a single record of a table with record-level locking, see
+     * {@link HeapFile#setRecordLocking}. For other tables the page locks taken
+     * by {@link #getPage} already cover the record, and nothing is done.
+     *
+     * @param tid  the ID of the transaction requesting the lock
+     * @param rid  the record to lock
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for an exclusive lock
+     */
+    public void lockRecord(TransactionId tid, RecordId rid, Permissions perm)
+            throws TransactionAbortedException {
+        if (!isRecordLocking(rid.getPageId().getTableId())) {
+            return;
+        }
+        try {
+            lockManager.acquireRecord(rid, tid, perm == Permissions.READ_ONLY, LOCK_TIMEOUT_MS);
+        } catch (TimeoutException e) {
+            throw new TransactionAbortedException();
+        }
+    }
+
+    /**
+     * Like {@link #lockRecord}, but does not wait.
+     *
+     * @return true if the transaction holds the lock now
+     */
+    public boolean tryLockRecord(TransactionId tid, RecordId rid, Permissions perm) {
+        if (!isRecordLocking(rid.getPageId().getTableId())) {
+            return true;
+        }
+        return lockManager.tryAcquireRecord(rid, tid, perm == Permissions.READ_ONLY);
+    }
+
+    private boolean isRecordLocking(int tableId) {
+        try {
+            DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+            return dbFile instanceof HeapFile && ((HeapFile) dbFile).isRecordLocking();
+        } catch (NoSuchElementException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Remember an insert into or a delete from a page of a table with
+     * record-level locking, so it can be taken out again on abort and kept
+     * out of the pages other transactions write on commit. Must be called
+     * while the page latch is still held.
+     *
+     * @param before the deleted tuple, or null for an insert
+     */
+    void recordChange(TransactionId tid, RecordId rid, Tuple before) {
+        undoLog.add(tid, rid, before);
     }
 
     private synchronized Page loadPage(PageId pid) throws DbException {
+        Page cached = pageMap.get(pid);
+        if (cached != null) {
+            return cached;
+        }
         if (pageMap.size() >= numPages) {
             evictPage();
         }
@@ -152,6 +398,14 @@ public class BufferPool {
         return lockManager.isHoldLock(p, tid);
     }
 
+    /**
+     * Return true if the specified transaction has a lock on the specified
+     * record, either on the record itself or on its page or table
+     */
+    public boolean holdsLock(TransactionId tid, RecordId rid) {
+        return lockManager.isHoldLock(rid, tid);
+    }
+
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
@@ -160,21 +414,41 @@ public class BufferPool {
      * @param commit a flag indicating whether we should commit or abort
      */
     public void transactionComplete(TransactionId tid, boolean commit) {
+        transactionComplete(tid, commit, Durability.SYNC);
+    }
+
+    /**
+     * Commit or abort a given transaction; release all locks associated to
+     * the transaction. Only a {@link Durability#SYNC} commit writes its pages
+     * right away; the others do not wait for the log to be forced and leave
+     * the logged pages to be written later, see {@link #deferPages}.
+     *
+     * @param tid        the ID of the transaction requesting the unlock
+     * @param commit     a flag indicating whether we should commit or abort
+     * @param durability how long the commit waits for its COMMIT record
+     */
+    public void transactionComplete(TransactionId tid, boolean commit, Durability durability) {
         // some code goes here
         // not necessary for lab1|lab2
+        if (versions.isSnapshot(tid)) {
+            versions.end(tid);
+            return;
+        }
+        endOptimistic(tid);
         try {
             if (commit) {
                 // 提交就 flush
-                flushPages(tid);
+                commitPages(tid, durability);
             } else {
-                // abort 就需要重新读取一遍了
-                for (PageId pageId : lockManager.getPagesByTxid(tid)) {
-                    discardPage(pageId);
-                    loadPage(pageId);
-                }
+                lockManager.getStats().abort();
+                // 行锁表的页上还有别的事务的修改，只撤销自己的
+                undoRecordChanges(tid);
+                // abort 就把脏页丢掉，下次访问时重新从磁盘读取
+                discardPages(tid);
+                versions.releaseStolen(tid);
             }
             lockManager.releaseAll(tid);
-        } catch (IOException | DbException e) {
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
 
@@ -238,8 +512,18 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
+        List<Page> logged = new ArrayList<>();
         for (Map.Entry<PageId, Page> entry : pageMap.entrySet()) {
-            flushPage(entry.getValue());
+            if (logPage(entry.getValue())) {
+                logged.add(entry.getValue());
+            }
+        }
+        for (Page page : logged) {
+            writePage(page);
+        }
+        // 提交时推迟写的页
+        for (PageId pid : new ArrayList<>(unwritten)) {
+            writePage(pageMap.get(pid));
         }
     }
 
@@ -255,6 +539,7 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
+        unwritten.remove(pid);
         pageMap.remove(pid);
     }
 
@@ -274,26 +559,191 @@ public class BufferPool {
     }
 
     private synchronized void flushPage(Page page) throws IOException {
-        if (page.isDirty() != null) {
-            LogFile logFile = Database.getLogFile();
-            logFile.logWrite(page.isDirty(), page.getBeforeImage(), page);
-            logFile.force();
-            page.setBeforeImage();
+        if (logPage(page)) {
+            writePage(page);
+        }
+    }
 
-            DbFile dbFile = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
-            dbFile.writePage(page);
-            page.markDirty(false, null);
+    /**
+     * Write the UPDATE record of a dirty page, which stamps the page with its
+     * LSN. The page has to be written with {@link #writePage} afterwards.
+     *
+     * @return false if there is nothing to write
+     */
+    private synchronized boolean logPage(Page page) throws IOException {
+        // 页上有未提交的行修改时不能写盘，等提交时写去掉这些修改的版本
+        if (page.isDirty() == null || undoLog.hasChanges(page.getId())) {
+            return false;
         }
+        Page before = page.getBeforeImage();
+        // 提交前写盘的话磁盘上不再是提交的版本，快照读要用到它
+        versions.steal(page.isDirty(), before);
+        Database.getLogFile().logWrite(page.isDirty(), before, page);
+        page.setBeforeImage();
+        return true;
+    }
+
+    /**
+     * Write a logged page. The log only has to be forced if it is not on disk
+     * up to the page's LSN yet, so a batch of pages logged together is written
+     * after a single force.
+     */
+    private synchronized void writePage(Page page) throws IOException {
+        Database.getLogFile().flushTo(page.getLsn());
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
+        dbFile.writePage(page);
+        Database.getLogFile().pageWritten(page.getId());
+        page.markDirty(false, null);
+        unwritten.remove(page.getId());
     }
 
     /**
      * Write all pages of the specified transaction to disk.
+     * <p>
+     * Pages are found through their dirty bit rather than through the
+     * transaction's locks, since pages covered by a table lock are not
+     * locked one by one.
      */
     public synchronized void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        for (PageId pageId : lockManager.getPagesByTxid(tid)) {
-            flushPage(pageId);
+        List<Page> logged = new ArrayList<>();
+        for (Page page : pageMap.values()) {
+            if (tid.equals(page.isDirty()) && logPage(page)) {
+                logged.add(page);
+            }
+        }
+        for (Page page : logged) {
+            writePage(page);
+        }
+    }
+
+    /**
+     * Log the pages of the committing transaction without writing them, so
+     * that the commit does not have to wait for the log to be forced before
+     * it writes them. The pages stay in the cache, clean but newer than the
+     * disk, until they are evicted or flushed, which forces the log first;
+     * after a crash recovery redoes them from the log.
+     */
+    private synchronized void deferPages(TransactionId tid) throws IOException {
+        for (Page page : pageMap.values()) {
+            if (tid.equals(page.isDirty()) && logPage(page)) {
+                page.markDirty(false, null);
+                unwritten.add(page.getId());
+            }
+        }
+    }
+
+    /**
+     * Write all pages of the committing transaction as one commit of the
+     * version clock, so that snapshot readers see all or none of them.
+     *
+     * @param durability SYNC writes the pages, the other levels defer them
+     */
+    private synchronized void commitPages(TransactionId tid, Durability durability) throws IOException {
+        long commit = versions.nextCommit();
+        boolean trackCommits = !optimistic.isEmpty();
+        for (PageId pid : trackCommits ? undoLog.getPages(tid) : Set.<PageId>of()) {
+            versions.setLastCommit(pid, commit);
+        }
+        flushRecordChanges(tid, commit);
+        if (durability == Durability.SYNC) {
+            flushPages(tid);
+        } else {
+            deferPages(tid);
+        }
+        // flushPage 记下的 before image 就是被这次提交替换掉的版本
+        for (Page committed : versions.releaseStolen(tid)) {
+            versions.retire(committed.getId(), committed, commit);
+            if (trackCommits) {
+                versions.setLastCommit(committed.getId(), commit);
+            }
+        }
+    }
+
+    /**
+     * Write the pages of tables with record-level locking the transaction
+     * changed. Other transactions may still have uncommitted changes on these
+     * pages, so what is logged and written is a copy of the page with those
+     * changes undone. The page in the cache keeps them and stays dirty.
+     */
+    private synchronized void flushRecordChanges(TransactionId tid, long commit) throws IOException {
+        LogFile logFile = Database.getLogFile();
+        List<HeapPage> logged = new ArrayList<>();
+        for (PageId pid : undoLog.getPages(tid)) {
+            HeapPage page = (HeapPage) pageMap.get(pid);
+            page.getLatch().writeLock().lock();
+            try {
+                HeapPage committed = new HeapPage((HeapPageId) pid, page.getPageData());
+                for (RecordUndoLog.Change change : undoLog.getOtherChanges(pid, tid)) {
+                    change.undo(committed);
+                }
+                Page before = page.getBeforeImage();
+                versions.retire(pid, before, commit);
+                logFile.logWrite(tid, before, committed);
+                page.setBeforeImage(committed.getPageData());
+                logged.add(committed);
+            } catch (DbException e) {
+                throw new RuntimeException(e);
+            } finally {
+                page.getLatch().writeLock().unlock();
+            }
+        }
+        for (HeapPage committed : logged) {
+            logFile.flushTo(committed.getLsn());
+            Database.getCatalog().getDatabaseFile(committed.getId().getTableId()).writePage(committed);
+            logFile.pageWritten(committed.getId());
+        }
+        forgetRecordChanges(tid);
+    }
+
+    /**
+     * Take the changes of the transaction out of the pages of tables with
+     * record-level locking, most recent first.
+     */
+    private synchronized void undoRecordChanges(TransactionId tid) {
+        for (RecordUndoLog.Change change : undoLog.getOwnChanges(tid)) {
+            HeapPage page = (HeapPage) pageMap.get(change.rid.getPageId());
+            page.getLatch().writeLock().lock();
+            try {
+                change.undo(page);
+            } catch (DbException e) {
+                throw new RuntimeException(e);
+            } finally {
+                page.getLatch().writeLock().unlock();
+            }
+        }
+        forgetRecordChanges(tid);
+    }
+
+    /**
+     * 把事务的修改从 undo log 中去掉，页的脏标记交给还有修改的事务
+     */
+    private void forgetRecordChanges(TransactionId tid) {
+        Set<PageId> pids = undoLog.getPages(tid);
+        undoLog.remove(tid);
+        for (PageId pid : pids) {
+            TransactionId writer = undoLog.getWriter(pid);
+            pageMap.get(pid).markDirty(writer != null, writer);
+        }
+    }
+
+    /**
+     * Drop all pages dirtied by the specified transaction from the cache. A
+     * page that still has a deferred commit on it (see {@link #deferPages})
+     * is only on disk in an older version, so the committed version, its
+     * before image, is written first.
+     */
+    private synchronized void discardPages(TransactionId tid) throws IOException {
+        for (Page page : new ArrayList<>(pageMap.values())) {
+            if (tid.equals(page.isDirty())) {
+                if (unwritten.contains(page.getId())) {
+                    Page committed = page.getBeforeImage();
+                    committed.setLsn(page.getLsn());
+                    writePage(committed);
+                }
+                discardPage(page.getId());
+            }
         }
     }
 
@@ -317,7 +767,12 @@ public class BufferPool {
 
         DbFile dbFile = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
         try {
-            dbFile.writePage(page);
+            if (unwritten.contains(page.getId())) {
+                // 提交时推迟写的页，要先等日志到盘
+                writePage(page);
+            } else {
+                dbFile.writePage(page);
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -0,0 +1,69 @@
+package simpledb.storage;
+
+/**
+ * A row that a committed transaction inserted into or deleted from a table,
+ * as {@link LogChangeReader} decodes it from the log. A row that was
+ * changed in place is a DELETE of the old row followed by an INSERT of the
+ * new one.
+ */
+public class ChangeEvent {
+
+    public enum Kind {
+        INSERT, DELETE
+    }
+
+    private final Kind kind;
+    private final int tableId;
+    private final Tuple tuple;
+    private final long tid;
+    private final long commitLsn;
+
+    ChangeEvent(Kind kind, int tableId, Tuple tuple, long tid, long commitLsn) {
+        this.kind = kind;
+        this.tableId = tableId;
+        this.tuple = tuple;
+        this.tid = tid;
+        this.commitLsn = commitLsn;
+    }
+
+    /**
+     * @return the same change, committed by the record at the LSN
+     */
+    ChangeEvent committed(long commitLsn) {
+        return new ChangeEvent(kind, tableId, tuple, tid, commitLsn);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * @return the row, with the record id of the slot it was in
+     */
+    public Tuple getTuple() {
+        return tuple;
+    }
+
+    /**
+     * @return the id of the transaction that made the change
+     */
+    public long getTransactionId() {
+        return tid;
+    }
+
+    /**
+     * @return the LSN of the COMMIT record of the transaction
+     */
+    public long getCommitLsn() {
+        return commitLsn;
+    }
+
+    @Override
+    public String toString() {
+        return kind + " " + tableId + " " + tuple;
+    }
+}
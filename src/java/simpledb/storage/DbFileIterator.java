@@ -1,5 +1,6 @@
 package simpledb.storage;
 import simpledb.common.DbException;
+import simpledb.execution.TupleBatch;
 import simpledb.transaction.TransactionAbortedException;
 
 import java.io.Closeable;
@@ -31,6 +32,19 @@ public interface DbFileIterator extends Closeable {
     Tuple next()
         throws DbException, TransactionAbortedException, NoSuchElementException;
 
+    /**
+     * Appends the next tuples to the batch until it is full or there are no
+     * more. The default reads them through {@link #next}; files that can
+     * copy their pages straight into the columns override it. Callers should
+     * not mix calls to next and fillBatch.
+     */
+    default void fillBatch(TupleBatch batch)
+        throws DbException, TransactionAbortedException {
+        while (!batch.isFull() && hasNext()) {
+            batch.addTuple(next());
+        }
+    }
+
     /**
      * Resets the iterator to the start.
      * @throws DbException When rewind is unsupported.
@@ -3,6 +3,7 @@ package simpledb.storage;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Permissions;
+import simpledb.execution.TupleBatch;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -32,6 +33,11 @@ public class HeapFile implements DbFile {
      */
     private final TupleDesc tupleDesc;
 
+    /**
+     * 行锁模式，见 {@link #setRecordLocking}
+     */
+    private volatile boolean recordLocking;
+
     /**
      * Constructs a heap file backed by the specified file.
      *
@@ -78,6 +84,20 @@ public class HeapFile implements DbFile {
         return tupleDesc;
     }
 
+    /**
+     * Lock single records instead of whole pages. Pages of the table are then
+     * only locked in IS/IX mode, so several transactions can insert into and
+     * delete from the same page at the same time; see
+     * {@link BufferPool#lockRecord}.
+     */
+    public void setRecordLocking(boolean recordLocking) {
+        this.recordLocking = recordLocking;
+    }
+
+    public boolean isRecordLocking() {
+        return recordLocking;
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
@@ -126,6 +146,9 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+        if (recordLocking) {
+            return insertRecordLocked(tid, t);
+        }
         // 找现在的page看看有没有空位
         int numPages = numPages();
         for (int i = 0; i < numPages; i++) {
@@ -147,6 +170,81 @@ public class HeapFile implements DbFile {
         return List.of(page);
     }
 
+    /**
+     * 行锁模式下的插入：页上只有 IX 锁，别的事务可能同时在改这一页，
+     * 所以在页 latch 下找一个空闲且能加上 X 行锁的 slot。
+     * 被未提交事务删除的 slot 仍被其 X 锁占着，不能复用。
+     */
+    private List<Page> insertRecordLocked(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        int numPages = numPages();
+        for (int i = 0; i < numPages; i++) {
+            HeapPage page = getPageFromPool(tid, new HeapPageId(getId(), i), Permissions.READ_WRITE);
+            if (page.getNumEmptySlots() != 0 && insertIntoFreeSlot(tid, page, t)) {
+                return List.of(page);
+            }
+        }
+        while (true) {
+            HeapPageId pageId = appendEmptyPage(numPages);
+            HeapPage page = getPageFromPool(tid, pageId, Permissions.READ_WRITE);
+            if (insertIntoFreeSlot(tid, page, t)) {
+                return List.of(page);
+            }
+            numPages = pageId.getPageNumber() + 1;
+        }
+    }
+
+    /**
+     * 在文件末尾追加一个空页，别的事务已经追加过的话就用它追加的那一页
+     */
+    private synchronized HeapPageId appendEmptyPage(int numPages) throws IOException {
+        HeapPageId pageId = new HeapPageId(getId(), numPages);
+        if (numPages() == numPages) {
+            writePage(new HeapPage(pageId, HeapPage.createEmptyPageData()));
+        }
+        return pageId;
+    }
+
+    private boolean insertIntoFreeSlot(TransactionId tid, HeapPage page, Tuple t) throws DbException {
+        BufferPool bufferPool = Database.getBufferPool();
+        page.getLatch().writeLock().lock();
+        try {
+            for (int i = 0; i < page.getNumSlots(); i++) {
+                if (page.isSlotUsed(i)) {
+                    continue;
+                }
+                RecordId rid = new RecordId(page.getId(), i);
+                if (!bufferPool.tryLockRecord(tid, rid, Permissions.READ_WRITE)) {
+                    continue;
+                }
+                page.insertTuple(t, i);
+                page.markDirty(true, tid);
+                bufferPool.recordChange(tid, rid, null);
+                return true;
+            }
+            return false;
+        } finally {
+            page.getLatch().writeLock().unlock();
+        }
+    }
+
+    /**
+     * Read a single tuple of the table as it is now in the buffer pool. Under
+     * record-level locking the caller locks the record first.
+     *
+     * @return the tuple, or null if the slot is empty
+     */
+    public Tuple readTuple(TransactionId tid, RecordId rid)
+            throws DbException, TransactionAbortedException {
+        HeapPage page = getPageFromPool(tid, rid.getPageId(), Permissions.READ_ONLY);
+        page.getLatch().readLock().lock();
+        try {
+            return page.getTuple(rid.getTupleNumber());
+        } finally {
+            page.getLatch().readLock().unlock();
+        }
+    }
+
     private HeapPage getPageFromPool(TransactionId tid, PageId pageId, Permissions permissions)
             throws TransactionAbortedException, DbException {
         return (HeapPage) Database.getBufferPool().getPage(tid, pageId, permissions);
@@ -157,6 +255,9 @@ public class HeapFile implements DbFile {
             TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+        if (recordLocking) {
+            return deleteRecordLocked(tid, t);
+        }
         HeapPage page = getPageFromPool(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
         if (page != null && page.isSlotUsed(t.getRecordId().getTupleNumber())) {
             page.deleteTuple(t);
@@ -165,18 +266,48 @@ public class HeapFile implements DbFile {
         return List.of();
     }
 
+    private List<Page> deleteRecordLocked(TransactionId tid, Tuple t)
+            throws DbException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        BufferPool bufferPool = Database.getBufferPool();
+        // 先拿行锁，拿不到会等待，不能在 latch 下等
+        bufferPool.lockRecord(tid, rid, Permissions.READ_WRITE);
+        HeapPage page = getPageFromPool(tid, rid.getPageId(), Permissions.READ_WRITE);
+        page.getLatch().writeLock().lock();
+        try {
+            Tuple current = page.getTuple(rid.getTupleNumber());
+            if (current == null) {
+                return List.of();
+            }
+            page.deleteTuple(current);
+            page.markDirty(true, tid);
+            bufferPool.recordChange(tid, rid, current);
+            return List.of(page);
+        } finally {
+            page.getLatch().writeLock().unlock();
+        }
+    }
+
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
         return new HeapIterator(tid);
     }
 
+    /**
+     * 行锁模式下返回的是候选 tuple（包括被未提交事务删除的），
+     * 调用者加行锁后要用 {@link #readTuple} 重新读一遍
+     */
     private class HeapIterator implements DbFileIterator {
         private final TransactionId tid;
         private Iterator<Tuple> tupleIterator;
         private int pageNo = -1;
         private boolean isOpen;
 
+        // fillBatch 正在读的页和槽位
+        private HeapPage batchPage;
+        private int batchSlot;
+
         public HeapIterator(TransactionId tid) {
             this.tid = tid;
         }
@@ -193,10 +324,7 @@ public class HeapFile implements DbFile {
             }
             if (pageNo == -1) {
                 pageNo = 0;
-                tupleIterator = ((HeapPage) Database.getBufferPool().getPage(
-                        tid,
-                        new HeapPageId(getId(), pageNo),
-                        Permissions.READ_ONLY)).iterator();
+                tupleIterator = pageTuples(pageNo);
             }
             if (tupleIterator.hasNext()) {
                 return true;
@@ -205,13 +333,15 @@ public class HeapFile implements DbFile {
             if (numPages() <= pageNo) {
                 return false;
             }
-            tupleIterator = ((HeapPage) Database.getBufferPool().getPage(
-                    tid,
-                    new HeapPageId(getId(), pageNo),
-                    Permissions.READ_ONLY)).iterator();
+            tupleIterator = pageTuples(pageNo);
             return tupleIterator.hasNext();
         }
 
+        private Iterator<Tuple> pageTuples(int pageNo) throws DbException, TransactionAbortedException {
+            HeapPage page = getPageFromPool(tid, new HeapPageId(getId(), pageNo), Permissions.READ_ONLY);
+            return recordLocking ? page.getLockCandidates().iterator() : page.iterator();
+        }
+
         @Override
         public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
             if (!isOpen) {
@@ -223,14 +353,40 @@ public class HeapFile implements DbFile {
             return null;
         }
 
+        /**
+         * Copies the used slots of the pages straight into the batch, see
+         * {@link HeapPage#readSlots}. Under record-level locking the candidates
+         * are read through {@link #next} instead.
+         */
+        @Override
+        public void fillBatch(TupleBatch batch) throws DbException, TransactionAbortedException {
+            if (recordLocking || !isOpen) {
+                DbFileIterator.super.fillBatch(batch);
+                return;
+            }
+            while (!batch.isFull()) {
+                if (batchPage == null || batchSlot == batchPage.getNumSlots()) {
+                    if (pageNo + 1 >= numPages()) {
+                        return;
+                    }
+                    pageNo++;
+                    batchPage = getPageFromPool(tid, new HeapPageId(getId(), pageNo), Permissions.READ_ONLY);
+                    batchSlot = 0;
+                }
+                batchSlot = batchPage.readSlots(batchSlot, batch);
+            }
+        }
+
         @Override
         public void rewind() throws DbException, TransactionAbortedException {
             pageNo = -1;
+            batchPage = null;
         }
 
         @Override
         public void close() {
             isOpen = false;
+            batchPage = null;
         }
     }
 }
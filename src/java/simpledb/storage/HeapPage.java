@@ -3,12 +3,18 @@ package simpledb.storage;
 import simpledb.common.Catalog;
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.TupleBatch;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
@@ -25,17 +31,36 @@ public class HeapPage implements Page {
     final Tuple[] tuples;
     final int numSlots;
 
+    /**
+     * The bytes the page was read from, until its tuples are decoded, see
+     * {@link #decode}. Never modified.
+     */
+    private volatile byte[] data;
+
     byte[] oldData;
-    private final Byte oldDataLock = (byte) 0;
+    private final Object oldDataLock = new Object();
 
     private volatile TransactionId dirty = null;
 
+    /**
+     * LSN of the last UPDATE record of this page, see {@link Page#getLsn}.
+     */
+    private volatile long lsn = 0;
+
+    /**
+     * Short term latch protecting the physical layout of the page. Only
+     * needed when several transactions modify the page at the same time,
+     * i.e. for tables with record-level locking.
+     */
+    private final ReadWriteLock latch = new ReentrantReadWriteLock();
+
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
-     * The format of a HeapPage is a set of header bytes indicating
-     * the slots of the page that are in use, some number of tuple slots.
+     * The format of a HeapPage is the LSN of the page (a long), a set of
+     * header bytes indicating the slots of the page that are in use, some
+     * number of tuple slots.
      * Specifically, the number of tuples is equal to: <p>
-     * floor((BufferPool.getPageSize()*8) / (tuple size * 8 + 1))
+     * floor(((BufferPool.getPageSize() - LSN_SIZE)*8) / (tuple size * 8 + 1))
      * <p> where tuple size is the size of tuples in this
      * database table, which can be determined via {@link Catalog#getTupleDesc}.
      * The number of 8-bit header words is equal to:
@@ -53,22 +78,47 @@ public class HeapPage implements Page {
         this.numSlots = getNumTuples();
         DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
+        lsn = dis.readLong();
+
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
         for (int i = 0; i < header.length; i++)
             header[i] = dis.readByte();
+        dis.close();
 
+        // 元组等到有人要的时候再解出来，批量扫描直接从字节读到列里
         tuples = new Tuple[numSlots];
-        try {
-            // allocate and read the actual records of this page
-            for (int i = 0; i < tuples.length; i++)
-                tuples[i] = readNextTuple(dis, i);
-        } catch (NoSuchElementException e) {
-            e.printStackTrace();
-        }
-        dis.close();
+        this.data = data;
 
-        setBeforeImage();
+        setBeforeImage(data);
+    }
+
+    /**
+     * Decode the tuples of the page from the bytes it was read from, unless
+     * that is done already. Everything that reads or changes the tuples calls
+     * this first; only {@link #readSlots} can do without.
+     */
+    private void decode() {
+        if (data == null) {
+            return;
+        }
+        synchronized (tuples) {
+            byte[] raw = data;
+            if (raw == null) {
+                return;
+            }
+            DataInputStream dis = new DataInputStream(
+                    new ByteArrayInputStream(raw, LSN_SIZE + header.length, raw.length - LSN_SIZE - header.length));
+            try {
+                // allocate and read the actual records of this page
+                for (int i = 0; i < tuples.length; i++)
+                    tuples[i] = readNextTuple(dis, i);
+            } catch (NoSuchElementException e) {
+                e.printStackTrace();
+            }
+            // volatile 写，之后读到 data == null 的线程也能看到 tuples
+            data = null;
+        }
     }
 
     /**
@@ -77,10 +127,18 @@ public class HeapPage implements Page {
      * @return the number of tuples on this page
      */
     private int getNumTuples() {
+        return getNumTuples(td);
+    }
+
+    /**
+     * @return the number of tuple slots of a page of a HeapFile with the
+     * tuple descriptor
+     */
+    static int getNumTuples(TupleDesc td) {
         // some code goes here
 
-        // floor((BufferPool.getPageSize() * 8 ) / (tuple size * 8 + 1))
-        int pageBits = BufferPool.getPageSize() * 8;
+        // floor(((BufferPool.getPageSize() - LSN_SIZE) * 8 ) / (tuple size * 8 + 1))
+        int pageBits = (BufferPool.getPageSize() - LSN_SIZE) * 8;
         // size + 1bit header
         int oneTupleSize = td.getSize() * 8 + 1;
         // 向下取整
@@ -93,9 +151,17 @@ public class HeapPage implements Page {
      * @return the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      */
     private int getHeaderSize() {
+        return getHeaderSize(td);
+    }
+
+    /**
+     * @return the number of bytes in the header of a page of a HeapFile with
+     * the tuple descriptor
+     */
+    static int getHeaderSize(TupleDesc td) {
         // some code goes here
         // 每个 tuple 需要一个 bit，所以需要多少个 byte 除以 8 向上取整
-        return (int) Math.ceil((double) getNumTuples() / 8);
+        return (int) Math.ceil((double) getNumTuples(td) / 8);
     }
 
     /**
@@ -123,6 +189,29 @@ public class HeapPage implements Page {
         }
     }
 
+    /**
+     * Set the before image to the given page data instead of the current
+     * content, e.g. to the committed state of a page that still carries
+     * changes of running transactions.
+     */
+    public void setBeforeImage(byte[] data) {
+        synchronized (oldDataLock) {
+            oldData = data.clone();
+        }
+    }
+
+    public long getLsn() {
+        return lsn;
+    }
+
+    public void setLsn(long lsn) {
+        this.lsn = lsn;
+    }
+
+    public ReadWriteLock getLatch() {
+        return latch;
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -177,10 +266,23 @@ public class HeapPage implements Page {
      * @see #HeapPage
      */
     public byte[] getPageData() {
+        byte[] raw = data;
+        if (raw != null) {
+            // 没解过就没改过（改之前都要先 decode），内容就是读进来的字节，只有 LSN 可能变了
+            byte[] bytes = raw.clone();
+            Page.writeLsn(bytes, lsn);
+            return bytes;
+        }
         int len = BufferPool.getPageSize();
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
 
+        try {
+            dos.writeLong(lsn);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
         // create the header of the page
         for (byte b : header) {
             try {
@@ -219,7 +321,7 @@ public class HeapPage implements Page {
         }
 
         // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
+        int zerolen = BufferPool.getPageSize() - (LSN_SIZE + header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
         byte[] zeroes = new byte[zerolen];
         try {
             dos.write(zeroes, 0, zerolen);
@@ -261,6 +363,7 @@ public class HeapPage implements Page {
     public void deleteTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
+        decode();
         int slot = t.getRecordId().getTupleNumber();
         if (!Objects.equals(pid, t.getRecordId().getPageId())) {
             throw new DbException("PageId does not match, expected[" +
@@ -283,25 +386,87 @@ public class HeapPage implements Page {
     public void insertTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
-        int index = -1;
-        for (int i = 0; i < header.length; i++) {
-            if (header[i] != (byte) 0xff) {
-                index = i;
-                break;
+        decode();
+        for (int index = 0; index < header.length; index++) {
+            if (header[index] == (byte) 0xff) {
+                continue;
+            }
+            // 最后一个字节里可能有不对应槽的位
+            for (int i = 0; i < 8 && index * 8 + i < numSlots; i++) {
+                if ((header[index] & (1 << i)) == 0) {
+                    int tupleno = index * 8 + i;
+                    markSlotUsed(tupleno, true);
+                    t.setRecordId(new RecordId(getId(), tupleno));
+                    tuples[tupleno] = t;
+                    return;
+                }
             }
         }
-        if (index == -1) {
-            throw new DbException("is full");
+        throw new DbException("is full");
+    }
+
+    /**
+     * Puts the specified tuple into the given slot of the page; the tuple is
+     * updated to reflect that it is now stored on this page.
+     *
+     * @param t    The tuple to add.
+     * @param slot The slot to put the tuple into.
+     * @throws DbException if the slot is already in use
+     */
+    public void insertTuple(Tuple t, int slot) throws DbException {
+        if (slot < 0 || slot >= numSlots) {
+            throw new DbException("No existent tuple number[" + slot + "] on page[" + pid + "]");
+        }
+        if (isSlotUsed(slot)) {
+            throw new DbException("Tuple number[" + slot + "] of page[" + pid + "] is in use");
         }
-        for (int i = 0; i < 8; i++) {
-            if ((header[index] & (1 << i)) == 0) {
-                int tupleno = index * 8 + i;
-                markSlotUsed(tupleno, true);
-                t.setRecordId(new RecordId(getId(), tupleno));
-                tuples[tupleno] = t;
-                break;
+        decode();
+        markSlotUsed(slot, true);
+        t.setRecordId(new RecordId(pid, slot));
+        tuples[slot] = t;
+    }
+
+    /**
+     * @return the tuple in the given slot, or null if the slot is empty
+     */
+    public Tuple getTuple(int slot) {
+        if (slot < 0 || slot >= numSlots || !isSlotUsed(slot)) {
+            return null;
+        }
+        decode();
+        return tuples[slot];
+    }
+
+    /**
+     * @return the number of tuple slots on this page
+     */
+    public int getNumSlots() {
+        return numSlots;
+    }
+
+    /**
+     * Returns the tuples a reader has to look at under record-level locking:
+     * the tuples currently on the page plus the ones that are still in the
+     * before image but were deleted since. The latter are deleted by a running
+     * transaction, and become visible again if it aborts.
+     */
+    public List<Tuple> getLockCandidates() {
+        HeapPage before = getBeforeImage();
+        decode();
+        List<Tuple> candidates = new ArrayList<>();
+        latch.readLock().lock();
+        try {
+            for (int i = 0; i < numSlots; i++) {
+                if (isSlotUsed(i)) {
+                    candidates.add(tuples[i]);
+                } else if (before.isSlotUsed(i)) {
+                    candidates.add(before.getTuple(i));
+                }
             }
+        } finally {
+            latch.readLock().unlock();
         }
+        return candidates;
     }
 
     /**
@@ -373,9 +538,51 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
+        decode();
         return new TuplesIterator();
     }
 
+    private static int readInt(byte[] b, int off) {
+        return (b[off] & 0xFF) << 24 | (b[off + 1] & 0xFF) << 16 | (b[off + 2] & 0xFF) << 8 | b[off + 3] & 0xFF;
+    }
+
+    /**
+     * Appends the tuples in the used slots, from the given slot on, to the
+     * batch until it is full. As long as no tuple of the page has been
+     * decoded the fields are read straight from the bytes of the page into
+     * the columns of the batch, without building a Tuple per row.
+     *
+     * @return the slot to continue from, {@link #getNumSlots} once the page
+     * is done
+     */
+    public int readSlots(int slot, TupleBatch batch) {
+        int tupleSize = td.getSize();
+        int numFields = td.numFields();
+        for (; slot < numSlots && !batch.isFull(); slot++) {
+            if (!isSlotUsed(slot)) {
+                continue;
+            }
+            // 先看槽位再取 data：同一个事务边扫边插的话，新插的槽位只在解出的元组里
+            byte[] raw = data;
+            if (raw == null) {
+                batch.addTuple(tuples[slot]);
+                continue;
+            }
+            int row = batch.addRow(new RecordId(pid, slot));
+            int off = LSN_SIZE + header.length + slot * tupleSize;
+            for (int f = 0; f < numFields; f++) {
+                if (td.getFieldType(f) == Type.INT_TYPE) {
+                    batch.getIntColumn(f)[row] = readInt(raw, off);
+                } else {
+                    // 和 Type.STRING_TYPE.parse 一样：长度加上定长的字节
+                    batch.getStringColumn(f)[row] = new String(raw, off + 4, readInt(raw, off));
+                }
+                off += td.getFieldType(f).getLen();
+            }
+        }
+        return slot;
+    }
+
     private class TuplesIterator implements Iterator<Tuple> {
         int currentTupleNo = -1;
         Tuple currentTuple = null;
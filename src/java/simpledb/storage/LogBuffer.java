@@ -0,0 +1,348 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory ring buffer in front of the {@link SegmentedLog}.
+ * <p>
+ * Appending a record does not take a lock and does not call into the file
+ * system: the writer reserves the bytes of the record by moving the tail with
+ * a compare-and-set, copies the record into the ring and publishes it. The
+ * LSN of the record is the tail it reserved. Records are published in LSN
+ * order, so the published bytes are always a run of whole records.
+ * <p>
+ * A flusher thread writes the published bytes to the segments in chunks, and
+ * forces them when somebody waits for them to be durable: everybody who waits
+ * while a force is running shares the next one. A caller may allow the force
+ * to be delayed, so that more records share it; the flusher forces once the
+ * earliest of these deadlines is reached. The flusher is started when there
+ * is something to do and stops after a while without work.
+ * <p>
+ * Readers of the segments must hold the monitor of the SegmentedLog, which the
+ * flusher holds while it writes, and should wait with {@link #awaitWritten}
+ * for the records they read.
+ */
+class LogBuffer {
+
+    static final int DEFAULT_CAPACITY = 1 << 20;
+
+    /**
+     * how long the flusher waits before it writes published bytes nobody
+     * waits for
+     */
+    private static final long FLUSH_INTERVAL_MILLIS = 10;
+
+    /**
+     * how long the flusher waits for work before it stops
+     */
+    private static final long IDLE_MILLIS = 1000;
+
+    private final SegmentedLog log;
+    private final byte[] ring;
+
+    /**
+     * the LSN the next record is reserved at
+     */
+    private final AtomicLong tail;
+    /**
+     * the records before this LSN are copied into the ring
+     */
+    private final AtomicLong published;
+    /**
+     * the records before this LSN are written to the segments
+     */
+    private volatile long written;
+    /**
+     * the records before this LSN are on disk
+     */
+    private volatile long durable;
+    private volatile IOException failure = null;
+
+    /**
+     * A caller waiting for the log to be durable, and the time the log has
+     * to be forced by.
+     */
+    private static class Waiter {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        final long deadline;
+
+        Waiter(long deadline) {
+            this.deadline = deadline;
+        }
+    }
+
+    private final Object flushLock = new Object();
+    /**
+     * the callers waiting for the log to be durable, by the LSN the log has to
+     * be durable up to
+     */
+    private final TreeMap<Long, List<Waiter>> waiters = new TreeMap<>(); //protected by flushLock
+    private Thread flusher = null; //protected by flushLock
+
+    LogBuffer(SegmentedLog log, int capacity) {
+        this.log = log;
+        this.ring = new byte[capacity];
+        long end = log.length();
+        this.tail = new AtomicLong(end);
+        this.published = new AtomicLong(end);
+        this.written = end;
+        this.durable = end;
+    }
+
+    /**
+     * @return the LSN the next record is appended at
+     */
+    long getTail() {
+        return tail.get();
+    }
+
+    /**
+     * @return the LSN up to which the log is on disk
+     */
+    long getDurable() {
+        return durable;
+    }
+
+    /**
+     * Start over at the given LSN, e.g. after the log was cleared or recovery
+     * found its end. Must only be called while nobody appends.
+     */
+    void reset(long lsn) throws IOException {
+        awaitWritten(tail.get());
+        synchronized (flushLock) {
+            tail.set(lsn);
+            published.set(lsn);
+            written = lsn;
+            durable = lsn;
+        }
+    }
+
+    /**
+     * Append a record. The last long of every log record is its own LSN; it
+     * is filled into the array here.
+     *
+     * @param record the record, with room for its LSN at the end
+     * @return the LSN of the record
+     */
+    long append(byte[] record) throws IOException {
+        int len = record.length;
+        if (len > ring.length) {
+            throw new IOException("log record of " + len + " bytes does not fit into the log buffer");
+        }
+        long start;
+        while (true) {
+            if (failure != null) {
+                throw new IOException("log flusher failed", failure);
+            }
+            start = tail.get();
+            if (start + len - written > ring.length) {
+                // 环满了，等 flusher 把前面的写出去
+                awaitWritten(start + len - ring.length);
+                continue;
+            }
+            if (tail.compareAndSet(start, start + len)) {
+                break;
+            }
+        }
+        for (int i = 0; i < LogFile.LONG_SIZE; i++) {
+            record[len - 1 - i] = (byte) (start >>> (8 * i));
+        }
+        int from = (int) (start % ring.length);
+        int n = Math.min(len, ring.length - from);
+        System.arraycopy(record, 0, ring, from, n);
+        System.arraycopy(record, n, ring, 0, len - n);
+        // 按 LSN 顺序发布，前面的记录拷完之前不能让 flusher 看到这条
+        while (published.get() != start) {
+            Thread.yield();
+        }
+        published.set(start + len);
+        return start;
+    }
+
+    /**
+     * @param end the LSN the log has to be durable up to, exclusive
+     * @return a future that completes once the log is on disk up to end
+     */
+    CompletableFuture<Void> durableFuture(long end) {
+        return durableFuture(end, 0);
+    }
+
+    /**
+     * @param end        the LSN the log has to be durable up to, exclusive
+     * @param delayMillis how long the flusher may wait for more records
+     *                    before it forces the log
+     * @return a future that completes once the log is on disk up to end
+     */
+    CompletableFuture<Void> durableFuture(long end, long delayMillis) {
+        // 页上可能是别的日志给的 LSN，这个日志里还没有的记录不用等
+        end = Math.min(end, tail.get());
+        synchronized (flushLock) {
+            if (failure != null) {
+                CompletableFuture<Void> failed = new CompletableFuture<>();
+                failed.completeExceptionally(failure);
+                return failed;
+            }
+            if (durable >= end) {
+                return CompletableFuture.completedFuture(null);
+            }
+            Waiter waiter = new Waiter(System.currentTimeMillis() + delayMillis);
+            waiters.computeIfAbsent(end, k -> new ArrayList<>()).add(waiter);
+            wakeFlusher();
+            return waiter.future;
+        }
+    }
+
+    /**
+     * Wait until the log is on disk up to end.
+     *
+     * @param end the LSN the log has to be durable up to, exclusive
+     */
+    void flush(long end) throws IOException {
+        flush(end, 0);
+    }
+
+    /**
+     * Wait until the log is on disk up to end.
+     *
+     * @param end        the LSN the log has to be durable up to, exclusive
+     * @param delayMillis how long the flusher may wait for more records
+     *                    before it forces the log
+     */
+    void flush(long end, long delayMillis) throws IOException {
+        if (durable >= Math.min(end, tail.get())) {
+            return;
+        }
+        try {
+            durableFuture(end, delayMillis).get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while waiting for the log");
+        } catch (ExecutionException e) {
+            throw new IOException("log flusher failed", e.getCause());
+        }
+    }
+
+    /**
+     * Wait until the log is written to the segments up to end, so that it can
+     * be read from there.
+     *
+     * @param end the LSN the log has to be written up to, exclusive
+     */
+    void awaitWritten(long end) throws IOException {
+        if (written >= end) {
+            return;
+        }
+        synchronized (flushLock) {
+            wakeFlusher();
+            while (written < end) {
+                if (failure != null) {
+                    throw new IOException("log flusher failed", failure);
+                }
+                try {
+                    flushLock.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("interrupted while waiting for the log");
+                }
+            }
+        }
+    }
+
+    /**
+     * Write and force everything appended so far and stop the flusher.
+     */
+    void close() throws IOException {
+        flush(tail.get());
+        synchronized (flushLock) {
+            // 不打断 flusher，打断会关掉它正在 force 的 FileChannel
+            flusher = null;
+            flushLock.notifyAll();
+        }
+    }
+
+    private void wakeFlusher() {
+        if (flusher == null) {
+            flusher = new Thread(this::runFlusher, "log-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+        flushLock.notifyAll();
+    }
+
+    private void runFlusher() {
+        while (true) {
+            long end;
+            boolean force;
+            synchronized (flushLock) {
+                long idleStart = System.currentTimeMillis();
+                while (true) {
+                    if (flusher != Thread.currentThread()) {
+                        return;
+                    }
+                    end = published.get();
+                    long now = System.currentTimeMillis();
+                    long deadline = Long.MAX_VALUE;
+                    for (List<Waiter> list : waiters.values()) {
+                        for (Waiter waiter : list) {
+                            deadline = Math.min(deadline, waiter.deadline);
+                        }
+                    }
+                    force = deadline <= now;
+                    if (end > written || (force && durable < end)) {
+                        break;
+                    }
+                    if (waiters.isEmpty() && now - idleStart >= IDLE_MILLIS) {
+                        flusher = null;
+                        return;
+                    }
+                    try {
+                        flushLock.wait(Math.max(1, Math.min(FLUSH_INTERVAL_MILLIS, deadline - now)));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            try {
+                synchronized (log) {
+                    int from = (int) (written % ring.length);
+                    int len = (int) (end - written);
+                    int n = Math.min(len, ring.length - from);
+                    log.append(ring, from, n);
+                    log.append(ring, 0, len - n);
+                    written = end;
+                    if (force) {
+                        log.force();
+                        durable = end;
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+            synchronized (flushLock) {
+                Iterator<Map.Entry<Long, List<Waiter>>> it = waiters.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Long, List<Waiter>> e = it.next();
+                    if (failure == null && e.getKey() > durable) {
+                        break;
+                    }
+                    for (Waiter waiter : e.getValue()) {
+                        if (failure == null) {
+                            waiter.future.complete(null);
+                        } else {
+                            waiter.future.completeExceptionally(failure);
+                        }
+                    }
+                    it.remove();
+                }
+                flushLock.notifyAll();
+                if (failure != null) {
+                    flusher = null;
+                    return;
+                }
+            }
+        }
+    }
+}
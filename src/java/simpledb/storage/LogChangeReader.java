@@ -0,0 +1,304 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Change data capture: reads the log and turns the UPDATE records of
+ * committed transactions into row-level {@link ChangeEvent}s, in commit
+ * order.
+ * <p>
+ * The reader only looks at the records after its position, so a consumer
+ * that keeps up pays for the changes, not for the size of the tables. It
+ * tails the log: once {@link #hasNext} returned false, it may return true
+ * again after more transactions committed. Only records that are on disk
+ * are read, so a change never shows up that a crash could still take back.
+ * <p>
+ * An UPDATE record only holds the bytes of a page that changed. Inserted
+ * and deleted rows are complete anyway, since empty slots are all zeros; a
+ * row changed in place is complete once the reader knows the page, which
+ * it does from the first update of the page after a checkpoint on, as that
+ * one carries the full page image. Only heap files are decoded, B+ tree
+ * pages are skipped.
+ */
+public class LogChangeReader {
+
+    private static final int BATCH_RECORDS = 1024;
+
+    /**
+     * Where a reader stopped, so that a new one can resume there.
+     */
+    public static class Position {
+        /**
+         * start reading at the beginning of the log
+         */
+        public static final Position START = new Position(LogFile.NO_LSN, LogFile.NO_LSN);
+
+        private final long scanLsn;
+        private final long commitLsn;
+
+        /**
+         * @param scanLsn   the LSN to read from, or -1 for the start of the log
+         * @param commitLsn the LSN of the last COMMIT whose changes were
+         *                  consumed; earlier commits are skipped
+         */
+        public Position(long scanLsn, long commitLsn) {
+            this.scanLsn = scanLsn;
+            this.commitLsn = commitLsn;
+        }
+
+        public long getScanLsn() {
+            return scanLsn;
+        }
+
+        public long getCommitLsn() {
+            return commitLsn;
+        }
+
+        /**
+         * @param s a position as {@link #toString} writes it
+         */
+        public static Position parse(String s) {
+            String[] parts = s.trim().split("/");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("not a log position: " + s);
+            }
+            return new Position(Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+        }
+
+        @Override
+        public String toString() {
+            return scanLsn + "/" + commitLsn;
+        }
+    }
+
+    /**
+     * The changes of a transaction that has not finished yet.
+     */
+    private static class Running {
+        final long firstLsn;
+        final List<PageDelta> deltas = new ArrayList<>();
+        final List<ChangeEvent> events = new ArrayList<>();
+
+        Running(long firstLsn) {
+            this.firstLsn = firstLsn;
+        }
+    }
+
+    /**
+     * The changes of a committed transaction that were not consumed yet.
+     */
+    private static class Committed {
+        final long firstLsn;
+        final long commitLsn;
+        final Deque<ChangeEvent> events;
+
+        Committed(long firstLsn, long commitLsn, List<ChangeEvent> events) {
+            this.firstLsn = firstLsn;
+            this.commitLsn = commitLsn;
+            this.events = new ArrayDeque<>(events);
+        }
+    }
+
+    private final LogFile log;
+    private final long skipThrough;
+    private long readLsn;
+    private long consumedCommitLsn;
+    private final Map<Long, Running> running = new HashMap<>();
+    private final Deque<Committed> committed = new ArrayDeque<>();
+
+    /**
+     * images of the pages the reader knows, as of the last record it read
+     */
+    private final Map<PageId, byte[]> images = new HashMap<>();
+
+    /**
+     * @param log  the log to read
+     * @param from where to start, e.g. the position of an earlier reader
+     */
+    public LogChangeReader(LogFile log, Position from) {
+        this.log = log;
+        this.readLsn = from.scanLsn;
+        this.skipThrough = from.commitLsn;
+        this.consumedCommitLsn = from.commitLsn;
+    }
+
+    /**
+     * @return true if there is a change that {@link #next} returns; false if
+     * the reader is at the end of the committed changes for now
+     */
+    public boolean hasNext() throws IOException {
+        while (true) {
+            while (!committed.isEmpty() && committed.peekFirst().events.isEmpty()) {
+                consumedCommitLsn = committed.removeFirst().commitLsn;
+            }
+            if (!committed.isEmpty()) {
+                return true;
+            }
+            if (!readMore()) {
+                return false;
+            }
+        }
+    }
+
+    public ChangeEvent next() throws IOException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Committed first = committed.peekFirst();
+        ChangeEvent e = first.events.removeFirst();
+        if (first.events.isEmpty()) {
+            consumedCommitLsn = committed.removeFirst().commitLsn;
+        }
+        return e;
+    }
+
+    /**
+     * @return the position to resume at after the changes that {@link #next}
+     * returned so far
+     */
+    public Position getPosition() {
+        long scan = readLsn;
+        for (Running r : running.values()) {
+            scan = Math.min(scan, r.firstLsn);
+        }
+        for (Committed c : committed) {
+            scan = Math.min(scan, c.firstLsn);
+        }
+        return new Position(scan, consumedCommitLsn);
+    }
+
+    /**
+     * Read the next batch of records.
+     *
+     * @return false if there are no new records
+     */
+    private boolean readMore() throws IOException {
+        if (readLsn == LogFile.NO_LSN) {
+            readLsn = log.getStartLsn();
+        }
+        List<LogFile.Record> records = log.readRecords(readLsn, BATCH_RECORDS);
+        for (LogFile.Record r : records) {
+            switch (r.type) {
+                case LogFile.UPDATE_RECORD:
+                    Running txn = running.computeIfAbsent(r.tid, k -> new Running(r.lsn));
+                    txn.deltas.add(r.delta);
+                    decode(r.tid, r.delta, txn.events);
+                    break;
+                case LogFile.COMMIT_RECORD:
+                    Running done = running.remove(r.tid);
+                    if (done != null && r.lsn > skipThrough && !done.events.isEmpty()) {
+                        List<ChangeEvent> events = new ArrayList<>();
+                        for (ChangeEvent e : done.events) {
+                            events.add(e.committed(r.lsn));
+                        }
+                        committed.addLast(new Committed(done.firstLsn, r.lsn, events));
+                    }
+                    break;
+                case LogFile.ABORT_RECORD:
+                    // rollback 不写日志，按倒序把这个事务的修改从页上撤掉
+                    Running aborted = running.remove(r.tid);
+                    if (aborted != null) {
+                        for (int i = aborted.deltas.size() - 1; i >= 0; i--) {
+                            PageDelta delta = aborted.deltas.get(i);
+                            byte[] image = images.get(delta.getPageId());
+                            if (image != null) {
+                                delta.undo(image);
+                            }
+                        }
+                    }
+                    break;
+            }
+            readLsn = r.next;
+        }
+        return !records.isEmpty();
+    }
+
+    /**
+     * Turn a page delta into the rows it inserted and deleted.
+     */
+    private void decode(long tid, PageDelta delta, List<ChangeEvent> events) throws IOException {
+        PageId pid = delta.getPageId();
+        if (!(pid instanceof HeapPageId)) {
+            return;
+        }
+        TupleDesc td;
+        try {
+            td = Database.getCatalog().getTupleDesc(pid.getTableId());
+        } catch (NoSuchElementException e) {
+            return;
+        }
+        byte[] base = images.get(pid);
+        boolean known = base != null || delta.hasFullImage();
+        byte[] after = base != null ? base.clone() : new byte[BufferPool.getPageSize()];
+        delta.redo(after);
+        byte[] before = after.clone();
+        delta.undo(before);
+        if (known) {
+            images.put(pid, after);
+        }
+
+        int tupleSize = td.getSize();
+        int numSlots = HeapPage.getNumTuples(td);
+        // LSN 之后是槽位图，再后面是元组
+        int tuplesStart = Page.LSN_SIZE + HeapPage.getHeaderSize(td);
+        // 只看改过的字节落在的槽
+        SortedSet<Integer> slots = new TreeSet<>();
+        for (int r = 0; r < delta.getNumRanges(); r++) {
+            int start = delta.getRangeOffset(r);
+            int end = start + delta.getRangeLength(r);
+            for (int i = Math.max(start, Page.LSN_SIZE); i < Math.min(end, tuplesStart); i++) {
+                for (int bit = 0; bit < 8; bit++) {
+                    slots.add((i - Page.LSN_SIZE) * 8 + bit);
+                }
+            }
+            if (end > tuplesStart) {
+                int first = (Math.max(start, tuplesStart) - tuplesStart) / tupleSize;
+                int last = (end - 1 - tuplesStart) / tupleSize;
+                for (int slot = first; slot <= last; slot++) {
+                    slots.add(slot);
+                }
+            }
+        }
+        for (int slot : slots) {
+            if (slot >= numSlots) {
+                break;
+            }
+            boolean wasUsed = isSlotUsed(before, slot);
+            boolean isUsed = isSlotUsed(after, slot);
+            int offset = tuplesStart + slot * tupleSize;
+            boolean same = Arrays.equals(before, offset, offset + tupleSize, after, offset, offset + tupleSize);
+            if (wasUsed && (!isUsed || !same)) {
+                events.add(new ChangeEvent(ChangeEvent.Kind.DELETE, pid.getTableId(),
+                        readTuple(td, (HeapPageId) pid, slot, before, offset), tid, LogFile.NO_LSN));
+            }
+            if (isUsed && (!wasUsed || !same)) {
+                events.add(new ChangeEvent(ChangeEvent.Kind.INSERT, pid.getTableId(),
+                        readTuple(td, (HeapPageId) pid, slot, after, offset), tid, LogFile.NO_LSN));
+            }
+        }
+    }
+
+    private static boolean isSlotUsed(byte[] page, int slot) {
+        return (page[Page.LSN_SIZE + slot / 8] >> (slot % 8) & 1) == 1;
+    }
+
+    private static Tuple readTuple(TupleDesc td, HeapPageId pid, int slot, byte[] page, int offset)
+            throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(page, offset, td.getSize()));
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slot));
+        try {
+            for (int j = 0; j < td.numFields(); j++) {
+                t.setField(j, td.getFieldType(j).parse(dis));
+            }
+        } catch (java.text.ParseException e) {
+            throw new IOException("cannot decode row " + slot + " of " + pid, e);
+        }
+        return t;
+    }
+}
@@ -2,12 +2,16 @@
 package simpledb.storage;
 
 import simpledb.common.Database;
+import simpledb.transaction.Durability;
 import simpledb.transaction.TransactionId;
 import simpledb.common.Debug;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -22,7 +26,7 @@ import java.lang.reflect.*;
  * writes from happening); many of the methods in BufferPool are also
  * synchronized (for similar reasons.)  Problem is that BufferPool writes
  * log records (on page flushed) and the log file flushes BufferPool
- * pages (on checkpoints and recovery.)  This can lead to deadlock.  For
+ * pages (on rollback and recovery.)  This can lead to deadlock.  For
  * that reason, any LogFile operation that needs to access the BufferPool
  * must not be declared synchronized and must begin with a block like:
  *
@@ -37,14 +41,21 @@ import java.lang.reflect.*;
  * }
  * </pre>
  *
+ * <p> Records are appended to a {@link LogBuffer} without a lock; BEGIN and
+ * COMMIT do not take the monitor at all, and committers wait for their
+ * COMMIT record to be forced by the flusher thread of the buffer, together
+ * with everybody else who commits at the same time.
+ *
  * <p> The format of the log file is as follows:
  *
  * <ul>
  *
- * <li> The first long integer of the file represents the offset of the
- * last written checkpoint, or -1 if there are no checkpoints
+ * <li> The log is stored in fixed-size segment files, see {@link SegmentedLog}.
+ * Offsets in the log (LSNs) are positions in the stream of all segments and
+ * never change.  The offset of the last written checkpoint, or -1 if there
+ * are no checkpoints, is kept in the control file.
  *
- * <li> All additional data in the log consists of log records.  Log
+ * <li> All data in the segments consists of log records.  Log
  * records are variable length.
  *
  * <li> Each log record begins with an integer type and a long integer
@@ -58,24 +69,30 @@ import java.lang.reflect.*;
  *
  * <li> ABORT, COMMIT, and BEGIN records contain no additional data
  *
- * <li>UPDATE RECORDS consist of two entries, a before image and an
- * after image.  These images are serialized Page objects, and can be
- * accessed with the LogFile.readPageData() and LogFile.writePageData()
- * methods.  See LogFile.print() for an example.
+ * <li>UPDATE RECORDS consist of the LSN (offset) of the previous UPDATE
+ * record of the same transaction, or -1 for its first one, followed by
+ * the byte ranges of the page that changed, with their content before and
+ * after the update, see {@link PageDelta}.
+ * The first UPDATE record of a page after a checkpoint also carries the
+ * full before image of the page.
  *
  * <li> CHECKPOINT records consist of active transactions at the time
  * the checkpoint was taken and their first log record on disk.  The format
  * of the record is an integer count of the number of transactions, as well
  * as a long integer transaction id and a long integer first record offset
- * for each active transaction.
+ * for each active transaction.  It is followed by the dirty page table: an
+ * integer count of pages, and for each page its id (see {@link PageDelta})
+ * and the long integer offset of its first UPDATE record that may not be
+ * on disk yet (recLSN).
  *
  * </ul>
  */
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
-    Boolean recoveryUndecided; // no call to recover() and no append to log
+    private final SegmentedLog log;
+    private final LogBuffer buffer;
+    volatile boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
     static final int COMMIT_RECORD = 2;
@@ -83,15 +100,51 @@ public class LogFile {
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
     static final long NO_CHECKPOINT_ID = -1;
+    static final long NO_LSN = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
-    long currentOffset = -1;//protected by this
     //    int pageSize;
-    int totalRecords = 0; // for PatchTest //protected by this
+    final AtomicInteger totalRecords = new AtomicInteger(); // for PatchTest
+
+    final Map<Long, Long> tidToFirstLogRecord = new ConcurrentHashMap<>();
+
+    /**
+     * LSN of the last UPDATE record of each running transaction, where
+     * rollback starts following the prevLSN chain
+     */
+    final Map<Long, Long> tidToLastUpdate = new ConcurrentHashMap<>();
+
+    private final LogTailCache tail = new LogTailCache(LogTailCache.DEFAULT_CAPACITY); //protected by this
+
+    /**
+     * dirty page table: pages with UPDATE records that may not be on disk
+     * yet, with the LSN of the first of them (recLSN)
+     */
+    private final Map<PageId, Long> dirtyPages = new HashMap<>(); //protected by this
+
+    /**
+     * number of threads {@link #recover} redoes pages with
+     */
+    static final int RECOVERY_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * how long the flusher may wait for more commits before it forces the
+     * COMMIT record of a {@link Durability#GROUP} commit
+     */
+    private volatile long groupCommitDelayMillis = 2;
 
-    final Map<Long, Long> tidToFirstLogRecord = new HashMap<>();
+    /**
+     * how long the COMMIT record of a {@link Durability#ASYNC} commit may stay
+     * in memory, i.e. how much work a crash may lose
+     */
+    private volatile long asyncCommitDelayMillis = 10;
+
+    /**
+     * pages whose full before image was logged since the last checkpoint
+     */
+    private final Set<PageId> imagedPages = new HashSet<>(); //protected by this
 
     /**
      * Constructor.
@@ -106,8 +159,17 @@ public class LogFile {
      * @param f The log file's name
      */
     public LogFile(File f) throws IOException {
+        this(f, SegmentedLog.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param f           The log's control file; the segments are stored next to it
+     * @param segmentSize The size of the segment files in bytes
+     */
+    public LogFile(File f, int segmentSize) throws IOException {
         this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        log = new SegmentedLog(f, segmentSize);
+        buffer = new LogBuffer(log, LogBuffer.DEFAULT_CAPACITY);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -125,19 +187,70 @@ public class LogFile {
     // DB wants to do recovery, we're sure now -- it didn't. So truncate
     // the log.
     void preAppend() throws IOException {
-        totalRecords++;
+        totalRecords.incrementAndGet();
         if (recoveryUndecided) {
-            recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            synchronized (this) {
+                if (recoveryUndecided) {
+                    synchronized (log) {
+                        log.clear();
+                    }
+                    buffer.reset(log.length());
+                    recoveryUndecided = false;
+                }
+            }
         }
     }
 
-    public synchronized int getTotalRecords() {
-        return totalRecords;
+    /**
+     * Append a record that consists of its type and tid only.
+     *
+     * @return the LSN of the record
+     */
+    private long appendRecord(int type, long tid) throws IOException {
+        byte[] record = new byte[INT_SIZE + LONG_SIZE + LONG_SIZE];
+        ByteBuffer.wrap(record).putInt(type).putLong(tid);
+        return buffer.append(record);
+    }
+
+    /**
+     * Wait until everything appended so far can be read from the segments.
+     */
+    private void awaitWritten() throws IOException {
+        buffer.awaitWritten(buffer.getTail());
+    }
+
+    public int getTotalRecords() {
+        return totalRecords.get();
+    }
+
+    /**
+     * @return the length of the log in bytes, from the oldest record that is
+     * still kept
+     */
+    public long getLogSize() {
+        synchronized (log) {
+            return buffer.getTail() - log.start();
+        }
+    }
+
+    /**
+     * @return the number of segment files the log takes
+     */
+    public int getNumSegments() throws IOException {
+        awaitWritten();
+        synchronized (log) {
+            return log.getNumSegments();
+        }
+    }
+
+    /**
+     * Keep the segments that are no longer needed in the directory instead
+     * of deleting them, or delete them again if dir is null.
+     */
+    public void setArchiveDirectory(File dir) {
+        synchronized (log) {
+            log.setArchiveDirectory(dir);
+        }
     }
 
     /**
@@ -150,6 +263,7 @@ public class LogFile {
         // must have buffer pool lock before proceeding, since this
         // calls rollback
 
+        long lsn;
         synchronized (Database.getBufferPool()) {
 
             synchronized (this) {
@@ -161,135 +275,114 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
+                lsn = appendRecord(ABORT_RECORD, tid.getId());
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToLastUpdate.remove(tid.getId());
             }
         }
+        flushTo(lsn);
     }
 
     /**
      * Write a commit record to disk for the specified tid,
-     * and force the log to disk.
+     * and force the log to disk.  Does not take the monitor: the record
+     * is appended to the buffer and the caller waits until the flusher
+     * forced it.
      *
      * @param tid The committing transaction.
      */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
+    public void logCommit(TransactionId tid) throws IOException {
+        logCommit(tid, Durability.SYNC);
+    }
+
+    /**
+     * Write a commit record for the specified tid and wait for it to reach
+     * disk as the durability level asks for.
+     *
+     * @param tid        The committing transaction.
+     * @param durability how long to wait for the record to be forced
+     * @return the LSN of the record
+     */
+    public long logCommit(TransactionId tid, Durability durability) throws IOException {
         preAppend();
-        Debug.log("COMMIT " + tid.getId());
+        Debug.log("COMMIT " + tid.getId() + " " + durability);
         //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
+        long lsn = appendRecord(COMMIT_RECORD, tid.getId());
         tidToFirstLogRecord.remove(tid.getId());
+        tidToLastUpdate.remove(tid.getId());
+        switch (durability) {
+            case SYNC:
+                flushTo(lsn);
+                break;
+            case GROUP:
+                buffer.flush(lsn + 1, groupCommitDelayMillis);
+                break;
+            case ASYNC:
+                // 不等，flusher 在期限内会 force
+                buffer.durableFuture(lsn + 1, asyncCommitDelayMillis);
+                break;
+        }
+        return lsn;
+    }
+
+    /**
+     * @param millis how long the flusher may wait for more commits before it
+     *               forces a {@link Durability#GROUP} commit
+     */
+    public void setGroupCommitDelay(long millis) {
+        groupCommitDelayMillis = millis;
+    }
+
+    /**
+     * @param millis how long a {@link Durability#ASYNC} commit may take to
+     *               reach disk
+     */
+    public void setAsyncCommitDelay(long millis) {
+        asyncCommitDelayMillis = millis;
     }
 
     /**
      * Write an UPDATE record to disk for the specified tid and page
-     * (with provided         before and after images.)
+     * (with provided         before and after images.) The offset of the
+     * record becomes the LSN of the after image.  The record is not forced;
+     * call {@link #flushTo} with the LSN before writing the page.
      *
      * @param tid    The transaction performing the write
      * @param before The before image of the page
      * @param after  The after image of the page
+     * @return the LSN of the record
      * @see Page#getBeforeImage
      */
-    public synchronized void logWrite(TransactionId tid, Page before,
+    public synchronized long logWrite(TransactionId tid, Page before,
                                       Page after)
             throws IOException {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
         preAppend();
         /* update record conists of
 
            record type
            transaction id
-           before page data (see writePageData)
-           after page data
+           prevLSN of the transaction
+           page delta (see PageDelta)
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf, before);
-        writePageData(raf, after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-
-        Debug.log("WRITE OFFSET = " + currentOffset);
-    }
-
-    void writePageData(RandomAccessFile raf, Page p) throws IOException {
-        PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int j : pageInfo) {
-            raf.writeInt(j);
-        }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
-    }
-
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i < numIdArgs; i++) {
-                idArgs[i] = raf.readInt();
-            }
-            pid = (PageId) idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page) pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException |
-                 InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        }
-        return newPage;
-
+        PageDelta delta = PageDelta.diff(before, after, imagedPages.add(after.getId()));
+        long prevLsn = tidToLastUpdate.getOrDefault(tid.getId(), NO_LSN);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(UPDATE_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(prevLsn);
+        delta.write(out);
+        out.writeLong(NO_LSN);
+        long lsn = buffer.append(bytes.toByteArray());
+        tidToLastUpdate.put(tid.getId(), lsn);
+        dirtyPages.putIfAbsent(after.getId(), lsn);
+        tail.put(lsn, prevLsn, delta, bytes.size());
+        after.setLsn(lsn);
+
+        Debug.log("WRITE OFFSET = " + lsn);
+        return lsn;
     }
 
     /**
@@ -297,7 +390,7 @@ public class LogFile {
      *
      * @param tid The transaction that is beginning
      */
-    public synchronized void logXactionBegin(TransactionId tid)
+    public void logXactionBegin(TransactionId tid)
             throws IOException {
         Debug.log("BEGIN");
         if (tidToFirstLogRecord.get(tid.getId()) != null) {
@@ -305,154 +398,86 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        long lsn = appendRecord(BEGIN_RECORD, tid.getId());
+        tidToFirstLogRecord.put(tid.getId(), lsn);
 
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        Debug.log("BEGIN OFFSET = " + lsn);
     }
 
     /**
      * Checkpoint the log and write a checkpoint record.
+     * <p>
+     * The checkpoint is fuzzy: it does not flush the buffer pool. Pages are
+     * logged when they are written or, at a commit that is not SYNC, some
+     * time before; the records of pages that are not on disk yet are listed
+     * in the dirty page table of the checkpoint. Recovery starts at
+     * the oldest record that is still needed: the first record of an active
+     * transaction or the recLSN of a dirty page.
      */
-    public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
-
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
-            }
+    public synchronized void logCheckpoint() throws IOException {
+        preAppend();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(CHECKPOINT_RECORD);
+        out.writeLong(-1); //no tid , but leave space for convenience
+
+        //write list of outstanding transactions
+        // BEGIN 和 COMMIT 不拿锁，先拍个快照
+        Map<Long, Long> active = new HashMap<>(tidToFirstLogRecord);
+        out.writeInt(active.size());
+        for (Map.Entry<Long, Long> e : active.entrySet()) {
+            Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+            out.writeLong(e.getKey());
+            out.writeLong(e.getValue());
+        }
+        //write the dirty page table
+        out.writeInt(dirtyPages.size());
+        for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+            PageDelta.writePageId(out, e.getKey());
+            out.writeLong(e.getValue());
         }
+        out.writeLong(NO_LSN);
+        long startCpOffset = buffer.append(bytes.toByteArray());
+        flushTo(startCpOffset);
+
+        //once the CP is written, make sure the CP location in the control
+        // file is updated
+        synchronized (log) {
+            log.setCheckpoint(startCpOffset);
+        }
+        // 检查点之后第一次修改的页要重新记完整的 before image
+        imagedPages.clear();
 
         logTruncate();
     }
 
+    /**
+     * Called after a page was written to disk: its UPDATE records are no
+     * longer needed for redo.
+     */
+    public synchronized void pageWritten(PageId pid) {
+        dirtyPages.remove(pid);
+    }
+
     /**
      * Truncate any unneeded portion of the log to reduce its space
-     * consumption
+     * consumption.  Whole segments before the oldest record the last
+     * checkpoint needs are deleted or archived; LSNs do not change, so
+     * nothing is copied.
      */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+        awaitWritten();
+        synchronized (log) {
+            long cpLoc = log.getCheckpoint();
+            if (cpLoc == NO_CHECKPOINT_ID) {
+                return;
             }
-        }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                    case UPDATE_RECORD:
-                        Page before = readPageData(raf);
-                        Page after = readPageData(raf);
-
-                        writePageData(logNew, before);
-                        writePageData(logNew, after);
-                        break;
-                    case CHECKPOINT_RECORD:
-                        int numXactions = raf.readInt();
-                        logNew.writeInt(numXactions);
-                        while (numXactions-- > 0) {
-                            long xid = raf.readLong();
-                            long xoffset = raf.readLong();
-                            logNew.writeLong(xid);
-                            logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                        }
-                        break;
-                    case BEGIN_RECORD:
-                        tidToFirstLogRecord.put(record_tid, newStart);
-                        break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+            long minLogRecord = checkpointStart(cpLoc);
 
-            } catch (EOFException e) {
-                break;
-            }
+            Debug.log("TRUNCATING LOG;  WAS " + getLogSize() + " BYTES ; NEW START : " + minLogRecord);
+            log.truncate(minLogRecord);
         }
-
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
     }
 
     /**
@@ -470,38 +495,39 @@ public class LogFile {
             synchronized (this) {
                 preAppend();
                 // some code goes here
-                Long l = tidToFirstLogRecord.get(tid.getId());
-                this.raf.seek(l);
-                Set<PageId> idSet = new HashSet<>();
-                while (true) {
-                    try {
-                        int type = raf.readInt();
-                        long t = raf.readLong();
-                        switch (type) {
-                            case UPDATE_RECORD:
-                                Page before = readPageData(this.raf);
-                                Page after = readPageData(this.raf);
-                                // 确定是否是这个事务
-                                if (t == tid.getId() && idSet.add(before.getId())) {
-                                    Database.getBufferPool().discardPage(before.getId());
-                                    Database.getCatalog()
-                                            .getDatabaseFile(before.getId().getTableId())
-                                            .writePage(before);
-                                }
-                                break;
-                            case CHECKPOINT_RECORD:
-                                // 将 content 给读取，skip 到下一个 update
-                                int skipSize = raf.readInt();
-                                while (skipSize-- > 0) {
-                                    raf.readLong();
-                                    raf.readLong();
-                                }
-                                break;
+                // 沿着 prevLSN 从这个事务最后一条 UPDATE 往回走，先在 tail cache 里找
+                Map<PageId, byte[]> images = new LinkedHashMap<>();
+                Set<PageId> changed = new HashSet<>();
+                long lsn = tidToLastUpdate.getOrDefault(tid.getId(), NO_LSN);
+                while (lsn != NO_LSN) {
+                    LogTailCache.Update update = tail.get(lsn);
+                    if (update == null) {
+                        buffer.awaitWritten(lsn + 1);
+                        synchronized (log) {
+                            log.seek(lsn);
+                            log.readInt();
+                            log.readLong();
+                            long prevLsn = log.readLong();
+                            update = new LogTailCache.Update(prevLsn, PageDelta.read(log), 0);
                         }
-                        // skip offset
-                        raf.readLong();
-                    } catch (Exception e) {
-                        break;
+                    }
+                    PageId pid = update.delta.getPageId();
+                    byte[] image = images.computeIfAbsent(pid, k -> Database.getCatalog()
+                            .getDatabaseFile(k.getTableId()).readPage(k).getPageData());
+                    // 页的 LSN 比记录小，说明这次修改没写到磁盘上，不用撤销
+                    if (Page.readLsn(image) >= lsn && update.delta.undo(image)) {
+                        changed.add(pid);
+                    }
+                    lsn = update.prevLsn;
+                }
+                for (Map.Entry<PageId, byte[]> e : images.entrySet()) {
+                    PageId pid = e.getKey();
+                    Database.getBufferPool().discardPage(pid);
+                    // 磁盘上已经没有这个事务的修改，不用再写
+                    if (changed.contains(pid)) {
+                        Database.getCatalog().getDatabaseFile(pid.getTableId())
+                                .writePage(new RawPage(pid, e.getValue()));
+                        dirtyPages.remove(pid);
                     }
                 }
             }
@@ -516,7 +542,10 @@ public class LogFile {
     public synchronized void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            buffer.close();
+            synchronized (log) {
+                log.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -527,148 +556,374 @@ public class LogFile {
      * Recover the database system by ensuring that the updates of
      * committed transactions are installed and that the
      * updates of uncommitted transactions are not installed.
+     * <p>
+     * Recovery reads the log twice. The analysis pass only looks at record
+     * headers and page ids: it finds the transactions that have to be undone
+     * and the last record that touches each page. The redo pass hands the
+     * updates to {@link RecoveryPartition}s by page id, which redo them in
+     * parallel, undo aborted transactions at their ABORT record and the
+     * unfinished ones at the end, and write each page once.
      */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
-                raf.seek(0);
-                long checkPoint = raf.readLong();
-                if (checkPoint != -1) {
-                    raf.seek(checkPoint);
-
-                    int tmp = raf.readInt();
-                    assert tmp == CHECKPOINT_RECORD;
-                    raf.readLong();
-
-                    int activeNum = raf.readInt();
-                    if (activeNum > 0) {
-                        long min = Long.MAX_VALUE;
-                        while (activeNum-- > 0) {
-                            raf.readLong();
-                            min = Math.min(min, raf.readLong());
+                awaitWritten();
+                long start;
+                // analysis
+                Map<PageId, Long> lastRecord = new HashMap<>();
+                Map<Long, Set<PageId>> running = new HashMap<>();
+                Set<Long> undone = new HashSet<>();
+                long end;
+                synchronized (log) {
+                    start = recoveryStart();
+                    end = start;
+                    log.seek(start);
+                    while (true) {
+                        try {
+                            long offset = log.getFilePointer();
+                            int type = log.readInt();
+                            long tid = log.readLong();
+                            // 预分配的段里没写过的部分全是 0
+                            if (type < ABORT_RECORD || type > CHECKPOINT_RECORD) {
+                                break;
+                            }
+                            switch (type) {
+                                case COMMIT_RECORD:
+                                    running.remove(tid);
+                                    break;
+                                case ABORT_RECORD:
+                                    Set<PageId> pages = running.remove(tid);
+                                    if (pages != null) {
+                                        undone.add(tid);
+                                        for (PageId pid : pages) {
+                                            lastRecord.put(pid, offset);
+                                        }
+                                    }
+                                    break;
+                                case CHECKPOINT_RECORD:
+                                    skipCheckpoint();
+                                    break;
+                                case UPDATE_RECORD:
+                                    log.readLong();
+                                    PageId pid = PageDelta.skip(log);
+                                    lastRecord.put(pid, offset);
+                                    running.computeIfAbsent(tid, k -> new HashSet<>()).add(pid);
+                                    break;
+                            }
+                            // 每条记录以自己的起始偏移结尾，对不上就是没写完的记录
+                            if (log.readLong() != offset) {
+                                break;
+                            }
+                            end = log.getFilePointer();
+                        } catch (EOFException e) {
+                            break;
                         }
-                        raf.seek(min);
                     }
+                    // 之后的追加接在最后一条完整的记录后面
+                    log.setEnd(end);
                 }
-                Set<Long> commited = new HashSet<>();
-                Map<Long, List<Page>> beforeImages = new HashMap<>();
-                Map<Long, List<Page>> afterImages = new HashMap<>();
-                while (true) {
-                    try {
-                        int type = raf.readInt();
-                        long tid = raf.readLong();
-                        switch (type) {
-                            case COMMIT_RECORD:
-                                commited.add(tid);
-                                break;
-                            case CHECKPOINT_RECORD:
-                                int skipSize = raf.readInt();
-                                while (skipSize-- > 0) {
-                                    raf.readLong();
-                                    raf.readLong();
+                buffer.reset(end);
+                // 没有结束的事务要到最后才撤销
+                for (Map.Entry<Long, Set<PageId>> e : running.entrySet()) {
+                    undone.add(e.getKey());
+                    for (PageId pid : e.getValue()) {
+                        lastRecord.put(pid, Long.MAX_VALUE);
+                    }
+                }
+                if (lastRecord.isEmpty()) {
+                    return;
+                }
+
+                // redo and undo
+                int n = Math.min(RECOVERY_THREADS, lastRecord.size());
+                RecoveryPartition[] partitions = new RecoveryPartition[n];
+                Thread[] threads = new Thread[n];
+                for (int i = 0; i < n; i++) {
+                    partitions[i] = new RecoveryPartition(lastRecord, undone);
+                    threads[i] = new Thread(partitions[i], "recovery-" + i);
+                    threads[i].start();
+                }
+                try {
+                    synchronized (log) {
+                        log.seek(start);
+                        while (true) {
+                            try {
+                                long offset = log.getFilePointer();
+                                int type = log.readInt();
+                                long tid = log.readLong();
+                                switch (type) {
+                                    case ABORT_RECORD:
+                                        if (undone.contains(tid)) {
+                                            for (RecoveryPartition partition : partitions) {
+                                                partition.abort(tid, offset);
+                                            }
+                                        }
+                                        break;
+                                    case CHECKPOINT_RECORD:
+                                        skipCheckpoint();
+                                        break;
+                                    case UPDATE_RECORD:
+                                        log.readLong();
+                                        PageDelta delta = PageDelta.read(log);
+                                        partitions[Math.floorMod(delta.getPageId().hashCode(), n)]
+                                                .update(tid, offset, delta);
+                                        break;
                                 }
+                                log.readLong();
+                            } catch (EOFException e) {
                                 break;
-                            case UPDATE_RECORD:
-                                Page before = readPageData(this.raf);
-                                Page after = readPageData(this.raf);
-                                List<Page> undo = beforeImages.getOrDefault(tid, new ArrayList<>());
-                                List<Page> redo = afterImages.getOrDefault(tid, new ArrayList<>());
-                                undo.add(before);
-                                redo.add(after);
-                                beforeImages.put(tid, undo);
-                                afterImages.put(tid, redo);
-                                break;
+                            }
                         }
-                        raf.readLong();
-                    } catch (Exception e) {
-                        break;
                     }
+                    for (RecoveryPartition partition : partitions) {
+                        partition.end();
+                    }
+                    for (Thread thread : threads) {
+                        thread.join();
+                    }
+                } catch (InterruptedException e) {
+                    for (Thread thread : threads) {
+                        thread.interrupt();
+                    }
+                    throw new InterruptedIOException("recovery interrupted");
                 }
-                for (Map.Entry<Long, List<Page>> e : beforeImages.entrySet()) {
-                    if (!commited.contains(e.getKey())) {
-                        Page p = e.getValue().get(0);
-                        Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+                int pagesWritten = 0;
+                for (RecoveryPartition partition : partitions) {
+                    if (partition.getFailure() != null) {
+                        throw new IOException("recovery failed", partition.getFailure());
                     }
+                    pagesWritten += partition.getPagesWritten();
+                }
+                Debug.log("RECOVERY: " + lastRecord.size() + " pages in the log, " + pagesWritten + " written");
+                // 没有结束的事务已经撤销，记下 ABORT；以后再恢复时在这里撤销它们，
+                // 不会把之后提交的修改一起撤掉
+                for (long tid : running.keySet()) {
+                    appendRecord(ABORT_RECORD, tid);
                 }
-                for (Long l : commited) {
-                    List<Page> pages = afterImages.get(l);
-                    if (pages == null || pages.isEmpty()) {
-                        continue;
+                if (!running.isEmpty()) {
+                    force();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the offset recovery starts at, see {@link #checkpointStart}
+     */
+    private long recoveryStart() throws IOException {
+        long checkPoint = log.getCheckpoint();
+        if (checkPoint == NO_CHECKPOINT_ID) {
+            return log.start();
+        }
+        return checkpointStart(checkPoint);
+    }
+
+    /**
+     * @return the offset of the oldest record the checkpoint still needs: the
+     * checkpoint itself, the first record of a transaction that was active,
+     * or the recLSN of a page that was dirty at that checkpoint
+     */
+    private long checkpointStart(long checkPoint) throws IOException {
+        log.seek(checkPoint);
+        int cpType = log.readInt();
+        log.readLong();
+        if (cpType != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
+        long start = checkPoint;
+        int activeNum = log.readInt();
+        while (activeNum-- > 0) {
+            log.readLong();
+            start = Math.min(start, log.readLong());
+        }
+        int dirtyNum = log.readInt();
+        while (dirtyNum-- > 0) {
+            PageDelta.readPageId(log);
+            long recLsn = log.readLong();
+            if (recLsn != NO_LSN) {
+                start = Math.min(start, recLsn);
+            }
+        }
+        return start;
+    }
+
+    /**
+     * @return the LSN of the oldest record that is still kept
+     */
+    long getStartLsn() {
+        synchronized (log) {
+            return log.start();
+        }
+    }
+
+    /**
+     * A log record as {@link #readRecords} returns it.
+     */
+    static class Record {
+        final int type;
+        final long tid;
+        final long lsn;
+        /**
+         * the page delta of an UPDATE record, null for the other types
+         */
+        final PageDelta delta;
+        /**
+         * the LSN of the record after this one
+         */
+        final long next;
+
+        Record(int type, long tid, long lsn, PageDelta delta, long next) {
+            this.type = type;
+            this.tid = tid;
+            this.lsn = lsn;
+            this.delta = delta;
+            this.next = next;
+        }
+    }
+
+    /**
+     * Read the complete records on disk from the LSN on, for readers of the
+     * log such as {@link LogChangeReader}.  Does not decide about recovery,
+     * so another process may read the log while the database runs; as long
+     * as this LogFile did not append, it reads what is in the segment files.
+     *
+     * @param from       the LSN of the first record to read
+     * @param maxRecords the maximum number of records to read
+     * @return the records; empty if there is no complete record at from yet
+     * @throws IOException if the log before from was truncated already
+     */
+    List<Record> readRecords(long from, int maxRecords) throws IOException {
+        List<Record> records = new ArrayList<>();
+        synchronized (log) {
+            long end = buffer.getDurable();
+            if (recoveryUndecided) {
+                log.refresh();
+                end = log.length();
+            }
+            if (from < log.start()) {
+                throw new IOException("log was truncated after " + from + ", it starts at " + log.start());
+            }
+            log.seek(from);
+            while (records.size() < maxRecords && log.getFilePointer() < end) {
+                try {
+                    long offset = log.getFilePointer();
+                    int type = log.readInt();
+                    long tid = log.readLong();
+                    if (type < ABORT_RECORD || type > CHECKPOINT_RECORD) {
+                        break;
                     }
-                    for (Page p : pages) {
-                        Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+                    PageDelta delta = null;
+                    if (type == UPDATE_RECORD) {
+                        log.readLong();
+                        delta = PageDelta.read(log);
+                    } else if (type == CHECKPOINT_RECORD) {
+                        skipCheckpoint();
                     }
+                    if (log.readLong() != offset) {
+                        break;
+                    }
+                    records.add(new Record(type, tid, offset, delta, log.getFilePointer()));
+                } catch (EOFException e) {
+                    break;
                 }
             }
         }
+        return records;
+    }
+
+    private void skipCheckpoint() throws IOException {
+        int skipSize = log.readInt();
+        while (skipSize-- > 0) {
+            log.readLong();
+            log.readLong();
+        }
+        skipSize = log.readInt();
+        while (skipSize-- > 0) {
+            PageDelta.readPageId(log);
+            log.readLong();
+        }
     }
 
     /**
      * Print out a human readable represenation of the log
      */
     public void print() throws IOException {
-        long curOffset = raf.getFilePointer();
+        awaitWritten();
+        synchronized (log) {
+            printLog();
+        }
+    }
 
-        raf.seek(0);
+    private void printLog() throws IOException {
+        long curOffset = log.getFilePointer();
 
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
+        log.seek(log.start());
+
+        System.out.println("checkpoint record at offset " + log.getCheckpoint());
 
         while (true) {
             try {
-                int cpType = raf.readInt();
-                long cpTid = raf.readLong();
+                int cpType = log.readInt();
+                long cpTid = log.readLong();
+                if (cpType < ABORT_RECORD || cpType > CHECKPOINT_RECORD) {
+                    break;
+                }
 
-                System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
-                System.out.println((raf.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
+                System.out.println((log.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
+                System.out.println((log.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
 
                 switch (cpType) {
                     case BEGIN_RECORD:
                         System.out.println(" (BEGIN)");
-                        System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                        System.out.println(log.getFilePointer() + ": RECORD START OFFSET: " + log.readLong());
                         break;
                     case ABORT_RECORD:
                         System.out.println(" (ABORT)");
-                        System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                        System.out.println(log.getFilePointer() + ": RECORD START OFFSET: " + log.readLong());
                         break;
                     case COMMIT_RECORD:
                         System.out.println(" (COMMIT)");
-                        System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                        System.out.println(log.getFilePointer() + ": RECORD START OFFSET: " + log.readLong());
                         break;
 
                     case CHECKPOINT_RECORD:
                         System.out.println(" (CHECKPOINT)");
-                        int numTransactions = raf.readInt();
-                        System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
+                        int numTransactions = log.readInt();
+                        System.out.println((log.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
 
                         while (numTransactions-- > 0) {
-                            long tid = raf.readLong();
-                            long firstRecord = raf.readLong();
-                            System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-                            System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
+                            long tid = log.readLong();
+                            long firstRecord = log.readLong();
+                            System.out.println((log.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
+                            System.out.println((log.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
                         }
-                        System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                        int numDirty = log.readInt();
+                        System.out.println((log.getFilePointer() - INT_SIZE) + ": NUMBER OF DIRTY PAGES: " + numDirty);
+                        while (numDirty-- > 0) {
+                            PageId pid = PageDelta.readPageId(log);
+                            long recLsn = log.readLong();
+                            System.out.println((log.getFilePointer() - LONG_SIZE) + ": table id " + pid.getTableId()
+                                    + ", page number " + pid.getPageNumber() + ", REC LSN: " + recLsn);
+                        }
+                        System.out.println(log.getFilePointer() + ": RECORD START OFFSET: " + log.readLong());
 
                         break;
                     case UPDATE_RECORD:
                         System.out.println(" (UPDATE)");
 
-                        long start = raf.getFilePointer();
-                        Page before = readPageData(raf);
-
-                        long middle = raf.getFilePointer();
-                        Page after = readPageData(raf);
+                        System.out.println(log.getFilePointer() + ": PREV LSN: " + log.readLong());
+                        long start = log.getFilePointer();
+                        PageDelta delta = PageDelta.read(log);
 
-                        System.out.println(start + ": before image table id " + before.getId().getTableId());
-                        System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                        System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
+                        System.out.println(start + ": table id " + delta.getPageId().getTableId()
+                                + ", page number " + delta.getPageId().getPageNumber());
+                        System.out.println((start + INT_SIZE) + " TO " + log.getFilePointer() + ": "
+                                + (delta.hasFullImage() ? "full before image, " : "") + delta.getNumRanges()
+                                + " ranges, " + delta.getChangedBytes() + " bytes changed");
 
-                        System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                        System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                        System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
-
-                        System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                        System.out.println(log.getFilePointer() + ": RECORD START OFFSET: " + log.readLong());
 
                         break;
                 }
@@ -680,11 +935,41 @@ public class LogFile {
         }
 
         // Return the file pointer to its original position
-        raf.seek(curOffset);
+        log.seek(curOffset);
     }
 
-    public synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /**
+     * Wait until everything appended so far is on disk.
+     */
+    public void force() throws IOException {
+        buffer.flush(buffer.getTail());
+    }
+
+    /**
+     * Make sure the log is on disk up to and including the record with the
+     * given LSN.  The flusher forces the log only if that is not the case
+     * yet, and once for everybody who waits at the same time.
+     *
+     * @param lsn the LSN of the page about to be written, or of a COMMIT record
+     */
+    public void flushTo(long lsn) throws IOException {
+        buffer.flush(lsn + 1);
+    }
+
+    /**
+     * @return the LSN up to which the log is on disk: the records before it
+     * are durable
+     */
+    public long getDurable() {
+        return buffer.getDurable();
+    }
+
+    /**
+     * @param lsn the LSN of a record
+     * @return a future that completes once the record is on disk
+     */
+    public CompletableFuture<Void> durableFuture(long lsn) {
+        return buffer.durableFuture(lsn + 1);
     }
 
 }
@@ -0,0 +1,73 @@
+package simpledb.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The most recent UPDATE records of the log, kept in memory so that rolling
+ * back a transaction that only wrote recently does not read the log file.
+ * The oldest records are dropped once their total size exceeds the
+ * capacity.
+ * <p>
+ * Not thread safe, {@link LogFile} only uses it while holding its monitor.
+ */
+class LogTailCache {
+
+    static final long DEFAULT_CAPACITY = 1 << 20;
+
+    /**
+     * An UPDATE record: the delta and the LSN of the previous UPDATE record
+     * of the same transaction.
+     */
+    static class Update {
+        final long prevLsn;
+        final PageDelta delta;
+        final int size;
+
+        Update(long prevLsn, PageDelta delta, int size) {
+            this.prevLsn = prevLsn;
+            this.delta = delta;
+            this.size = size;
+        }
+    }
+
+    private final long capacity;
+    private final LinkedHashMap<Long, Update> updates = new LinkedHashMap<>();
+    private long size = 0;
+
+    LogTailCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param size size of the record in the log
+     */
+    void put(long lsn, long prevLsn, PageDelta delta, int size) {
+        if (size > capacity) {
+            return;
+        }
+        updates.put(lsn, new Update(prevLsn, delta, size));
+        this.size += size;
+        Iterator<Map.Entry<Long, Update>> it = updates.entrySet().iterator();
+        while (this.size > capacity) {
+            this.size -= it.next().getValue().size;
+            it.remove();
+        }
+    }
+
+    /**
+     * @return the record, or null if it is not cached
+     */
+    Update get(long lsn) {
+        return updates.get(lsn);
+    }
+
+    /**
+     * Forget all records, e.g. because their LSNs changed.
+     */
+    void clear() {
+        updates.clear();
+        size = 0;
+    }
+}
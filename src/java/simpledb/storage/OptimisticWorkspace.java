@@ -0,0 +1,23 @@
+package simpledb.storage;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Private state of an optimistic transaction, see
+ * {@link BufferPool#beginOptimistic}: the commit number of every page it read
+ * and its private copies of the pages it may write. Only used by the thread
+ * running the transaction.
+ */
+class OptimisticWorkspace {
+
+    /**
+     * page -> number of the last commit that wrote the page when it was read
+     */
+    final Map<PageId, Long> reads = new HashMap<>();
+
+    /**
+     * page -> private copy handed out for writing
+     */
+    final Map<PageId, Page> writes = new HashMap<>();
+}
@@ -2,6 +2,8 @@ package simpledb.storage;
 
 import simpledb.transaction.TransactionId;
 
+import java.nio.ByteBuffer;
+
 /**
  * Page is the interface used to represent pages that are resident in the
  * BufferPool.  Typically, DbFiles will read and write pages from disk.
@@ -59,4 +61,40 @@ public interface Page {
      * copy current content to the before image.
      */
     void setBeforeImage();
+
+    /**
+     * Number of bytes at the start of the data of every page that hold the
+     * page's LSN.
+     */
+    int LSN_SIZE = 8;
+
+    /**
+     * Return the log sequence number of the last UPDATE record written for
+     * this page, or 0 if the page was never logged.  The page must not be
+     * written to disk before the log is forced up to this LSN.
+     * <p>
+     * The LSN is stored in the first {@link #LSN_SIZE} bytes of the page
+     * data, so a page read from disk tells which log records it already
+     * reflects: recovery does not redo a record whose LSN is not after it.
+     *
+     * @see LogFile#flushTo
+     * @see RecoveryPartition
+     */
+    long getLsn();
+
+    void setLsn(long lsn);
+
+    /**
+     * @return the LSN stored in the data of a page
+     */
+    static long readLsn(byte[] data) {
+        return ByteBuffer.wrap(data, 0, LSN_SIZE).getLong();
+    }
+
+    /**
+     * Store the LSN in the data of a page.
+     */
+    static void writeLsn(byte[] data, long lsn) {
+        ByteBuffer.wrap(data, 0, LSN_SIZE).putLong(lsn);
+    }
 }
@@ -0,0 +1,243 @@
+package simpledb.storage;
+
+import simpledb.index.BTreePageId;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Payload of an UPDATE log record: the byte ranges of a page that changed,
+ * with their old and their new content.
+ * <p>
+ * A range is applied by overwriting it, so redoing and undoing a delta does
+ * not depend on the rest of the page. The LSN at the start of the page is
+ * not part of any range. The first update of a page after a
+ * checkpoint also carries the full before image, which recovery uses as the
+ * starting point for the page instead of what is on disk.
+ * <p>
+ * Format: page id kind (byte), the ints of {@link PageId#serialize}, a flag
+ * for the full image (byte), the full image (int length, bytes) if present,
+ * the number of ranges (int) and per range its offset and length (ints),
+ * followed by the old and the new bytes.
+ */
+class PageDelta {
+
+    static final byte HEAP_PAGE_ID = 0;
+    static final byte BTREE_PAGE_ID = 1;
+
+    /**
+     * changed ranges closer to each other than this are logged as one
+     */
+    private static final int MERGE_GAP = 8;
+
+    private final PageId pid;
+    private final byte[] fullBefore;
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(PageId pid, byte[] fullBefore, int[] offsets, byte[][] before, byte[][] after) {
+        this.pid = pid;
+        this.fullBefore = fullBefore;
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * @param full true to keep the full before image as well
+     */
+    static PageDelta diff(Page beforePage, Page afterPage, boolean full) {
+        byte[] b = beforePage.getPageData();
+        byte[] a = afterPage.getPageData();
+        List<int[]> ranges = new ArrayList<>();
+        // LSN 不算修改，重做时另外写上记录的 LSN
+        int i = Page.LSN_SIZE;
+        while (i < a.length) {
+            if (a[i] == b[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            // 往后找，间隔不超过 MERGE_GAP 的修改合并成一段
+            for (int j = end; j < a.length && j < end + MERGE_GAP; j++) {
+                if (a[j] != b[j]) {
+                    end = j + 1;
+                }
+            }
+            ranges.add(new int[]{start, end});
+            i = end;
+        }
+        int[] offsets = new int[ranges.size()];
+        byte[][] before = new byte[ranges.size()][];
+        byte[][] after = new byte[ranges.size()][];
+        for (int r = 0; r < ranges.size(); r++) {
+            int start = ranges.get(r)[0];
+            int end = ranges.get(r)[1];
+            offsets[r] = start;
+            before[r] = Arrays.copyOfRange(b, start, end);
+            after[r] = Arrays.copyOfRange(a, start, end);
+        }
+        return new PageDelta(afterPage.getId(), full ? b.clone() : null, offsets, before, after);
+    }
+
+    PageId getPageId() {
+        return pid;
+    }
+
+    boolean hasFullImage() {
+        return fullBefore != null;
+    }
+
+    /**
+     * @return the size of the full before image
+     */
+    int getImageSize() {
+        return fullBefore.length;
+    }
+
+    int getNumRanges() {
+        return offsets.length;
+    }
+
+    int getRangeOffset(int r) {
+        return offsets[r];
+    }
+
+    int getRangeLength(int r) {
+        return after[r].length;
+    }
+
+    /**
+     * @return number of changed bytes
+     */
+    int getChangedBytes() {
+        int n = 0;
+        for (byte[] range : after) {
+            n += range.length;
+        }
+        return n;
+    }
+
+    /**
+     * Bring the image to the state after the update.
+     *
+     * @return false if the image already was in that state
+     */
+    boolean redo(byte[] image) {
+        boolean changed = false;
+        if (fullBefore != null && !Arrays.equals(fullBefore, image)) {
+            System.arraycopy(fullBefore, 0, image, 0, fullBefore.length);
+            changed = true;
+        }
+        return apply(image, after) | changed;
+    }
+
+    /**
+     * Bring the image back to the state before the update.
+     *
+     * @return false if the image already was in that state
+     */
+    boolean undo(byte[] image) {
+        return apply(image, before);
+    }
+
+    private boolean apply(byte[] image, byte[][] ranges) {
+        boolean changed = false;
+        for (int r = 0; r < offsets.length; r++) {
+            int start = offsets[r];
+            int end = start + ranges[r].length;
+            if (!Arrays.equals(ranges[r], 0, ranges[r].length, image, start, end)) {
+                System.arraycopy(ranges[r], 0, image, start, ranges[r].length);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    void write(DataOutput out) throws IOException {
+        writePageId(out, pid);
+        out.writeByte(fullBefore != null ? 1 : 0);
+        if (fullBefore != null) {
+            out.writeInt(fullBefore.length);
+            out.write(fullBefore);
+        }
+        out.writeInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            out.writeInt(offsets[r]);
+            out.writeInt(after[r].length);
+            out.write(before[r]);
+            out.write(after[r]);
+        }
+    }
+
+    static PageDelta read(DataInput in) throws IOException {
+        PageId pid = readPageId(in);
+        byte[] fullBefore = null;
+        if (in.readByte() != 0) {
+            fullBefore = new byte[in.readInt()];
+            in.readFully(fullBefore);
+        }
+        int numRanges = in.readInt();
+        int[] offsets = new int[numRanges];
+        byte[][] before = new byte[numRanges][];
+        byte[][] after = new byte[numRanges][];
+        for (int r = 0; r < numRanges; r++) {
+            offsets[r] = in.readInt();
+            int length = in.readInt();
+            before[r] = new byte[length];
+            after[r] = new byte[length];
+            in.readFully(before[r]);
+            in.readFully(after[r]);
+        }
+        return new PageDelta(pid, fullBefore, offsets, before, after);
+    }
+
+    /**
+     * Skip a delta without keeping its bytes.
+     *
+     * @return the id of the page the delta is about
+     */
+    static PageId skip(DataInput in) throws IOException {
+        PageId pid = readPageId(in);
+        if (in.readByte() != 0) {
+            in.skipBytes(in.readInt());
+        }
+        int numRanges = in.readInt();
+        for (int r = 0; r < numRanges; r++) {
+            in.readInt();
+            in.skipBytes(2 * in.readInt());
+        }
+        return pid;
+    }
+
+    static void writePageId(DataOutput out, PageId pid) throws IOException {
+        if (pid instanceof HeapPageId) {
+            out.writeByte(HEAP_PAGE_ID);
+        } else if (pid instanceof BTreePageId) {
+            out.writeByte(BTREE_PAGE_ID);
+        } else {
+            throw new IllegalArgumentException("cannot log pages with id " + pid.getClass().getName());
+        }
+        for (int i : pid.serialize()) {
+            out.writeInt(i);
+        }
+    }
+
+    static PageId readPageId(DataInput in) throws IOException {
+        byte kind = in.readByte();
+        switch (kind) {
+            case HEAP_PAGE_ID:
+                return new HeapPageId(in.readInt(), in.readInt());
+            case BTREE_PAGE_ID:
+                return new BTreePageId(in.readInt(), in.readInt(), in.readInt());
+            default:
+                throw new IOException("unknown page id kind " + kind);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * Keeps old committed versions of pages for snapshot readers, see
+ * {@link BufferPool#beginSnapshot}.
+ * <p>
+ * Every commit gets a number from a logical clock, and a snapshot reader sees
+ * the database as of the last commit before it began. When a commit
+ * overwrites a page, the committed image it replaces is kept here, tagged with
+ * the number of that commit, as long as some snapshot older than the commit
+ * is still running. Nothing is kept while no snapshot readers run.
+ * <p>
+ * Pages written by {@link BufferPool#flushAllPages} before their transaction
+ * committed lose their committed before image; it is kept here as well until
+ * the transaction completes.
+ *
+ * @Threadsafe
+ */
+class PageVersions {
+
+    private static class Version {
+        /**
+         * the commit that replaced this image; snapshots older than it see it
+         */
+        final long replacedBy;
+        final Page page;
+
+        Version(long replacedBy, Page page) {
+            this.replacedBy = replacedBy;
+            this.page = page;
+        }
+    }
+
+    /**
+     * number of the last commit
+     */
+    private long clock;
+
+    private final Map<TransactionId, Long> snapshots = new HashMap<>();
+
+    /**
+     * newest version first
+     */
+    private final Map<PageId, Deque<Version>> versions = new HashMap<>();
+
+    /**
+     * page -> number of the last commit that wrote it, only kept while
+     * optimistic transactions need it
+     */
+    private final Map<PageId, Long> lastCommits = new HashMap<>();
+
+    private final Map<PageId, Page> stolen = new HashMap<>();
+    private final Map<TransactionId, Set<PageId>> stolenByTid = new HashMap<>();
+
+    synchronized void begin(TransactionId tid) {
+        snapshots.put(tid, clock);
+    }
+
+    synchronized boolean isSnapshot(TransactionId tid) {
+        return snapshots.containsKey(tid);
+    }
+
+    synchronized void end(TransactionId tid) {
+        if (snapshots.remove(tid) != null) {
+            prune();
+        }
+    }
+
+    /**
+     * @return the number of the commit that starts now
+     */
+    synchronized long nextCommit() {
+        return ++clock;
+    }
+
+    /**
+     * Keep the committed image a commit is about to replace.
+     *
+     * @param committed the image the page had before commit number commit
+     */
+    synchronized void retire(PageId pid, Page committed, long commit) {
+        if (snapshots.isEmpty()) {
+            return;
+        }
+        versions.computeIfAbsent(pid, k -> new ArrayDeque<>()).addFirst(new Version(commit, committed));
+    }
+
+    /**
+     * @return the version of the page the snapshot of tid sees, or null if it
+     * sees the current committed image
+     */
+    synchronized Page lookup(TransactionId tid, PageId pid) {
+        long snapshot = snapshots.get(tid);
+        Deque<Version> chain = versions.get(pid);
+        if (chain == null) {
+            return null;
+        }
+        Page page = null;
+        for (Version version : chain) {
+            if (version.replacedBy <= snapshot) {
+                break;
+            }
+            page = version.page;
+        }
+        return page;
+    }
+
+    /**
+     * @return the number of the last recorded commit that wrote the page, 0 if
+     * none was recorded
+     */
+    synchronized long getLastCommit(PageId pid) {
+        return lastCommits.getOrDefault(pid, 0L);
+    }
+
+    synchronized void setLastCommit(PageId pid, long commit) {
+        lastCommits.put(pid, commit);
+    }
+
+    synchronized void clearLastCommits() {
+        lastCommits.clear();
+    }
+
+    /**
+     * Remember the committed image of a page whose uncommitted content of tid
+     * is written to disk. Only the first image counts.
+     */
+    synchronized void steal(TransactionId tid, Page committed) {
+        if (stolen.putIfAbsent(committed.getId(), committed) == null) {
+            stolenByTid.computeIfAbsent(tid, k -> new HashSet<>()).add(committed.getId());
+        }
+    }
+
+    /**
+     * @return the committed image of a page with stolen uncommitted content,
+     * or null
+     */
+    synchronized Page getStolen(PageId pid) {
+        return stolen.get(pid);
+    }
+
+    /**
+     * Forget the stolen images of tid once it completed.
+     *
+     * @return the forgotten images
+     */
+    synchronized List<Page> releaseStolen(TransactionId tid) {
+        List<Page> pages = new ArrayList<>();
+        Set<PageId> pids = stolenByTid.remove(tid);
+        if (pids != null) {
+            for (PageId pid : pids) {
+                pages.add(stolen.remove(pid));
+            }
+        }
+        return pages;
+    }
+
+    /**
+     * 去掉所有还在运行的快照都用不到的版本
+     */
+    private void prune() {
+        if (snapshots.isEmpty()) {
+            versions.clear();
+            return;
+        }
+        long oldest = Collections.min(snapshots.values());
+        Iterator<Deque<Version>> iterator = versions.values().iterator();
+        while (iterator.hasNext()) {
+            Deque<Version> chain = iterator.next();
+            while (!chain.isEmpty() && chain.peekLast().replacedBy <= oldest) {
+                chain.removeLast();
+            }
+            if (chain.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionId;
+
+/**
+ * Page content without interpretation, used by the recovery code to write
+ * page images rebuilt from the log. Never enters the buffer pool.
+ */
+class RawPage implements Page {
+    private final PageId pid;
+    private final byte[] data;
+
+    RawPage(PageId pid, byte[] data) {
+        this.pid = pid;
+        this.data = data;
+    }
+
+    public PageId getId() {
+        return pid;
+    }
+
+    public TransactionId isDirty() {
+        return null;
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+    }
+
+    public byte[] getPageData() {
+        return data;
+    }
+
+    public Page getBeforeImage() {
+        return this;
+    }
+
+    public void setBeforeImage() {
+    }
+
+    public long getLsn() {
+        return Page.readLsn(data);
+    }
+
+    public void setLsn(long lsn) {
+        Page.writeLsn(data, lsn);
+    }
+}
@@ -0,0 +1,139 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * Keeps the slot changes running transactions made to pages of tables with
+ * record-level locking.
+ * <p>
+ * Several transactions can have uncommitted changes on one such page, so
+ * neither discarding the page on abort nor writing it out as it is on commit
+ * is right any more. Aborts undo the transaction's own slot changes in place,
+ * and commits write the page with the changes of all other running
+ * transactions taken out. Changes have to be registered while the page latch
+ * is still held, so that a committer never sees a change that is not in the
+ * log yet.
+ *
+ * @Threadsafe
+ */
+class RecordUndoLog {
+
+    /**
+     * One insert into or delete from a slot.
+     */
+    static class Change {
+        final TransactionId tid;
+        final RecordId rid;
+        /**
+         * the deleted tuple, or null for an insert
+         */
+        final Tuple before;
+
+        Change(TransactionId tid, RecordId rid, Tuple before) {
+            this.tid = tid;
+            this.rid = rid;
+            this.before = before;
+        }
+
+        /**
+         * Revert this change on the given copy of the page.
+         */
+        void undo(HeapPage page) throws DbException {
+            int slot = rid.getTupleNumber();
+            if (before == null) {
+                page.deleteTuple(page.getTuple(slot));
+            } else {
+                page.insertTuple(before, slot);
+            }
+        }
+    }
+
+    private final Map<PageId, List<Change>> changesByPage = new HashMap<>();
+    private final Map<TransactionId, Set<PageId>> pagesByTid = new HashMap<>();
+
+    /**
+     * @param before the deleted tuple, or null if the slot was filled
+     */
+    synchronized void add(TransactionId tid, RecordId rid, Tuple before) {
+        PageId pid = rid.getPageId();
+        changesByPage.computeIfAbsent(pid, k -> new ArrayList<>()).add(new Change(tid, rid, before));
+        pagesByTid.computeIfAbsent(tid, k -> new HashSet<>()).add(pid);
+    }
+
+    /**
+     * @return true if any running transaction changed the page
+     */
+    synchronized boolean hasChanges(PageId pid) {
+        return changesByPage.containsKey(pid);
+    }
+
+    /**
+     * @return the pages the transaction changed
+     */
+    synchronized Set<PageId> getPages(TransactionId tid) {
+        Set<PageId> pids = pagesByTid.get(tid);
+        return pids == null ? Collections.emptySet() : new HashSet<>(pids);
+    }
+
+    /**
+     * @return the changes other transactions than tid made to the page, most
+     * recent first
+     */
+    synchronized List<Change> getOtherChanges(PageId pid, TransactionId tid) {
+        List<Change> others = new ArrayList<>();
+        List<Change> changes = changesByPage.get(pid);
+        if (changes != null) {
+            for (int i = changes.size() - 1; i >= 0; i--) {
+                if (!changes.get(i).tid.equals(tid)) {
+                    others.add(changes.get(i));
+                }
+            }
+        }
+        return others;
+    }
+
+    /**
+     * @return a transaction that still has changes on the page, or null
+     */
+    synchronized TransactionId getWriter(PageId pid) {
+        List<Change> changes = changesByPage.get(pid);
+        return changes == null ? null : changes.get(changes.size() - 1).tid;
+    }
+
+    /**
+     * @return the changes the transaction made, most recent first
+     */
+    synchronized List<Change> getOwnChanges(TransactionId tid) {
+        List<Change> own = new ArrayList<>();
+        for (PageId pid : pagesByTid.getOrDefault(tid, Collections.emptySet())) {
+            for (Change change : changesByPage.get(pid)) {
+                if (change.tid.equals(tid)) {
+                    own.add(change);
+                }
+            }
+        }
+        // 同一页内按顺序，不同页之间互不影响
+        Collections.reverse(own);
+        return own;
+    }
+
+    /**
+     * Forget all changes of the transaction.
+     */
+    synchronized void remove(TransactionId tid) {
+        Set<PageId> pids = pagesByTid.remove(tid);
+        if (pids == null) {
+            return;
+        }
+        for (PageId pid : pids) {
+            List<Change> changes = changesByPage.get(pid);
+            changes.removeIf(change -> change.tid.equals(tid));
+            if (changes.isEmpty()) {
+                changesByPage.remove(pid);
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * The redo and undo work of {@link LogFile#recover} for the pages whose ids
+ * hash to one partition. The log reader hands every update and abort to the
+ * partitions in log order; each partition runs on its own thread and only
+ * keeps the images of its pages that still have log records ahead, plus the
+ * deltas of the transactions that have to be undone.
+ * <p>
+ * A record is only redone if it is after the LSN of the page (see
+ * {@link Page#getLsn}); the page already reflects the records up to its LSN,
+ * e.g. because it was forced at commit. A page is written once, after the
+ * last log record that touches it, and only if the log changed it.
+ */
+class RecoveryPartition implements Runnable {
+
+    private static final int QUEUE_SIZE = 1024;
+
+    /**
+     * An update, or the abort of a transaction if delta is null.
+     */
+    private static class Event {
+        final long tid;
+        final long offset;
+        final PageDelta delta;
+
+        Event(long tid, long offset, PageDelta delta) {
+            this.tid = tid;
+            this.offset = offset;
+            this.delta = delta;
+        }
+    }
+
+    private static final Event END = new Event(-1, -1, null);
+
+    private final BlockingQueue<Event> events = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Map<PageId, Long> lastRecord;
+    private final Set<Long> undone;
+
+    private final Map<PageId, byte[]> images = new HashMap<>();
+    private final Set<PageId> changed = new HashSet<>();
+    private final Map<Long, List<Event>> pending = new HashMap<>();
+    private int pagesWritten = 0;
+    private volatile Exception failure;
+
+    /**
+     * @param lastRecord offset of the last log record that touches a page,
+     *                   Long.MAX_VALUE if it is only done at the end
+     * @param undone     transactions that aborted or never finished
+     */
+    RecoveryPartition(Map<PageId, Long> lastRecord, Set<Long> undone) {
+        this.lastRecord = lastRecord;
+        this.undone = undone;
+    }
+
+    void update(long tid, long offset, PageDelta delta) throws InterruptedException {
+        events.put(new Event(tid, offset, delta));
+    }
+
+    void abort(long tid, long offset) throws InterruptedException {
+        events.put(new Event(tid, offset, null));
+    }
+
+    void end() throws InterruptedException {
+        events.put(END);
+    }
+
+    /**
+     * @return the exception that stopped the partition, or null
+     */
+    Exception getFailure() {
+        return failure;
+    }
+
+    int getPagesWritten() {
+        return pagesWritten;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Event e;
+            try {
+                e = events.take();
+            } catch (InterruptedException ex) {
+                failure = ex;
+                return;
+            }
+            if (e == END) {
+                break;
+            }
+            // 出错后继续取走事件，避免读日志的线程卡在满的队列上
+            if (failure != null) {
+                continue;
+            }
+            try {
+                if (e.delta != null) {
+                    redo(e);
+                } else {
+                    undo(pending.remove(e.tid), e.offset);
+                }
+            } catch (Exception ex) {
+                failure = ex;
+            }
+        }
+        if (failure != null) {
+            return;
+        }
+        try {
+            // 没有结束的事务，按日志倒序撤销
+            List<Event> losers = new ArrayList<>();
+            for (List<Event> updates : pending.values()) {
+                losers.addAll(updates);
+            }
+            losers.sort(Comparator.comparingLong(u -> u.offset));
+            undo(losers, Long.MAX_VALUE);
+            for (PageId pid : new ArrayList<>(images.keySet())) {
+                write(pid);
+            }
+        } catch (Exception ex) {
+            failure = ex;
+        }
+    }
+
+    private void redo(Event e) throws IOException {
+        PageId pid = e.delta.getPageId();
+        byte[] image = images.get(pid);
+        if (image == null) {
+            image = diskImage(e.delta);
+            images.put(pid, image);
+        }
+        if (!isCurrent(image, e.offset)) {
+            if (e.delta.redo(image)) {
+                changed.add(pid);
+            }
+            Page.writeLsn(image, e.offset);
+        }
+        if (undone.contains(e.tid)) {
+            pending.computeIfAbsent(e.tid, k -> new ArrayList<>()).add(e);
+        }
+        writeIfDone(pid, e.offset);
+    }
+
+    /**
+     * Undo the updates in reverse order. A page whose LSN is past the ABORT
+     * record was written after the rollback and already is undone.
+     *
+     * @param offset offset of the log record that caused the undo
+     */
+    private void undo(List<Event> updates, long offset) throws IOException {
+        if (updates == null) {
+            return;
+        }
+        for (int i = updates.size() - 1; i >= 0; i--) {
+            PageDelta delta = updates.get(i).delta;
+            byte[] image = images.get(delta.getPageId());
+            if (Page.readLsn(image) < offset && delta.undo(image)) {
+                changed.add(delta.getPageId());
+            }
+        }
+        for (Event u : updates) {
+            writeIfDone(u.delta.getPageId(), offset);
+        }
+    }
+
+    /**
+     * @return true if the page already reflects the log record, LSN 0 is a
+     * page that was never logged
+     */
+    private static boolean isCurrent(byte[] image, long offset) {
+        long lsn = Page.readLsn(image);
+        return lsn != 0 && lsn >= offset;
+    }
+
+    private void writeIfDone(PageId pid, long offset) throws IOException {
+        if (images.containsKey(pid) && lastRecord.get(pid) == offset) {
+            write(pid);
+        }
+    }
+
+    private void write(PageId pid) throws IOException {
+        byte[] image = images.remove(pid);
+        if (changed.remove(pid)) {
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(new RawPage(pid, image));
+            pagesWritten++;
+        }
+    }
+
+    /**
+     * @return the page as it is on disk; a page that was logged with its full
+     * image may not have been written at all
+     */
+    private static byte[] diskImage(PageDelta delta) {
+        PageId pid = delta.getPageId();
+        try {
+            return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid).getPageData();
+        } catch (IllegalArgumentException e) {
+            if (!delta.hasFullImage()) {
+                throw e;
+            }
+            return new byte[delta.getImageSize()];
+        }
+    }
+}
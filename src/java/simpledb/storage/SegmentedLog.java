@@ -0,0 +1,384 @@
+package simpledb.storage;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The bytes of the log, stored in fixed-size segment files next to a small
+ * control file.
+ * <p>
+ * Log offsets (LSNs) are positions in one logical byte stream that only
+ * grows: segment i holds the bytes [i * segmentSize, (i + 1) * segmentSize).
+ * Segments are preallocated when the log reaches them, so appends do not
+ * grow files. Once no log record of a segment is needed any more, the whole
+ * file is deleted or moved to the archive directory; nothing is copied and
+ * no offset changes.
+ * <p>
+ * The control file holds the LSN of the last checkpoint and the number of
+ * the oldest live segment. Segment files are named after the control file
+ * with the segment number appended, e.g. log.000003.
+ * <p>
+ * Reads go through a buffer and may cross segment boundaries; they stop at
+ * the end of the log with an EOFException. Writes only append. Not thread
+ * safe: the flusher of the {@link LogBuffer} and the readers in
+ * {@link LogFile} use it while holding its monitor.
+ */
+class SegmentedLog implements DataInput {
+
+    static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final File controlFile;
+    private final int segmentSize;
+    private final RandomAccessFile control;
+    private final Map<Long, RandomAccessFile> segments = new HashMap<>();
+    private final Set<Long> unforced = new HashSet<>();
+    private File archiveDir = null;
+
+    private long checkpoint;
+    private long firstSegment;
+    private long end;
+    private long pos = 0;
+
+    private final byte[] buffer = new byte[READ_BUFFER_SIZE];
+    private long bufferStart = 0;
+    private int bufferLength = 0;
+
+    /**
+     * Open the log. Until the caller knows where the last complete record
+     * ends, see {@link #setEnd}, the end of the log is the end of the last
+     * segment file.
+     */
+    SegmentedLog(File controlFile, int segmentSize) throws IOException {
+        this.controlFile = controlFile;
+        this.segmentSize = segmentSize;
+        this.control = new RandomAccessFile(controlFile, "rw");
+        if (control.length() < 2 * LogFile.LONG_SIZE) {
+            checkpoint = LogFile.NO_CHECKPOINT_ID;
+            firstSegment = 0;
+            writeControl();
+        } else {
+            checkpoint = control.readLong();
+            firstSegment = control.readLong();
+        }
+        long lastSegment = firstSegment - 1;
+        while (segmentFile(lastSegment + 1).exists()) {
+            lastSegment++;
+        }
+        end = (lastSegment + 1) * segmentSize;
+    }
+
+    /**
+     * Move segments that are no longer needed to the directory instead of
+     * deleting them, or delete them again if dir is null.
+     */
+    void setArchiveDirectory(File dir) {
+        this.archiveDir = dir;
+    }
+
+    long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Record the LSN of the last checkpoint in the control file.
+     */
+    void setCheckpoint(long lsn) throws IOException {
+        checkpoint = lsn;
+        writeControl();
+    }
+
+    /**
+     * @return the LSN of the oldest byte still in the log
+     */
+    long start() {
+        return firstSegment * segmentSize;
+    }
+
+    /**
+     * @return the LSN the next append goes to
+     */
+    long length() {
+        return end;
+    }
+
+    /**
+     * Cut the log after the last complete record, e.g. after recovery found
+     * a torn record or the zeros of a preallocated segment.
+     */
+    void setEnd(long lsn) {
+        end = lsn;
+        bufferLength = 0;
+    }
+
+    /**
+     * Pick up the segments that another process added or dropped since the
+     * log was opened, for readers that do not write the log themselves.
+     */
+    void refresh() throws IOException {
+        control.seek(0);
+        checkpoint = control.readLong();
+        firstSegment = control.readLong();
+        for (Long segment : new ArrayList<>(segments.keySet())) {
+            if (segment < firstSegment) {
+                close(segment);
+            }
+        }
+        long lastSegment = firstSegment - 1;
+        while (segmentFile(lastSegment + 1).exists()) {
+            lastSegment++;
+        }
+        end = (lastSegment + 1) * segmentSize;
+        bufferLength = 0;
+    }
+
+    int getNumSegments() {
+        return (int) ((end + segmentSize - 1) / segmentSize - firstSegment);
+    }
+
+    /**
+     * Throw away the whole log. The new log starts with the segment after
+     * the old one, so LSNs keep growing: pages on disk still carry the LSNs
+     * of the old log, and a smaller LSN would look like it is reflected in
+     * them already.
+     */
+    void clear() throws IOException {
+        long next = firstSegment;
+        for (long i = firstSegment; segmentFile(i).exists(); i++) {
+            close(i);
+            segmentFile(i).delete();
+            next = i + 1;
+        }
+        firstSegment = Math.max(next, (end + segmentSize - 1) / segmentSize);
+        checkpoint = LogFile.NO_CHECKPOINT_ID;
+        end = firstSegment * segmentSize;
+        pos = 0;
+        bufferLength = 0;
+        writeControl();
+    }
+
+    /**
+     * Delete or archive the segments that only hold bytes before the LSN.
+     * Appends are not affected, the segments in use stay where they are.
+     */
+    void truncate(long lsn) throws IOException {
+        long keep = Math.min(lsn, end) / segmentSize;
+        if (keep <= firstSegment) {
+            return;
+        }
+        long oldFirst = firstSegment;
+        // 先改控制文件，这样中途崩溃也不会用到被删掉的段
+        firstSegment = keep;
+        writeControl();
+        control.getChannel().force(true);
+        for (long i = oldFirst; i < keep; i++) {
+            close(i);
+            File file = segmentFile(i);
+            if (archiveDir == null || !file.renameTo(new File(archiveDir, file.getName()))) {
+                file.delete();
+            }
+        }
+        if (pos < start()) {
+            pos = start();
+        }
+    }
+
+    void seek(long lsn) {
+        pos = lsn;
+    }
+
+    long getFilePointer() {
+        return pos;
+    }
+
+    /**
+     * Append bytes at the end of the log.
+     */
+    void append(byte[] b) throws IOException {
+        append(b, 0, b.length);
+    }
+
+    void append(byte[] b, int off, int len) throws IOException {
+        int stop = off + len;
+        while (off < stop) {
+            long segment = end / segmentSize;
+            int within = (int) (end % segmentSize);
+            int n = Math.min(stop - off, segmentSize - within);
+            RandomAccessFile file = segment(segment);
+            file.seek(within);
+            file.write(b, off, n);
+            unforced.add(segment);
+            off += n;
+            end += n;
+        }
+    }
+
+    /**
+     * Force the appended bytes to disk.
+     */
+    void force() throws IOException {
+        for (long segment : unforced) {
+            RandomAccessFile file = segments.get(segment);
+            if (file != null) {
+                file.getChannel().force(true);
+            }
+        }
+        unforced.clear();
+    }
+
+    void close() throws IOException {
+        force();
+        for (RandomAccessFile file : segments.values()) {
+            file.close();
+        }
+        segments.clear();
+        control.close();
+    }
+
+    private File segmentFile(long segment) {
+        return new File(controlFile.getPath() + String.format(".%06d", segment));
+    }
+
+    private RandomAccessFile segment(long segment) throws IOException {
+        RandomAccessFile file = segments.get(segment);
+        if (file == null) {
+            File f = segmentFile(segment);
+            boolean created = !f.exists();
+            file = new RandomAccessFile(f, "rw");
+            if (created) {
+                file.setLength(segmentSize);
+            }
+            segments.put(segment, file);
+        }
+        return file;
+    }
+
+    private void close(long segment) throws IOException {
+        RandomAccessFile file = segments.remove(segment);
+        unforced.remove(segment);
+        if (file != null) {
+            file.close();
+        }
+    }
+
+    private void writeControl() throws IOException {
+        control.seek(0);
+        control.writeLong(checkpoint);
+        control.writeLong(firstSegment);
+    }
+
+    private void fill() throws IOException {
+        if (pos >= end || pos < start()) {
+            throw new EOFException();
+        }
+        long segment = pos / segmentSize;
+        int within = (int) (pos % segmentSize);
+        int n = (int) Math.min(Math.min(buffer.length, segmentSize - within), end - pos);
+        RandomAccessFile file = segment(segment);
+        file.seek(within);
+        file.readFully(buffer, 0, n);
+        bufferStart = pos;
+        bufferLength = n;
+    }
+
+    // DataInput
+
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (pos < bufferStart || pos >= bufferStart + bufferLength) {
+                fill();
+            }
+            int within = (int) (pos - bufferStart);
+            int n = Math.min(len, bufferLength - within);
+            System.arraycopy(buffer, within, b, off, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    public int skipBytes(int n) {
+        int skipped = (int) Math.max(0, Math.min(n, end - pos));
+        pos += skipped;
+        return skipped;
+    }
+
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    public byte readByte() throws IOException {
+        if (pos < bufferStart || pos >= bufferStart + bufferLength) {
+            fill();
+        }
+        return buffer[(int) (pos++ - bufferStart)];
+    }
+
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xff;
+    }
+
+    public short readShort() throws IOException {
+        return (short) readUnsignedShort();
+    }
+
+    public int readUnsignedShort() throws IOException {
+        return (readUnsignedByte() << 8) | readUnsignedByte();
+    }
+
+    public char readChar() throws IOException {
+        return (char) readUnsignedShort();
+    }
+
+    public int readInt() throws IOException {
+        return (readUnsignedShort() << 16) | readUnsignedShort();
+    }
+
+    public long readLong() throws IOException {
+        return ((long) readInt() << 32) | (readInt() & 0xffffffffL);
+    }
+
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    /**
+     * Read bytes up to a line terminator as in {@link DataInputStream}: each
+     * byte is one char, and "\n", "\r" and "\r\n" end a line.
+     *
+     * @return the line without its terminator, or null at the end of the log
+     */
+    public String readLine() throws IOException {
+        if (pos >= end) {
+            return null;
+        }
+        StringBuilder line = new StringBuilder();
+        while (pos < end) {
+            int c = readUnsignedByte();
+            if (c == '\n') {
+                break;
+            }
+            if (c == '\r') {
+                if (pos < end && readUnsignedByte() != '\n') {
+                    pos--;
+                }
+                break;
+            }
+            line.append((char) c);
+        }
+        return line.toString();
+    }
+
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+}
@@ -0,0 +1,31 @@
+package simpledb.transaction;
+
+/**
+ * How long {@link Transaction#commit} waits for the COMMIT record to reach
+ * disk. Only a SYNC commit writes its pages before it returns; the others
+ * leave them in the buffer pool, to be written after the log.
+ */
+public enum Durability {
+    /**
+     * Wait until the COMMIT record is forced; the flusher forces right away.
+     */
+    SYNC,
+    /**
+     * Wait until the COMMIT record is forced, but let the flusher wait a
+     * little for more commits to share the force with.
+     */
+    GROUP,
+    /**
+     * Return once the COMMIT record is in the log buffer. The flusher forces
+     * it within a bounded delay; a crash before that loses the transaction.
+     */
+    ASYNC;
+
+    /**
+     * @param name sync, group or async, in any case
+     * @throws IllegalArgumentException if it is none of them
+     */
+    public static Durability parse(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+}
@@ -1,149 +1,688 @@
 package simpledb.transaction;
 
+import simpledb.common.Database;
 import simpledb.storage.PageId;
+import simpledb.storage.RecordId;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.locks.LockSupport;
 
+/**
+ * LockManager keeps the locks held by running transactions.
+ * <p>
+ * Locking is hierarchical: before a page is locked in S (X) mode the
+ * transaction takes an IS (IX) lock on the page's table. A transaction that
+ * holds a table lock which already covers the request (S or SIX for reads,
+ * X for writes) does not lock individual pages at all. Tables that use
+ * record-level locking go one level further down: pages are locked in IS/IX
+ * mode and the rows themselves in S/X mode, see {@link #acquireRecord}.
+ * Once a transaction holds more than {@link #getEscalationThreshold()} page
+ * or record locks on one table, the lock manager tries to escalate them to a
+ * single S (or X) table lock and drops the finer grained locks.
+ * <p>
+ * The lock table is split into a fixed number of partitions by resource
+ * hash. Each partition owns its slice of the lock map and of the
+ * per-transaction resource sets and is latched independently, so requests on
+ * resources that fall into different partitions never contend with each
+ * other. The operations that concern a whole transaction ({@link #releaseAll},
+ * {@link #getPagesByTxid}) only visit the partitions the transaction has
+ * locked something in, one at a time.
+ * <p>
+ * Waits, timeouts and upgrades are counted per resource in {@link LockStats};
+ * {@link #contentionReport} lists the pages transactions wait for most.
+ *
+ * @Threadsafe
+ */
 public class LockManager {
 
-    private final Map<TransactionId, Set<PageId>> transactionIdPageMap = new HashMap<>();
-    private final Map<PageId, Deque<TxLock>> lockMap = new HashMap<>();
+    /**
+     * Default number of partitions of the lock table.
+     */
+    public static final int DEFAULT_PARTITIONS = 64;
 
+    /**
+     * Default number of page locks a transaction may hold on one table before
+     * they are escalated to a table lock.
+     */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 512;
+
+    private final Partition[] partitions;
+
+    private final Map<TransactionId, TxState> txStates = new ConcurrentHashMap<>();
+
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+
+    private final LockStats stats = new LockStats();
+
+    public LockManager() {
+        this(DEFAULT_PARTITIONS);
+    }
+
+    /**
+     * @param numPartitions number of independently latched partitions of the
+     *                      lock table; 1 gives a single global monitor.
+     */
+    public LockManager(int numPartitions) {
+        if (numPartitions <= 0) {
+            throw new IllegalArgumentException("numPartitions must be positive: " + numPartitions);
+        }
+        this.partitions = new Partition[numPartitions];
+        for (int i = 0; i < numPartitions; i++) {
+            partitions[i] = new Partition();
+        }
+    }
+
+    public int getNumPartitions() {
+        return partitions.length;
+    }
+
+    public LockStats getStats() {
+        return stats;
+    }
+
+    public int getEscalationThreshold() {
+        return escalationThreshold;
+    }
+
+    /**
+     * @param escalationThreshold number of page locks on one table after
+     *                            which a transaction escalates to a table
+     *                            lock; {@link Integer#MAX_VALUE} disables
+     *                            escalation.
+     */
+    public void setEscalationThreshold(int escalationThreshold) {
+        this.escalationThreshold = escalationThreshold;
+    }
+
+    private int partitionIndex(Object resource) {
+        int h = resource.hashCode();
+        // HeapPageId hashes are close to each other for neighbouring pages, spread the bits first
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % partitions.length;
+    }
+
+    private Partition partitionOf(Object resource) {
+        return partitions[partitionIndex(resource)];
+    }
+
+    /**
+     * Lock a page, together with the intention lock on its table.
+     *
+     * @param isShared true for an S lock, false for an X lock
+     * @param timeout  milliseconds to wait for the locks, 0 waits forever
+     * @throws TimeoutException if the locks could not be granted in time
+     */
     public void acquire(PageId id,
                         TransactionId transactionId,
                         boolean isShared,
                         long timeout) throws TimeoutException {
-        long deadline = System.currentTimeMillis() + timeout;
-        while (!tryAcquire(id, transactionId, isShared)) {
-            if (timeout > 0 && deadline < System.currentTimeMillis()) {
-                throw new TimeoutException();
-            }
-            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+        acquirePage(id, transactionId, isShared ? LockMode.S : LockMode.X, timeout);
+    }
+
+    /**
+     * Lock a page in any mode, together with the intention lock on its
+     * table. Tables with record-level locking lock their pages in IS/IX
+     * mode.
+     *
+     * @param timeout milliseconds to wait for the locks, 0 waits forever
+     * @throws TimeoutException if the locks could not be granted in time
+     */
+    public void acquirePage(PageId id,
+                            TransactionId transactionId,
+                            LockMode mode,
+                            long timeout) throws TimeoutException {
+        long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+        TableKey table = new TableKey(id.getTableId());
+        LockMode held = getMode(table, transactionId);
+        if (held != null && held.implies(mode)) {
+            return;
         }
+        acquire(table, transactionId, intentionFor(mode), deadline);
+        acquire(id, transactionId, mode, deadline);
     }
 
-    public synchronized boolean tryAcquire(PageId id, TransactionId transactionId, boolean isShared) {
-        Deque<TxLock> txLocks = lockMap.get(id);
-        // 1. 该 page 还没有锁
-        if (txLocks == null || txLocks.isEmpty()) {
-            Deque<TxLock> deque = new ArrayDeque<>();
-            deque.addLast(new TxLock(transactionId, id, isShared));
-            transactionIdPageMap.compute(transactionId, (k, v) -> {
-                if (v == null) {
-                    v = new HashSet<>();
-                }
-                v.add(id);
-                return v;
-            });
-            lockMap.put(id, deque);
+    /**
+     * Lock a single record in S or X mode. The table and the page of the
+     * record are locked in the matching intention mode first. Nothing is
+     * locked when a table or page lock of the transaction already covers the
+     * record.
+     *
+     * @param timeout milliseconds to wait for the locks, 0 waits forever
+     * @throws TimeoutException if the locks could not be granted in time
+     */
+    public void acquireRecord(RecordId rid,
+                              TransactionId transactionId,
+                              boolean isShared,
+                              long timeout) throws TimeoutException {
+        long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+        LockMode mode = isShared ? LockMode.S : LockMode.X;
+        if (coversRecord(rid, transactionId, mode)) {
+            return;
+        }
+        LockMode intention = intentionFor(mode);
+        acquire(new TableKey(rid.getPageId().getTableId()), transactionId, intention, deadline);
+        acquire(rid.getPageId(), transactionId, intention, deadline);
+        acquire(rid, transactionId, mode, deadline);
+    }
+
+    /**
+     * Try once to lock a single record, see {@link #acquireRecord}.
+     *
+     * @return true if the transaction holds the lock now
+     */
+    public boolean tryAcquireRecord(RecordId rid, TransactionId transactionId, boolean isShared) {
+        LockMode mode = isShared ? LockMode.S : LockMode.X;
+        if (coversRecord(rid, transactionId, mode)) {
             return true;
         }
-        // 2. 该 page 有锁，而且属于是重入
-        for (TxLock txLock : txLocks) {
-            if (Objects.equals(txLock.getTransactionId(), transactionId)) {
-                // 2.1 同样的锁类型获取已经获取独占锁，直接可重入
-                if (txLock.isShared() == isShared ||
-                        !txLock.isShared()) {
-                    return true;
-                }
-                // 2.2 获取了共享锁，但是队列里面就只有他一个锁，锁升级
-                if (txLocks.size() == 1) {
-                    txLock.setShared(false);
-                    return true;
+        LockMode intention = intentionFor(mode);
+        return tryAcquire(new TableKey(rid.getPageId().getTableId()), transactionId, intention)
+                && tryAcquire(rid.getPageId(), transactionId, intention)
+                && tryAcquire(rid, transactionId, mode);
+    }
+
+    private boolean coversRecord(RecordId rid, TransactionId transactionId, LockMode mode) {
+        LockMode tableMode = getMode(new TableKey(rid.getPageId().getTableId()), transactionId);
+        if (tableMode != null && tableMode.implies(mode)) {
+            return true;
+        }
+        LockMode pageMode = getMode(rid.getPageId(), transactionId);
+        return pageMode != null && pageMode.implies(mode);
+    }
+
+    private static LockMode intentionFor(LockMode mode) {
+        return mode.isShared() ? LockMode.IS : LockMode.IX;
+    }
+
+    /**
+     * Lock a whole table. Pages of the table are not locked individually
+     * while the table lock covers them.
+     *
+     * @param timeout milliseconds to wait for the lock, 0 waits forever
+     * @throws TimeoutException if the lock could not be granted in time
+     */
+    public void acquireTable(int tableId,
+                             TransactionId transactionId,
+                             LockMode mode,
+                             long timeout) throws TimeoutException {
+        long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+        acquire(new TableKey(tableId), transactionId, mode, deadline);
+    }
+
+    private void acquire(Object resource, TransactionId transactionId, LockMode mode, long deadline)
+            throws TimeoutException {
+        if (tryAcquire(resource, transactionId, mode)) {
+            return;
+        }
+        // 只有等待的请求才记统计
+        long start = System.nanoTime();
+        boolean timedOut = false;
+        stats.startWait(resource, transactionId, mode);
+        try {
+            while (!tryAcquire(resource, transactionId, mode)) {
+                if (deadline > 0 && deadline < System.currentTimeMillis()) {
+                    timedOut = true;
+                    throw new TimeoutException();
                 }
-                return false;
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
             }
+        } finally {
+            stats.endWait(resource, transactionId, System.nanoTime() - start, timedOut);
         }
-        // 3. 该 page 有锁而且冲突了
-        for (TxLock txLock : txLocks) {
-            if (!txLock.isShared() || !isShared) {
-                return false;
-            }
+    }
+
+    /**
+     * Try once to lock a page in any mode, together with the intention lock
+     * on its table, see {@link #acquirePage}.
+     *
+     * @return true if the transaction holds the locks now
+     */
+    public boolean tryAcquirePage(PageId id, TransactionId transactionId, LockMode mode) {
+        TableKey table = new TableKey(id.getTableId());
+        LockMode held = getMode(table, transactionId);
+        if (held != null && held.implies(mode)) {
+            return true;
+        }
+        return tryAcquire(table, transactionId, intentionFor(mode))
+                && tryAcquire(id, transactionId, mode);
+    }
+
+    /**
+     * Try once to lock a page, without taking the table intention lock.
+     */
+    public boolean tryAcquire(PageId id, TransactionId transactionId, boolean isShared) {
+        return tryAcquire(id, transactionId, isShared ? LockMode.S : LockMode.X);
+    }
+
+    private boolean tryAcquire(Object resource, TransactionId transactionId, LockMode mode) {
+        int index = partitionIndex(resource);
+        Grant grant = partitions[index].tryAcquire(resource, transactionId, mode);
+        if (grant == Grant.DENIED) {
+            return false;
+        }
+        if (grant == Grant.UPGRADED) {
+            stats.upgrade(resource);
         }
-        txLocks.addLast(new TxLock(transactionId, id, isShared));
-        transactionIdPageMap.compute(transactionId, (k, v) -> {
-            if (v == null) {
-                v = new HashSet<>();
+        TxState state = txStates.computeIfAbsent(transactionId, k -> new TxState());
+        state.partitions.add(index);
+        int tableId = tableOf(resource);
+        if (grant == Grant.NEW && tableId != NO_TABLE) {
+            if (state.addPageLock(tableId) > escalationThreshold) {
+                tryEscalate(transactionId, tableId);
             }
-            v.add(id);
-            return v;
-        });
+        }
         return true;
     }
 
-    public synchronized boolean releaseAll(TransactionId transactionId) {
-        Set<PageId> pageIds = transactionIdPageMap.get(transactionId);
-        if (pageIds == null || pageIds.isEmpty()) {
+    private static final int NO_TABLE = Integer.MIN_VALUE;
+
+    /**
+     * @return the table a page or record lock belongs to, or {@link #NO_TABLE}
+     * for table locks
+     */
+    private static int tableOf(Object resource) {
+        if (resource instanceof PageId) {
+            return ((PageId) resource).getTableId();
+        }
+        if (resource instanceof RecordId) {
+            return ((RecordId) resource).getPageId().getTableId();
+        }
+        return NO_TABLE;
+    }
+
+    /**
+     * Replace the page and record locks of a transaction on one table by a
+     * table lock, if that lock can be granted right away.
+     */
+    private void tryEscalate(TransactionId transactionId, int tableId) {
+        TableKey table = new TableKey(tableId);
+        LockMode held = getMode(table, transactionId);
+        LockMode target = held != null && held.implies(LockMode.IX) ? LockMode.X : LockMode.S;
+        int index = partitionIndex(table);
+        if (partitions[index].tryAcquire(table, transactionId, target) == Grant.DENIED) {
+            return;
+        }
+        TxState state = txStates.get(transactionId);
+        for (int i : state.partitions) {
+            partitions[i].releasePages(transactionId, tableId);
+        }
+        state.clearPageLocks(tableId);
+    }
+
+    public boolean releaseAll(TransactionId transactionId) {
+        TxState state = txStates.remove(transactionId);
+        if (state == null) {
             return true;
         }
-        for (PageId pageId : pageIds) {
-            Deque<TxLock> txLocks = lockMap.get(pageId);
-            if (txLocks == null) {
-                continue;
+        for (int index : state.partitions) {
+            partitions[index].releaseAll(transactionId);
+        }
+        return true;
+    }
+
+    /**
+     * Release the lock on a single page. The intention lock on the table is
+     * kept.
+     */
+    public boolean release(PageId id, TransactionId transactionId) {
+        releaseFineGrained(id, transactionId);
+        return true;
+    }
+
+    /**
+     * Release the lock on a single record. The intention locks on its page
+     * and table are kept.
+     */
+    public boolean release(RecordId rid, TransactionId transactionId) {
+        releaseFineGrained(rid, transactionId);
+        return true;
+    }
+
+    private void releaseFineGrained(Object resource, TransactionId transactionId) {
+        if (partitionOf(resource).release(resource, transactionId)) {
+            TxState state = txStates.get(transactionId);
+            if (state != null) {
+                state.removePageLock(tableOf(resource));
+            }
+        }
+    }
+
+    /**
+     * @return true if the transaction can access the page, either through a
+     * page lock or through a table lock that covers the page
+     */
+    public boolean isHoldLock(PageId id, TransactionId transactionId) {
+        if (getMode(id, transactionId) != null) {
+            return true;
+        }
+        LockMode tableMode = getMode(new TableKey(id.getTableId()), transactionId);
+        return tableMode != null && tableMode.implies(LockMode.S);
+    }
+
+    /**
+     * @return true if the transaction can access the record, through a
+     * record, page or table lock
+     */
+    public boolean isHoldLock(RecordId rid, TransactionId transactionId) {
+        return getMode(rid, transactionId) != null || coversRecord(rid, transactionId, LockMode.S);
+    }
+
+    /**
+     * @return the mode the transaction holds on the page, or null if it does
+     * not lock the page individually
+     */
+    public LockMode getPageMode(PageId id, TransactionId transactionId) {
+        return getMode(id, transactionId);
+    }
+
+    /**
+     * @return the mode the transaction holds on the table, or null
+     */
+    public LockMode getTableMode(int tableId, TransactionId transactionId) {
+        return getMode(new TableKey(tableId), transactionId);
+    }
+
+    private LockMode getMode(Object resource, TransactionId transactionId) {
+        return partitionOf(resource).getMode(resource, transactionId);
+    }
+
+    /**
+     * @return the transactions holding a lock on the page and their modes
+     */
+    public Map<TransactionId, LockMode> getHolders(PageId id) {
+        return partitionOf(id).getHolders(id);
+    }
+
+    /**
+     * @return the transactions waiting for a lock on the page and the modes
+     * they asked for
+     */
+    public Map<TransactionId, LockMode> getWaiters(PageId id) {
+        LockStats.ResourceStats pageStats = stats.get(id);
+        return pageStats == null ? new HashMap<>() : pageStats.getWaiters();
+    }
+
+    /**
+     * @return the statistics of the n pages transactions spent the most time
+     * waiting for
+     */
+    public List<LockStats.ResourceStats> getTopContendedPages(int n) {
+        return stats.getTop(PageId.class, n);
+    }
+
+    /**
+     * Describe the n most contended pages by table name and page number, with
+     * their wait statistics and current holders and waiters.
+     */
+    public String contentionReport(int n) {
+        StringBuilder sb = new StringBuilder();
+        LockStats.ResourceStats total = stats.getTotal();
+        sb.append(String.format("waits=%d wait=%dms timeouts=%d upgrades=%d aborts=%d%n",
+                total.getWaits(), total.getWaitMillis(), total.getTimeouts(), total.getUpgrades(),
+                stats.getAborts()));
+        for (LockStats.ResourceStats pageStats : getTopContendedPages(n)) {
+            PageId pid = (PageId) pageStats.getResource();
+            String table;
+            try {
+                table = Database.getCatalog().getTableName(pid.getTableId());
+            } catch (NoSuchElementException e) {
+                table = String.valueOf(pid.getTableId());
             }
-            Iterator<TxLock> iterator = txLocks.iterator();
+            sb.append(String.format("%s page %d (%s): waits=%d wait=%dms timeouts=%d upgrades=%d "
+                            + "histogram=%s holders=%s waiters=%s%n",
+                    table, pid.getPageNumber(), pid.getClass().getSimpleName(),
+                    pageStats.getWaits(), pageStats.getWaitMillis(), pageStats.getTimeouts(),
+                    pageStats.getUpgrades(), Arrays.toString(pageStats.getWaitHistogram()),
+                    describe(getHolders(pid)), describe(pageStats.getWaiters())));
+        }
+        return sb.toString();
+    }
+
+    private static String describe(Map<TransactionId, LockMode> locks) {
+        StringJoiner joiner = new StringJoiner(", ", "[", "]");
+        locks.forEach((tid, mode) -> joiner.add(tid.getId() + ":" + mode));
+        return joiner.toString();
+    }
+
+    public void reset() {
+        stats.reset();
+        txStates.clear();
+        for (Partition partition : partitions) {
+            partition.reset();
+        }
+    }
+
+    /**
+     * @return a snapshot of the pages locked individually by the
+     * transaction, never null. Pages covered by a table lock are not listed.
+     */
+    public Set<PageId> getPagesByTxid(TransactionId transactionId) {
+        Set<PageId> pageIds = new HashSet<>();
+        TxState state = txStates.get(transactionId);
+        if (state == null) {
+            return pageIds;
+        }
+        for (int index : state.partitions) {
+            partitions[index].collectPages(transactionId, pageIds);
+        }
+        return pageIds;
+    }
+
+    /**
+     * Lockable resource standing for a whole table.
+     */
+    private static final class TableKey {
+        private final int tableId;
+
+        TableKey(int tableId) {
+            this.tableId = tableId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TableKey && ((TableKey) o).tableId == tableId;
+        }
+
+        @Override
+        public int hashCode() {
+            return Integer.hashCode(tableId) * 31 + 7;
+        }
+
+        @Override
+        public String toString() {
+            return "TableKey{tableId=" + tableId + '}';
+        }
+    }
+
+    /**
+     * Bookkeeping of one running transaction.
+     */
+    private static class TxState {
+        /**
+         * Indexes of the partitions the transaction holds locks in.
+         */
+        final Set<Integer> partitions = ConcurrentHashMap.newKeySet();
+        /**
+         * Number of page and record locks per table, guarded by this.
+         */
+        private final Map<Integer, Integer> pageLocks = new HashMap<>();
+
+        synchronized int addPageLock(int tableId) {
+            return pageLocks.merge(tableId, 1, Integer::sum);
+        }
+
+        synchronized void removePageLock(int tableId) {
+            pageLocks.computeIfPresent(tableId, (k, v) -> v > 1 ? v - 1 : null);
+        }
+
+        synchronized void clearPageLocks(int tableId) {
+            pageLocks.remove(tableId);
+        }
+    }
+
+    private enum Grant {
+        DENIED,
+        /**
+         * the transaction already had a lock on the resource that covers the request
+         */
+        HELD,
+        /**
+         * the lock the transaction had on the resource was upgraded
+         */
+        UPGRADED,
+        NEW
+    }
+
+    /**
+     * One slice of the lock table. All state is guarded by the partition's
+     * own monitor.
+     */
+    private static class Partition {
+        private final Map<TransactionId, Set<Object>> transactionIdResourceMap = new HashMap<>();
+        private final Map<Object, Deque<TxLock>> lockMap = new HashMap<>();
+
+        synchronized Grant tryAcquire(Object resource, TransactionId transactionId, LockMode mode) {
+            Deque<TxLock> txLocks = lockMap.get(resource);
+            // 1. 该资源还没有锁
+            if (txLocks == null || txLocks.isEmpty()) {
+                Deque<TxLock> deque = new ArrayDeque<>();
+                deque.addLast(new TxLock(transactionId, resource, mode));
+                addResource(transactionId, resource);
+                lockMap.put(resource, deque);
+                return Grant.NEW;
+            }
+            // 2. 该资源有锁，而且属于是重入
+            TxLock own = null;
+            for (TxLock txLock : txLocks) {
+                if (Objects.equals(txLock.getTransactionId(), transactionId)) {
+                    own = txLock;
+                    break;
+                }
+            }
+            // 2.1 已经持有的锁覆盖了申请的模式，直接可重入
+            if (own != null && own.getMode().implies(mode)) {
+                return Grant.HELD;
+            }
+            // 3. 锁升级或者新加锁，都需要和其他事务的锁兼容
+            LockMode target = own == null ? mode : own.getMode().supremum(mode);
+            for (TxLock txLock : txLocks) {
+                if (txLock != own && !txLock.getMode().isCompatible(target)) {
+                    return Grant.DENIED;
+                }
+            }
+            if (own != null) {
+                own.setMode(target);
+                return Grant.UPGRADED;
+            }
+            txLocks.addLast(new TxLock(transactionId, resource, mode));
+            addResource(transactionId, resource);
+            return Grant.NEW;
+        }
+
+        private void addResource(TransactionId transactionId, Object resource) {
+            transactionIdResourceMap.computeIfAbsent(transactionId, k -> new HashSet<>()).add(resource);
+        }
+
+        synchronized void releaseAll(TransactionId transactionId) {
+            Set<Object> resources = transactionIdResourceMap.remove(transactionId);
+            if (resources == null) {
+                return;
+            }
+            for (Object resource : resources) {
+                removeLock(resource, transactionId);
+            }
+        }
+
+        /**
+         * Drop the page and record locks of a transaction on one table.
+         */
+        synchronized void releasePages(TransactionId transactionId, int tableId) {
+            Set<Object> resources = transactionIdResourceMap.get(transactionId);
+            if (resources == null) {
+                return;
+            }
+            Iterator<Object> iterator = resources.iterator();
             while (iterator.hasNext()) {
-                TxLock next = iterator.next();
-                if (!next.getTransactionId().equals(transactionId)) {
-                    continue;
+                Object resource = iterator.next();
+                if (tableOf(resource) == tableId) {
+                    iterator.remove();
+                    removeLock(resource, transactionId);
                 }
-                iterator.remove();
-                break;
             }
-            if (txLocks.isEmpty()) {
-                lockMap.remove(pageId);
+            if (resources.isEmpty()) {
+                transactionIdResourceMap.remove(transactionId);
             }
         }
-        return true;
-    }
 
-    public synchronized boolean release(PageId id, TransactionId transactionId) {
-        Deque<TxLock> txLocks = lockMap.get(id);
-        if (txLocks.isEmpty()) {
+        /**
+         * @return true if the transaction held a lock on the resource
+         */
+        synchronized boolean release(Object resource, TransactionId transactionId) {
+            if (!removeLock(resource, transactionId)) {
+                return false;
+            }
+            Set<Object> resources = transactionIdResourceMap.get(transactionId);
+            resources.remove(resource);
+            if (resources.isEmpty()) {
+                transactionIdResourceMap.remove(transactionId);
+            }
             return true;
         }
-        Iterator<TxLock> iterator = txLocks.iterator();
-        while (iterator.hasNext()) {
-            TxLock next = iterator.next();
-            if (!next.getTransactionId().equals(transactionId)) {
-                continue;
+
+        private boolean removeLock(Object resource, TransactionId transactionId) {
+            Deque<TxLock> txLocks = lockMap.get(resource);
+            if (txLocks == null) {
+                return false;
             }
-            Set<PageId> pageIds = transactionIdPageMap.get(transactionId);
-            pageIds.remove(next.getPageId());
-            iterator.remove();
-            if (pageIds.isEmpty()) {
-                transactionIdPageMap.remove(transactionId);
+            boolean removed = txLocks.removeIf(txLock -> txLock.getTransactionId().equals(transactionId));
+            if (txLocks.isEmpty()) {
+                lockMap.remove(resource);
             }
-            break;
-        }
-        if (txLocks.isEmpty()) {
-            lockMap.remove(id);
+            return removed;
         }
-        return true;
-    }
 
-    public synchronized boolean isHoldLock(PageId id, TransactionId transactionId) {
-        Deque<TxLock> txLocks = lockMap.get(id);
-        if (txLocks == null || txLocks.isEmpty()) {
-            return false;
+        synchronized LockMode getMode(Object resource, TransactionId transactionId) {
+            Deque<TxLock> txLocks = lockMap.get(resource);
+            if (txLocks == null) {
+                return null;
+            }
+            for (TxLock txLock : txLocks) {
+                if (txLock.getTransactionId().equals(transactionId)) {
+                    return txLock.getMode();
+                }
+            }
+            return null;
         }
-        for (TxLock txLock : txLocks) {
-            if (txLock.getTransactionId().equals(transactionId)) {
-                return true;
+
+        synchronized Map<TransactionId, LockMode> getHolders(Object resource) {
+            Map<TransactionId, LockMode> holders = new HashMap<>();
+            Deque<TxLock> txLocks = lockMap.get(resource);
+            if (txLocks != null) {
+                for (TxLock txLock : txLocks) {
+                    holders.put(txLock.getTransactionId(), txLock.getMode());
+                }
             }
+            return holders;
         }
-        return false;
-    }
 
-    public synchronized void reset() {
-        transactionIdPageMap.clear();
-        lockMap.clear();
-    }
+        synchronized void collectPages(TransactionId transactionId, Set<PageId> out) {
+            Set<Object> resources = transactionIdResourceMap.get(transactionId);
+            if (resources == null) {
+                return;
+            }
+            for (Object resource : resources) {
+                if (resource instanceof PageId) {
+                    out.add((PageId) resource);
+                }
+            }
+        }
 
-    public synchronized Set<PageId> getPagesByTxid(TransactionId transactionId) {
-        return transactionIdPageMap.get(transactionId);
+        synchronized void reset() {
+            transactionIdResourceMap.clear();
+            lockMap.clear();
+        }
     }
 }
@@ -0,0 +1,80 @@
+package simpledb.transaction;
+
+/**
+ * Lock modes of the multiple granularity locking protocol. Pages are only
+ * ever locked in {@link #S} or {@link #X}; tables additionally take the
+ * intention modes, which announce that finer grained locks are held
+ * underneath.
+ */
+public enum LockMode {
+    /**
+     * intention shared: S locks are held on some pages of the table
+     */
+    IS,
+    /**
+     * intention exclusive: X locks are held on some pages of the table
+     */
+    IX,
+    /**
+     * shared
+     */
+    S,
+    /**
+     * shared + intention exclusive: the whole table is read, some pages are written
+     */
+    SIX,
+    /**
+     * exclusive
+     */
+    X;
+
+    private static final boolean[][] COMPATIBLE = {
+            //          IS     IX     S      SIX    X
+            /* IS  */ {true, true, true, true, false},
+            /* IX  */ {true, true, false, false, false},
+            /* S   */ {true, false, true, false, false},
+            /* SIX */ {true, false, false, false, false},
+            /* X   */ {false, false, false, false, false},
+    };
+
+    /**
+     * @return true if a lock in this mode can be held together with a lock in
+     * the other mode by a different transaction.
+     */
+    public boolean isCompatible(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /**
+     * @return the weakest mode that grants everything both modes grant, i.e.
+     * the mode a lock is converted to when a holder of this mode asks for
+     * the other one.
+     */
+    public LockMode supremum(LockMode other) {
+        if (this == other) {
+            return this;
+        }
+        if (this == X || other == X) {
+            return X;
+        }
+        if (this == IS) {
+            return other;
+        }
+        if (other == IS) {
+            return this;
+        }
+        // the remaining pairs are IX, S and SIX in some combination
+        return SIX;
+    }
+
+    /**
+     * @return true if holding this mode already grants the other one
+     */
+    public boolean implies(LockMode other) {
+        return supremum(other) == this;
+    }
+
+    public boolean isShared() {
+        return this == IS || this == S;
+    }
+}
@@ -0,0 +1,184 @@
+package simpledb.transaction;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contention statistics of a {@link LockManager}.
+ * <p>
+ * Requests that are granted right away are not recorded, so the bookkeeping
+ * only costs something once transactions actually wait. Every resource that
+ * saw a wait, a timeout or an upgrade gets a {@link ResourceStats} entry;
+ * the entries live until {@link #reset}.
+ *
+ * @Threadsafe
+ */
+public class LockStats {
+
+    /**
+     * Number of buckets of the wait time histograms. Bucket i counts waits
+     * shorter than 2^i milliseconds (and at least 2^(i-1)), the last bucket
+     * counts all longer waits.
+     */
+    public static final int HISTOGRAM_BUCKETS = 14;
+
+    /**
+     * Statistics of one lockable resource: a page, a record or a table.
+     */
+    public static class ResourceStats {
+        private final Object resource;
+        private final LongAdder waits = new LongAdder();
+        private final LongAdder waitNanos = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+        private final LongAdder upgrades = new LongAdder();
+        private final AtomicLongArray histogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+        private final Map<TransactionId, LockMode> waiters = new ConcurrentHashMap<>();
+
+        ResourceStats(Object resource) {
+            this.resource = resource;
+        }
+
+        /**
+         * @return the page, record or table key the statistics are about
+         */
+        public Object getResource() {
+            return resource;
+        }
+
+        /**
+         * @return number of requests that had to wait, including those that
+         * timed out
+         */
+        public long getWaits() {
+            return waits.sum();
+        }
+
+        public long getWaitMillis() {
+            return waitNanos.sum() / 1_000_000;
+        }
+
+        public long getTimeouts() {
+            return timeouts.sum();
+        }
+
+        public long getUpgrades() {
+            return upgrades.sum();
+        }
+
+        /**
+         * @return the wait time histogram, see {@link #HISTOGRAM_BUCKETS}
+         */
+        public long[] getWaitHistogram() {
+            long[] counts = new long[HISTOGRAM_BUCKETS];
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                counts[i] = histogram.get(i);
+            }
+            return counts;
+        }
+
+        /**
+         * @return the transactions waiting for the resource right now, with the
+         * mode they asked for
+         */
+        public Map<TransactionId, LockMode> getWaiters() {
+            return new HashMap<>(waiters);
+        }
+    }
+
+    private final Map<Object, ResourceStats> resources = new ConcurrentHashMap<>();
+    private final ResourceStats total = new ResourceStats(null);
+    private final LongAdder aborts = new LongAdder();
+
+    private ResourceStats of(Object resource) {
+        return resources.computeIfAbsent(resource, ResourceStats::new);
+    }
+
+    void startWait(Object resource, TransactionId transactionId, LockMode mode) {
+        of(resource).waiters.put(transactionId, mode);
+    }
+
+    /**
+     * @param timedOut true if the request gave up
+     */
+    void endWait(Object resource, TransactionId transactionId, long nanos, boolean timedOut) {
+        ResourceStats stats = of(resource);
+        stats.waiters.remove(transactionId);
+        int bucket = bucketOf(nanos);
+        for (ResourceStats s : new ResourceStats[]{stats, total}) {
+            s.waits.increment();
+            s.waitNanos.add(nanos);
+            s.histogram.incrementAndGet(bucket);
+            if (timedOut) {
+                s.timeouts.increment();
+            }
+        }
+    }
+
+    void upgrade(Object resource) {
+        of(resource).upgrades.increment();
+        total.upgrades.increment();
+    }
+
+    /**
+     * Count an aborted transaction.
+     */
+    public void abort() {
+        aborts.increment();
+    }
+
+    private static int bucketOf(long nanos) {
+        long millis = nanos / 1_000_000;
+        int bucket = 64 - Long.numberOfLeadingZeros(millis);
+        return Math.min(bucket, HISTOGRAM_BUCKETS - 1);
+    }
+
+    /**
+     * @return the statistics summed over all resources
+     */
+    public ResourceStats getTotal() {
+        return total;
+    }
+
+    public long getAborts() {
+        return aborts.sum();
+    }
+
+    /**
+     * @return the statistics of the resource, or null if it never saw a wait,
+     * a timeout or an upgrade
+     */
+    public ResourceStats get(Object resource) {
+        return resources.get(resource);
+    }
+
+    /**
+     * @return the statistics of the resources of the given class, most time
+     * spent waiting first
+     */
+    public List<ResourceStats> getTop(Class<?> resourceClass, int n) {
+        List<ResourceStats> top = new ArrayList<>();
+        for (ResourceStats stats : resources.values()) {
+            if (resourceClass.isInstance(stats.resource)) {
+                top.add(stats);
+            }
+        }
+        top.sort(Comparator.comparingLong((ResourceStats s) -> s.waitNanos.sum())
+                .thenComparingLong(s -> s.timeouts.sum())
+                .reversed());
+        return top.subList(0, Math.min(n, top.size()));
+    }
+
+    public void reset() {
+        resources.clear();
+        aborts.reset();
+        total.waits.reset();
+        total.waitNanos.reset();
+        total.timeouts.reset();
+        total.upgrades.reset();
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            total.histogram.set(i, 0);
+        }
+    }
+}
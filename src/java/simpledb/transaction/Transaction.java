@@ -12,28 +12,110 @@ import java.io.*;
 public class Transaction {
     private final TransactionId tid;
     volatile boolean started = false;
+    private boolean readOnly = false;
+    private boolean optimistic = false;
+    private Durability durability = Durability.SYNC;
 
     public Transaction() {
         tid = new TransactionId();
     }
 
+    /**
+     * Run the transaction as a read-only snapshot reader, see
+     * {@link simpledb.storage.BufferPool#beginSnapshot}. Must be set before
+     * the transaction is started.
+     */
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Run the transaction under optimistic concurrency control instead of
+     * 2PL, see {@link simpledb.storage.BufferPool#beginOptimistic}. Must be
+     * set before the transaction is started.
+     */
+    public void setOptimistic(boolean optimistic) {
+        this.optimistic = optimistic;
+    }
+
+    public boolean isOptimistic() {
+        return optimistic;
+    }
+
+    /**
+     * How long {@link #commit} waits for the commit to reach disk; SYNC
+     * unless set otherwise.
+     */
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (readOnly) {
+            // 只读事务不写日志
+            Database.getBufferPool().beginSnapshot(tid);
+            return;
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
             e.printStackTrace();
         }
+        if (optimistic) {
+            Database.getBufferPool().beginOptimistic(tid);
+        }
     }
 
     public TransactionId getId() {
         return tid;
     }
 
-    /** Finish the transaction */
+    /**
+     * Finish the transaction
+     *
+     * @throws IOException if an optimistic transaction failed validation; it
+     *                     is aborted then, see {@link #tryCommit}
+     */
     public void commit() throws IOException {
+        if (!tryCommit()) {
+            throw new IOException("transaction " + tid.getId() + " failed validation and was aborted",
+                    new TransactionAbortedException());
+        }
+    }
+
+    /**
+     * Finish the transaction with the given durability level
+     *
+     * @see #commit()
+     */
+    public void commit(Durability durability) throws IOException {
+        setDurability(durability);
+        commit();
+    }
+
+    /**
+     * Commit the transaction. An optimistic transaction is validated first
+     * and aborted if that fails.
+     *
+     * @return true if the transaction committed, false if it was aborted
+     */
+    public boolean tryCommit() throws IOException {
+        if (started && optimistic && !Database.getBufferPool().commitOptimistic(tid)) {
+            transactionComplete(true);
+            return false;
+        }
         transactionComplete(false);
+        return true;
     }
 
     /** Finish the transaction */
@@ -44,18 +126,21 @@ public class Transaction {
     /** Handle the details of transaction commit / abort */
     public void transactionComplete(boolean abort) throws IOException {
 
-        if (started) {
+        if (started && readOnly) {
+            Database.getBufferPool().transactionComplete(tid, !abort);
+            started = false;
+        } else if (started) {
             //write abort log record and rollback transaction
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } 
 
             // Release locks and flush pages if needed
-            Database.getBufferPool().transactionComplete(tid, !abort); // release locks
+            Database.getBufferPool().transactionComplete(tid, !abort, durability); // release locks
 
             // write commit log record
             if (!abort) {
-            	Database.getLogFile().logCommit(tid);
+            	Database.getLogFile().logCommit(tid, durability);
             }
 
             //setting this here means we could possibly write multiple abort records -- OK?
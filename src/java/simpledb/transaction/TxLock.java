@@ -1,31 +1,37 @@
 package simpledb.transaction;
 
-import simpledb.storage.PageId;
-
+/**
+ * A lock held by a transaction on a lockable resource, i.e. a page or a
+ * whole table.
+ */
 public class TxLock {
-    private TransactionId transactionId;
-    private PageId pageId;
-    private boolean isShared;
+    private final TransactionId transactionId;
+    private final Object resource;
+    private LockMode mode;
 
-    public TxLock(TransactionId transactionId, PageId pageId, boolean isShared) {
+    public TxLock(TransactionId transactionId, Object resource, LockMode mode) {
         this.transactionId = transactionId;
-        this.pageId = pageId;
-        this.isShared = isShared;
+        this.resource = resource;
+        this.mode = mode;
     }
 
     public TransactionId getTransactionId() {
         return transactionId;
     }
 
-    public PageId getPageId() {
-        return pageId;
+    public Object getResource() {
+        return resource;
     }
 
-    public boolean isShared() {
-        return isShared;
+    public LockMode getMode() {
+        return mode;
     }
 
-    public void setShared(boolean shared) {
-        isShared = shared;
+    public void setMode(LockMode mode) {
+        this.mode = mode;
+    }
+
+    public boolean isShared() {
+        return mode.isShared();
     }
 }
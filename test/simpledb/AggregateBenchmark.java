@@ -0,0 +1,90 @@
+package simpledb;
+
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+/**
+ * Aggregates a generated stream of rows without a table behind it and
+ * prints the time and the heap in use afterwards, which should depend on the
+ * number of groups and not on the number of rows.
+ * <p>
+ * Usage: java simpledb.AggregateBenchmark [rows] [groups]
+ */
+public class AggregateBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        long rows = args.length > 0 ? Long.parseLong(args[0]) : 20000000L;
+        int groups = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        System.out.printf("%6s %12s %10s %10s%n", "op", "rows", "time", "heap");
+        for (Aggregator.Op op : new Aggregator.Op[]{Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.MAX}) {
+            Runtime rt = Runtime.getRuntime();
+            System.gc();
+            long before = rt.totalMemory() - rt.freeMemory();
+            long start = System.nanoTime();
+            Aggregate agg = new Aggregate(new Generator(rows, groups), 1, 0, op);
+            agg.open();
+            long nanos = System.nanoTime() - start;
+            System.gc();
+            long heap = rt.totalMemory() - rt.freeMemory() - before;
+            int out = 0;
+            while (agg.hasNext()) {
+                agg.next();
+                out++;
+            }
+            agg.close();
+            System.out.printf("%6s %12d %8.1fms %8dKB  (%d groups)%n", op, rows, nanos / 1e6, heap / 1024, out);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Rows (i % groups, i) for i below the number of rows.
+     */
+    static class Generator extends Operator {
+        private static final long serialVersionUID = 1L;
+        private final TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.INT_TYPE});
+        private final long rows;
+        private final int groups;
+        private long i;
+
+        Generator(long rows, int groups) {
+            this.rows = rows;
+            this.groups = groups;
+        }
+
+        @Override
+        protected Tuple fetchNext() {
+            if (i == rows) {
+                return null;
+            }
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField((int) (i % groups)));
+            t.setField(1, new IntField((int) i));
+            i++;
+            return t;
+        }
+
+        @Override
+        public void rewind() {
+            i = 0;
+        }
+
+        @Override
+        public OpIterator[] getChildren() {
+            return new OpIterator[0];
+        }
+
+        @Override
+        public void setChildren(OpIterator[] children) {
+        }
+
+        @Override
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+    }
+}
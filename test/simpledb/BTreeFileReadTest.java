@@ -84,7 +84,7 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 
 		// NOTE(ghuo): we try not to dig too deeply into the Page API here; we
 		// rely on BTreePageTest for that. perform some basic checks.
-		assertEquals(482, page.getNumEmptySlots());
+		assertEquals(481, page.getNumEmptySlots());
 		assertTrue(page.isSlotUsed(1));
 		assertFalse(page.isSlotUsed(20));
 	}
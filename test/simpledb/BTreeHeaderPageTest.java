@@ -97,7 +97,7 @@ public class BTreeHeaderPageTest extends SimpleDbTestBase {
 	 * Unit test for BTreeHeaderPage.numSlots()
 	 */
 	@Test public void numSlots() {
-		assertEquals(32704, BTreeHeaderPage.getNumSlots());
+		assertEquals(32640, BTreeHeaderPage.getNumSlots());
 	}
 
 	/**
@@ -133,7 +133,7 @@ public class BTreeHeaderPageTest extends SimpleDbTestBase {
 				assertFalse(page.isSlotUsed(i));
 		}
 
-		for (int i = 20; i < 32704; ++i)
+		for (int i = 20; i < 32640; ++i)
 			assertTrue(page.isSlotUsed(i));
 
 		assertEquals(1, page.getEmptySlot());
@@ -162,7 +162,7 @@ public class BTreeHeaderPageTest extends SimpleDbTestBase {
 				assertFalse(page.isSlotUsed(i));
 		}
 
-		for (int i = 20; i < 32704; ++i)
+		for (int i = 20; i < 32640; ++i)
 			assertTrue(page.isSlotUsed(i));
 
 		assertEquals(1, page.getEmptySlot());
@@ -0,0 +1,59 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.HashMap;
+
+/**
+ * Times a scan, filter and grouped sum, once pulled a row at a time and once
+ * a batch at a time. The first row run also reads the table into the buffer
+ * pool, so the first line is not comparable.
+ * <p>
+ * Usage: java simpledb.BatchBenchmark [rows] [runs]
+ */
+public class BatchBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        Database.reset();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, rows, 1000, new HashMap<>(), null);
+        System.out.printf("%4s %12s %12s%n", "run", "rows", "batches");
+        for (int i = 0; i < runs; i++) {
+            long rowNanos = run(table, false);
+            long batchNanos = run(table, true);
+            System.out.printf("%4d %10.1fms %10.1fms%n", i, rowNanos / 1e6, batchNanos / 1e6);
+        }
+        System.exit(0);
+    }
+
+    static long run(HeapFile table, boolean batched) throws Exception {
+        TransactionId tid = new TransactionId();
+        long start = System.nanoTime();
+        OpIterator scan = new SeqScan(tid, table.getId());
+        OpIterator filter = new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(500)), scan);
+        Aggregate agg = new Aggregate(filter, 2, 0, Aggregator.Op.SUM);
+        if (batched) {
+            agg.open();
+        } else {
+            // 行接口：Aggregator 一行行 merge
+            Aggregator aggregator = new IntegerAggregator(0, Type.INT_TYPE, 2, Aggregator.Op.SUM);
+            filter.open();
+            while (filter.hasNext()) {
+                aggregator.mergeTupleIntoGroup(filter.next());
+            }
+            filter.close();
+        }
+        long nanos = System.nanoTime() - start;
+        agg.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return nanos;
+    }
+}
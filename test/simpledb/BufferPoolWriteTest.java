@@ -71,20 +71,20 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
      * Unit test for BufferPool.insertTuple()
      */
     @Test public void insertTuple() throws Exception {
-        // we should be able to add 504 tuples on an empty page.
-        for (int i = 0; i < 504; ++i) {
+        // we should be able to add 503 tuples on an empty page.
+        for (int i = 0; i < 503; ++i) {
         	Tuple t = Utility.getHeapTuple(i, 2);
         	Database.getBufferPool().insertTuple(tid, empty.getId(), t);
         	HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_ONLY);
-        	assertEquals(504-i-1, p.getNumEmptySlots());
+        	assertEquals(503-i-1, p.getNumEmptySlots());
         }
 
-        // the next 504 additions should live on a new page
-        for (int i = 0; i < 504; ++i) {
+        // the next 503 additions should live on a new page
+        for (int i = 0; i < 503; ++i) {
         	Tuple t = Utility.getHeapTuple(i, 2);
         	Database.getBufferPool().insertTuple(tid, empty.getId(), t);
         	HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_ONLY);
-        	assertEquals(504-i-1, p.getNumEmptySlots());
+        	assertEquals(503-i-1, p.getNumEmptySlots());
         }
     }
     
@@ -94,7 +94,7 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     @Test public void deleteTuple() throws Exception {
 
     	// heap file should have ~10 pages
-    	HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504*10, null, null);
+    	HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 503*10, null, null);
     	DbFileIterator it = hf.iterator(tid);
     	it.open();
     	
@@ -106,17 +106,17 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	// clear the cache
     	Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
         
-    	// delete 504 tuples from the first page
-    	for (int i = 0; i < 504; ++i) {
+    	// delete 503 tuples from the first page
+    	for (int i = 0; i < 503; ++i) {
     		Tuple t = tuples.get(i);
         	Database.getBufferPool().deleteTuple(tid, t);
         	HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_ONLY);
         	assertEquals(i+1, p.getNumEmptySlots());
         }
     	
-    	// delete 504 tuples from the second page
-    	for (int i = 0; i < 504; ++i) {
-    		Tuple t = tuples.get(i+504);
+    	// delete 503 tuples from the second page
+    	for (int i = 0; i < 503; ++i) {
+    		Tuple t = tuples.get(i+503);
         	Database.getBufferPool().deleteTuple(tid, t);
         	HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_ONLY);
         	assertEquals(i+1, p.getNumEmptySlots());
@@ -33,14 +33,14 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
      * Unit test for HeapFile.addTuple()
      */
     @Test public void addTuple() throws Exception {
-        // we should be able to add 504 tuples on an empty page.
-        for (int i = 0; i < 504; ++i) {
+        // we should be able to add 503 tuples on an empty page.
+        for (int i = 0; i < 503; ++i) {
             empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
             assertEquals(1, empty.numPages());
         }
 
         // the next 512 additions should live on a new page
-        for (int i = 0; i < 504; ++i) {
+        for (int i = 0; i < 503; ++i) {
             empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
             assertEquals(2, empty.numPages());
         }
@@ -58,11 +58,11 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         // Grab table id
         int tableId = smallFile.getId();
         int tdSize = 8;
-        int numTuples = (BufferPool.getPageSize()*8) / (tdSize * 8 + 1);
+        int numTuples = ((BufferPool.getPageSize() - Page.LSN_SIZE)*8) / (tdSize * 8 + 1);
         int headerSize = (int) Math.ceil(numTuples / 8.0);
         // Leave these as all zeroes so this entire page is empty
-        byte[] empty = new byte[numTuples * 8 + headerSize];
-        byte[] full = new byte[numTuples * 8 + headerSize];
+        byte[] empty = new byte[Page.LSN_SIZE + numTuples * 8 + headerSize];
+        byte[] full = new byte[Page.LSN_SIZE + numTuples * 8 + headerSize];
         // Since every bit is marked as used, every tuple should be used,
         // and all should be set to -1.
         Arrays.fill(full, (byte) 0xFFFFFFFF);
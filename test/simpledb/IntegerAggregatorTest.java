@@ -13,6 +13,7 @@ import simpledb.common.Type;
 import simpledb.execution.Aggregator;
 import simpledb.execution.IntegerAggregator;
 import simpledb.execution.OpIterator;
+import simpledb.storage.Tuple;
 import simpledb.systemtest.SimpleDbTestBase;
 
 public class IntegerAggregatorTest extends SimpleDbTestBase {
@@ -182,6 +183,58 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Test many groups with negative and colliding keys, so that the group
+   * table has to grow
+   */
+  @Test public void manyGroups() throws Exception {
+    int groups = 5000;
+    int[] data = new int[groups * 3 * 2];
+    for (int i = 0; i < groups * 3; i++) {
+      int key = (i % groups - groups / 2) * 1024;
+      data[2 * i] = key;
+      data[2 * i + 1] = i;
+    }
+    OpIterator scan = TestUtil.createTupleList(width1, data);
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.MAX);
+    scan.open();
+    while (scan.hasNext())
+      agg.mergeTupleIntoGroup(scan.next());
+
+    int[] expected = new int[groups * 2];
+    for (int g = 0; g < groups; g++) {
+      expected[2 * g] = (g - groups / 2) * 1024;
+      expected[2 * g + 1] = 2 * groups + g;
+    }
+    OpIterator it = agg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(width1, expected), it);
+  }
+
+  /**
+   * Test aggregates without grouping, including over no rows
+   */
+  @Test public void noGrouping() throws Exception {
+    IntegerAggregator agg = new IntegerAggregator(Aggregator.NO_GROUPING, null, 1, Aggregator.Op.AVG);
+    IntegerAggregator count = new IntegerAggregator(Aggregator.NO_GROUPING, null, 1, Aggregator.Op.COUNT);
+    OpIterator it = count.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(1, new int[] { 0 }), it);
+
+    scan1.open();
+    while (scan1.hasNext()) {
+      Tuple t = scan1.next();
+      agg.mergeTupleIntoGroup(t);
+      count.mergeTupleIntoGroup(t);
+    }
+    it = agg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(1, new int[] { 31 / 7 }), it);
+    it = count.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(1, new int[] { 7 }), it);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,76 @@
+package simpledb;
+
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.TransactionId;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contention benchmark for {@link LockManager}. Every worker runs short
+ * read-only transactions that take shared locks on random pages and then
+ * release them all, which is the pattern that used to serialize on the
+ * single lock table monitor.
+ * <p>
+ * Usage: java simpledb.LockManagerBenchmark [durationMs] [locksPerTxn] [numPages]
+ */
+public class LockManagerBenchmark {
+
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+
+    public static void main(String[] args) throws Exception {
+        long durationMs = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+        int locksPerTxn = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int numPages = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+
+        System.out.printf("%8s %14s %14s %8s%n", "threads", "1 partition", "sharded", "speedup");
+        for (int threads : THREADS) {
+            double single = run(new LockManager(1), threads, durationMs, locksPerTxn, numPages);
+            double sharded = run(new LockManager(), threads, durationMs, locksPerTxn, numPages);
+            System.out.printf("%8d %12.0f/s %12.0f/s %7.2fx%n", threads, single, sharded, sharded / single);
+        }
+    }
+
+    /**
+     * @return committed transactions per second
+     */
+    static double run(LockManager lockManager, int threads, long durationMs,
+                      int locksPerTxn, int numPages) throws InterruptedException {
+        LongAdder txns = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        long[] deadline = new long[1];
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                    while (System.nanoTime() < deadline[0]) {
+                        TransactionId tid = new TransactionId();
+                        for (int j = 0; j < locksPerTxn; j++) {
+                            PageId pid = new HeapPageId(1, random.nextInt(numPages));
+                            lockManager.tryAcquire(pid, tid, true);
+                            lockManager.isHoldLock(pid, tid);
+                        }
+                        lockManager.getPagesByTxid(tid);
+                        lockManager.releaseAll(tid);
+                        txns.increment();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+            t.start();
+        }
+        long begin = System.nanoTime();
+        deadline[0] = begin + durationMs * 1_000_000L;
+        start.countDown();
+        done.await();
+        return txns.sum() * 1e9 / (System.nanoTime() - begin);
+    }
+}
@@ -0,0 +1,228 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.LockMode;
+import simpledb.transaction.LockStats;
+import simpledb.transaction.TransactionId;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class LockManagerTest {
+
+    private LockManager lockManager;
+    private TransactionId tid1, tid2;
+
+    @Before public void setUp() {
+        lockManager = new LockManager(4);
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+    }
+
+    /**
+     * Pages of one transaction are spread over several partitions; the
+     * per-transaction view has to gather all of them.
+     */
+    @Test public void pagesAcrossPartitions() {
+        Set<PageId> expected = new HashSet<>();
+        for (int i = 0; i < 32; i++) {
+            PageId pid = new HeapPageId(7, i);
+            assertTrue(lockManager.tryAcquire(pid, tid1, i % 2 == 0));
+            expected.add(pid);
+        }
+        assertEquals(expected, lockManager.getPagesByTxid(tid1));
+        assertTrue(lockManager.getPagesByTxid(tid2).isEmpty());
+
+        lockManager.releaseAll(tid1);
+        assertTrue(lockManager.getPagesByTxid(tid1).isEmpty());
+        for (PageId pid : expected) {
+            assertFalse(lockManager.isHoldLock(pid, tid1));
+            assertTrue(lockManager.tryAcquire(pid, tid2, false));
+        }
+    }
+
+    @Test public void conflictsWithinPartition() {
+        PageId pid = new HeapPageId(7, 0);
+        assertTrue(lockManager.tryAcquire(pid, tid1, true));
+        assertTrue(lockManager.tryAcquire(pid, tid2, true));
+        // shared by two, no upgrade
+        assertFalse(lockManager.tryAcquire(pid, tid1, false));
+
+        lockManager.release(pid, tid2);
+        assertTrue(lockManager.tryAcquire(pid, tid1, false));
+        assertFalse(lockManager.tryAcquire(pid, tid2, true));
+    }
+
+    @Test public void singlePartition() {
+        LockManager global = new LockManager(1);
+        PageId p0 = new HeapPageId(7, 0);
+        PageId p1 = new HeapPageId(8, 1);
+        assertTrue(global.tryAcquire(p0, tid1, false));
+        assertTrue(global.tryAcquire(p1, tid2, false));
+        assertFalse(global.tryAcquire(p1, tid1, true));
+        global.releaseAll(tid2);
+        assertTrue(global.tryAcquire(p1, tid1, true));
+    }
+
+    @Test public void lockModeLattice() {
+        assertTrue(LockMode.IS.isCompatible(LockMode.SIX));
+        assertTrue(LockMode.IX.isCompatible(LockMode.IX));
+        assertFalse(LockMode.IX.isCompatible(LockMode.S));
+        assertFalse(LockMode.SIX.isCompatible(LockMode.SIX));
+        assertFalse(LockMode.IS.isCompatible(LockMode.X));
+        assertEquals(LockMode.SIX, LockMode.S.supremum(LockMode.IX));
+        assertEquals(LockMode.S, LockMode.IS.supremum(LockMode.S));
+        assertEquals(LockMode.X, LockMode.SIX.supremum(LockMode.X));
+        assertTrue(LockMode.SIX.implies(LockMode.S));
+        assertTrue(LockMode.SIX.implies(LockMode.IX));
+        assertFalse(LockMode.S.implies(LockMode.IX));
+    }
+
+    /**
+     * Page locks take the matching intention lock on the table.
+     */
+    @Test public void intentionLocks() throws Exception {
+        PageId p0 = new HeapPageId(7, 0);
+        PageId p1 = new HeapPageId(7, 1);
+        lockManager.acquire(p0, tid1, true, 100);
+        assertEquals(LockMode.IS, lockManager.getTableMode(7, tid1));
+        lockManager.acquire(p1, tid1, false, 100);
+        assertEquals(LockMode.IX, lockManager.getTableMode(7, tid1));
+
+        // an S table lock conflicts with the IX of tid1
+        try {
+            lockManager.acquireTable(7, tid2, LockMode.S, 100);
+            fail("expected timeout");
+        } catch (TimeoutException expected) {
+        }
+        // but an IS table lock plus a page lock on another page does not
+        lockManager.acquire(new HeapPageId(7, 2), tid2, true, 100);
+        assertEquals(LockMode.IS, lockManager.getTableMode(7, tid2));
+    }
+
+    /**
+     * A table lock covers the pages, no page locks are created.
+     */
+    @Test public void tableLockSkipsPageLocks() throws Exception {
+        lockManager.acquireTable(7, tid1, LockMode.S, 100);
+        for (int i = 0; i < 10; i++) {
+            PageId pid = new HeapPageId(7, i);
+            lockManager.acquire(pid, tid1, true, 100);
+            assertTrue(lockManager.isHoldLock(pid, tid1));
+        }
+        assertTrue(lockManager.getPagesByTxid(tid1).isEmpty());
+
+        // writing a page under a table S lock converts the table lock to SIX
+        PageId pid = new HeapPageId(7, 3);
+        lockManager.acquire(pid, tid1, false, 100);
+        assertEquals(LockMode.SIX, lockManager.getTableMode(7, tid1));
+        assertEquals(Set.of(pid), lockManager.getPagesByTxid(tid1));
+
+        try {
+            lockManager.acquire(new HeapPageId(7, 4), tid2, false, 100);
+            fail("expected timeout");
+        } catch (TimeoutException expected) {
+        }
+        lockManager.acquire(new HeapPageId(7, 4), tid2, true, 100);
+    }
+
+    @Test public void escalation() throws Exception {
+        lockManager.setEscalationThreshold(8);
+        for (int i = 0; i < 8; i++) {
+            lockManager.acquire(new HeapPageId(7, i), tid1, true, 100);
+        }
+        assertEquals(LockMode.IS, lockManager.getTableMode(7, tid1));
+        assertEquals(8, lockManager.getPagesByTxid(tid1).size());
+
+        lockManager.acquire(new HeapPageId(7, 8), tid1, true, 100);
+        assertEquals(LockMode.S, lockManager.getTableMode(7, tid1));
+        assertTrue(lockManager.getPagesByTxid(tid1).isEmpty());
+        assertTrue(lockManager.isHoldLock(new HeapPageId(7, 100), tid1));
+
+        // writers of the same table are kept out now
+        try {
+            lockManager.acquire(new HeapPageId(7, 100), tid2, false, 100);
+            fail("expected timeout");
+        } catch (TimeoutException expected) {
+        }
+        lockManager.releaseAll(tid1);
+        lockManager.acquire(new HeapPageId(7, 100), tid2, false, 100);
+    }
+
+    @Test public void escalationBlocked() throws Exception {
+        lockManager.setEscalationThreshold(4);
+        lockManager.acquire(new HeapPageId(7, 100), tid2, false, 100);
+        for (int i = 0; i < 10; i++) {
+            lockManager.acquire(new HeapPageId(7, i), tid1, true, 100);
+        }
+        // tid2 holds IX, so tid1 stays on page locks
+        assertEquals(LockMode.IS, lockManager.getTableMode(7, tid1));
+        assertEquals(10, lockManager.getPagesByTxid(tid1).size());
+    }
+
+    @Test public void contentionStats() throws Exception {
+        PageId pid = new HeapPageId(7, 3);
+        lockManager.acquire(pid, tid1, true, 100);
+        lockManager.acquire(pid, tid1, false, 100);
+        assertEquals(1, lockManager.getStats().get(pid).getUpgrades());
+        assertEquals(Map.of(tid1, LockMode.X), lockManager.getHolders(pid));
+
+        try {
+            lockManager.acquire(pid, tid2, true, 100);
+            fail("expected timeout");
+        } catch (TimeoutException expected) {
+        }
+        LockStats.ResourceStats stats = lockManager.getStats().get(pid);
+        assertEquals(1, stats.getWaits());
+        assertEquals(1, stats.getTimeouts());
+        assertTrue(stats.getWaitMillis() >= 100);
+        assertEquals(1, Arrays.stream(stats.getWaitHistogram()).sum());
+        assertTrue(stats.getWaiters().isEmpty());
+
+        // a request that waits shows up as waiter until it is granted
+        Thread waiter = new Thread(() -> {
+            try {
+                lockManager.acquire(pid, tid2, true, 0);
+            } catch (TimeoutException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        waiter.start();
+        while (lockManager.getWaiters(pid).isEmpty()) {
+            Thread.sleep(10);
+        }
+        assertEquals(Map.of(tid2, LockMode.S), lockManager.getWaiters(pid));
+        lockManager.releaseAll(tid1);
+        waiter.join();
+        assertTrue(lockManager.getWaiters(pid).isEmpty());
+        assertEquals(2, lockManager.getStats().getTotal().getWaits());
+
+        lockManager.acquire(new HeapPageId(7, 4), tid1, false, 100);
+        try {
+            lockManager.acquire(new HeapPageId(7, 4), tid2, false, 50);
+            fail("expected timeout");
+        } catch (TimeoutException expected) {
+        }
+        List<LockStats.ResourceStats> top = lockManager.getTopContendedPages(1);
+        assertEquals(pid, top.get(0).getResource());
+        assertTrue(lockManager.contentionReport(5).contains("page 3"));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
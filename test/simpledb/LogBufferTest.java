@@ -0,0 +1,134 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.transaction.Durability;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Records are appended to an in-memory buffer without a lock, and a flusher
+ * thread writes and forces them.
+ */
+public class LogBufferTest extends TestUtil.CreateHeapFile {
+    private static final int THREADS = 8;
+    private static final int COMMITS = 200;
+    // type, tid and start offset
+    private static final int RECORD_SIZE = 4 + 8 + 8;
+
+    private File logFile;
+    private HeapPageId pid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        logFile = File.createTempFile("buffer", ".log");
+        logFile.deleteOnExit();
+        pid = new HeapPageId(empty.getId(), 0);
+    }
+
+    @After public void tearDown() {
+        File[] segments = logFile.getParentFile().listFiles((dir, name) -> name.startsWith(logFile.getName()));
+        if (segments != null) {
+            for (File segment : segments) {
+                segment.delete();
+            }
+        }
+    }
+
+    @Test public void concurrentCommits() throws Exception {
+        LogFile log = new LogFile(logFile);
+        List<Thread> threads = new ArrayList<>();
+        List<Exception> failures = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            threads.add(new Thread(() -> {
+                try {
+                    for (int j = 0; j < COMMITS; j++) {
+                        TransactionId tid = new TransactionId();
+                        log.logXactionBegin(tid);
+                        log.logCommit(tid);
+                    }
+                } catch (Exception e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.size());
+        // 每条记录都完整地占了自己的位置
+        assertEquals((long) THREADS * COMMITS * 2 * RECORD_SIZE, log.getLogSize());
+
+        // 提交过的修改在并发提交之后还能恢复
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        HeapPage before = page.getBeforeImage();
+        page.insertTuple(Utility.getHeapTuple(1, 2));
+        log.logWrite(tid, before, page);
+        log.logCommit(tid);
+        new LogFile(logFile).recover();
+        HeapPage recovered = (HeapPage) empty.readPage(pid);
+        assertEquals(page.getNumSlots() - 1, recovered.getNumEmptySlots());
+    }
+
+    @Test public void durableFuture() throws Exception {
+        LogFile log = new LogFile(logFile);
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        HeapPage before = page.getBeforeImage();
+        page.insertTuple(Utility.getHeapTuple(1, 2));
+        long lsn = log.logWrite(tid, before, page);
+        log.durableFuture(lsn).get(10, TimeUnit.SECONDS);
+        // 已经在盘上的记录不用再等
+        assertTrue(log.durableFuture(lsn).isDone());
+        // 这个日志里还没有的 LSN 也不用等
+        assertTrue(log.durableFuture(Long.MAX_VALUE - 1).isDone());
+    }
+
+    @Test public void commitDurabilityLevels() throws Exception {
+        LogFile log = new LogFile(logFile);
+        log.setGroupCommitDelay(5);
+        log.setAsyncCommitDelay(20);
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        long lsn = 0;
+        for (Durability durability : Durability.values()) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            HeapPage before = page.getBeforeImage();
+            page.insertTuple(Utility.getHeapTuple(durability.ordinal(), 2));
+            log.logWrite(tid, before, page);
+            page.setBeforeImage();
+            lsn = log.logCommit(tid, durability);
+        }
+        // 异步提交不等 force，但 flusher 会在期限内把它写到盘上
+        log.durableFuture(lsn).get(10, TimeUnit.SECONDS);
+
+        new LogFile(logFile).recover();
+        HeapPage recovered = (HeapPage) empty.readPage(pid);
+        assertEquals(page.getNumSlots() - Durability.values().length, recovered.getNumEmptySlots());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogBufferTest.class);
+    }
+}
@@ -0,0 +1,108 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Decoding committed row changes from the log.
+ */
+public class LogChangeReaderTest extends TestUtil.CreateHeapFile {
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // 新的日志，之前的测试留下的记录不算
+        Database.getLogFile().logCheckpoint();
+    }
+
+    private Tuple insert(Transaction t, int value) throws Exception {
+        Tuple tuple = Utility.getHeapTuple(value, 2);
+        Database.getBufferPool().insertTuple(t.getId(), empty.getId(), tuple);
+        return tuple;
+    }
+
+    private List<String> drain(LogChangeReader reader) throws Exception {
+        List<String> events = new ArrayList<>();
+        while (reader.hasNext()) {
+            ChangeEvent e = reader.next();
+            assertEquals(empty.getId(), e.getTableId());
+            events.add(e.getKind() + " " + e.getTuple().getField(0));
+        }
+        return events;
+    }
+
+    @Test public void committedChangesOnly() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, 1);
+        Tuple two = insert(t1, 2);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t2, 3);
+        Database.getBufferPool().flushAllPages();
+        t2.abort();
+
+        Transaction t3 = new Transaction();
+        t3.start();
+        Database.getBufferPool().deleteTuple(t3.getId(), two);
+        insert(t3, 4);
+        t3.commit();
+
+        LogChangeReader reader = new LogChangeReader(Database.getLogFile(), LogChangeReader.Position.START);
+        List<String> events = drain(reader);
+        assertEquals(events.toString(), 4, events.size());
+        assertEquals("INSERT 1", events.get(0));
+        assertEquals("INSERT 2", events.get(1));
+        assertTrue(events.contains("DELETE 2"));
+        assertTrue(events.contains("INSERT 4"));
+        assertFalse(events.contains("INSERT 3"));
+    }
+
+    @Test public void tailAndResume() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, 1);
+        t1.commit();
+
+        LogChangeReader reader = new LogChangeReader(Database.getLogFile(), LogChangeReader.Position.START);
+        assertEquals(1, drain(reader).size());
+        assertFalse(reader.hasNext());
+
+        // 之后提交的修改，同一个 reader 接着读到
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t2, 2);
+        t2.commit();
+        List<String> events = drain(reader);
+        assertEquals(1, events.size());
+        assertEquals("INSERT 2", events.get(0));
+
+        // 从记下的位置开始的新 reader 只读到之后的修改
+        LogChangeReader.Position position = LogChangeReader.Position.parse(reader.getPosition().toString());
+        Transaction t3 = new Transaction();
+        t3.start();
+        insert(t3, 3);
+        t3.commit();
+        events = drain(new LogChangeReader(Database.getLogFile(), position));
+        assertEquals(1, events.size());
+        assertEquals("INSERT 3", events.get(0));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogChangeReaderTest.class);
+    }
+}
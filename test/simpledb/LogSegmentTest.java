@@ -0,0 +1,106 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * The log is split into segment files, and checkpoints drop the segments
+ * that are no longer needed without rewriting the rest.
+ */
+public class LogSegmentTest extends TestUtil.CreateHeapFile {
+    private File logFile;
+    private HeapPageId pid;
+    private HeapPage page;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        logFile = File.createTempFile("segments", ".log");
+        logFile.deleteOnExit();
+        pid = new HeapPageId(empty.getId(), 0);
+        page = new HeapPage(pid, HeapPage.createEmptyPageData());
+    }
+
+    @After public void tearDown() {
+        File[] segments = logFile.getParentFile().listFiles((dir, name) -> name.startsWith(logFile.getName()));
+        if (segments != null) {
+            for (File segment : segments) {
+                segment.delete();
+            }
+        }
+    }
+
+    /**
+     * Log an insert into the page by a transaction of its own.
+     */
+    private void insert(LogFile log, int value, boolean commit) throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        HeapPage before = page.getBeforeImage();
+        page.insertTuple(Utility.getHeapTuple(value, 2));
+        log.logWrite(tid, before, page);
+        log.pageWritten(pid);
+        page.setBeforeImage();
+        if (commit) {
+            log.logCommit(tid);
+        }
+    }
+
+    @Test public void checkpointArchivesOldSegments() throws Exception {
+        File archive = Files.createTempDirectory("archive").toFile();
+        LogFile log = new LogFile(logFile, 4 * BufferPool.getPageSize());
+        log.setArchiveDirectory(archive);
+        for (int i = 0; i < 50; i++) {
+            insert(log, i, true);
+            // 检查点之后的第一次修改带完整的页，日志每次都长一页多
+            log.logCheckpoint();
+        }
+        assertTrue(log.getNumSegments() <= 2);
+        assertTrue(log.getLogSize() <= 8 * BufferPool.getPageSize());
+        String[] archived = archive.list();
+        assertNotNull(archived);
+        assertTrue(archived.length > 5);
+        for (String name : archived) {
+            new File(archive, name).delete();
+        }
+        archive.delete();
+    }
+
+    @Test public void recoverAcrossSegments() throws Exception {
+        LogFile log = new LogFile(logFile, 256);
+        for (int i = 0; i < 20; i++) {
+            insert(log, i, true);
+        }
+        insert(log, 20, false);
+        assertTrue(log.getNumSegments() > 1);
+
+        // 重新打开日志并恢复，页只写在日志里
+        LogFile reopened = new LogFile(logFile, 256);
+        reopened.recover();
+        HeapPage recovered = (HeapPage) empty.readPage(pid);
+        assertEquals(page.getNumSlots() - 20, recovered.getNumEmptySlots());
+
+        // 恢复之后接着写的日志还能再恢复一次
+        page = recovered;
+        insert(reopened, 21, true);
+        new LogFile(logFile, 256).recover();
+        recovered = (HeapPage) empty.readPage(pid);
+        assertEquals(page.getNumSlots() - 21, recovered.getNumEmptySlots());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogSegmentTest.class);
+    }
+}
@@ -0,0 +1,99 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compares 2PL with optimistic transactions over a range of contention. Every
+ * worker runs short transactions that read a few random pages of one table and
+ * write one of them. Fewer pages mean more conflicts.
+ * <p>
+ * Usage: java simpledb.OptimisticBenchmark [durationMs] [threads] [readsPerTxn]
+ */
+public class OptimisticBenchmark {
+
+    private static final int[] PAGES = {1, 4, 16, 64, 256};
+
+    public static void main(String[] args) throws Exception {
+        long durationMs = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int readsPerTxn = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        System.out.printf("%6s %12s %8s %12s %8s%n", "pages", "2PL", "aborts", "OCC", "aborts");
+        for (int numPages : PAGES) {
+            long[] locking = run(false, numPages, threads, durationMs, readsPerTxn);
+            long[] optimistic = run(true, numPages, threads, durationMs, readsPerTxn);
+            System.out.printf("%6d %10.0f/s %8d %10.0f/s %8d%n", numPages,
+                    locking[0] * 1000.0 / durationMs, locking[1],
+                    optimistic[0] * 1000.0 / durationMs, optimistic[1]);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * @return committed and aborted transactions
+     */
+    static long[] run(boolean optimistic, int numPages, int threads, long durationMs,
+                      int readsPerTxn) throws Exception {
+        Database.reset();
+        File file = File.createTempFile("occbench", ".dat");
+        file.deleteOnExit();
+        HeapFile table = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        for (int i = 1; i < numPages; i++) {
+            HeapPageId pid = new HeapPageId(table.getId(), i);
+            table.writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+        }
+
+        LongAdder commits = new LongAdder();
+        LongAdder aborts = new LongAdder();
+        CountDownLatch done = new CountDownLatch(threads);
+        long deadline = System.currentTimeMillis() + durationMs;
+        for (int i = 0; i < threads; i++) {
+            new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    while (System.currentTimeMillis() < deadline) {
+                        Transaction t = new Transaction();
+                        t.setOptimistic(optimistic);
+                        t.start();
+                        try {
+                            for (int j = 0; j < readsPerTxn; j++) {
+                                PageId pid = new HeapPageId(table.getId(), random.nextInt(numPages));
+                                Database.getBufferPool().getPage(t.getId(), pid, Permissions.READ_ONLY);
+                            }
+                            PageId pid = new HeapPageId(table.getId(), random.nextInt(numPages));
+                            Database.getBufferPool().getPage(t.getId(), pid, Permissions.READ_WRITE)
+                                    .markDirty(true, t.getId());
+                            if (t.tryCommit()) {
+                                commits.increment();
+                            } else {
+                                aborts.increment();
+                            }
+                        } catch (TransactionAbortedException e) {
+                            t.abort();
+                            aborts.increment();
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        return new long[]{commits.sum(), aborts.sum()};
+    }
+}
@@ -0,0 +1,112 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Optimistic transactions are validated at commit and do not take locks
+ * before that.
+ */
+public class OptimisticTransactionTest extends TestUtil.CreateHeapFile {
+    private PageId p0;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        p0 = new HeapPageId(empty.getId(), 0);
+        TransactionId tid = new TransactionId();
+        bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(new int[]{1, 1}));
+        bp.transactionComplete(tid, true);
+    }
+
+    @Test public void writesArePrivateUntilCommit() throws Exception {
+        TransactionId occ = new TransactionId();
+        bp.beginOptimistic(occ);
+        bp.insertTuple(occ, empty.getId(), Utility.getHeapTuple(new int[]{2, 2}));
+        assertEquals(List.of(1, 2), scan(occ));
+        assertFalse(bp.holdsLock(occ, p0));
+
+        // a 2PL reader neither sees the write nor blocks on it
+        TransactionId reader = new TransactionId();
+        assertEquals(List.of(1), scan(reader));
+        bp.transactionComplete(reader, true);
+
+        assertTrue(bp.commitOptimistic(occ));
+        bp.transactionComplete(occ, true);
+        assertFalse(bp.isOptimistic(occ));
+        assertEquals(List.of(1, 2), scan(new TransactionId()));
+    }
+
+    @Test public void conflictingCommitFailsValidation() throws Exception {
+        TransactionId occ = new TransactionId();
+        bp.beginOptimistic(occ);
+        assertEquals(List.of(1), scan(occ));
+
+        TransactionId writer = new TransactionId();
+        bp.insertTuple(writer, empty.getId(), Utility.getHeapTuple(new int[]{3, 3}));
+        bp.transactionComplete(writer, true);
+
+        assertFalse(bp.commitOptimistic(occ));
+        bp.transactionComplete(occ, false);
+    }
+
+    @Test public void firstCommitterWins() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.setOptimistic(true);
+        t1.start();
+        Transaction t2 = new Transaction();
+        t2.setOptimistic(true);
+        t2.start();
+        bp.insertTuple(t1.getId(), empty.getId(), Utility.getHeapTuple(new int[]{4, 4}));
+        bp.insertTuple(t2.getId(), empty.getId(), Utility.getHeapTuple(new int[]{5, 5}));
+
+        assertTrue(t1.tryCommit());
+        assertFalse(t2.tryCommit());
+        assertEquals(List.of(1, 4), scan(new TransactionId()));
+    }
+
+    @Test public void lockedPageFailsValidation() throws Exception {
+        TransactionId occ = new TransactionId();
+        bp.beginOptimistic(occ);
+        bp.insertTuple(occ, empty.getId(), Utility.getHeapTuple(new int[]{2, 2}));
+
+        TransactionId locker = new TransactionId();
+        bp.getPage(locker, p0, Permissions.READ_ONLY);
+        assertFalse(bp.commitOptimistic(occ));
+        bp.transactionComplete(occ, false);
+        bp.transactionComplete(locker, true);
+        assertEquals(List.of(1), scan(new TransactionId()));
+    }
+
+    private List<Integer> scan(TransactionId tid) throws Exception {
+        SeqScan scan = new SeqScan(tid, empty.getId());
+        List<Integer> values = new ArrayList<>();
+        scan.open();
+        while (scan.hasNext()) {
+            values.add(((IntField) scan.next().getField(0)).getValue());
+        }
+        scan.close();
+        return values;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OptimisticTransactionTest.class);
+    }
+}
@@ -0,0 +1,142 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Transactions working on the same page of a table with record-level
+ * locking.
+ */
+public class RecordLockingTest extends TestUtil.CreateHeapFile {
+    private PageId p0;
+    private TransactionId tid1, tid2;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        empty.setRecordLocking(true);
+
+        // two committed tuples on page 0
+        TransactionId tid = new TransactionId();
+        bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(new int[]{1, 1}));
+        bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(new int[]{2, 2}));
+        bp.transactionComplete(tid, true);
+
+        p0 = new HeapPageId(empty.getId(), 0);
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+    }
+
+    @Test public void concurrentInsertsOnOnePage() throws Exception {
+        bp.insertTuple(tid1, empty.getId(), Utility.getHeapTuple(new int[]{3, 3}));
+        bp.insertTuple(tid2, empty.getId(), Utility.getHeapTuple(new int[]{4, 4}));
+        assertEquals(1, empty.numPages());
+
+        bp.transactionComplete(tid1, false);
+        bp.transactionComplete(tid2, true);
+        assertEquals(List.of(1, 2, 4), onDisk());
+    }
+
+    @Test public void deleteNextToInsert() throws Exception {
+        Tuple first = scan(tid1).get(0);
+        bp.deleteTuple(tid1, first);
+        Tuple inserted = Utility.getHeapTuple(new int[]{5, 5});
+        bp.insertTuple(tid2, empty.getId(), inserted);
+        // the slot of the uncommitted delete is not reused
+        assertEquals(p0, inserted.getRecordId().getPageId());
+        assertNotEquals(first.getRecordId(), inserted.getRecordId());
+
+        // the committed image of tid2 still has the deleted tuple
+        bp.transactionComplete(tid2, true);
+        assertEquals(List.of(1, 2, 5), onDisk());
+
+        bp.transactionComplete(tid1, true);
+        assertEquals(List.of(2, 5), onDisk());
+    }
+
+    @Test public void abortKeepsOtherChanges() throws Exception {
+        Tuple second = scan(tid2).get(1);
+        bp.deleteTuple(tid2, second);
+        bp.insertTuple(tid1, empty.getId(), Utility.getHeapTuple(new int[]{3, 3}));
+
+        bp.transactionComplete(tid2, false);
+        HeapPage page = (HeapPage) bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        assertEquals(tid1, page.isDirty());
+        assertEquals(List.of(1, 2, 3), values(scan(tid1)));
+
+        bp.transactionComplete(tid1, true);
+        assertNull(page.isDirty());
+        assertEquals(List.of(1, 2, 3), onDisk());
+    }
+
+    /**
+     * A reader blocks on the uncommitted insert but not on committed rows
+     * of the same page.
+     */
+    @Test public void readerBlocksOnUncommittedInsert() throws Exception {
+        Tuple inserted = Utility.getHeapTuple(new int[]{3, 3});
+        bp.insertTuple(tid1, empty.getId(), inserted);
+
+        Tuple committed = scan(tid1).get(0);
+        bp.lockRecord(tid2, committed.getRecordId(), Permissions.READ_ONLY);
+        assertTrue(bp.holdsLock(tid2, committed.getRecordId()));
+        assertFalse(bp.tryLockRecord(tid2, inserted.getRecordId(), Permissions.READ_ONLY));
+        try {
+            scan(tid2);
+            fail("expected abort");
+        } catch (TransactionAbortedException expected) {
+        }
+        bp.transactionComplete(tid2, false);
+
+        bp.transactionComplete(tid1, true);
+        TransactionId tid3 = new TransactionId();
+        assertEquals(List.of(1, 2, 3), values(scan(tid3)));
+    }
+
+    private List<Tuple> scan(TransactionId tid) throws Exception {
+        SeqScan scan = new SeqScan(tid, empty.getId());
+        List<Tuple> tuples = new ArrayList<>();
+        scan.open();
+        while (scan.hasNext()) {
+            tuples.add(scan.next());
+        }
+        scan.close();
+        return tuples;
+    }
+
+    private List<Integer> onDisk() {
+        HeapPage page = (HeapPage) empty.readPage(p0);
+        List<Tuple> tuples = new ArrayList<>();
+        page.iterator().forEachRemaining(tuples::add);
+        return values(tuples);
+    }
+
+    private static List<Integer> values(List<Tuple> tuples) {
+        List<Integer> values = new ArrayList<>();
+        for (Tuple t : tuples) {
+            values.add(((IntField) t.getField(0)).getValue());
+        }
+        return values;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RecordLockingTest.class);
+    }
+}
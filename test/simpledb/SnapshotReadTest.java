@@ -0,0 +1,114 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Snapshot readers see the last commit before they began and do not block
+ * writers.
+ */
+public class SnapshotReadTest extends TestUtil.CreateHeapFile {
+    private PageId p0;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        p0 = new HeapPageId(empty.getId(), 0);
+        insertAndCommit(1);
+    }
+
+    @Test public void readerSeesSnapshot() throws Exception {
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        assertEquals(List.of(1), scan(reader));
+
+        // the writer is not blocked by the reader
+        TransactionId writer = new TransactionId();
+        bp.insertTuple(writer, empty.getId(), Utility.getHeapTuple(new int[]{2, 2}));
+        assertEquals(List.of(1), scan(reader));
+        bp.transactionComplete(writer, true);
+        insertAndCommit(3);
+        assertEquals(List.of(1), scan(reader));
+
+        TransactionId later = new TransactionId();
+        bp.beginSnapshot(later);
+        assertEquals(List.of(1, 2, 3), scan(later));
+
+        bp.transactionComplete(reader, true);
+        bp.transactionComplete(later, true);
+        assertFalse(bp.isSnapshot(reader));
+    }
+
+    @Test public void readerDoesNotSeeStolenPage() throws Exception {
+        TransactionId writer = new TransactionId();
+        bp.insertTuple(writer, empty.getId(), Utility.getHeapTuple(new int[]{2, 2}));
+        bp.flushAllPages();
+
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        assertEquals(List.of(1), scan(reader));
+
+        bp.transactionComplete(writer, true);
+        assertEquals(List.of(1), scan(reader));
+        bp.transactionComplete(reader, true);
+
+        TransactionId later = new TransactionId();
+        bp.beginSnapshot(later);
+        assertEquals(List.of(1, 2), scan(later));
+    }
+
+    @Test public void readOnlyTransaction() throws Exception {
+        Transaction t = new Transaction();
+        t.setReadOnly(true);
+        t.start();
+        try {
+            bp.getPage(t.getId(), p0, Permissions.READ_WRITE);
+            fail("expected DbException");
+        } catch (DbException expected) {
+        }
+        assertEquals(List.of(1), scan(t.getId()));
+        // no locks are taken
+        assertFalse(bp.holdsLock(t.getId(), p0));
+        t.commit();
+        assertFalse(bp.isSnapshot(t.getId()));
+    }
+
+    private void insertAndCommit(int value) throws Exception {
+        TransactionId tid = new TransactionId();
+        bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(new int[]{value, value}));
+        bp.transactionComplete(tid, true);
+    }
+
+    private List<Integer> scan(TransactionId tid) throws Exception {
+        SeqScan scan = new SeqScan(tid, empty.getId());
+        List<Integer> values = new ArrayList<>();
+        scan.open();
+        while (scan.hasNext()) {
+            values.add(((IntField) scan.next().getField(0)).getValue());
+        }
+        scan.close();
+        return values;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotReadTest.class);
+    }
+}
@@ -0,0 +1,203 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapFileEncoder;
+import simpledb.storage.HeapPage;
+import simpledb.storage.IntField;
+import simpledb.storage.RecordId;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Operators give the same rows through {@link OpIterator#nextBatch} as
+ * through next().
+ */
+public class BatchTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 5000;
+
+    private HeapFile createTable(int rows, int maxValue, List<List<Integer>> tuples) throws IOException {
+        return SystemTestUtil.createRandomHeapFile(3, rows, maxValue, new HashMap<>(), tuples);
+    }
+
+    private static List<List<Integer>> rows(OpIterator it) throws DbException, TransactionAbortedException {
+        List<List<Integer>> rows = new ArrayList<>();
+        it.open();
+        while (it.hasNext()) {
+            rows.add(SystemTestUtil.tupleToList(it.next()));
+        }
+        it.close();
+        return rows;
+    }
+
+    @Test public void scan() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile table = createTable(ROWS, 1000, tuples);
+        TransactionId tid = new TransactionId();
+        SystemTestUtil.matchTuples(new BatchAdapter(new SeqScan(tid, table.getId())), tuples);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void filterAndProject() throws Exception {
+        HeapFile table = createTable(ROWS, 1000, new ArrayList<>());
+        TransactionId tid = new TransactionId();
+        for (Predicate.Op op : Predicate.Op.values()) {
+            Predicate p = new Predicate(1, op, new IntField(500));
+            List<List<Integer>> expected = rows(new Filter(p, new SeqScan(tid, table.getId())));
+            SystemTestUtil.matchTuples(new BatchAdapter(new Filter(p, new SeqScan(tid, table.getId()))), expected);
+
+            List<Integer> fields = Arrays.asList(2, 0);
+            List<Type> types = Arrays.asList(Type.INT_TYPE, Type.INT_TYPE);
+            expected = rows(new Project(fields, types, new Filter(p, new SeqScan(tid, table.getId()))));
+            SystemTestUtil.matchTuples(new BatchAdapter(
+                    new Project(fields, types, new Filter(p, new SeqScan(tid, table.getId())))), expected);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void aggregate() throws Exception {
+        HeapFile table = createTable(ROWS, 50, new ArrayList<>());
+        TransactionId tid = new TransactionId();
+        for (Aggregator.Op op : new Aggregator.Op[]{Aggregator.Op.MIN, Aggregator.Op.MAX,
+                Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.COUNT}) {
+            for (int group : new int[]{Aggregator.NO_GROUPING, 0}) {
+                // 参照按行一个个 merge
+                Aggregator agg = new IntegerAggregator(group, group == Aggregator.NO_GROUPING ? null : Type.INT_TYPE, 1, op);
+                SeqScan scan = new SeqScan(tid, table.getId());
+                scan.open();
+                while (scan.hasNext()) {
+                    agg.mergeTupleIntoGroup(scan.next());
+                }
+                scan.close();
+                List<List<Integer>> expected = rows(agg.iterator());
+                SystemTestUtil.matchTuples(new BatchAdapter(
+                        new Aggregate(new SeqScan(tid, table.getId()), 1, group, op)), expected);
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void hashJoin() throws Exception {
+        HeapFile left = createTable(2000, 500, new ArrayList<>());
+        HeapFile right = createTable(3000, 500, new ArrayList<>());
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+        List<List<Integer>> expected = rows(new HashEquiJoin(p,
+                new SeqScan(tid, left.getId()), new SeqScan(tid, right.getId())));
+        assertFalse(expected.isEmpty());
+        SystemTestUtil.matchTuples(new BatchAdapter(new HashEquiJoin(p,
+                new SeqScan(tid, left.getId()), new SeqScan(tid, right.getId()))), expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void rewind() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile table = createTable(ROWS, 1000, tuples);
+        TransactionId tid = new TransactionId();
+        Filter filter = new Filter(new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(-1)),
+                new SeqScan(tid, table.getId()));
+        filter.open();
+        int first = 0;
+        for (TupleBatch b = filter.nextBatch(); b != null; b = filter.nextBatch()) {
+            assertTrue(b.numSelected() > 0);
+            first += b.numSelected();
+        }
+        assertEquals(ROWS, first);
+        filter.rewind();
+        int second = 0;
+        for (TupleBatch b = filter.nextBatch(); b != null; b = filter.nextBatch()) {
+            second += b.numSelected();
+        }
+        assertEquals(ROWS, second);
+        filter.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void batchReused() throws Exception {
+        HeapFile table = createTable(ROWS, 1000, new ArrayList<>());
+        TransactionId tid = new TransactionId();
+        // Limit 没有自己的 nextBatch，用 Operator 的
+        OpIterator[] ops = {new Limit(ROWS - 10, 0, new SeqScan(tid, table.getId())),
+                new BatchAdapter(new SeqScan(tid, table.getId()))};
+        for (OpIterator op : ops) {
+            op.open();
+            TupleBatch first = op.nextBatch();
+            int rows = first.numSelected();
+            for (TupleBatch b = op.nextBatch(); b != null; b = op.nextBatch()) {
+                assertSame(first, b);
+                rows += b.numSelected();
+            }
+            op.close();
+            assertEquals(op instanceof Limit ? ROWS - 10 : ROWS, rows);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void scanFromPageBytes() throws Exception {
+        File text = File.createTempFile("batch", ".txt");
+        text.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(text)) {
+            for (int i = 0; i < ROWS; i++) {
+                out.println(i + ",s" + i + "," + 2 * i);
+            }
+        }
+        File data = File.createTempFile("batch", ".dat");
+        data.deleteOnExit();
+        Type[] types = {Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE};
+        HeapFileEncoder.convert(text, data, BufferPool.getPageSize(), types.length, types);
+        HeapFile table = new HeapFile(data, new TupleDesc(types));
+        Database.getCatalog().addTable(table, "batch");
+
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, table.getId());
+        try {
+            scan.nextBatch();
+            fail("scan is not open");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        // 页刚从磁盘读进来，字段直接从页的字节读到列里
+        scan.open();
+        int rows = 0;
+        for (TupleBatch b = scan.nextBatch(); b != null; b = scan.nextBatch()) {
+            for (int i = 0; i < b.numSelected(); i++) {
+                int row = b.getSelection()[i];
+                int key = b.getIntColumn(0)[row];
+                assertEquals("s" + key, b.getStringColumn(1)[row]);
+                assertEquals(2 * key, b.getIntColumn(2)[row]);
+                RecordId rid = b.getRecordId(row);
+                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_ONLY);
+                assertEquals(new IntField(key), page.getTuple(rid.getTupleNumber()).getField(0));
+                rows++;
+            }
+        }
+        assertEquals(ROWS, rows);
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Make test compatible with older version of ant.
+     */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BatchTest.class);
+    }
+}
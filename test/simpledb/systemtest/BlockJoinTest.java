@@ -0,0 +1,136 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.Join;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * The nested-loops join scans child2 once per block of child1.
+ */
+public class BlockJoinTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    private List<List<Integer>> t1Tuples;
+    private List<List<Integer>> t2Tuples;
+    private HeapFile table1;
+    private HeapFile table2;
+
+    private void createTables(int rows1, int rows2, int maxValue) throws Exception {
+        t1Tuples = new ArrayList<>();
+        table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, rows1, maxValue, new HashMap<>(), t1Tuples);
+        t2Tuples = new ArrayList<>();
+        table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, rows2, maxValue, new HashMap<>(), t2Tuples);
+    }
+
+    private List<List<Integer>> expected(Predicate.Op op) {
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t1 : t1Tuples) {
+            for (List<Integer> t2 : t2Tuples) {
+                int a = t1.get(1), b = t2.get(0);
+                boolean match;
+                switch (op) {
+                    case EQUALS: match = a == b; break;
+                    case NOT_EQUALS: match = a != b; break;
+                    case LESS_THAN: match = a < b; break;
+                    case LESS_THAN_OR_EQ: match = a <= b; break;
+                    case GREATER_THAN: match = a > b; break;
+                    default: match = a >= b; break;
+                }
+                if (match) {
+                    List<Integer> out = new ArrayList<>(t1);
+                    out.addAll(t2);
+                    expected.add(out);
+                }
+            }
+        }
+        return expected;
+    }
+
+    private static int count(Join join) throws Exception {
+        join.open();
+        int count = 0;
+        while (join.hasNext()) {
+            join.next();
+            count++;
+        }
+        join.close();
+        return count;
+    }
+
+    @Test public void allOperators() throws Exception {
+        createTables(120, 60, 50);
+        TransactionId tid = new TransactionId();
+        for (Predicate.Op op : new Predicate.Op[]{Predicate.Op.EQUALS, Predicate.Op.NOT_EQUALS,
+                Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+                Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ}) {
+            for (long budget : new long[]{8, 64 * 8, Join.getDefaultMemoryBudget()}) {
+                Join join = new Join(new JoinPredicate(1, op, 0),
+                        new SeqScan(tid, table1.getId()), new SeqScan(tid, table2.getId()));
+                join.setMemoryBudget(budget);
+                SystemTestUtil.matchTuples(join, expected(op));
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void innerScannedOncePerBlock() throws Exception {
+        createTables(3000, 500, 1000);
+        TransactionId tid = new TransactionId();
+        Join join = new Join(new JoinPredicate(1, Predicate.Op.LESS_THAN, 0),
+                new SeqScan(tid, table1.getId()), new SeqScan(tid, table2.getId()));
+        join.setBlockPages(1);
+        int expected = expected(Predicate.Op.LESS_THAN).size();
+        assertEquals(expected, count(join));
+        int perPage = BufferPool.getPageSize() / (COLUMNS * 4);
+        assertEquals((3000 + perPage - 1) / perPage, join.getInnerScans());
+
+        join = new Join(new JoinPredicate(1, Predicate.Op.LESS_THAN, 0),
+                new SeqScan(tid, table1.getId()), new SeqScan(tid, table2.getId()));
+        assertEquals(expected, count(join));
+        assertEquals(1, join.getInnerScans());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void rewind() throws Exception {
+        createTables(500, 200, 100);
+        int expected = expected(Predicate.Op.GREATER_THAN_OR_EQ).size();
+        TransactionId tid = new TransactionId();
+        for (long budget : new long[]{100 * 8, Join.getDefaultMemoryBudget()}) {
+            Join join = new Join(new JoinPredicate(1, Predicate.Op.GREATER_THAN_OR_EQ, 0),
+                    new SeqScan(tid, table1.getId()), new SeqScan(tid, table2.getId()));
+            join.setMemoryBudget(budget);
+            join.open();
+            for (int pass = 0; pass < 2; pass++) {
+                int count = 0;
+                while (join.hasNext()) {
+                    join.next();
+                    count++;
+                }
+                assertEquals(expected, count);
+                join.rewind();
+            }
+            join.close();
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Make test compatible with older version of ant.
+     */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BlockJoinTest.class);
+    }
+}
@@ -0,0 +1,197 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.OrderBy;
+import simpledb.execution.SeqScan;
+import simpledb.execution.SortOrder;
+import simpledb.storage.HeapFile;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * OrderBy sorts in memory or with sorted runs on disk, with the same result.
+ */
+public class ExternalSortTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 3;
+
+    private List<List<Integer>> tuples;
+    private HeapFile table;
+
+    private void createTable(int rows, int maxValue) throws Exception {
+        tuples = new ArrayList<>();
+        table = SystemTestUtil.createRandomHeapFile(COLUMNS, rows, maxValue, new HashMap<>(), tuples);
+    }
+
+    private List<List<Integer>> expected(int[] fields, boolean[] ascs) {
+        List<List<Integer>> expected = new ArrayList<>(tuples);
+        // List.sort 是稳定的，OrderBy 也应该是
+        expected.sort((a, b) -> {
+            for (int i = 0; i < fields.length; i++) {
+                int c = Integer.compare(a.get(fields[i]), b.get(fields[i]));
+                if (c != 0) {
+                    return ascs[i] ? c : -c;
+                }
+            }
+            return 0;
+        });
+        return expected;
+    }
+
+    private static List<List<Integer>> read(OrderBy sort) throws Exception {
+        List<List<Integer>> result = new ArrayList<>();
+        while (sort.hasNext()) {
+            result.add(SystemTestUtil.tupleToList(sort.next()));
+        }
+        return result;
+    }
+
+    private void checkSort(int[] fields, boolean[] ascs, long budget, int threads, boolean spills)
+            throws Exception {
+        TransactionId tid = new TransactionId();
+        OrderBy sort = new OrderBy(fields, ascs, new SeqScan(tid, table.getId()));
+        sort.setMemoryBudget(budget);
+        sort.setParallelism(threads);
+        sort.open();
+        assertEquals(expected(fields, ascs), read(sort));
+        assertEquals(spills, sort.getSpillStats().hasSpilled());
+        sort.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void inMemory() throws Exception {
+        createTable(2000, 100);
+        checkSort(new int[]{1}, new boolean[]{true}, OrderBy.getDefaultMemoryBudget(), 1, false);
+        checkSort(new int[]{1}, new boolean[]{false}, OrderBy.getDefaultMemoryBudget(), 1, false);
+    }
+
+    @Test public void spill() throws Exception {
+        createTable(5000, 100);
+        // 每个 run 大约 100 个 tuple，一趟就能归并完
+        long budget = 100 * (COLUMNS * 4 + 64);
+        checkSort(new int[]{0}, new boolean[]{true}, budget, 1, true);
+        checkSort(new int[]{2}, new boolean[]{false}, budget, 1, true);
+    }
+
+    @Test public void multiPassMerge() throws Exception {
+        createTable(3000, 1000);
+        TransactionId tid = new TransactionId();
+        OrderBy sort = new OrderBy(0, true, new SeqScan(tid, table.getId()));
+        // 预算小于一个读缓冲区，每次只能归并两个 run
+        sort.setMemoryBudget(1000);
+        sort.open();
+        assertEquals(expected(new int[]{0}, new boolean[]{true}), read(sort));
+        assertTrue(sort.getSpillStats().getDepth() > 1);
+        assertTrue(sort.getSpillStats().getPasses() > 0);
+        sort.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void multipleFields() throws Exception {
+        createTable(3000, 10);
+        int[] fields = {1, 0, 2};
+        boolean[] ascs = {true, false, true};
+        checkSort(fields, ascs, OrderBy.getDefaultMemoryBudget(), 1, false);
+        checkSort(fields, ascs, 200 * (COLUMNS * 4 + 64), 1, true);
+    }
+
+    @Test public void parallelRuns() throws Exception {
+        createTable(6000, 50);
+        int[] fields = {2, 1};
+        boolean[] ascs = {false, true};
+        for (int threads : new int[]{2, 4}) {
+            checkSort(fields, ascs, 400 * (COLUMNS * 4 + 64), threads, true);
+        }
+        // 放得下就还是在内存里排
+        checkSort(fields, ascs, OrderBy.getDefaultMemoryBudget(), 4, false);
+    }
+
+    @Test public void stable() throws Exception {
+        createTable(4000, 5);
+        checkSort(new int[]{0}, new boolean[]{true}, OrderBy.getDefaultMemoryBudget(), 1, false);
+        checkSort(new int[]{0}, new boolean[]{true}, 150 * (COLUMNS * 4 + 64), 1, true);
+        checkSort(new int[]{0}, new boolean[]{true}, 150 * (COLUMNS * 4 + 64), 3, true);
+    }
+
+    @Test public void rewindAndReopen() throws Exception {
+        createTable(2000, 300);
+        List<List<Integer>> expected = expected(new int[]{1}, new boolean[]{true});
+        TransactionId tid = new TransactionId();
+        for (long budget : new long[]{100 * (COLUMNS * 4 + 64), OrderBy.getDefaultMemoryBudget()}) {
+            OrderBy sort = new OrderBy(1, true, new SeqScan(tid, table.getId()));
+            sort.setMemoryBudget(budget);
+            sort.open();
+            assertEquals(expected, read(sort));
+            sort.rewind();
+            assertEquals(expected, read(sort));
+            sort.close();
+            sort.open();
+            assertEquals(expected, read(sort));
+            sort.close();
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static int countSpillFiles() {
+        String[] files = new File(System.getProperty("java.io.tmpdir"))
+                .list((dir, name) -> name.startsWith("spill") && name.endsWith(".tmp"));
+        return files == null ? 0 : files.length;
+    }
+
+    @Test public void failureDeletesRuns() throws Exception {
+        createTable(6000, 50);
+        int before = countSpillFiles();
+        TransactionId tid = new TransactionId();
+        for (int threads : new int[]{1, 4}) {
+            // 读到一半出错，已经写出的 run 都要删掉
+            SeqScan failing = new SeqScan(tid, table.getId()) {
+                private static final long serialVersionUID = 1L;
+                private int read = 0;
+
+                @Override
+                public Tuple next() throws DbException, simpledb.transaction.TransactionAbortedException {
+                    if (++read > 5000) {
+                        throw new DbException("read failed");
+                    }
+                    return super.next();
+                }
+            };
+            OrderBy sort = new OrderBy(0, true, failing);
+            sort.setMemoryBudget(200 * (COLUMNS * 4 + 64));
+            sort.setParallelism(threads);
+            try {
+                sort.open();
+                fail("the child failed");
+            } catch (DbException e) {
+                // expected
+            }
+            failing.close();
+            assertEquals(before, countSpillFiles());
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void sortOrderIsFirstField() throws Exception {
+        createTable(10, 10);
+        TransactionId tid = new TransactionId();
+        OrderBy sort = new OrderBy(new int[]{2, 0}, new boolean[]{false, true}, new SeqScan(tid, table.getId()));
+        assertEquals(new SortOrder(2, false), sort.getSortOrder());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Make test compatible with older version of ant.
+     */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ExternalSortTest.class);
+    }
+}
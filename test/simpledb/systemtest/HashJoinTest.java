@@ -0,0 +1,176 @@
+package simpledb.systemtest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.execution.BatchAdapter;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleIterator;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * HashEquiJoin gives the same rows whether child1 fits into its memory
+ * budget or not.
+ */
+public class HashJoinTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    private List<List<Integer>> t1Tuples;
+    private List<List<Integer>> t2Tuples;
+    private HeapFile table1;
+    private HeapFile table2;
+
+    private void createTables(int rows1, int rows2, int maxValue, Integer fixedKey) throws IOException {
+        Map<Integer, Integer> columnSpecification = new HashMap<>();
+        if (fixedKey != null) {
+            columnSpecification.put(0, fixedKey);
+        }
+        t1Tuples = new ArrayList<>();
+        table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, rows1, maxValue, columnSpecification, t1Tuples);
+        t2Tuples = new ArrayList<>();
+        table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, rows2, maxValue, columnSpecification, t2Tuples);
+    }
+
+    private List<List<Integer>> expected() {
+        Map<Integer, List<List<Integer>>> byKey = new HashMap<>();
+        for (List<Integer> t1 : t1Tuples) {
+            byKey.computeIfAbsent(t1.get(0), k -> new ArrayList<>()).add(t1);
+        }
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t2 : t2Tuples) {
+            for (List<Integer> t1 : byKey.getOrDefault(t2.get(0), new ArrayList<>())) {
+                List<Integer> out = new ArrayList<>(t1);
+                out.addAll(t2);
+                expected.add(out);
+            }
+        }
+        return expected;
+    }
+
+    private HashEquiJoin join(TransactionId tid, long budget) {
+        HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, table1.getId()), new SeqScan(tid, table2.getId()));
+        join.setMemoryBudget(budget);
+        return join;
+    }
+
+    private void validate(long budget, boolean batched, boolean expectSpill)
+            throws DbException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        HashEquiJoin join = join(tid, budget);
+        OpIterator op = batched ? new BatchAdapter(join) : join;
+        SystemTestUtil.matchTuples(op, expected());
+        assertEquals(expectSpill, join.getSpillStats().hasSpilled());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void inMemory() throws Exception {
+        createTables(2000, 2000, 1000, null);
+        validate(HashEquiJoin.getDefaultMemoryBudget(), false, false);
+        validate(HashEquiJoin.getDefaultMemoryBudget(), true, false);
+    }
+
+    @Test public void spill() throws Exception {
+        createTables(5000, 3000, 2000, null);
+        // 大约 200 行的预算，要切好几个分区
+        validate(200 * 72, false, true);
+        validate(200 * 72, true, true);
+    }
+
+    @Test public void recursiveSpill() throws Exception {
+        createTables(5000, 2000, 5000, null);
+        TransactionId tid = new TransactionId();
+        HashEquiJoin join = join(tid, 20 * 72);
+        SystemTestUtil.matchTuples(join, expected());
+        assertTrue(join.getSpillStats().getDepth() > 1);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void skewedKey() throws Exception {
+        // 全是同一个 key，怎么切都切不开，只能分块
+        createTables(500, 40, 1000, 7);
+        TransactionId tid = new TransactionId();
+        HashEquiJoin join = join(tid, 100 * 72);
+        SystemTestUtil.matchTuples(join, expected());
+        assertTrue(join.getSpillStats().getPasses() > 0);
+        assertTrue(join.getSpillStats().getDepth() <= 2);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void rewind() throws Exception {
+        createTables(3000, 1000, 1000, null);
+        List<List<Integer>> expected = expected();
+        for (long budget : new long[]{HashEquiJoin.getDefaultMemoryBudget(), 100 * 72}) {
+            TransactionId tid = new TransactionId();
+            HashEquiJoin join = join(tid, budget);
+            join.open();
+            int first = 0;
+            while (join.hasNext()) {
+                join.next();
+                first++;
+            }
+            join.rewind();
+            int second = 0;
+            while (join.hasNext()) {
+                join.next();
+                second++;
+            }
+            join.close();
+            assertEquals(expected.size(), first);
+            assertEquals(expected.size(), second);
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    @Test public void serialized() throws Exception {
+        createTables(2000, 1000, 500, null);
+        HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                tupleIterator(t1Tuples), tupleIterator(t2Tuples));
+        join.setMemoryBudget(100 * 72);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(join);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            join = (HashEquiJoin) in.readObject();
+        }
+        SystemTestUtil.matchTuples(join, expected());
+        assertTrue(join.getSpillStats().hasSpilled());
+    }
+
+    private static TupleIterator tupleIterator(List<List<Integer>> rows) {
+        List<Tuple> tuples = new ArrayList<>();
+        for (List<Integer> row : rows) {
+            tuples.add(Utility.getTuple(row.stream().mapToInt(Integer::intValue).toArray(), COLUMNS));
+        }
+        return new TupleIterator(Utility.getTupleDesc(COLUMNS), tuples);
+    }
+
+    /**
+     * Make test compatible with older version of ant.
+     */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(HashJoinTest.class);
+    }
+}
@@ -0,0 +1,185 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.JoinOptimizer;
+import simpledb.optimizer.LogicalJoinNode;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class IndexJoinTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    private static List<List<Integer>> expected(List<List<Integer>> outer, List<List<Integer>> inner,
+                                                int minInnerValue) {
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t1 : outer) {
+            for (List<Integer> t2 : inner) {
+                if (t1.get(1).equals(t2.get(0)) && t2.get(1) >= minInnerValue) {
+                    List<Integer> out = new ArrayList<>(t1);
+                    out.addAll(t2);
+                    expected.add(out);
+                }
+            }
+        }
+        return expected;
+    }
+
+    @Test public void join() throws Exception {
+        List<List<Integer>> outer = new ArrayList<>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 3000, 1000, new HashMap<>(), outer);
+        List<List<Integer>> inner = new ArrayList<>();
+        BTreeFile table2 = BTreeUtility.createRandomBTreeFile(COLUMNS, 2000, 1000, new HashMap<>(), inner, 0);
+
+        TransactionId tid = new TransactionId();
+        IndexNestedLoopJoin join = new IndexNestedLoopJoin(new JoinPredicate(1, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, table1.getId()), new SeqScan(tid, table2.getId()));
+        SystemTestUtil.matchTuples(join, expected(outer, inner, Integer.MIN_VALUE));
+
+        // 每批里一个 key 只查一次
+        Set<Integer> keys = new HashSet<>();
+        for (List<Integer> t : outer) {
+            keys.add(t.get(1));
+        }
+        assertTrue(join.getProbes() >= keys.size());
+        assertTrue(join.getProbes() < outer.size());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void filteredInner() throws Exception {
+        List<List<Integer>> outer = new ArrayList<>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 500, 200, new HashMap<>(), outer);
+        List<List<Integer>> inner = new ArrayList<>();
+        BTreeFile table2 = BTreeUtility.createRandomBTreeFile(COLUMNS, 1000, 200, new HashMap<>(), inner, 0);
+
+        TransactionId tid = new TransactionId();
+        OpIterator filtered = new Filter(new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(100)),
+                new SeqScan(tid, table2.getId()));
+        IndexNestedLoopJoin join = new IndexNestedLoopJoin(new JoinPredicate(1, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, table1.getId()), filtered);
+        SystemTestUtil.matchTuples(join, expected(outer, inner, 100));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void rewind() throws Exception {
+        List<List<Integer>> outer = new ArrayList<>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 1500, 300, new HashMap<>(), outer);
+        List<List<Integer>> inner = new ArrayList<>();
+        BTreeFile table2 = BTreeUtility.createRandomBTreeFile(COLUMNS, 600, 300, new HashMap<>(), inner, 0);
+        int expected = expected(outer, inner, Integer.MIN_VALUE).size();
+
+        TransactionId tid = new TransactionId();
+        IndexNestedLoopJoin join = new IndexNestedLoopJoin(new JoinPredicate(1, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, table1.getId()), new SeqScan(tid, table2.getId()));
+        join.open();
+        for (int pass = 0; pass < 2; pass++) {
+            int count = 0;
+            while (join.hasNext()) {
+                join.next();
+                count++;
+            }
+            assertEquals(expected, count);
+            join.rewind();
+        }
+        join.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void setChildren() throws Exception {
+        List<List<Integer>> outer = new ArrayList<>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 300, 100, new HashMap<>(), outer);
+        BTreeFile table2 = BTreeUtility.createRandomBTreeFile(COLUMNS, 200, 100, new HashMap<>(), null, 0);
+        List<List<Integer>> inner = new ArrayList<>();
+        BTreeFile table3 = BTreeUtility.createRandomBTreeFile(COLUMNS, 200, 100, new HashMap<>(), inner, 0);
+
+        TransactionId tid = new TransactionId();
+        IndexNestedLoopJoin join = new IndexNestedLoopJoin(new JoinPredicate(1, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, table1.getId()), new SeqScan(tid, table2.getId()));
+        // 换了 child2 就要到新的 B+ 树里查，用新的过滤条件
+        join.setChildren(new OpIterator[]{new SeqScan(tid, table1.getId()),
+                new Filter(new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(50)),
+                        new SeqScan(tid, table3.getId()))});
+        SystemTestUtil.matchTuples(join, expected(outer, inner, 50));
+
+        try {
+            join.setChildren(new OpIterator[]{new SeqScan(tid, table1.getId()), new SeqScan(tid, table1.getId())});
+            fail("child2 is not a B+ tree");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void optimizerPicksIndexJoin() throws Exception {
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, new HashMap<>(), null, "c");
+        BTreeFile table2 = BTreeUtility.createRandomBTreeFile(COLUMNS, 20000, new HashMap<>(), null, 0);
+        int height = table2.estimateHeight();
+        assertTrue(height >= 2);
+        TransactionId tid = new TransactionId();
+        SeqScan scan2 = new SeqScan(tid, table2.getId(), "t2");
+        LogicalJoinNode lj = new LogicalJoinNode("t1", "t2", "t1.c1",
+                scan2.getTupleDesc().getFieldName(0), Predicate.Op.EQUALS);
+
+        // 外表小：每行从根查到叶子，读的页比扫一遍内表少
+        OpIterator j = JoinOptimizer.instantiateJoin(lj, new SeqScan(tid, table1.getId(), "t1"), scan2, 10);
+        assertTrue(j instanceof IndexNestedLoopJoin);
+
+        // 外表大，或者不知道外表多大，就还是 hash join
+        int big = table2.numPages() / height + 1;
+        assertTrue(JoinOptimizer.instantiateJoin(lj, new SeqScan(tid, table1.getId(), "t1"), scan2, big)
+                instanceof HashEquiJoin);
+        assertTrue(JoinOptimizer.instantiateJoin(lj, new SeqScan(tid, table1.getId(), "t1"), scan2)
+                instanceof HashEquiJoin);
+
+        // 内表不是 B+ 树也是 hash join
+        assertFalse(IndexNestedLoopJoin.canProbe(new SeqScan(tid, table1.getId(), "t1"), 0));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void indexJoinCost() throws Exception {
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, new HashMap<>(), null, "c");
+        BTreeFile table2 = BTreeUtility.createRandomBTreeFile(COLUMNS, 20000, new HashMap<>(), null, 0);
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table1.getId(), "t1");
+        lp.addScan(table2.getId(), "t2");
+        String keyName = table2.getTupleDesc().getFieldName(0);
+        LogicalJoinNode lj = new LogicalJoinNode("t1", "t2", "c1", keyName, Predicate.Op.EQUALS);
+        JoinOptimizer jo = new JoinOptimizer(lp, Collections.singletonList(lj));
+
+        int card2 = 20000;
+        double cost1 = 10, cost2 = table2.numPages() * 1000.0;
+        double nestedLoops = cost1 + 10 * cost2 + 10.0 * card2;
+        double index = jo.estimateJoinCost(lj, 10, card2, cost1, cost2);
+        assertTrue(index < nestedLoops);
+        assertTrue(index < cost1 + cost2);
+
+        // 外表大到查索引不划算，就按普通的连接估
+        int big = table2.numPages() / table2.estimateHeight() + 1;
+        assertEquals(cost1 + big * cost2 + (double) big * card2,
+                jo.estimateJoinCost(lj, big, card2, cost1, cost2), 0.001);
+        // 内表是堆文件，没有索引可查
+        assertEquals(nestedLoops, jo.estimateJoinCost(lj.swapInnerOuter(), 10, card2, cost1, cost2), 0.001);
+    }
+
+    /**
+     * Make test compatible with older version of ant.
+     */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(IndexJoinTest.class);
+    }
+}
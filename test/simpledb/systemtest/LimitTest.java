@@ -0,0 +1,147 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.Parser;
+import simpledb.common.Database;
+import simpledb.execution.*;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * LIMIT and OFFSET, with and without ORDER BY.
+ */
+public class LimitTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    private List<List<Integer>> tuples;
+    private HeapFile table;
+
+    private void createTable(int rows, int maxValue) throws Exception {
+        tuples = new ArrayList<>();
+        table = SystemTestUtil.createRandomHeapFile(COLUMNS, rows, maxValue, new HashMap<>(), tuples, "c");
+    }
+
+    private List<List<Integer>> sorted(int field, boolean asc) {
+        List<List<Integer>> sorted = new ArrayList<>(tuples);
+        sorted.sort((a, b) -> asc ? Integer.compare(a.get(field), b.get(field))
+                : Integer.compare(b.get(field), a.get(field)));
+        return sorted;
+    }
+
+    private static List<List<Integer>> read(OpIterator it) throws Exception {
+        List<List<Integer>> result = new ArrayList<>();
+        while (it.hasNext()) {
+            result.add(SystemTestUtil.tupleToList(it.next()));
+        }
+        return result;
+    }
+
+    private static List<List<Integer>> readAll(OpIterator it) throws Exception {
+        it.open();
+        List<List<Integer>> result = read(it);
+        it.close();
+        return result;
+    }
+
+    @Test public void limitAndOffset() throws Exception {
+        createTable(1000, 100);
+        TransactionId tid = new TransactionId();
+        assertEquals(tuples.subList(0, 10), readAll(new Limit(10, 0, new SeqScan(tid, table.getId()))));
+        assertEquals(tuples.subList(995, 1000), readAll(new Limit(10, 995, new SeqScan(tid, table.getId()))));
+        assertEquals(tuples.subList(100, 1000),
+                readAll(new Limit(Limit.NO_LIMIT, 100, new SeqScan(tid, table.getId()))));
+        assertTrue(readAll(new Limit(0, 0, new SeqScan(tid, table.getId()))).isEmpty());
+        assertTrue(readAll(new Limit(5, 2000, new SeqScan(tid, table.getId()))).isEmpty());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void limitStopsReading() throws Exception {
+        createTable(5000, 100);
+        assertTrue(table.numPages() > 2);
+        TransactionId tid = new TransactionId();
+        Limit limit = new Limit(5, 0, new SeqScan(tid, table.getId()));
+        assertEquals(tuples.subList(0, 5), readAll(limit));
+        // 只锁了第一页
+        assertTrue(Database.getBufferPool().holdsLock(tid, new HeapPageId(table.getId(), 0)));
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(table.getId(), 1)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void topN() throws Exception {
+        createTable(3000, 50);
+        TransactionId tid = new TransactionId();
+        for (boolean asc : new boolean[]{true, false}) {
+            List<List<Integer>> sorted = sorted(1, asc);
+            assertEquals(sorted.subList(0, 10),
+                    readAll(new TopN(new int[]{1}, new boolean[]{asc}, 10, 0, new SeqScan(tid, table.getId()))));
+            assertEquals(sorted.subList(20, 45),
+                    readAll(new TopN(new int[]{1}, new boolean[]{asc}, 25, 20, new SeqScan(tid, table.getId()))));
+            assertEquals(sorted,
+                    readAll(new TopN(new int[]{1}, new boolean[]{asc}, 5000, 0, new SeqScan(tid, table.getId()))));
+        }
+        assertTrue(readAll(new TopN(0, true, 0, new SeqScan(tid, table.getId()))).isEmpty());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void topNMatchesOrderBy() throws Exception {
+        // 很多相同的 key，看前 N 个和 OrderBy 是不是一样
+        createTable(2000, 5);
+        TransactionId tid = new TransactionId();
+        int[] fields = {0, 1};
+        boolean[] ascs = {false, true};
+        List<List<Integer>> expected = readAll(new Limit(300, 7,
+                new OrderBy(fields, ascs, new SeqScan(tid, table.getId()))));
+        assertEquals(expected, readAll(new TopN(fields, ascs, 300, 7, new SeqScan(tid, table.getId()))));
+
+        TopN top = new TopN(fields, ascs, 300, 7, new SeqScan(tid, table.getId()));
+        top.open();
+        assertEquals(expected, read(top));
+        top.rewind();
+        assertEquals(expected, read(top));
+        top.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void parser() throws Exception {
+        createTable(500, 100);
+        Database.getCatalog().addTable(table, "t");
+        TableStats.setTableStats("t", new TableStats(table.getId(), 10));
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+
+        OpIterator plan = p.generateLogicalPlan(tid, "SELECT * FROM t ORDER BY t.c1 DESC LIMIT 10 OFFSET 3;")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof TopN);
+        assertEquals(sorted(1, false).subList(3, 13), readAll(plan));
+
+        plan = p.generateLogicalPlan(tid, "SELECT * FROM t limit 7;")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof Limit);
+        assertEquals(tuples.subList(0, 7), readAll(plan));
+
+        plan = p.generateLogicalPlan(tid, "SELECT * FROM t OFFSET 495;")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertEquals(tuples.subList(495, 500), readAll(plan));
+
+        plan = p.generateLogicalPlan(tid, "SELECT * FROM t ORDER BY t.c0, t.c1 DESC;")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof OrderBy);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Make test compatible with older version of ant.
+     */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(LimitTest.class);
+    }
+}
@@ -2,6 +2,7 @@ package simpledb.systemtest;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 
@@ -12,8 +13,10 @@ import simpledb.common.Utility;
 import simpledb.execution.Insert;
 import simpledb.execution.SeqScan;
 import simpledb.storage.*;
+import simpledb.transaction.Durability;
 import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
 
 import static org.junit.Assert.*;
 
@@ -160,6 +163,164 @@ public class LogTest extends SimpleDbTestBase {
             throw new RuntimeException("LogTest:setBeforeImage() not called? patch failed?");
     }
 
+    @Test public void TestCompactUpdates()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        // *** Test:
+        // only the first update of a page logs a full image, later ones
+        // log the changed bytes
+        doInsert(hf1, 1, 2);
+        long size = Database.getLogFile().getLogSize();
+        doInsert(hf1, 3, 4);
+        long growth = Database.getLogFile().getLogSize() - size;
+        if(growth >= BufferPool.getPageSize() / 4)
+            throw new RuntimeException("LogTest: update records too large: " + growth);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 4, true);
+        t.commit();
+    }
+
+    @Test public void TestRecoverManyPages()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        // *** Test:
+        // committed, aborted and unfinished updates spread over pages of
+        // both tables, redone by several recovery threads
+        Transaction t1 = new Transaction();
+        t1.start();
+        List<Tuple> rows = new ArrayList<>();
+        for (int i = 0; i < 1500; i++) {
+            Tuple row = new Tuple(Utility.getTupleDesc(2));
+            row.setField(0, new IntField(1000 + i));
+            row.setField(1, new IntField(0));
+            rows.add(row);
+        }
+        Insert insert = new Insert(t1.getId(), new TupleIterator(Utility.getTupleDesc(2), rows), hf1.getId());
+        insert.open();
+        insert.next();
+        insert.close();
+        insertRow(hf2, t1, 1);
+        t1.commit();
+        assertTrue(hf1.numPages() > 1);
+
+        dontInsert(hf1, 2);
+        doInsert(hf2, 3, -1);
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t2, 4);
+        insertRow(hf2, t2, 5);
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1000, true);
+        look(hf1, t, 2499, true);
+        look(hf2, t, 1, true);
+        look(hf1, t, 2, false);
+        look(hf2, t, 3, true);
+        look(hf1, t, 4, false);
+        look(hf2, t, 5, false);
+        t.commit();
+    }
+
+    @Test public void TestPageLsn()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        // *** Test:
+        // flushing a page stamps it with the LSN of its UPDATE record
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 1);
+        Page p = Database.getBufferPool().getPage(t.getId(),
+                new HeapPageId(hf1.getId(), 0), Permissions.READ_ONLY);
+        assertEquals(0, p.getLsn());
+        Database.getBufferPool().flushAllPages();
+        long lsn = p.getLsn();
+        assertTrue(lsn > 0);
+        assertTrue(lsn < Database.getLogFile().getDurable());
+
+        insertRow(hf1, t, 2);
+        Database.getBufferPool().flushAllPages();
+        assertTrue(p.getLsn() > lsn);
+        // the LSN is written with the page
+        assertEquals(p.getLsn(), hf1.readPage(p.getId()).getLsn());
+        t.commit();
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        t.commit();
+    }
+
+    @Test public void TestRedoSkipsCurrentPages()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a page on disk that carries the LSN of its last UPDATE record is
+        // not redone: change it behind the log's back, redoing the insert
+        // of 2 would bring the row back
+        HeapPage p = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        assertTrue(p.getLsn() > 0);
+        Iterator<Tuple> it = p.iterator();
+        while (it.hasNext()) {
+            Tuple tu = it.next();
+            if (((IntField) tu.getField(0)).getValue() == 2) {
+                p.deleteTuple(tu);
+            }
+        }
+        hf1.writePage(p);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, false);
+        t.commit();
+    }
+
+    @Test public void TestFuzzyCheckpoint()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, -1);
+
+        // *** Test:
+        // a checkpoint does not write the dirty pages of running
+        // transactions, which commit after it
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 2);
+        Page p = Database.getBufferPool().getPage(t.getId(),
+                new HeapPageId(hf1.getId(), 0), Permissions.READ_ONLY);
+        Database.getLogFile().logCheckpoint();
+        assertEquals(t.getId(), p.isDirty());
+        t.commit();
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        t.commit();
+    }
+
     @Test public void TestFlushAll()
             throws IOException, DbException, TransactionAbortedException {
         setup();
@@ -198,6 +359,48 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestAsyncCommit()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, -1);
+        HeapPageId pid = new HeapPageId(hf1.getId(), 0);
+        int emptySlots = ((HeapPage) hf1.readPage(pid)).getNumEmptySlots();
+
+        // *** Test:
+        // an ASYNC commit neither forces the log nor writes its pages
+        Database.getLogFile().setAsyncCommitDelay(TimeUnit.MINUTES.toMillis(1));
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 2);
+        t1.commit(Durability.ASYNC);
+        TransactionId reader = new TransactionId();
+        Page p = Database.getBufferPool().getPage(reader, pid, Permissions.READ_ONLY);
+        Database.getBufferPool().transactionComplete(reader);
+        assertTrue(p.getLsn() > 0);
+        assertTrue(Database.getLogFile().getDurable() <= p.getLsn());
+        assertEquals(emptySlots, ((HeapPage) hf1.readPage(pid)).getNumEmptySlots());
+
+        // *** Test:
+        // aborting a later change of the page keeps the deferred commit
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t2, 3);
+        t2.abort();
+        assertEquals(emptySlots - 1, ((HeapPage) hf1.readPage(pid)).getNumEmptySlots());
+
+        // *** Test:
+        // once the log is on disk the commit survives a crash
+        Database.getLogFile().force();
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        t.commit();
+    }
+
     @Test public void TestAbort()
             throws IOException, DbException, TransactionAbortedException {
         setup();
@@ -251,6 +454,32 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestAbortAcrossCheckpoint()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, -1);
+
+        // *** Test:
+        // the prevLSN chain of a transaction survives the truncation of
+        // the log by a checkpoint
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 2);
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().logCheckpoint();
+        insertRow(hf2, t, 3);
+        insertRow(hf1, t, 4);
+        abort(t);
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, false);
+        look(hf2, t, 3, false);
+        look(hf1, t, 4, false);
+        t.commit();
+    }
+
     @Test public void TestAbortCrash()
             throws IOException, DbException, TransactionAbortedException {
         setup();
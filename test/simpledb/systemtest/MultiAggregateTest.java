@@ -0,0 +1,254 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import simpledb.Parser;
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleIterator;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Several aggregates and several GROUP BY fields computed by one Aggregate.
+ */
+public class MultiAggregateTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 4;
+
+    private static final Aggregator.Op[] OPS = {Aggregator.Op.SUM, Aggregator.Op.COUNT,
+            Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.AVG};
+    private static final int[] AFIELDS = {2, 2, 3, 3, 2};
+
+    private List<List<Integer>> tuples;
+    private HeapFile table;
+
+    private void createTable(int rows, int maxValue) throws Exception {
+        tuples = new ArrayList<>();
+        table = SystemTestUtil.createRandomHeapFile(COLUMNS, rows, maxValue, new HashMap<>(), tuples, "c");
+    }
+
+    private static int compute(List<Integer> values, Aggregator.Op op) {
+        long sum = 0;
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int v : values) {
+            sum += v;
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        switch (op) {
+            case COUNT: return values.size();
+            case SUM: return (int) sum;
+            case MIN: return min;
+            case MAX: return max;
+            default: return (int) (sum / values.size());
+        }
+    }
+
+    /**
+     * @return the aggregate results of each group, keyed by the group fields
+     */
+    private Map<List<Integer>, List<Integer>> expected(int[] gfields, int[] afields, Aggregator.Op[] ops) {
+        Map<List<Integer>, List<List<Integer>>> groups = new HashMap<>();
+        for (List<Integer> t : tuples) {
+            List<Integer> key = new ArrayList<>();
+            for (int g : gfields) {
+                key.add(t.get(g));
+            }
+            groups.computeIfAbsent(key, k -> new ArrayList<>()).add(t);
+        }
+        Map<List<Integer>, List<Integer>> expected = new HashMap<>();
+        for (Map.Entry<List<Integer>, List<List<Integer>>> e : groups.entrySet()) {
+            List<Integer> results = new ArrayList<>();
+            for (int a = 0; a < afields.length; a++) {
+                List<Integer> values = new ArrayList<>();
+                for (List<Integer> t : e.getValue()) {
+                    values.add(t.get(afields[a]));
+                }
+                results.add(compute(values, ops[a]));
+            }
+            expected.put(e.getKey(), results);
+        }
+        return expected;
+    }
+
+    /**
+     * @return the rows of an iterator split into the first keyWidth fields
+     * and the rest
+     */
+    private static Map<List<Integer>, List<Integer>> read(OpIterator it, int keyWidth) throws Exception {
+        Map<List<Integer>, List<Integer>> result = new HashMap<>();
+        while (it.hasNext()) {
+            List<Integer> row = SystemTestUtil.tupleToList(it.next());
+            List<Integer> old = result.put(new ArrayList<>(row.subList(0, keyWidth)),
+                    new ArrayList<>(row.subList(keyWidth, row.size())));
+            assertNull("group returned twice: " + row, old);
+        }
+        return result;
+    }
+
+    @Test public void tupleDesc() throws Exception {
+        createTable(10, 5);
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, table.getId());
+        Aggregate agg = new Aggregate(scan, AFIELDS, new int[]{1, 0}, OPS);
+        TupleDesc td = agg.getTupleDesc();
+        assertEquals(7, td.numFields());
+        assertEquals(scan.getTupleDesc().getFieldName(1), td.getFieldName(0));
+        assertEquals(scan.getTupleDesc().getFieldName(0), td.getFieldName(1));
+        assertEquals(scan.getTupleDesc().getFieldName(3), td.getFieldName(5));
+        assertEquals(1, agg.groupField());
+        assertArrayEquals(new int[]{1, 0}, agg.groupFields());
+        assertArrayEquals(OPS, agg.aggregateOps());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void severalGroupFields() throws Exception {
+        createTable(3000, 8);
+        TransactionId tid = new TransactionId();
+        int[][] groupings = {{}, {0}, {0, 1}, {1, 0, 3}};
+        for (int[] gfields : groupings) {
+            Aggregate agg = new Aggregate(new SeqScan(tid, table.getId()), AFIELDS, gfields, OPS);
+            agg.open();
+            assertEquals(Arrays.toString(gfields), expected(gfields, AFIELDS, OPS), read(agg, gfields.length));
+            agg.rewind();
+            assertEquals(expected(gfields, AFIELDS, OPS), read(agg, gfields.length));
+            agg.close();
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void spill() throws Exception {
+        createTable(20000, 300);
+        int[] gfields = {0, 1};
+        TransactionId tid = new TransactionId();
+        Aggregate agg = new Aggregate(new SeqScan(tid, table.getId()), AFIELDS, gfields, OPS);
+        agg.setMemoryBudget(64 * 1024);
+        agg.open();
+        assertEquals(expected(gfields, AFIELDS, OPS), read(agg, gfields.length));
+        assertTrue(agg.getSpillStats().hasSpilled());
+        agg.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void stringFields() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[]{Type.STRING_TYPE, Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE});
+        List<Tuple> rows = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new StringField("k" + i % 3, Type.STRING_LEN));
+            t.setField(1, new IntField(i % 2));
+            t.setField(2, new StringField("v" + i, Type.STRING_LEN));
+            t.setField(3, new IntField(i));
+            rows.add(t);
+        }
+        Aggregate agg = new Aggregate(new TupleIterator(td, rows), new int[]{2, 3},
+                new int[]{0, 1}, new Aggregator.Op[]{Aggregator.Op.COUNT, Aggregator.Op.MAX});
+        agg.open();
+        Map<String, Integer> counts = new HashMap<>();
+        Map<String, Integer> maxs = new HashMap<>();
+        while (agg.hasNext()) {
+            Tuple t = agg.next();
+            String key = ((StringField) t.getField(0)).getValue() + "/" + ((IntField) t.getField(1)).getValue();
+            counts.put(key, ((IntField) t.getField(2)).getValue());
+            maxs.put(key, ((IntField) t.getField(3)).getValue());
+        }
+        agg.close();
+        assertEquals(6, counts.size());
+        assertEquals(17, (int) counts.get("k0/0"));
+        assertEquals(16, (int) counts.get("k2/1"));
+        assertEquals(99, (int) maxs.get("k0/1"));
+        assertEquals(98, (int) maxs.get("k2/0"));
+
+        try {
+            new Aggregate(new TupleIterator(td, rows), new int[]{3, 2}, new int[0],
+                    new Aggregator.Op[]{Aggregator.Op.SUM, Aggregator.Op.SUM});
+            fail("SUM over a string field");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static int count(OpIterator plan, Class<?> type) {
+        int n = type.isInstance(plan) ? 1 : 0;
+        if (plan instanceof Operator) {
+            for (OpIterator child : ((Operator) plan).getChildren()) {
+                n += count(child, type);
+            }
+        }
+        return n;
+    }
+
+    @Test public void parser() throws Exception {
+        createTable(2000, 6);
+        Database.getCatalog().addTable(table, "t");
+        TableStats.setTableStats("t", new TableStats(table.getId(), 10));
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+
+        // 一次扫描、一个 Aggregate 算出所有的聚合
+        OpIterator plan = p.generateLogicalPlan(tid,
+                "SELECT t.c1, SUM(t.c2), t.c0, MAX(t.c3), COUNT(t.c2), SUM(t.c2) FROM t GROUP BY t.c0, t.c1;")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertEquals(1, count(plan, Aggregate.class));
+        assertEquals(1, count(plan, SeqScan.class));
+        Map<List<Integer>, List<Integer>> expected = expected(new int[]{1, 0},
+                new int[]{2, 3, 2, 2},
+                new Aggregator.Op[]{Aggregator.Op.SUM, Aggregator.Op.MAX, Aggregator.Op.COUNT, Aggregator.Op.SUM});
+        Map<List<Integer>, List<Integer>> result = new HashMap<>();
+        plan.open();
+        while (plan.hasNext()) {
+            List<Integer> row = SystemTestUtil.tupleToList(plan.next());
+            result.put(Arrays.asList(row.get(0), row.get(2)),
+                    Arrays.asList(row.get(1), row.get(3), row.get(4), row.get(5)));
+        }
+        plan.close();
+        assertEquals(expected, result);
+
+        plan = p.generateLogicalPlan(tid, "SELECT MIN(t.c1), MAX(t.c1), AVG(t.c3) FROM t;")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        plan.open();
+        assertEquals(expected(new int[0], new int[]{1, 1, 3},
+                new Aggregator.Op[]{Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.AVG}), read(plan, 0));
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void singleAggregateApi() throws Exception {
+        createTable(1000, 6);
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table.getId(), "t");
+        lp.addProjectField("t.c0", null);
+        lp.addProjectField("t.c2", "SUM");
+        lp.addAggregate("SUM", "t.c2", "t.c0");
+        OpIterator plan = lp.physicalPlan(tid, new HashMap<>(), false);
+        plan.open();
+        assertEquals(expected(new int[]{0}, new int[]{2}, new Aggregator.Op[]{Aggregator.Op.SUM}),
+                read(plan, 1));
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Make test compatible with older version of ant.
+     */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(MultiAggregateTest.class);
+    }
+}
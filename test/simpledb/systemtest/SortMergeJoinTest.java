@@ -0,0 +1,165 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.JoinOptimizer;
+import simpledb.optimizer.LogicalJoinNode;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    private static final Predicate.Op[] OPS = {Predicate.Op.EQUALS, Predicate.Op.LESS_THAN,
+            Predicate.Op.LESS_THAN_OR_EQ, Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ};
+
+    private static List<List<Integer>> expected(List<List<Integer>> t1Tuples, List<List<Integer>> t2Tuples,
+                                                Predicate.Op op) {
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t1 : t1Tuples) {
+            for (List<Integer> t2 : t2Tuples) {
+                int a = t1.get(0), b = t2.get(0);
+                boolean match;
+                switch (op) {
+                    case EQUALS: match = a == b; break;
+                    case LESS_THAN: match = a < b; break;
+                    case LESS_THAN_OR_EQ: match = a <= b; break;
+                    case GREATER_THAN: match = a > b; break;
+                    default: match = a >= b; break;
+                }
+                if (match) {
+                    List<Integer> out = new ArrayList<>(t1);
+                    out.addAll(t2);
+                    expected.add(out);
+                }
+            }
+        }
+        return expected;
+    }
+
+    @Test public void sortedHeapFiles() throws Exception {
+        List<List<Integer>> t1Tuples = new ArrayList<>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 300, 100, new HashMap<>(), t1Tuples);
+        List<List<Integer>> t2Tuples = new ArrayList<>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, 200, 100, new HashMap<>(), t2Tuples);
+
+        TransactionId tid = new TransactionId();
+        for (boolean asc : new boolean[]{true, false}) {
+            for (Predicate.Op op : OPS) {
+                OpIterator left = new OrderBy(0, asc, new SeqScan(tid, table1.getId()));
+                OpIterator right = new OrderBy(0, asc, new SeqScan(tid, table2.getId()));
+                SortMergeJoin join = new SortMergeJoin(new JoinPredicate(0, op, 0), left, right);
+                SystemTestUtil.matchTuples(join, expected(t1Tuples, t2Tuples, op));
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void rewind() throws Exception {
+        List<List<Integer>> t1Tuples = new ArrayList<>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 100, 20, new HashMap<>(), t1Tuples);
+        List<List<Integer>> t2Tuples = new ArrayList<>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, 100, 20, new HashMap<>(), t2Tuples);
+
+        TransactionId tid = new TransactionId();
+        for (Predicate.Op op : new Predicate.Op[]{Predicate.Op.EQUALS, Predicate.Op.GREATER_THAN}) {
+            SortMergeJoin join = new SortMergeJoin(new JoinPredicate(0, op, 0),
+                    new OrderBy(0, true, new SeqScan(tid, table1.getId())),
+                    new OrderBy(0, true, new SeqScan(tid, table2.getId())));
+            int expected = expected(t1Tuples, t2Tuples, op).size();
+            join.open();
+            for (int pass = 0; pass < 2; pass++) {
+                int count = 0;
+                while (join.hasNext()) {
+                    join.next();
+                    count++;
+                }
+                assertEquals(expected, count);
+                join.rewind();
+            }
+            join.close();
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void btreeScans() throws Exception {
+        List<List<Integer>> t1Tuples = new ArrayList<>();
+        BTreeFile table1 = BTreeUtility.createRandomBTreeFile(COLUMNS, 2000, 500, new HashMap<>(), t1Tuples, 0);
+        List<List<Integer>> t2Tuples = new ArrayList<>();
+        BTreeFile table2 = BTreeUtility.createRandomBTreeFile(COLUMNS, 1000, 500, new HashMap<>(), t2Tuples, 0);
+
+        TransactionId tid = new TransactionId();
+        SeqScan left = new SeqScan(tid, table1.getId());
+        SeqScan right = new SeqScan(tid, table2.getId());
+        assertEquals(new SortOrder(0, true), left.getSortOrder());
+        SystemTestUtil.matchTuples(new SortMergeJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), left, right),
+                expected(t1Tuples, t2Tuples, Predicate.Op.EQUALS));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test(expected = DbException.class) public void unsortedInput() throws Exception {
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 500, 1000, new HashMap<>(), null);
+        TransactionId tid = new TransactionId();
+        SortMergeJoin join = new SortMergeJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, table1.getId()), new SeqScan(tid, table1.getId()));
+        try {
+            join.open();
+            while (join.hasNext()) {
+                join.next();
+            }
+        } finally {
+            join.close();
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    @Test public void optimizerPicksMergeJoin() throws Exception {
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, new HashMap<>(), null, "c");
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, new HashMap<>(), null, "c");
+        TransactionId tid = new TransactionId();
+        LogicalJoinNode lj = new LogicalJoinNode("t1", "t2", "t1.c0", "t2.c0", Predicate.Op.EQUALS);
+
+        OpIterator sorted = JoinOptimizer.instantiateJoin(lj,
+                new OrderBy(0, true, new SeqScan(tid, table1.getId(), "t1")),
+                new OrderBy(0, true, new SeqScan(tid, table2.getId(), "t2")));
+        assertTrue(sorted instanceof SortMergeJoin);
+        assertEquals(new SortOrder(0, true), sorted.getSortOrder());
+
+        OpIterator unsorted = JoinOptimizer.instantiateJoin(lj,
+                new SeqScan(tid, table1.getId(), "t1"), new SeqScan(tid, table2.getId(), "t2"));
+        assertTrue(unsorted instanceof HashEquiJoin);
+
+        // 方向不一样不能归并
+        OpIterator mixed = JoinOptimizer.instantiateJoin(lj,
+                new OrderBy(0, true, new SeqScan(tid, table1.getId(), "t1")),
+                new OrderBy(0, false, new SeqScan(tid, table2.getId(), "t2")));
+        assertTrue(mixed instanceof HashEquiJoin);
+
+        LogicalJoinNode range = new LogicalJoinNode("t1", "t2", "t1.c0", "t2.c0", Predicate.Op.LESS_THAN);
+        OpIterator rangeJoin = JoinOptimizer.instantiateJoin(range,
+                new Filter(new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(0)),
+                        new OrderBy(0, false, new SeqScan(tid, table1.getId(), "t1"))),
+                new OrderBy(0, false, new SeqScan(tid, table2.getId(), "t2")));
+        assertTrue(rangeJoin instanceof SortMergeJoin);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Make test compatible with older version of ant.
+     */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SortMergeJoinTest.class);
+    }
+}
@@ -0,0 +1,165 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.Aggregate;
+import simpledb.execution.Aggregator;
+import simpledb.execution.OpIterator;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleIterator;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Aggregates whose groups do not fit into the memory budget.
+ */
+public class SpillingAggregateTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    private List<List<Integer>> tuples;
+    private HeapFile table;
+
+    private void createTable(int rows, int maxValue) throws Exception {
+        tuples = new ArrayList<>();
+        table = SystemTestUtil.createRandomHeapFile(COLUMNS, rows, maxValue, new HashMap<>(), tuples);
+    }
+
+    private Map<Integer, Integer> expected(Aggregator.Op op) {
+        Map<Integer, long[]> acc = new HashMap<>();
+        for (List<Integer> t : tuples) {
+            // count, sum, min, max
+            long[] a = acc.computeIfAbsent(t.get(0), k -> new long[]{0, 0, Integer.MAX_VALUE, Integer.MIN_VALUE});
+            int v = t.get(1);
+            a[0]++;
+            a[1] += v;
+            a[2] = Math.min(a[2], v);
+            a[3] = Math.max(a[3], v);
+        }
+        Map<Integer, Integer> expected = new HashMap<>();
+        for (Map.Entry<Integer, long[]> e : acc.entrySet()) {
+            long[] a = e.getValue();
+            long result;
+            switch (op) {
+                case COUNT: result = a[0]; break;
+                case SUM: result = a[1]; break;
+                case MIN: result = a[2]; break;
+                case MAX: result = a[3]; break;
+                default: result = a[1] / a[0]; break;
+            }
+            expected.put(e.getKey(), (int) result);
+        }
+        return expected;
+    }
+
+    private static Map<Integer, Integer> read(OpIterator it) throws Exception {
+        Map<Integer, Integer> result = new HashMap<>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            Integer old = result.put(((IntField) t.getField(0)).getValue(), ((IntField) t.getField(1)).getValue());
+            assertNull("group returned twice: " + t, old);
+        }
+        return result;
+    }
+
+    @Test public void fitsInMemory() throws Exception {
+        createTable(5000, 100);
+        TransactionId tid = new TransactionId();
+        Aggregate agg = new Aggregate(new SeqScan(tid, table.getId()), 1, 0, Aggregator.Op.SUM);
+        agg.open();
+        assertEquals(expected(Aggregator.Op.SUM), read(agg));
+        assertFalse(agg.getSpillStats().hasSpilled());
+        agg.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void spill() throws Exception {
+        createTable(20000, 10000);
+        TransactionId tid = new TransactionId();
+        for (Aggregator.Op op : new Aggregator.Op[]{Aggregator.Op.COUNT, Aggregator.Op.SUM,
+                Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.AVG}) {
+            Aggregate agg = new Aggregate(new SeqScan(tid, table.getId()), 1, 0, op);
+            // 放得下几千个分组，剩下的分到各个分区里一次就放得下
+            agg.setMemoryBudget(128 * 1024);
+            agg.open();
+            assertEquals(expected(op), read(agg));
+            assertTrue(agg.getSpillStats().hasSpilled());
+            assertEquals(1, agg.getSpillStats().getDepth());
+            agg.close();
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void recursiveSpill() throws Exception {
+        createTable(20000, 100000);
+        TransactionId tid = new TransactionId();
+        Aggregate agg = new Aggregate(new SeqScan(tid, table.getId()), 1, 0, Aggregator.Op.MAX);
+        // 分区里的分组也放不下，要再分
+        agg.setMemoryBudget(2 * 1024);
+        agg.open();
+        assertEquals(expected(Aggregator.Op.MAX), read(agg));
+        assertTrue(agg.getSpillStats().getDepth() > 1);
+        agg.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void rewind() throws Exception {
+        createTable(10000, 5000);
+        Map<Integer, Integer> expected = expected(Aggregator.Op.COUNT);
+        TransactionId tid = new TransactionId();
+        for (long budget : new long[]{16 * 1024, Aggregate.getDefaultMemoryBudget()}) {
+            Aggregate agg = new Aggregate(new SeqScan(tid, table.getId()), 1, 0, Aggregator.Op.COUNT);
+            agg.setMemoryBudget(budget);
+            agg.open();
+            assertEquals(expected, read(agg));
+            agg.rewind();
+            assertEquals(expected, read(agg));
+            agg.close();
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void stringGroups() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[]{Type.STRING_TYPE, Type.STRING_TYPE});
+        List<Tuple> rows = new ArrayList<>();
+        Map<String, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 6000; i++) {
+            String key = "user" + (i * 7919 % 2000);
+            Tuple t = new Tuple(td);
+            t.setField(0, new StringField(key, Type.STRING_LEN));
+            t.setField(1, new StringField("x" + i, Type.STRING_LEN));
+            rows.add(t);
+            expected.merge(key, 1, Integer::sum);
+        }
+        Aggregate agg = new Aggregate(new TupleIterator(td, rows), 1, 0, Aggregator.Op.COUNT);
+        agg.setMemoryBudget(64 * 1024);
+        agg.open();
+        Map<String, Integer> result = new HashMap<>();
+        while (agg.hasNext()) {
+            Tuple t = agg.next();
+            result.put(((StringField) t.getField(0)).getValue(), ((IntField) t.getField(1)).getValue());
+        }
+        assertEquals(expected, result);
+        assertTrue(agg.getSpillStats().hasSpilled());
+        agg.close();
+    }
+
+    /**
+     * Make test compatible with older version of ant.
+     */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SpillingAggregateTest.class);
+    }
+}
@@ -0,0 +1,112 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.Parser;
+import simpledb.common.Database;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.LockMode;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parsed queries lock a large table once instead of every page they scan.
+ */
+public class TableLockTest extends SimpleDbTestBase {
+    private static final int THRESHOLD = 5;
+
+    private LockManager lockManager;
+    private HeapFile big;
+    private HeapFile small;
+
+    @Before public void createTables() throws Exception {
+        lockManager = Database.getBufferPool().getLockManager();
+        lockManager.setEscalationThreshold(THRESHOLD);
+        // 两列 int 一页 503 行
+        big = SystemTestUtil.createRandomHeapFile(2, 503 * (THRESHOLD + 3), 1000, new HashMap<>(),
+                new ArrayList<>(), "c");
+        small = SystemTestUtil.createRandomHeapFile(2, 503 * (THRESHOLD - 2), 1000, new HashMap<>(),
+                new ArrayList<>(), "c");
+        Database.getCatalog().addTable(big, "big");
+        Database.getCatalog().addTable(small, "small");
+        TableStats.computeStatistics();
+    }
+
+    private static List<SeqScan> scans(OpIterator plan) {
+        List<SeqScan> scans = new ArrayList<>();
+        if (plan instanceof SeqScan) {
+            scans.add((SeqScan) plan);
+        } else if (plan instanceof Operator) {
+            for (OpIterator child : ((Operator) plan).getChildren()) {
+                scans.addAll(scans(child));
+            }
+        }
+        return scans;
+    }
+
+    private static int run(OpIterator plan) throws Exception {
+        int rows = 0;
+        plan.open();
+        while (plan.hasNext()) {
+            plan.next();
+            rows++;
+        }
+        plan.close();
+        return rows;
+    }
+
+    @Test public void largeTableLockedUpFront() throws Exception {
+        TransactionId tid = new TransactionId();
+        OpIterator plan = new Parser().generateLogicalPlan(tid, "SELECT * FROM big WHERE big.c0 >= 0;")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        List<SeqScan> scans = scans(plan);
+        assertEquals(1, scans.size());
+        assertTrue(scans.get(0).isLockTable());
+
+        assertEquals(503 * (THRESHOLD + 3), run(plan));
+        assertEquals(LockMode.S, lockManager.getTableMode(big.getId(), tid));
+        assertTrue(lockManager.getPagesByTxid(tid).isEmpty());
+
+        // 别的事务读得了，写不了
+        TransactionId other = new TransactionId();
+        HeapPageId pid = new HeapPageId(big.getId(), 0);
+        assertTrue(lockManager.tryAcquirePage(pid, other, LockMode.S));
+        assertFalse(lockManager.tryAcquirePage(new HeapPageId(big.getId(), 1), other, LockMode.X));
+        Database.getBufferPool().transactionComplete(other);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void smallTableLocksPages() throws Exception {
+        TransactionId tid = new TransactionId();
+        OpIterator plan = new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM big, small WHERE big.c0 = small.c0;")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        for (SeqScan scan : scans(plan)) {
+            assertEquals(scan.getTableName().equals("big"), scan.isLockTable());
+        }
+        run(plan);
+        assertEquals(LockMode.S, lockManager.getTableMode(big.getId(), tid));
+        assertEquals(LockMode.IS, lockManager.getTableMode(small.getId(), tid));
+        assertEquals(small.numPages(), lockManager.getPagesByTxid(tid).size());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Make test compatible with older version of ant.
+     */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(TableLockTest.class);
+    }
+}